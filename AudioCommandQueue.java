@@ -0,0 +1,350 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * A bounded, lock-free queue of audio commands consumed by a single dispatch thread, so that
+ * the threads playing notes never wait on the audio backend.  Commands are preallocated slots
+ * that producers claim, fill in and publish, so enqueuing takes constant time and allocates
+ * nothing.
+ *
+ * <p>When the queue is full, producers either wait for room ({@link #BLOCK}) or discard the
+ * oldest command ({@link #DROP_OLDEST}), unless it is marked as not droppable.  With
+ * {@link #COALESCE}, updates to a {@link Parameter} sent with {@link #update} never take more
+ * than one slot: the parameter keeps only its latest value until the dispatch thread applies
+ * it, and other commands wait for room.  A coalesced value is applied where the first update
+ * not yet applied was queued, so it may take effect before commands queued after that update
+ * but ahead of its own, though never after commands queued after it.
+ *
+ * <p>Slots follow Dmitry Vyukov's bounded queue: each carries a sequence number saying
+ * whether it is free for the producer at a position or full for the consumer.  A producer
+ * discarding the oldest command claims it from the head just as the consumer would.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class AudioCommandQueue {
+  /** When full, producers wait until the dispatch thread makes room. */
+  public static final int BLOCK = 0;
+  /** When full, the oldest queued command is discarded to make room. */
+  public static final int DROP_OLDEST = 1;
+  /** Parameter updates keep only their latest value; other commands wait as with BLOCK. */
+  public static final int COALESCE = 2;
+
+  private static final String LOG_TAG = "AudioCommandQueue";
+  // Kind of the command applying a parameter's coalesced value.
+  private static final int APPLY_UPDATE = -1;
+  // Kind of an update that is not coalesced.
+  private static final int UPDATE = -2;
+  // Kind of the command releasing a thread waiting in await().
+  private static final int FENCE = -3;
+  private static final long BLOCKED_WAIT_NANOS = 100000;
+
+  /**
+   * Executes commands on the dispatch thread.
+   */
+  public interface CommandHandler {
+    /**
+     * Executes a command.  The command must not be used after this returns.
+     */
+    void execute(Command command);
+
+    /**
+     * Applies a parameter update sent with {@link AudioCommandQueue#update}.
+     *
+     * @param key  the key the parameter was created with
+     */
+    void update(Object key, float value);
+  }
+
+  /**
+   * A parameter that updates are sent to.  It holds its own latest value while an update is
+   * being coalesced, so coalescing allocates nothing.
+   */
+  public static final class Parameter {
+    private final Object key;
+    private final AtomicBoolean queued = new AtomicBoolean();
+    private volatile float value;
+
+    /**
+     * Creates a parameter whose updates are passed to the handler with the given key.
+     */
+    public Parameter(Object key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * A command slot.  Producers fill in whichever fields the command's kind needs, and clear
+   * {@code droppable} for commands that must be executed even under {@link #DROP_OLDEST}.
+   */
+  public static final class Command {
+    public int kind;
+    public Object target;
+    public Object data;
+    public String name;
+    public int id;
+    public float value0;
+    public float value1;
+    public float value2;
+    public long time;
+    public long enqueued;
+    public boolean droppable;
+    private long position;
+
+    // Copies the fields a handler sees from another command.
+    private void copy(Command command) {
+      kind = command.kind;
+      target = command.target;
+      data = command.data;
+      name = command.name;
+      id = command.id;
+      value0 = command.value0;
+      value1 = command.value1;
+      value2 = command.value2;
+      time = command.time;
+      enqueued = command.enqueued;
+      droppable = command.droppable;
+    }
+
+    private void clear() {
+      target = null;
+      data = null;
+      name = null;
+    }
+  }
+
+  private final Command[] slots;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  // The command being executed, copied out of its slot so the slot is free meanwhile.
+  private final Command current = new Command();
+  private final CommandHandler handler;
+  private final Thread thread;
+  private volatile int overflow = BLOCK;
+  private volatile boolean consumerWaiting;
+
+  /**
+   * Creates a queue and starts its dispatch thread.
+   *
+   * @param capacity  number of command slots, rounded up to a power of two
+   * @param handler  executes the commands on the dispatch thread
+   * @param threadName  name of the dispatch thread
+   */
+  public AudioCommandQueue(int capacity, CommandHandler handler, String threadName) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    slots = new Command[size];
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      slots[i] = new Command();
+      sequences.set(i, i);
+    }
+    mask = size - 1;
+    this.handler = handler;
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        dispatch();
+      }
+    }, threadName);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns what producers do when the queue is full.
+   */
+  public int overflow() {
+    return overflow;
+  }
+
+  /**
+   * Sets what producers do when the queue is full: {@link #BLOCK}, {@link #DROP_OLDEST} or
+   * {@link #COALESCE}.
+   */
+  public void setOverflow(int overflow) {
+    this.overflow = overflow;
+  }
+
+  /**
+   * Claims a slot for a command of the given kind, waiting for room or discarding the oldest
+   * command if the queue is full.  The slot must be filled in and passed to {@link #publish}
+   * promptly, since the dispatch thread waits for it.
+   */
+  public Command claim(int kind) {
+    while (true) {
+      long position = tail.get();
+      int index = (int) position & mask;
+      long sequence = sequences.get(index);
+      if (sequence == position) {
+        if (tail.compareAndSet(position, position + 1)) {
+          Command command = slots[index];
+          command.kind = kind;
+          command.position = position;
+          command.enqueued = System.nanoTime();
+          command.droppable = kind >= 0;
+          return command;
+        }
+      } else if (sequence < position) {
+        // Full
+        if (overflow == DROP_OLDEST) {
+          discardOldest();
+        } else {
+          LockSupport.parkNanos(BLOCKED_WAIT_NANOS);
+        }
+      }
+    }
+  }
+
+  /**
+   * Makes a claimed command available to the dispatch thread.
+   */
+  public void publish(Command command) {
+    sequences.set((int) command.position & mask, command.position + 1);
+    if (consumerWaiting) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /**
+   * Sends a parameter update to be applied on the dispatch thread.  Under
+   * {@link #COALESCE}, an update replaces any earlier value for the parameter that has not
+   * been applied yet.
+   */
+  public void update(Parameter parameter, float value) {
+    if (overflow != COALESCE) {
+      Command command = claim(UPDATE);
+      command.target = parameter.key;
+      command.value0 = value;
+      publish(command);
+      return;
+    }
+    // The value is stored before the parameter is queued, so the dispatch thread, which
+    // unqueues the parameter before reading it, never misses the latest value.
+    parameter.value = value;
+    if (parameter.queued.compareAndSet(false, true)) {
+      Command command = claim(APPLY_UPDATE);
+      command.target = parameter;
+      publish(command);
+    }
+  }
+
+  /**
+   * Waits until every command published before this call has been executed.  Must not be
+   * called from the dispatch thread.
+   *
+   * @throws InterruptedException  if the thread is interrupted while waiting
+   */
+  public void await() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(1);
+    Command command = claim(FENCE);
+    command.data = done;
+    publish(command);
+    done.await();
+  }
+
+  /**
+   * Returns the number of commands discarded because the queue was full.
+   */
+  public long dropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Returns the number of commands that threw an exception when executed.
+   */
+  public long failed() {
+    return failed.get();
+  }
+
+  /**
+   * Returns whether the calling thread is the dispatch thread.
+   */
+  public boolean isDispatchThread() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Returns the number of commands waiting to be executed.
+   */
+  public int size() {
+    return (int) Math.max(tail.get() - head.get(), 0);
+  }
+
+  // Takes the oldest published command off the queue and frees its slot, unless it has been
+  // taken by the dispatch thread first or must not be dropped, in which case this waits for the
+  // dispatch thread instead.
+
+  private void discardOldest() {
+    long position = head.get();
+    int index = (int) position & mask;
+    Command command = slots[index];
+    if (sequences.get(index) != position + 1 || !command.droppable) {
+      LockSupport.parkNanos(BLOCKED_WAIT_NANOS);
+    } else if (head.compareAndSet(position, position + 1)) {
+      command.clear();
+      sequences.set(index, position + slots.length);
+      dropped.incrementAndGet();
+    }
+  }
+
+  private void dispatch() {
+    while (true) {
+      long position = head.get();
+      int index = (int) position & mask;
+      if (sequences.get(index) == position + 1) {
+        if (head.compareAndSet(position, position + 1)) {
+          // Freeing the slot before executing the command leaves every slot to producers, so
+          // a slow command does not make the queue overflow sooner, and the oldest command
+          // discarded under DROP_OLDEST is always the one in the way.
+          Command command = slots[index];
+          current.copy(command);
+          command.clear();
+          sequences.set(index, position + slots.length);
+          try {
+            execute(current);
+          } catch (RuntimeException e) {
+            // A failing command must not stop the ones after it.
+            failed.incrementAndGet();
+            Log.e(LOG_TAG, "Command of kind " + current.kind + " failed", e);
+          } finally {
+            current.clear();
+          }
+        }
+      } else if (position == tail.get()) {
+        // Empty: wait for a producer, checking again after announcing it so none is missed.
+        consumerWaiting = true;
+        if (head.get() == tail.get()) {
+          LockSupport.park(this);
+        }
+        consumerWaiting = false;
+      } else {
+        // A producer has claimed the slot but not yet published it.
+        Thread.yield();
+      }
+    }
+  }
+
+  private void execute(Command command) {
+    if (command.kind == APPLY_UPDATE) {
+      Parameter parameter = (Parameter) command.target;
+      parameter.queued.set(false);
+      handler.update(parameter.key, parameter.value);
+    } else if (command.kind == UPDATE) {
+      handler.update(command.target, command.value0);
+    } else if (command.kind == FENCE) {
+      ((CountDownLatch) command.data).countDown();
+    } else {
+      handler.execute(command);
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package com.google.appinventor.components.runtime.util;
+
+/**
+ * A sound server that the Instrument component plays through.  Engines take the commands of
+ * SuperCollider's server protocol, both as single messages passed in process and as OSC
+ * packets on a UDP port, so that timestamped bundles work the same on every engine.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public interface AudioEngine {
+  /**
+   * Starts the engine, returning once it accepts messages.
+   *
+   * @param udpPort  UDP port to receive OSC packets on
+   */
+  void start(int udpPort);
+
+  /**
+   * Executes a message in the layout {@code OscMessage} takes as soon as possible.
+   */
+  void sendMessage(Object[] message);
+
+  /**
+   * Asks the engine to shut down.  It stops asynchronously; see {@link #isEnded}.
+   */
+  void sendQuit();
+
+  /**
+   * Returns whether the engine has shut down.
+   */
+  boolean isEnded();
+}
@@ -0,0 +1,32 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.IOException;
+
+/**
+ * Where {@link JavaSynth} sends the sound it renders.  Writes block until the device has
+ * room, which is what paces the synthesizer.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public interface AudioOutput {
+  /**
+   * Opens the device for interleaved samples at the given rate.
+   *
+   * @throws IOException  if the device cannot be opened
+   */
+  void open(int sampleRate, int channels) throws IOException;
+
+  /**
+   * Writes interleaved samples between -1 and 1.
+   *
+   * @param samples  the samples, {@code frames} times the number of channels
+   * @param frames  number of frames to write
+   * @throws IOException  if the device fails
+   */
+  void write(float[] samples, int frames) throws IOException;
+
+  /**
+   * Closes the device.
+   */
+  void close();
+}
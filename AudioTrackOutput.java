@@ -0,0 +1,64 @@
+package com.google.appinventor.components.runtime.util;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+
+import java.io.IOException;
+
+/**
+ * Plays {@link JavaSynth}'s output through an Android {@code AudioTrack}.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class AudioTrackOutput implements AudioOutput {
+  // The track's buffer holds this many of the smallest buffers the device allows.
+  private static final int BUFFER_MULTIPLE = 2;
+
+  private AudioTrack track;
+  private short[] shorts;
+  private int channels;
+
+  @Override
+  public void open(int sampleRate, int channels) throws IOException {
+    this.channels = channels;
+    int config = channels == 1 ?
+        AudioFormat.CHANNEL_CONFIGURATION_MONO : AudioFormat.CHANNEL_CONFIGURATION_STEREO;
+    int minBuffer = AudioTrack.getMinBufferSize(sampleRate, config,
+        AudioFormat.ENCODING_PCM_16BIT);
+    if (minBuffer <= 0) {
+      throw new IOException("Unsupported output format: " + sampleRate + " Hz");
+    }
+    track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, config,
+        AudioFormat.ENCODING_PCM_16BIT, minBuffer * BUFFER_MULTIPLE, AudioTrack.MODE_STREAM);
+    if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+      track.release();
+      track = null;
+      throw new IOException("Could not open audio track");
+    }
+    track.play();
+  }
+
+  @Override
+  public void write(float[] samples, int frames) throws IOException {
+    int count = frames * channels;
+    if (shorts == null || shorts.length < count) {
+      shorts = new short[count];
+    }
+    for (int i = 0; i < count; i++) {
+      shorts[i] = (short) (Math.max(-1f, Math.min(1f, samples[i])) * Short.MAX_VALUE);
+    }
+    if (track.write(shorts, 0, count) < 0) {
+      throw new IOException("Audio track write failed");
+    }
+  }
+
+  @Override
+  public void close() {
+    if (track != null) {
+      track.stop();
+      track.release();
+      track = null;
+    }
+  }
+}
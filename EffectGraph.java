@@ -0,0 +1,196 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the effect synths running on a SuperCollider server.  Effects are only
+ * created when a component first asks for them, and components asking for the same
+ * synthdef with the same controls share one synth and one input bus.  When the last user
+ * releases an effect, its synth is freed and its node ID and bus are returned to pools
+ * for reuse.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class EffectGraph {
+  /**
+   * Receives the messages that create and free effect synths.
+   */
+  public interface MessageSender {
+    void send(Object[] message);
+  }
+
+  /**
+   * A running effect synth and the bus it reads its input from.
+   */
+  public static final class Effect {
+    private final String key;
+    private final int nodeId;
+    private final int bus;
+    private final Object[] createMessage;
+    private int users;
+
+    private Effect(String key, int nodeId, int bus, Object[] createMessage) {
+      this.key = key;
+      this.nodeId = nodeId;
+      this.bus = bus;
+      this.createMessage = createMessage;
+    }
+
+    public int nodeId() {
+      return nodeId;
+    }
+
+    public int bus() {
+      return bus;
+    }
+
+    /**
+     * Returns the message that creates the effect's synth.  It must not be modified.
+     */
+    public Object[] createMessage() {
+      return createMessage;
+    }
+  }
+
+  private static final int ACTION_ADD_TO_TAIL = 1;
+
+  private final MessageSender sender;
+  private final int group;
+  private final Map<String, Effect> effects = new HashMap<String, Effect>();
+  private final Deque<Integer> freeNodeIds = new ArrayDeque<Integer>();
+  private final Deque<Integer> freeBuses = new ArrayDeque<Integer>();
+  private final int lastNodeId;
+  private int nextNodeId;
+  private int nextBus;
+  // Whether effect synths are paused, so their input is dropped instead of processed.
+  private boolean bypassed;
+
+  /**
+   * Creates an effect graph whose synths are added to the tail of the given group, after
+   * any notes feeding them.
+   *
+   * @param sender  destination for the messages creating and freeing effects
+   * @param group  node ID of the group effects are added to
+   * @param firstNodeId  first node ID available for effects
+   * @param lastNodeId  last node ID available for effects
+   * @param firstBus  first audio bus available for effect inputs
+   */
+  public EffectGraph(MessageSender sender, int group, int firstNodeId, int lastNodeId,
+      int firstBus) {
+    this.sender = sender;
+    this.group = group;
+    this.lastNodeId = lastNodeId;
+    nextNodeId = firstNodeId;
+    nextBus = firstBus;
+  }
+
+  /**
+   * Returns the effect running the given synthdef with the given controls, creating it if
+   * no other component is using it.  Every call must be matched by a call to
+   * {@link #release}.
+   *
+   * @param synthDef  name of the effect's synthdef, which must have an "inBus" control
+   * @param controls  alternating control names and values for the effect
+   * @return  the shared effect, or null if no node IDs are left for effects
+   */
+  public synchronized Effect acquire(String synthDef, Object... controls) {
+    String key = key(synthDef, controls);
+    Effect effect = effects.get(key);
+    if (effect == null) {
+      int nodeId;
+      if (!freeNodeIds.isEmpty()) {
+        nodeId = freeNodeIds.pop();
+      } else if (nextNodeId <= lastNodeId) {
+        nodeId = nextNodeId++;
+      } else {
+        return null;
+      }
+      int bus = freeBuses.isEmpty() ? nextBus++ : freeBuses.pop();
+      Object[] message = new Object[7 + controls.length];
+      message[0] = "/s_new";
+      message[1] = synthDef;
+      message[2] = nodeId;
+      message[3] = ACTION_ADD_TO_TAIL;
+      message[4] = group;
+      message[5] = "inBus";
+      message[6] = (float) bus;
+      System.arraycopy(controls, 0, message, 7, controls.length);
+      effect = new Effect(key, nodeId, bus, message);
+      sender.send(message);
+      if (bypassed) {
+        sender.send(runMessage(nodeId, false));
+      }
+      effects.put(key, effect);
+    }
+    effect.users++;
+    return effect;
+  }
+
+  /**
+   * Releases a component's use of an effect, freeing the synth if no one else uses it.
+   */
+  public synchronized void release(Effect effect) {
+    if (effect.users > 0 && --effect.users == 0) {
+      effects.remove(effect.key);
+      sender.send(new Object[] {"/n_free", effect.nodeId});
+      freeNodeIds.push(effect.nodeId);
+      freeBuses.push(effect.bus);
+    }
+  }
+
+  /**
+   * Returns whether no effects are in use.
+   */
+  public synchronized boolean isEmpty() {
+    return effects.isEmpty();
+  }
+
+  /**
+   * Creates the synths of every effect in use again, for when the server has been restarted
+   * and no synths remain.  Effects keep their node IDs and buses.
+   */
+  public synchronized void restore() {
+    for (Effect effect : effects.values()) {
+      sender.send(effect.createMessage);
+      if (bypassed) {
+        sender.send(runMessage(effect.nodeId, false));
+      }
+    }
+  }
+
+  /**
+   * Pauses or resumes every effect synth, including those created later.  A bypassed
+   * effect takes no processing time on the server, and its input is silent.
+   */
+  public synchronized void setBypassed(boolean bypassed) {
+    if (this.bypassed == bypassed) {
+      return;
+    }
+    this.bypassed = bypassed;
+    for (Effect effect : effects.values()) {
+      sender.send(runMessage(effect.nodeId, !bypassed));
+    }
+  }
+
+  public synchronized boolean isBypassed() {
+    return bypassed;
+  }
+
+  private static Object[] runMessage(int nodeId, boolean run) {
+    return new Object[] {"/n_run", nodeId, run ? 1 : 0};
+  }
+
+  private static String key(String synthDef, Object[] controls) {
+    if (controls.length == 0) {
+      return synthDef;
+    }
+    StringBuilder key = new StringBuilder(synthDef);
+    for (Object control : controls) {
+      key.append(' ').append(control);
+    }
+    return key.toString();
+  }
+}
@@ -1,23 +1,47 @@
 package com.google.appinventor.components.runtime;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Pattern;
 
-import net.sf.supercollider.android.OscMessage;
-import net.sf.supercollider.android.SCAudio;
 import android.content.pm.ApplicationInfo;
+import android.content.res.AssetManager;
 import android.media.AudioManager;
+import android.os.Handler;
 import android.util.Log;
 import android.widget.Toast;
 
 import com.google.appinventor.components.annotations.DesignerComponent;
 import com.google.appinventor.components.annotations.DesignerProperty;
+import com.google.appinventor.components.annotations.SimpleEvent;
 import com.google.appinventor.components.annotations.SimpleFunction;
 import com.google.appinventor.components.annotations.SimpleObject;
 import com.google.appinventor.components.annotations.SimpleProperty;
@@ -26,6 +50,34 @@ import com.google.appinventor.components.annotations.UsesLibraries;
 import com.google.appinventor.components.annotations.UsesNativeLibraries;
 import com.google.appinventor.components.common.ComponentCategory;
 import com.google.appinventor.components.common.PropertyTypeConstants;
+import com.google.appinventor.components.runtime.util.AudioCommandQueue;
+import com.google.appinventor.components.runtime.util.AudioEngine;
+import com.google.appinventor.components.runtime.util.AudioTrackOutput;
+import com.google.appinventor.components.runtime.util.EffectGraph;
+import com.google.appinventor.components.runtime.util.InstrumentStats;
+import com.google.appinventor.components.runtime.util.JavaSynth;
+import com.google.appinventor.components.runtime.util.LoopPattern;
+import com.google.appinventor.components.runtime.util.LoopSynthDef;
+import com.google.appinventor.components.runtime.util.MelodyCache;
+import com.google.appinventor.components.runtime.util.MidiFile;
+import com.google.appinventor.components.runtime.util.NetworkTransport;
+import com.google.appinventor.components.runtime.util.NoteMessageBuilder;
+import com.google.appinventor.components.runtime.util.NoteParser;
+import com.google.appinventor.components.runtime.util.NoteSequence;
+import com.google.appinventor.components.runtime.util.OscCapture;
+import com.google.appinventor.components.runtime.util.OscBundleSender;
+import com.google.appinventor.components.runtime.util.OscEncoder;
+import com.google.appinventor.components.runtime.util.OscScore;
+import com.google.appinventor.components.runtime.util.OscTemplate;
+import com.google.appinventor.components.runtime.util.PitchTable;
+import com.google.appinventor.components.runtime.util.RemoteAudioEngine;
+import com.google.appinventor.components.runtime.util.SCAudioEngine;
+import com.google.appinventor.components.runtime.util.SampleBufferCache;
+import com.google.appinventor.components.runtime.util.SampleKit;
+import com.google.appinventor.components.runtime.util.SampleSynthDef;
+import com.google.appinventor.components.runtime.util.ServerMonitor;
+import com.google.appinventor.components.runtime.util.VoiceAllocator;
+import com.google.appinventor.components.runtime.util.WaveformSynthDef;
 import com.google.appinventor.components.runtime.util.YailList;
 
 /**
@@ -34,7 +86,7 @@ import com.google.appinventor.components.runtime.util.YailList;
  *
  * @author trevorbadams@gmail.com (Trevor Adams)
  */
-@DesignerComponent(version = 1,
+@DesignerComponent(version = 2,
     description = "<p>A musical instrument component that will play notes of the specified " +
     "pitch, duration and volume.  Duration is given in milliseconds and " +
     "volume is 0 to 100.  Pitch can be given as either the frequency (in Hertz), " +
@@ -67,24 +119,25 @@ public class Instrument extends AndroidNonvisibleComponent
   implements Component, OnResumeListener, OnStopListener, OnDestroyListener, Deleteable {
   // Instrument constants
   private static final String LOG_TAG = "Instrument";
+  private static final boolean DEBUG = Log.isLoggable(LOG_TAG, Log.DEBUG);
   private static final int PERCENTAGE_MAX = 100;
   private static final int REVERB_MAX = PERCENTAGE_MAX;
   private static final int MILLISECS_IN_SEC = 1000;
   private static final int DEFAULT_DURATION = 500; // In milliseconds
   private static final int DEFAULT_VOLUME = 50;
-  private static final int DEFAULT_OCTAVE = 4;
   private static final String DEFAULT_SOURCE = INSTRUMENT_SOURCE_SINE;
   private static final String SYNTHDEF_NAME_SINE = "sine-inst";
   private static final String SYNTHDEF_NAME_SAW = "saw-inst";
   private static final String SYNTHDEF_NAME_TRIANGLE = "triangle-inst";
   private static final String SYNTHDEF_NAME_PULSE = "pulse-inst";
   private static final String SYNTHDEF_NAME_NOISE = "noise-inst";
-  private static final Pattern NOTE_PATTERN = Pattern.compile("[a-hA-H][#bB]?");
+  // The waveform synthdefs above are generated by WaveformSynthDef, so that their notes can
+  // glide and be released early.
+  // Plays buffer "buf" at a rate of freq / SampleSynthDef.ROOT_FREQUENCY.  Generated rather
+  // than packaged as an asset.
+  private static final String SYNTHDEF_NAME_SAMPLE = SampleSynthDef.NAME;
 
   // Error messages
-  private static final String PLAY_NULL_POINTER_ERROR_MSG = "Canceling Play Operation: "
-      + "Null Pointer Exception - "
-      + "This may be from looking up a non existent key in a map.\n";
   private static final String PLAY_CLASS_CAST_ERROR_MSG = "Canceling Play Operation: "
       + "Instrument.Play received a list with elements of unexpected type.\n";
   private static final String PLAY_NUMBER_FORMAT_ERROR_MSG = "Skipped remaining list elements: "
@@ -96,19 +149,267 @@ public class Instrument extends AndroidNonvisibleComponent
   // SuperCollider constants
   public static final String SC_DIR_STR = "/sdcard/supercollider";
   public static final String DATA_DIR_STR = SC_DIR_STR + "/synthdefs";
-  private static final String[] EFFECTS = {"reverb"};
+  // Samples packaged with the app are copied here, since the server cannot read assets.
+  public static final String SAMPLE_DIR_STR = SC_DIR_STR + "/samples";
+  // MIDI files packaged with the app are copied here, so that they can be mapped.
+  public static final String MIDI_DIR_STR = SC_DIR_STR + "/midi";
+  private static final String REVERB_SYNTHDEF = "reverb";
   private static final String SYNTHDEF_EXTENSION = ".scsyndef";
+  private static final String SYNTHDEF_STAMP_FILE = ".delivered";
+  private static final int SYNTHDEF_BUFFER_SIZE = 8192;
   private static final int ACTION_ADD_TO_HEAD = 0;
-  private static final int ACTION_ADD_BEFORE = 2;
   private static final int DEFAULT_SYNTH_GROUP = 1;
-  private static final int REVERB_ID = 7;
+  // Effect synths are given node IDs between 2 (0 and 1 are reserved) and FIRST_NOTE_ID.
+  private static final int FIRST_EFFECT_ID = 2;
   private static final int DEFAULT_EFFECT_VALUE = -1;
   private static final int MIN_BUS_VAL = 4;
+  private static final int FIRST_NOTE_ID = 1000;
+  private static final int NOTE_ID_COUNT = 1 << 16;
+  // Each instrument's notes go in a group of their own, with a node ID above the notes', and
+  // read its settings from SETTING_COUNT control buses.
+  private static final int FIRST_GROUP_ID = FIRST_NOTE_ID + NOTE_ID_COUNT;
+  private static final int FIRST_CONTROL_BUS = 0;
+  // scsynth has 1024 buffers unless told otherwise.
+  private static final int FIRST_SAMPLE_BUFFER = 0;
+  private static final int LAST_SAMPLE_BUFFER = 959;
+  // Loops keep their patterns in the buffers above the samples', and play in a group of their
+  // own inside their instrument's group, with a node ID above every instrument's group.
+  private static final int FIRST_LOOP_BUFFER = LAST_SAMPLE_BUFFER + 1;
+  private static final int LAST_LOOP_BUFFER = 1023;
+  private static final int FIRST_LOOP_GROUP_ID = 1 << 20;
+  private static final int MAX_LOOP_VOICES = 8;
+  // Node ID asking the server to choose one, for synths that are only addressed by group.
+  private static final int AUTO_NODE_ID = -1;
+  private static final double SEMITONES_IN_OCTAVE = 12;
+  private static final int DEFAULT_SAMPLE_MEMORY = 32; // In megabytes
+  private static final long BYTES_IN_MEGABYTE = 1 << 20;
+  private static final int MAX_VOICES = 128;
+  private static final int DEFAULT_GLOBAL_POLYPHONY = 32;
+  private static final int DEFAULT_MAX_POLYPHONY = 16;
+  private static final String VOICE_STEALING_OLDEST = "oldest";
+  private static final String VOICE_STEALING_QUIETEST = "quietest";
+  private static final String COMMAND_OVERFLOW_BLOCK = "block";
+  private static final String COMMAND_OVERFLOW_DROP_OLDEST = "drop oldest";
+  private static final String COMMAND_OVERFLOW_COALESCE = "coalesce";
+  private static final int COMMAND_QUEUE_SIZE = 1024;
+  private static final int MELODY_CACHE_SIZE = 64;
+  // Kinds of audio command.
+  private static final int COMMAND_NOTE = 0;
+  private static final int COMMAND_NOTES = 1;
+  private static final int COMMAND_SCORE = 2;
+  private static final int COMMAND_MESSAGE = 3;
+  private static final int COMMAND_QUIT = 4;
+  private static final int COMMAND_CREATE_GROUP = 5;
+  private static final int COMMAND_FREE_VOICE = 6;
+  private static final int COMMAND_SET_NOTE = 7;
+  private static final int COMMAND_BEGIN_SCORE = 8;
+  private static final int COMMAND_SAVE_SCORE = 9;
+  private static final int COMMAND_RELEASE_SLOT = 10;
+  private static final int COMMAND_LOAD_SYNTHDEF = 11;
+  private static final int COMMAND_SYNTHDEF_READY = 12;
+  // Settings applied to notes on the audio command thread.
+  // Each setting is kept on the server in its own control bus.
+  private static final int SETTING_ATTACK = NoteMessageBuilder.CONTROL_ATTACK;
+  private static final int SETTING_DECAY = NoteMessageBuilder.CONTROL_DECAY;
+  private static final int SETTING_SUSTAIN = NoteMessageBuilder.CONTROL_SUSTAIN;
+  private static final int SETTING_RELEASE = NoteMessageBuilder.CONTROL_RELEASE;
+  private static final int SETTING_REVERB = NoteMessageBuilder.CONTROL_REVERB;
+  private static final int SETTING_COUNT = NoteMessageBuilder.CONTROL_COUNT;
+  // How long a note is assumed to ring after its duration when Release uses the synthdef's
+  // default, in milliseconds.
+  private static final long ASSUMED_RELEASE = 1000;
+  private static final String SC_HOST = "127.0.0.1";
+  private static final int SC_UDP_PORT = 57110;
+  // Longest time notes wait for their synthdef to load, in milliseconds, after which they are
+  // sent anyway.
+  private static final long SYNTHDEF_LOAD_TIMEOUT = 2000;
+  // Sequences are sent to the server this far ahead of time, checking this often.
+  private static final long SCHEDULE_AHEAD_MS = 300;
+  private static final long SCHEDULE_INTERVAL_MS = 100;
+  // How long to wait for a server that is quitting before starting a new one, in milliseconds.
+  private static final long SERVER_QUIT_TIMEOUT = 2000;
+  private static final long SERVER_POLL_INTERVAL = 10;
+  // The server's load is polled this often by default, in milliseconds, and counts as
+  // overloaded from this CPU percentage until it falls OVERLOAD_HYSTERESIS below it.
+  private static final int DEFAULT_MONITOR_INTERVAL = 1000;
+  private static final float DEFAULT_OVERLOAD_THRESHOLD = 80;
+  private static final float OVERLOAD_HYSTERESIS = 10;
+  // Levels of quality AdaptiveQuality steps through, one per poll, while the server is
+  // overloaded; each keeps the cuts of the levels before it.
+  private static final int QUALITY_FULL = 0;
+  private static final int QUALITY_HALF_POLYPHONY = 1;
+  private static final int QUALITY_NO_REVERB = 2;
+  private static final int QUALITY_NO_NEW_NOTES = 3;
 
-  private static SCAudio superCollider;
-  private static AtomicInteger maxBusNum = new AtomicInteger(MIN_BUS_VAL);
-  private static AtomicInteger instId = new AtomicInteger(2); // 0 and 1 are reserved
-  private int effectBus;
+  private static volatile AudioEngine engine;
+  // Whether the server is scsynth rather than the Java synthesizer.
+  private static volatile boolean nativeEngine = true;
+  // Whether the server is paused rather than shut down while the app is stopped.
+  private static volatile boolean suspendOnStop = true;
+  // Address of a server elsewhere on the network to play through, or no host to run one on
+  // the device.
+  private static volatile String serverHost = "";
+  private static volatile int serverPort = SC_UDP_PORT;
+  private static volatile boolean serverTcp;
+  // Whether the server has started and can be sent messages.
+  private static volatile boolean serverReady;
+  private static boolean serverStarting;
+  // Whether the server has been kept running, with the default group paused, while the app is
+  // stopped.  Sequences wait while it is set.
+  private static volatile boolean serverSuspended;
+  // When the server was last suspended, and the total time it has spent suspended, in
+  // milliseconds.  Sequences are moved later by each suspension, to carry on where they were.
+  private static long suspendedAt;
+  private static volatile long suspendedTime;
+  // Polls the server's load while it is running, unless MonitorInterval is 0.
+  private static ServerMonitor monitor;
+  private static int monitorInterval = DEFAULT_MONITOR_INTERVAL;
+  private static volatile float overloadThreshold = DEFAULT_OVERLOAD_THRESHOLD;
+  private static volatile boolean adaptiveQuality;
+  private static boolean overloaded;
+  private static int qualityLevel = QUALITY_FULL;
+  // Whether new notes are dropped because the server is overloaded.
+  private static volatile boolean droppingNotes;
+  // GlobalMaxPolyphony as set, which the allocator's limit is lowered from while overloaded.
+  private static int globalMaxPolyphony = DEFAULT_GLOBAL_POLYPHONY;
+  // All existing instruments, to be told when the server is ready.
+  private static final List<Instrument> instruments = new CopyOnWriteArrayList<Instrument>();
+  // Everything sent to the server, apart from bundles the scheduler thread sends over UDP,
+  // goes through this queue, so that Play and the property setters never wait on the engine
+  // and only the audio command thread drives it.
+  private static final AudioCommandQueue commands = new AudioCommandQueue(COMMAND_QUEUE_SIZE,
+      new AudioCommandQueue.CommandHandler() {
+        @Override
+        public void execute(AudioCommandQueue.Command command) {
+          switch (command.kind) {
+            case COMMAND_NOTE:
+            case COMMAND_NOTES:
+            case COMMAND_SCORE:
+              ((Instrument) command.target).executeNotes(command);
+              break;
+            case COMMAND_MESSAGE:
+              Object[] message = (Object[]) command.data;
+              // Effects are created right after their synthdef is sent, so they may have to
+              // wait for it.
+              if (!"/s_new".equals(message[0]) || !holdNotes((String) message[1], null,
+                  OscBundleSender.IMMEDIATELY, new Object[][] {message}, 1)) {
+                sendToEngine(message);
+              }
+              break;
+            case COMMAND_QUIT:
+              ((AudioEngine) command.data).sendQuit();
+              break;
+            case COMMAND_CREATE_GROUP:
+              ((Instrument) command.target).createGroup();
+              break;
+            case COMMAND_FREE_VOICE:
+              commandStolenVoice[0] = command.id;
+              ((Instrument) command.target).freeStolenVoice(commandStolenVoice);
+              break;
+            case COMMAND_SET_NOTE:
+              ((Instrument) command.target).setNote(command);
+              break;
+            case COMMAND_BEGIN_SCORE:
+              ((Instrument) command.target).beginScore((OscScore) command.data, command.time);
+              break;
+            case COMMAND_SAVE_SCORE:
+              ((Instrument) command.target).saveScore((OscScore) command.data, command.name);
+              break;
+            case COMMAND_RELEASE_SLOT:
+              releaseSlot(command.id);
+              break;
+            case COMMAND_LOAD_SYNTHDEF:
+              ((Instrument) command.target).sendSynthDef(command.name);
+              break;
+            case COMMAND_SYNTHDEF_READY:
+              finishSynthDefLoad(command.name, true);
+              break;
+          }
+        }
+
+        @Override
+        public void update(Object key, float value) {
+          Setting setting = (Setting) key;
+          setting.instrument.applySetting(setting.which, value);
+        }
+      }, "Instrument audio commands");
+  // Melodies played with PlayMelody, compiled once for all instruments.
+  private static final MelodyCache melodies = new MelodyCache(MELODY_CACHE_SIZE);
+  // Voices stolen by notes played on the audio command thread.
+  private static final int[] commandStolenVoice = new int[1];
+  // Effects are created when first used and shared by instruments with the same settings.
+  private static final EffectGraph effects = new EffectGraph(new EffectGraph.MessageSender() {
+    @Override
+    public void send(Object[] message) {
+      // Effects requested before the server is ready are created when it is.
+      sendCommandMessage(message);
+    }
+  }, DEFAULT_SYNTH_GROUP, FIRST_EFFECT_ID, FIRST_NOTE_ID - 1, MIN_BUS_VAL);
+  // Notes are given node IDs from FIRST_NOTE_ID up; 0 and 1 are reserved, and the IDs below
+  // FIRST_NOTE_ID are left for effect synths.
+  private static final VoiceAllocator voices =
+      new VoiceAllocator(FIRST_NOTE_ID, NOTE_ID_COUNT, MAX_VOICES);
+  static {
+    voices.setLimit(DEFAULT_GLOBAL_POLYPHONY);
+  }
+  private static OscBundleSender bundleSender;
+  private static boolean bundleSenderFailed;
+  // Records everything sent to the server between StartCapture and StopCapture.
+  private static volatile OscCapture capture;
+  // Replies from a server elsewhere on the network.  Failed commands are logged, as a server
+  // on the device logs them itself, and notes the server reports ended free their voices.
+  private static final NetworkTransport.Receiver SERVER_REPLIES =
+      new NetworkTransport.Receiver() {
+        @Override
+        public void received(Object[] message) {
+          if ("/fail".equals(message[0])) {
+            Log.w(LOG_TAG, "Server command failed: " + Arrays.toString(message));
+          } else if ("/n_end".equals(message[0]) && message.length > 1) {
+            voices.release(((Number) message[1]).intValue());
+          } else if ("/synced".equals(message[0]) && message.length > 1) {
+            String synthDef = synthDefSyncs.remove(((Number) message[1]).intValue());
+            if (synthDef != null) {
+              synthDefReady(synthDef);
+            }
+          }
+        }
+      };
+  private static ScheduledExecutorService scheduler;
+  // Waits for a server on the device to confirm that synthdefs have loaded.
+  private static ExecutorService synthDefSyncer;
+  // Each thread sending notes encodes them in its own buffer.
+  private static final ThreadLocal<OscEncoder> encoders = new ThreadLocal<OscEncoder>();
+  // The node ID and stolen voice of each note a thread has encoded into a bundle, so that the
+  // notes can be sent another way if the bundle cannot be.
+  private static final ThreadLocal<int[]> encodedVoices = new ThreadLocal<int[]>();
+  private static final OscTemplate C_SET_TEMPLATE =
+      new OscTemplate(new Object[] {"/c_set", 0, 0f});
+  // Changes to a sounding note.  Every instrument synthdef lags freq and mul by glide seconds,
+  // and releases the note when gate goes to 0.
+  private static final String CONTROL_FREQ = "freq";
+  private static final String CONTROL_MUL = "mul";
+  private static final String CONTROL_GATE = "gate";
+  private static final OscTemplate PITCH_TEMPLATE =
+      new OscTemplate(new Object[] {"/n_set", 0, "glide", 0f, CONTROL_FREQ, 0f});
+  private static final OscTemplate VOLUME_TEMPLATE =
+      new OscTemplate(new Object[] {"/n_set", 0, "glide", 0f, CONTROL_MUL, 0f});
+  private static final OscTemplate RELEASE_TEMPLATE =
+      new OscTemplate(new Object[] {"/n_set", 0, "glide", 0f, CONTROL_GATE, 0f});
+  // What each live note's pitch is multiplied by to get its freq control, by node ID from
+  // FIRST_NOTE_ID, which is not 1 for sample-based notes.  Made when the first sample-based
+  // note is played; until then every note's is 1.
+  private static float[] notePitchScales;
+  // Group and control bus slots given up by deleted instruments, and the next one never used.
+  private static final Deque<Integer> freeSlots = new ArrayDeque<Integer>();
+  private static int nextSlot;
+  // Buffers no loop is using.
+  private static final Deque<Integer> freeLoopBuffers = new ArrayDeque<Integer>();
+  static {
+    for (int i = FIRST_LOOP_BUFFER; i <= LAST_LOOP_BUFFER; i++) {
+      freeLoopBuffers.add(i);
+    }
+  }
+  private volatile EffectGraph.Effect reverbEffect;
   private ComponentContainer componentContainer;
 
   // This map is for translating from the instrument identifiers in the Designer to the synthdefs.
@@ -121,39 +422,49 @@ public class Instrument extends AndroidNonvisibleComponent
       SYNTHDEF_MAP.put(INSTRUMENT_SOURCE_NOISE, SYNTHDEF_NAME_NOISE);
       SYNTHDEF_MAP.put(INSTRUMENT_SOURCE_TRIANGLE, SYNTHDEF_NAME_TRIANGLE);
   }
+  // Synthdefs packaged as assets rather than generated.
+  private static final String[] PACKAGED_SYNTHDEFS = {REVERB_SYNTHDEF};
+  // Sample-based sources added with AddSample, by name.
+  private static final ConcurrentMap<String, SampleKit> SAMPLE_SOURCES =
+      new ConcurrentHashMap<String, SampleKit>();
+  // Samples used by the sample-based sources, loaded into server buffers on a background
+  // thread.  Media packaged with the app is copied to SAMPLE_DIR_STR first.
+  private static final SampleBufferCache samples = new SampleBufferCache(
+      new EffectGraph.MessageSender() {
+        @Override
+        public void send(Object[] message) {
+          sendCommandMessage(message);
+        }
+      },
+      new SampleBufferCache.Locator() {
+        @Override
+        public File locate(String name) throws IOException {
+          return locateMedia(name, SAMPLE_DIR_STR);
+        }
 
+        @Override
+        public void loadFailed(String name, IOException e) {
+          Log.e(LOG_TAG, "Failed to load sample " + name, e);
+        }
+      }, FIRST_SAMPLE_BUFFER, LAST_SAMPLE_BUFFER, DEFAULT_SAMPLE_MEMORY * BYTES_IN_MEGABYTE);
+  // The app's assets, for copying samples packaged with it.
+  private static volatile AssetManager assets;
 
-   // This map translates from note names to frequencies (in hertz).
-   // For complete chart, see http://www.phy.mtu.edu/~suits/notefreqs.html.
+  // Synthdefs the server has been sent since it was started.
+  private static final Set<String> loadedSynthDefs =
+      Collections.synchronizedSet(new HashSet<String>());
+  // Synthdefs the server has finished loading.  Guarded by itself.
+  private static final Set<String> readySynthDefs = new HashSet<String>();
+  // Notes held until the server has loaded their synthdef, by synthdef.  Guarded by
+  // readySynthDefs.
+  private static final Map<String, List<HeldNotes>> heldNotes =
+      new HashMap<String, List<HeldNotes>>();
+  // Synthdefs waiting for a server elsewhere on the network to answer /sync, by sync ID.
+  private static final ConcurrentMap<Integer, String> synthDefSyncs =
+      new ConcurrentHashMap<Integer, String>();
+  private static final AtomicInteger nextSyncId = new AtomicInteger();
+  private static boolean synthDefsDelivered;
 
-  private static final ConcurrentMap<String, Float> NOTE_MAP =
-      new ConcurrentHashMap<String, Float>();
-  static {
-    NOTE_MAP.put("b#", 261.626f);
-    NOTE_MAP.put("h#", 261.626f);
-    NOTE_MAP.put("c", 261.626f) ;
-    NOTE_MAP.put("c#", 277.183f);
-    NOTE_MAP.put("db", 277.183f);
-    NOTE_MAP.put("d", 293.665f);
-    NOTE_MAP.put("d#", 311.127f);
-    NOTE_MAP.put("eb", 311.127f);
-    NOTE_MAP.put("e", 329.628f);
-    NOTE_MAP.put("fb", 329.628f);
-    NOTE_MAP.put("e#", 349.228f);
-    NOTE_MAP.put("f", 349.228f);
-    NOTE_MAP.put("f#", 369.994f);
-    NOTE_MAP.put("gb", 369.994f);
-    NOTE_MAP.put("g", 391.995f);
-    NOTE_MAP.put("g#", 415.305f);
-    NOTE_MAP.put("ab", 415.305f);
-    NOTE_MAP.put("a", 440.0f);
-    NOTE_MAP.put("a#", 466.164f);
-    NOTE_MAP.put("bb", 466.164f);
-    NOTE_MAP.put("hb", 466.164f);
-    NOTE_MAP.put("b", 493.883f);
-    NOTE_MAP.put("h", 493.883f);
-    NOTE_MAP.put("cb", 493.883f);
-  }
 
   // Component property variables.
   private String source;
@@ -162,6 +473,65 @@ public class Instrument extends AndroidNonvisibleComponent
   private float decay = DEFAULT_EFFECT_VALUE;
   private float sustain = DEFAULT_EFFECT_VALUE;
   private float release = DEFAULT_EFFECT_VALUE;
+  private int maxPolyphony = DEFAULT_MAX_POLYPHONY;
+  private int voiceStealing = VoiceAllocator.STEAL_OLDEST;
+  private boolean loadSynthDefsFromMemory = true;
+  private boolean disposed;
+
+  // Parsed parameters of the note being played, reused by each call to Play.
+  private final float[] noteParams = new float[NoteParser.PARAM_COUNT];
+  // Voice stolen by the note being played, reused by each call to Play.
+  private final int[] playStolenVoice = new int[1];
+  private final NoteParser noteParser = new NoteParser();
+  // Builds note messages that map the envelope and reverb settings to this instrument's
+  // control buses.  Settings are applied on the audio command thread, in order with the notes,
+  // and a bus is only set when its value changes.
+  private final int slot;
+  private final int groupId;
+  private final int firstControlBus;
+  private final AudioCommandQueue.Parameter[] settings =
+      new AudioCommandQueue.Parameter[SETTING_COUNT];
+  private final NoteMessageBuilder noteBuilder;
+  private final float[] settingValues = new float[SETTING_COUNT];
+  private final float[] sentSettingValues = new float[SETTING_COUNT];
+  private final List<SequencePlayer> sequencePlayers =
+      new CopyOnWriteArrayList<SequencePlayer>();
+  private final List<MidiPlayer> midiPlayers = new CopyOnWriteArrayList<MidiPlayer>();
+  // Sources MIDI channels are played with, or null for the instrument's Source.
+  private final String[] midiChannelSources = new String[MidiFile.CHANNEL_COUNT];
+  private final Handler androidUIHandler = new Handler();
+  private final InstrumentStats stats = new InstrumentStats();
+  private ScheduledFuture<?> statsLogger;
+  private int statsLogInterval;
+
+  // Notes played before the server was ready, with onsets relative to pendingStart.
+  private final Object pendingLock = new Object();
+  private NoteSequence pendingNotes;
+  private long pendingStart;
+
+  // The loop started with StartLoop and the synthdef it plays, or null if there is none,
+  // and the buffers holding it on the server, or null if it has not been sent yet.
+  private final Object loopLock = new Object();
+  private LoopPattern loop;
+  private String loopSynthDef;
+  private int[] loopBuffers;
+  private final int loopGroupId;
+  private float loopTempo = 1;
+  private float loopTranspose;
+
+  // Score that notes are recorded into instead of being played, or null when playing live,
+  // and when it was begun.  Notes are recorded on the audio command thread into
+  // recordingScore, which BeginScore and SaveScore change in order with the notes, so that
+  // neither has to wait for the notes played before it.  Scored notes have their own voices,
+  // with times in milliseconds from the start of the score.
+  private volatile OscScore score;
+  private long scoreStart;
+  private OscScore recordingScore;
+  private long recordingStart;
+  private VoiceAllocator scoreVoices;
+  private final Set<String> scoreSynthDefs = new HashSet<String>();
+  private final Set<Integer> scoreEffects = new HashSet<Integer>();
+  private final Set<Integer> scoreBuffers = new HashSet<Integer>();
 
   /**
    * Creates the Instrument component
@@ -174,44 +544,36 @@ public class Instrument extends AndroidNonvisibleComponent
     form.registerForOnStop(this);
     form.registerForOnDestroy(this);
     componentContainer = container;
-
-    // Initialize server and prerequisites if not already done so
-    if (superCollider == null || superCollider.isEnded()) {
-      // Make volume buttons control media, not ringer.
-      form.setVolumeControlStream(AudioManager.STREAM_MUSIC);
-      // Starting SuperCollider:
-      Log.d(LOG_TAG, "Creating SCAudio");
-      superCollider =
-           new SCAudio(getNativeLibDir(container.$context().getApplicationInfo()));
-      Log.d(LOG_TAG, "Starting SuperCollider Server");
-      superCollider.start();
-      // Load synth definitions
-      File dataDir = new File(DATA_DIR_STR);
-      if (dataDir.isDirectory() || dataDir.mkdirs()) {
-        Log.d(LOG_TAG, "Delivering synthdefs to sdcard...");
-        for (String synth : SYNTHDEF_MAP.values()) {
-          deliverSynthDef(getDefFile(synth), container);
-        }
-        for (String synth : EFFECTS) {
-          deliverSynthDef(synth + SYNTHDEF_EXTENSION, container);
-         }
-      } else if (!dataDir.isDirectory()) {
-        Log.e(LOG_TAG, "Could not create directory " + DATA_DIR_STR + "\n" +
-            "SuperCollider will not function correctly.");
-      }
+    assets = form.getAssets();
+    slot = allocateSlot();
+    groupId = FIRST_GROUP_ID + slot;
+    loopGroupId = FIRST_LOOP_GROUP_ID + slot;
+    firstControlBus = FIRST_CONTROL_BUS + slot * SETTING_COUNT;
+    noteBuilder = new NoteMessageBuilder(ACTION_ADD_TO_HEAD, groupId, firstControlBus);
+    for (int i = 0; i < SETTING_COUNT; i++) {
+      settings[i] = new AudioCommandQueue.Parameter(new Setting(this, i));
+      settingValues[i] = NoteMessageBuilder.UNSET;
+      sentSettingValues[i] = Float.NaN;
     }
 
-    // Create effects bus for this Instrument
-    effectBus = maxBusNum.getAndIncrement();
-    Log.d(LOG_TAG, "Setting up bus " + effectBus + " as effect bus.");
-    for (String effect : EFFECTS) {
-      String synthDef = effect;
-      OscMessage effectMessage = new OscMessage( new Object[] {
-          "/s_new", synthDef, REVERB_ID, ACTION_ADD_TO_HEAD, DEFAULT_SYNTH_GROUP
-      });
-      superCollider.sendMessage(effectMessage);
-      superCollider.sendMessage(OscMessage.setControl(REVERB_ID, "inBus", effectBus));
+    instruments.add(this);
+    if (serverReady) {
+      enqueueCreateGroup();
     }
+    // The server is started once the designer properties have been set, which happens after
+    // the component is created, so that it is the engine NativeEngine and ServerHost ask for.
+    // Notes played before then are held until it is ready.
+    androidUIHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (!disposed) {
+          startServer();
+        }
+      }
+    });
+    // Synthdefs are loaded as they are first needed, so only the sources actually used cost
+    // anything at startup.
+    loadSynthDef(synthDef());
   }
 
   /**
@@ -223,7 +585,8 @@ public class Instrument extends AndroidNonvisibleComponent
    */
   @SimpleProperty( description =
       "The name of the type of instrument to play.  The available options are \"sine\", " +
-      "\"saw\", \"triangle\", \"pulse\", and \"noise\".")
+      "\"saw\", \"triangle\", \"pulse\", and \"noise\", and any sample-based " +
+      "sources made with AddSample.")
   public String Source() {
     if (source == null) {
       return DEFAULT_SOURCE;
@@ -241,8 +604,9 @@ public class Instrument extends AndroidNonvisibleComponent
   @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_INSTRUMENT)
   @SimpleProperty
   public void Source(String source) {
-    if (SYNTHDEF_MAP.get(source)!= null) {
+    if (SYNTHDEF_MAP.get(source)!= null || SAMPLE_SOURCES.containsKey(source)) {
       this.source = source;
+      loadSynthDef(synthDef(source));
     } else {
       Toast toast = Toast.makeText(componentContainer.$context(), ILLEGAL_SOURCE_MSG,
           Toast.LENGTH_SHORT);
@@ -250,6 +614,93 @@ public class Instrument extends AndroidNonvisibleComponent
     }
   }
 
+  /**
+   * Adds a sample to a sample-based source, creating the source if it does not exist.
+   *
+   * @param source  name of the source, which must not be one of the built-in sources
+   * @param sample  path of a WAV or Ogg Vorbis file, or the name of a media file packaged
+   * with the app
+   * @param rootNote  pitch the sample was recorded at, as a list in a format Play accepts
+   */
+  @SimpleFunction(
+      description = "Adds a sample to a sample-based source, which can then be chosen as the " +
+          "Source of any instrument.  The sample is a WAV or Ogg Vorbis file, given either " +
+          "as a full path or as the name of a media file, and rootNote is the pitch it was " +
+          "recorded at, for example [\"C\", 4].  A source can have several samples: each " +
+          "note is played by the sample recorded nearest its pitch, so a piano can be " +
+          "sampled every few notes and a drum kit given one note per drum.  Samples load in " +
+          "the background, and notes played before then are silent.")
+  public void AddSample(String source, String sample, YailList rootNote) {
+    if (SYNTHDEF_MAP.containsKey(source)) {
+      Log.e(LOG_TAG, "Cannot add samples to the built-in source " + source);
+      return;
+    }
+    if (!parseNote(rootNote.toArray(), 0, DEFAULT_DURATION, DEFAULT_VOLUME, noteParams)) {
+      return;
+    }
+    SampleBufferCache.Sample loaded = samples.acquire(sample);
+    if (loaded == null) {
+      Log.e(LOG_TAG, "No buffers left for sample " + sample);
+      return;
+    }
+    loadSynthDef(SYNTHDEF_NAME_SAMPLE);
+    float root = noteParams[NoteParser.FREQUENCY];
+    synchronized (SAMPLE_SOURCES) {
+      SampleKit kit = SAMPLE_SOURCES.get(source);
+      if (kit == null) {
+        kit = SampleKit.EMPTY;
+      }
+      int replaced = kit.nearest(root);
+      if (replaced >= 0 && kit.root(replaced) == root) {
+        samples.release(kit.sample(replaced));
+      }
+      SAMPLE_SOURCES.put(source, kit.with(root, loaded));
+    }
+  }
+
+  /**
+   * Removes a sample-based source made with AddSample.
+   *
+   * @param source  name of the source
+   */
+  @SimpleFunction(
+      description = "Removes a sample-based source made with AddSample.  Its samples stay " +
+          "loaded until their memory is needed, so adding them again is quick.  Instruments " +
+          "still using the source play the default source instead.")
+  public void RemoveSampleSource(String source) {
+    SampleKit kit = SAMPLE_SOURCES.remove(source);
+    if (kit != null) {
+      for (int i = 0; i < kit.size(); i++) {
+        samples.release(kit.sample(i));
+      }
+    }
+  }
+
+  /**
+   * Returns how much memory loaded samples may take, in megabytes.
+   *
+   * @return  sample memory budget in megabytes
+   */
+  @SimpleProperty(
+      description = "How much memory, in megabytes, samples loaded for sample-based sources " +
+          "may take.  Samples that no source uses any more are kept loaded until this is " +
+          "reached, and then the least recently used are freed.")
+  public int SampleMemory() {
+    return (int) (samples.budget() / BYTES_IN_MEGABYTE);
+  }
+
+  /**
+   * Sets how much memory loaded samples may take, shared by all instruments.
+   *
+   * @param megabytes  sample memory budget in megabytes
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+      defaultValue = "32")
+  @SimpleProperty
+  public void SampleMemory(int megabytes) {
+    samples.setBudget(Math.max(megabytes, 0) * BYTES_IN_MEGABYTE);
+  }
+
   /**
    * Plays a note of the specified pitch, duration and volume.
    *
@@ -265,333 +716,3084 @@ public class Instrument extends AndroidNonvisibleComponent
           "frequencies is an advanced feature. Note letters are A through G and can be " +
           "modified with accidentals written after the note.  \"#\" will raise a note one " +
           "half step, while \"b\" will lower it.  Duration is measured in milliseconds, " +
-          "while volume is a percentage (0 to 100).  A note's parameters cannot be altered " +
-          "after the play command has been issued.")
+          "while volume is a percentage (0 to 100).")
   public void Play(YailList list) {
-    Object[] note = list.toArray();
-    int noteId = instId.getAndIncrement(); // ID must be unique
-    // SuperCollider requires arguments to be floats.
-    float frequency;
-    // Default values
-    int octave = DEFAULT_OCTAVE;
-    float duration = DEFAULT_DURATION;
-    float volume = DEFAULT_VOLUME;
-
-    // Determine format of input list
-    try {
-      if (note[0] instanceof String && (NOTE_PATTERN.matcher((String) note[0])).matches()) {
-        Log.d(LOG_TAG, "Received play instruction in note-letter format.");
-        // Process String input to make matching keys easier
-        String noteLetter = ((String) note[0]).toLowerCase().trim();
-        if (note.length < 2 ) {
-          Log.d(LOG_TAG, "Canceling Play Operation: No octave supplied.");
-          return;
-        }
-        try {
-          octave = parseInt(note[1]);
-          if (note.length >= 3) {
-            duration = parseFloat(note[2]);
-            if (note.length >= 4) {
-              volume = parseFloat(note[3]);
-              if (note.length > 4) {
-                Log.e(LOG_TAG, "Expected a 4 element list but received "
-                    + note.length  + " elements. Extra elements will be ignored.");
-              }
-            }
-          }
-        } catch (NumberFormatException e) { // If optional args fail, play with defaults.
-          Log.e(LOG_TAG, PLAY_NUMBER_FORMAT_ERROR_MSG + e.toString());
-        }
-        frequency = (float) (NOTE_MAP.get(noteLetter) * Math.pow(2, octave - DEFAULT_OCTAVE));
-      } else { // Frequency format
-        Log.d(LOG_TAG, "Received play instruction in frequency format.");
-        frequency = parseFloat(note[0]);
-        try {
-          if (note.length >= 2) {
-            duration = parseFloat(note[1]);
-            if (note.length >= 3) {
-              volume = parseFloat(note[2]);
-              if (note.length > 3) {
-                Log.e(LOG_TAG, "Expected a 3 element list but received "
-                    + note.length  + " elements. Extra elements will be ignored.");
-              }
-            }
-          }
-        } catch (NumberFormatException e) { // If optional args fail, play with defaults.
-          Log.e(LOG_TAG, PLAY_NUMBER_FORMAT_ERROR_MSG + e.toString());
-        }
-      }
-    } catch (ClassCastException e) {
-      Log.e(LOG_TAG, PLAY_CLASS_CAST_ERROR_MSG + e.toString());
-      return;
-    } catch (NullPointerException e) {
-      Log.e(LOG_TAG, PLAY_NULL_POINTER_ERROR_MSG + e.toString());
-      return;
-    }
-    // Get instrument source
-    String synthDef = SYNTHDEF_MAP.get(Source());
-    if (synthDef == null) {
-      Log.e(LOG_TAG, "Synthdef not found, using default synthdef.");
-      synthDef = SYNTHDEF_MAP.get(DEFAULT_SOURCE);
-    };
-    // Adjust argument units for SuperCollider
-    volume = volume / PERCENTAGE_MAX;
-    duration = duration / MILLISECS_IN_SEC;
-
-    // Send note to SuperCollider
-    // Arguments sent with the create message aren't working, need to set in subsequent messages
-    // Synth ID's should be uniquely assigned to avoid message mix-ups
-    Log.d(LOG_TAG, "Playing Note: synthDef = " + synthDef + ", noteID = " + noteId
-        + ", freq = " + frequency + ", dur = " + duration + ", vol = " + volume
-        + ", verb = " + Reverb()/PERCENTAGE_MAX);
-    // The message that will play the note
-    OscMessage noteMessage = new OscMessage( new Object[] {
-        "/s_new", synthDef, noteId, ACTION_ADD_BEFORE, REVERB_ID
-    });
+    playNote(list);
+  }
 
-    // Send note message and send correct parameters
-    superCollider.sendMessage(noteMessage);
-    superCollider.sendMessage(OscMessage.setControl(noteId, "freq", frequency));
-    superCollider.sendMessage(OscMessage.setControl(noteId, "duration", duration));
-    superCollider.sendMessage(OscMessage.setControl(noteId, "mul", volume));
-    superCollider.sendMessage(OscMessage.setControl(noteId, "effectBus", effectBus));
-    if (attack != DEFAULT_EFFECT_VALUE) {
-      superCollider.sendMessage(
-          OscMessage.setControl(noteId, "attack", Attack() / MILLISECS_IN_SEC));
-    }
-    if (decay != DEFAULT_EFFECT_VALUE) {
-      superCollider.sendMessage(
-          OscMessage.setControl(noteId, "decay", Decay() / MILLISECS_IN_SEC));
-    }
-    if (sustain != DEFAULT_EFFECT_VALUE) {
-      superCollider.sendMessage(
-          OscMessage.setControl(noteId, "sustain", Sustain() / MILLISECS_IN_SEC));
+  /**
+   * Plays a note as Play does, returning a handle to it.
+   *
+   * @param list  the note, in a format Play accepts
+   * @return  handle to the note, or 0 if it is not played live
+   */
+  @SimpleFunction(
+      description = "Plays a note as Play does, and returns a handle to it, which " +
+          "SetNotePitch, SetNoteVolume and ReleaseNote change while it sounds.  The handle " +
+          "is 0 if the note is not played straight away because a score is being recorded " +
+          "or the sound server is still starting.")
+  public int PlayNote(YailList list) {
+    return playNote(list);
+  }
+
+   // Plays a note for Play and PlayNote, returning its handle or 0.
+
+  private int playNote(YailList list) {
+    long playTime = System.nanoTime();
+    boolean parsed = parseNote(list.toArray(), 0, DEFAULT_DURATION, DEFAULT_VOLUME, noteParams);
+    stats.parseTime.record(System.nanoTime() - playTime);
+    if (!parsed) {
+      return 0;
     }
-    if (release != DEFAULT_EFFECT_VALUE) {
-      superCollider.sendMessage(
-          OscMessage.setControl(noteId, "release", Release() / MILLISECS_IN_SEC));
+    String source = Source();
+    float frequency = noteParams[NoteParser.FREQUENCY];
+    float duration = noteParams[NoteParser.DURATION];
+    float volume = noteParams[NoteParser.VOLUME];
+    if (score != null || !serverReady) {
+      NoteSequence note = new NoteSequence(1);
+      note.add(0, frequency, duration, volume);
+      if (scoreNotes(note, 0) || queueIfNotReady(note, 0)) {
+        return 0;
+      }
     }
-    if (reverb != DEFAULT_EFFECT_VALUE) {
-      superCollider.sendMessage(
-          OscMessage.setControl(noteId, "reverb", Reverb() / PERCENTAGE_MAX));
+    // The voice is allocated here rather than on the audio command thread, so that its node ID
+    // can be returned as the note's handle.
+    int noteId = allocateVoice(System.currentTimeMillis(), duration, volume, releaseTime(),
+        playStolenVoice);
+    if (playStolenVoice[0] != VoiceAllocator.NONE) {
+      AudioCommandQueue.Command free = commands.claim(COMMAND_FREE_VOICE);
+      free.target = this;
+      free.id = playStolenVoice[0];
+      free.droppable = false;
+      commands.publish(free);
     }
+    setPitchScale(noteId, SAMPLE_SOURCES.get(source), frequency);
+    AudioCommandQueue.Command command = commands.claim(COMMAND_NOTE);
+    command.target = this;
+    command.name = source;
+    command.id = noteId;
+    command.value0 = frequency;
+    command.value1 = duration;
+    command.value2 = volume;
+    command.enqueued = playTime;
+    commands.publish(command);
+    return noteId;
   }
 
-   //NOTE: An invalid argument to the following properties will
-   // register an error but not stop execution.
-
-
   /**
-   * Returns the reverb wetness of the instrument, the percentage of the sound converted to reverb.
-   * -1 will use the synthdef's default value.
+   * Changes the pitch of a sounding note, gliding to it over the given time.
    *
-   * @return  reverb  float representing reverb amount
+   * @param note  handle returned by PlayNote
+   * @param pitch  the new pitch, as a frequency or a note name and octave
+   * @param glide  time to glide to the new pitch, in milliseconds
    */
-  @SimpleProperty(
-      description = "The wetness of the reverb effect, as a percentage. A value of 0 will result "+
-          "in no reverb, while 100 will result in no direct sound (only reverb).  -1 will use " +
-          "the synthdef's default value.")
-  public float Reverb() {
-    return reverb;
+  @SimpleFunction(
+      description = "Changes the pitch of a note returned by PlayNote while it sounds, " +
+          "without playing it again.  The pitch is a list in one of the formats Play " +
+          "accepts, such as [\"C\", 5] or [523.25]; any duration or volume is ignored.  " +
+          "The note glides to the new pitch over the given number of milliseconds, or jumps " +
+          "to it if 0.  Notes that have ended are ignored.")
+  public void SetNotePitch(int note, YailList pitch, float glide) {
+    if (!isLiveNote(note)
+        || !parseNote(pitch.toArray(), 0, DEFAULT_DURATION, DEFAULT_VOLUME, noteParams)) {
+      return;
+    }
+    sendNoteChange(note, PITCH_TEMPLATE, CONTROL_FREQ,
+        noteParams[NoteParser.FREQUENCY] * pitchScale(note), glide);
   }
 
   /**
-   * Sets the wetness of the reverb effect, a number either -1 or between 0 and 100.
-   * A value of 0 will result in no reverb, while 100 will result in no direct
-   * sound (only reverb). -1 will use the instrument default.
-   * Other values below 0 will be raised to 0.
+   * Changes the volume of a sounding note, gliding to it over the given time.
    *
-   * @param reverb   float representing reverb
+   * @param note  handle returned by PlayNote
+   * @param volume  the new volume, as a percentage
+   * @param glide  time to glide to the new volume, in milliseconds
    */
-  @SimpleProperty
-  public void Reverb(float reverb) {
-    // Ensure value is either -1 or between 0 and max.
-    this.reverb = checkPropertyRange(reverb, REVERB_MAX);
+  @SimpleFunction(
+      description = "Changes the volume (0 to 100) of a note returned by PlayNote while it " +
+          "sounds, for swells and fades.  The note glides to the new volume over the given " +
+          "number of milliseconds, or jumps to it if 0.  " +
+          "Notes that have ended are ignored.")
+  public void SetNoteVolume(int note, float volume, float glide) {
+    if (isLiveNote(note)) {
+      sendNoteChange(note, VOLUME_TEMPLATE, CONTROL_MUL,
+          Math.max(volume, 0) / PERCENTAGE_MAX, glide);
+    }
   }
 
   /**
-   * Returns the attack value of the instrument, how long it takes for the
-   * instrument to reach peak volume (in milliseconds).
+   * Releases a sounding note before the end of its duration.
    *
-   * @return  attack  float representing attack amount
+   * @param note  handle returned by PlayNote
    */
-  @SimpleProperty(
-      description = "The attack: how long it takes for the instrument to reach " +
-          "peak volume, in milliseconds.  -1 uses the instrument's default.")
-  public float Attack() {
-    return attack;
+  @SimpleFunction(
+      description = "Ends a note returned by PlayNote before the end of its duration.  The " +
+          "note fades out over the instrument's Release time.  Notes that have ended are " +
+          "ignored.")
+  public void ReleaseNote(int note) {
+    if (!isLiveNote(note)) {
+      return;
+    }
+    sendNoteChange(note, RELEASE_TEMPLATE, CONTROL_GATE, 0, 0);
+    voices.endBy(note, VoiceAllocator.endTime(System.currentTimeMillis(), 0, releaseTime()));
   }
 
   /**
-   * Sets the attack of the instrument, in milliseconds.
-   * -1 will use the synthdef's default attack.
+   * Plays several notes at once, starting them together on the server.
    *
-   * @param attack   float representing attack
+   * @param notes  list of notes, each either a frequency or a list in a format Play accepts
+   * @param duration  duration in milliseconds of notes that do not give their own, or -1 for
+   * the default
+   * @param volume  volume of notes that do not give their own, or -1 for the default
    */
-  @SimpleProperty
-  public void Attack(float attack) {
-    this.attack = checkPropertyRange(attack);
+  @SimpleFunction(
+      description = "Plays a chord: several notes that start at exactly the same time.  Each " +
+          "note is either a frequency or a list in one of the formats Play accepts, for " +
+          "example [[\"C\", 4], [\"E\", 4], [\"G\", 4, 1000, 80]].  Notes that do not give " +
+          "a duration or volume use the duration and volume arguments; -1 for either uses " +
+          "the default.")
+  public void PlayChord(YailList notes, float duration, float volume) {
+    Object[] chordNotes = notes.toArray();
+    float chordDuration = duration == DEFAULT_EFFECT_VALUE ? DEFAULT_DURATION : duration;
+    float chordVolume = volume == DEFAULT_EFFECT_VALUE ? DEFAULT_VOLUME : volume;
+    NoteSequence chord = new NoteSequence(chordNotes.length);
+    for (Object chordNote : chordNotes) {
+      Object[] note = chordNote instanceof YailList ?
+          ((YailList) chordNote).toArray() : new Object[] {chordNote};
+      if (note.length > 0 && parseNote(note, 0, chordDuration, chordVolume, noteParams)) {
+        chord.add(0, noteParams[NoteParser.FREQUENCY], noteParams[NoteParser.DURATION],
+            noteParams[NoteParser.VOLUME]);
+      }
+    }
+    if (chord.size() == 0 || scoreNotes(chord, 0) || queueIfNotReady(chord, 0)) {
+      return;
+    }
+    AudioCommandQueue.Command command = commands.claim(COMMAND_NOTES);
+    command.target = this;
+    command.name = Source();
+    command.data = chord;
+    command.time = System.currentTimeMillis();
+    command.value0 = releaseTime();
+    commands.publish(command);
   }
 
   /**
-   * Returns the decay value of the instrument, how long it takes for the
-   * instrument to fall from peak volume (in milliseconds).  -1 will use the
-   * default value.
+   * Plays a sequence of notes, each starting at a given time after the sequence begins.
    *
-   * @return  decay  float representing decay amount
+   * @param sequence  list of notes, each a list of an onset in milliseconds followed by the
+   * arguments Play accepts
    */
-  @SimpleProperty(
-      description = "The decay: how long it takes for the instrument to fall from " +
-          "peak volume, in milliseconds. -1 uses the instrument's default.")
-  public float Decay() {
-    return decay;
+  @SimpleFunction(
+      description = "Plays a sequence of notes with precise timing.  The sequence is a list " +
+          "of notes, each a list starting with the note's onset (milliseconds after the " +
+          "sequence starts) followed by the same arguments Play accepts, for example " +
+          "[[0, \"C\", 4, 250], [250, \"E\", 4, 250]].  Notes are scheduled on the sound " +
+          "server a short time ahead, so their timing does not depend on the app being busy.")
+  public void PlaySequence(YailList sequence) {
+    Object[] entries = sequence.toArray();
+    NoteSequence notes = new NoteSequence(entries.length);
+    float[] params = new float[NoteParser.PARAM_COUNT];
+    for (Object entry : entries) {
+      if (!(entry instanceof YailList)) {
+        Log.e(LOG_TAG, PLAY_CLASS_CAST_ERROR_MSG + "Skipping sequence element " + entry);
+        stats.noteDropped();
+        continue;
+      }
+      Object[] timedNote = ((YailList) entry).toArray();
+      if (timedNote.length < 2) {
+        Log.e(LOG_TAG, "Skipping sequence element with no note: " + entry);
+        stats.noteDropped();
+        continue;
+      }
+      float onset;
+      try {
+        onset = NoteParser.parseFloat(timedNote[0]);
+      } catch (NumberFormatException e) {
+        Log.e(LOG_TAG, PLAY_NUMBER_FORMAT_ERROR_MSG + e.toString());
+        stats.noteDropped();
+        continue;
+      } catch (ClassCastException e) {
+        Log.e(LOG_TAG, PLAY_CLASS_CAST_ERROR_MSG + e.toString());
+        stats.noteDropped();
+        continue;
+      }
+      if (parseNote(timedNote, 1, DEFAULT_DURATION, DEFAULT_VOLUME, params)) {
+        notes.add(Math.max((long) onset, 0), params[NoteParser.FREQUENCY],
+            params[NoteParser.DURATION], params[NoteParser.VOLUME]);
+      }
+    }
+    schedule(notes, 0);
   }
 
   /**
-   * Sets the decay of the instrument, in milliseconds.
-   * -1 will use the synthdef's default decay.
+   * Plays a melody written as compact text.
    *
-   * @param decay   float representing decay
+   * @param melody  notes separated by spaces, each a pitch with an optional duration and
+   * volume, such as "C4:250 E4:250 G4:500:80 r:250"
    */
-  @SimpleProperty
-  public void Decay(float decay) {
-    this.decay = checkPropertyRange(decay);
+  @SimpleFunction(
+      description = "Plays a melody written as text: notes separated by spaces, each a " +
+          "pitch followed by an optional duration in milliseconds and volume (0 to 100), " +
+          "separated by colons, for example \"C4:250 E4:250 G4:500:80 r:250\".  A pitch " +
+          "is a note name and octave such as C#4 or Bb3, a frequency in hertz, or r for a " +
+          "rest, and pitches joined by + form a chord, as in C4+E4+G4:500.  A note that " +
+          "leaves out its octave, duration or volume takes the previous note's.  Each note " +
+          "starts when the one before it ends.  Melodies are compiled once and remembered, " +
+          "so playing one again is fast.")
+  public void PlayMelody(String melody) {
+    long parseStart = System.nanoTime();
+    NoteSequence notes;
+    try {
+      notes = melodies.get(melody, noteParser.pitchTable(), DEFAULT_DURATION, DEFAULT_VOLUME);
+    } catch (IllegalArgumentException e) {
+      Log.e(LOG_TAG, "Canceling PlayMelody: " + e.getMessage());
+      stats.argumentError();
+      stats.noteDropped();
+      return;
+    }
+    stats.parseTime.record(System.nanoTime() - parseStart);
+    schedule(notes, 0);
   }
 
   /**
-   * Returns the sustain value of the instrument, a number between 0 and 100.
-   * Value represents the percentage of the peak volume to be held after
-   * the decay.  Values greater than 100 may result in distortion, but
-   * are allowed.  -1 uses the synthdef's default value.
+   * Plays a melody over and over until StopLoop is called.
    *
-   * @return  sustain  float representing sustain percentage
+   * @param pattern  a melody in the form PlayMelody accepts
    */
-  @SimpleProperty(
-      description = "The sustain: how loud the sound will be after the decay, " +
-          "as a percentage of the peak volume.  -1 uses the instrument's default.")
-  public float Sustain() {
-    return sustain;
+  @SimpleFunction(
+      description = "Plays a melody, written as PlayMelody accepts, over and over until " +
+          "StopLoop is called, replacing any loop already playing.  The loop is sent to the " +
+          "sound server once and plays there, so it keeps perfect time and costs the app " +
+          "nothing while it plays.  A loop lasts until the end of its last note or rest, and " +
+          "plays chords of up to 8 notes.  Loops use the instrument's Source, which must not " +
+          "be sample-based, and its envelope and Reverb, and are not recorded in scores.")
+  public void StartLoop(String pattern) {
+    String synthDef = synthDef();
+    if (!LoopSynthDef.canLoop(synthDef)) {
+      Log.e(LOG_TAG, "Canceling StartLoop: sample-based sources cannot play loops");
+      stats.argumentError();
+      return;
+    }
+    LoopPattern compiled;
+    try {
+      compiled = LoopPattern.compile(
+          melodies.get(pattern, noteParser.pitchTable(), DEFAULT_DURATION, DEFAULT_VOLUME),
+          MAX_LOOP_VOICES);
+    } catch (IllegalArgumentException e) {
+      Log.e(LOG_TAG, "Canceling StartLoop: " + e.getMessage());
+      stats.argumentError();
+      return;
+    }
+    for (int i = 0; i < compiled.dropped(); i++) {
+      stats.noteDropped();
+    }
+    synchronized (loopLock) {
+      stopLoop();
+      loop = compiled;
+      loopSynthDef = synthDef;
+      // A loop started before the server is ready is sent when it is.
+      sendLoop();
+    }
   }
 
   /**
-   * Sets the sustain of the instrument, as a percentage.
-   * -1 will use the synthdef's default sustain.
-   *
-   * @param sustain   float representing sustain
+   * Stops the loop started by StartLoop.
    */
-  @SimpleProperty
-  public void Sustain(float sustain) {
-    this.sustain = checkPropertyRange(sustain);
+  @SimpleFunction(description = "Stops the loop started by StartLoop.")
+  public void StopLoop() {
+    synchronized (loopLock) {
+      stopLoop();
+      loop = null;
+    }
   }
 
   /**
-   * Returns the release value of the instrument, how long it takes for the
-   * instrument to go silent after finishing playing, in milliseconds.
+   * Plays a note at a given time from now.
    *
-   * @return  release  float representing release amount
+   * @param time  milliseconds from now at which the note will start
+   * @param note  arguments as accepted by Play
    */
-  @SimpleProperty(
-      description = "The release: how long it takes for the instrument to go silent " +
-          "after finishing playing, in milliseconds.  -1 uses the instrument's default.")
-  public float Release() {
-    return release;
+  @SimpleFunction(
+      description = "Plays a note the given number of milliseconds from now.  The note is " +
+          "given in the same format Play accepts.")
+  public void PlayAt(float time, YailList note) {
+    float[] params = new float[NoteParser.PARAM_COUNT];
+    if (parseNote(note.toArray(), 0, DEFAULT_DURATION, DEFAULT_VOLUME, params)) {
+      NoteSequence notes = new NoteSequence(1);
+      notes.add(0, params[NoteParser.FREQUENCY], params[NoteParser.DURATION],
+          params[NoteParser.VOLUME]);
+      schedule(notes, Math.max((long) time, 0));
+    }
   }
 
   /**
-   * Sets the release of the instrument, in milliseconds.
-   * -1 will use the synthdef's default release.
+   * Plays a Standard MIDI File, streaming its notes to the server as they come due.
    *
-   * @param release   release in milliseconds
+   * @param path  path of the file, or the name of a media file packaged with the app
    */
-  @SimpleProperty
-  public void Release(float release) {
-    this.release = checkPropertyRange(release);
+  @SimpleFunction(
+      description = "Plays a MIDI file (.mid), given its path or the name of a media file " +
+          "packaged with the app.  Every track is played, each channel with the Source set " +
+          "for it by SetMidiChannelSource, or this instrument's Source if none is set.  " +
+          "Notes are read from the file as they are played, so long files use no more " +
+          "memory than short ones.  StopSequences stops the file.  MIDI files are not " +
+          "recorded into scores.")
+  public void PlayMidiFile(String path) {
+    // Sources are chosen now, so that changing them does not affect a file already playing.
+    String[] synthDefs = new String[MidiFile.CHANNEL_COUNT];
+    SampleKit[] kits = new SampleKit[MidiFile.CHANNEL_COUNT];
+    for (int i = 0; i < MidiFile.CHANNEL_COUNT; i++) {
+      String channelSource = midiChannelSources[i] != null ? midiChannelSources[i] : Source();
+      synthDefs[i] = synthDef(channelSource);
+      kits[i] = SAMPLE_SOURCES.get(channelSource);
+      loadSynthDef(synthDefs[i]);
+    }
+    MidiPlayer player =
+        new MidiPlayer(path, synthDefs, kits, noteParser.pitchTable(), releaseTime());
+    midiPlayers.add(player);
+    scheduler().execute(player);
   }
 
-  @Override
-  public void onDestroy() {
-    prepareToDie();
+  /**
+   * Sets the source a MIDI channel is played with by PlayMidiFile.
+   *
+   * @param channel  channel number, from 1 to 16
+   * @param source  a built-in source or sample-based source, or "" for the instrument's Source
+   */
+  @SimpleFunction(
+      description = "Sets the source notes on a MIDI channel (1 to 16) are played with by " +
+          "PlayMidiFile, for example a sample-based drum kit for channel 10.  An empty " +
+          "source plays the channel with this instrument's Source.  Applies to files " +
+          "played from now on.")
+  public void SetMidiChannelSource(int channel, String source) {
+    if (channel < 1 || channel > MidiFile.CHANNEL_COUNT) {
+      Log.e(LOG_TAG, "MIDI channel must be between 1 and 16: " + channel);
+      return;
+    }
+    if (source.length() == 0) {
+      midiChannelSources[channel - 1] = null;
+    } else if (SYNTHDEF_MAP.get(source) != null || SAMPLE_SOURCES.containsKey(source)) {
+      midiChannelSources[channel - 1] = source;
+      loadSynthDef(synthDef(source));
+    } else {
+      Log.e(LOG_TAG, "Unknown source for MIDI channel " + channel + ": " + source);
+    }
   }
 
-  @Override
-  public void onDelete() {
-    prepareToDie();
+  /**
+   * Stops all sequences and MIDI files started by this instrument.  Notes already sent to
+   * the server will still sound.
+   */
+  @SimpleFunction(
+      description = "Stops any sequences, MIDI files and delayed notes this instrument has " +
+          "not yet played.  Notes that have already started will finish normally.")
+  public void StopSequences() {
+    for (SequencePlayer player : sequencePlayers) {
+      player.stop();
+    }
+    sequencePlayers.clear();
+    for (MidiPlayer player : midiPlayers) {
+      player.stop();
+    }
+    midiPlayers.clear();
   }
 
-  @Override
-  public void onStop() {
-    prepareToDie();
+  /**
+   * Starts recording this instrument's notes into a score instead of playing them.  The
+   * score can be saved with SaveScore and rendered to a sound file offline.
+   */
+  @SimpleFunction(
+      description = "Starts recording the notes this instrument plays into a score instead " +
+          "of playing them.  Notes keep their timing, relative to when BeginScore was " +
+          "called, and the Source, envelope and Reverb they were played with.  Use " +
+          "SaveScore to save the score once all the notes have been played.")
+  public void BeginScore() {
+    OscScore score = new OscScore();
+    scoreStart = System.currentTimeMillis();
+    this.score = score;
+    // Notes from an earlier score are recorded before the audio command thread begins this one.
+    AudioCommandQueue.Command command = commands.claim(COMMAND_BEGIN_SCORE);
+    command.target = this;
+    command.data = score;
+    command.time = scoreStart;
+    command.droppable = false;
+    commands.publish(command);
   }
 
-  @Override
-  public void onResume() {
-    if (superCollider.isEnded()) {
-      Log.d(LOG_TAG, "Restarting SuperCollider Server");
-      superCollider.start();
+  /**
+   * Saves the score started by BeginScore in the format of SuperCollider's non-realtime
+   * mode, and goes back to playing notes.  The score is written in the background, and
+   * ScoreSaved signalled once it has been.
+   *
+   * @param path  file to save the score to
+   * @return  true if there was a score to save
+   */
+  @SimpleFunction(
+      description = "Saves the notes recorded since BeginScore to the given file and goes " +
+          "back to playing notes.  The score can be rendered to a WAV file, much faster " +
+          "than it would take to play, by SuperCollider's scsynth in non-realtime mode.  " +
+          "The file is written in the background, and ScoreSaved is called once it has " +
+          "been.  Returns false if BeginScore was not called first.")
+  public boolean SaveScore(String path) {
+    OscScore score = this.score;
+    if (score == null) {
+      Log.e(LOG_TAG, "SaveScore called without BeginScore");
+      return false;
     }
+    this.score = null;
+    // Notes played before now are recorded on the audio command thread before it is saved.
+    AudioCommandQueue.Command command = commands.claim(COMMAND_SAVE_SCORE);
+    command.target = this;
+    command.data = score;
+    command.name = path;
+    command.droppable = false;
+    commands.publish(command);
+    return true;
   }
 
-  private void prepareToDie() {
-    if (superCollider != null) {
-      superCollider.sendQuit();
+   // Starts recording notes into a score begun by BeginScore at the given time, on the audio
+   // command thread.
+
+  private void beginScore(OscScore score, long start) {
+    recordingScore = score;
+    recordingStart = start;
+    scoreVoices = new VoiceAllocator(FIRST_NOTE_ID, NOTE_ID_COUNT, MAX_VOICES);
+    scoreVoices.setLimit(voices.limit());
+    scoreSynthDefs.clear();
+    scoreEffects.clear();
+    scoreBuffers.clear();
+    // The default group is not created in non-realtime mode.
+    score.add(0, new Object[] {"/g_new", DEFAULT_SYNTH_GROUP, ACTION_ADD_TO_HEAD, 0});
+    score.add(0, groupMessage());
+    // Settings are applied on this thread, so their values are current.
+    for (int i = 0; i < SETTING_COUNT; i++) {
+      if (settingValues[i] >= 0) {
+        score.add(0, new Object[] {"/c_set", firstControlBus + i, settingValues[i]});
+      }
     }
   }
 
+   // Stops recording into a score once the notes played before SaveScore have been recorded,
+   // on the audio command thread, and writes it on the scheduler thread so that notes are not
+   // held up by the file.
 
-   // Copies SuperCollider synthdefs packaged as assets to the devices SD card for use
-
-  private void deliverSynthDef(String fileName, ComponentContainer container) {
-    try {
-      InputStream is = container.$form().getAssets().open(ASSET_DIRECTORY + "/" + fileName);
-      OutputStream os = new FileOutputStream(DATA_DIR_STR + fileName);
-      byte[] buf = new byte[1024];
-      int bytesRead = 0;
-      while (-1 != (bytesRead = is.read(buf))) {
-        os.write(buf, 0, bytesRead);
-      }
-      is.close();
-      os.close();
-      Log.i(LOG_TAG, "Synthdef successfully pushed to SD card: " + fileName);
-    } catch (Exception e) {
-      Log.e(LOG_TAG, "Failed to deliver synthdef " + fileName);
-      e.printStackTrace();
+  private void saveScore(final OscScore score, final String path) {
+    if (recordingScore == score) {
+      recordingScore = null;
+      scoreVoices = null;
     }
+    scheduler().execute(new Runnable() {
+      @Override
+      public void run() {
+        boolean written = false;
+        try {
+          score.write(new File(path));
+          written = true;
+        } catch (IOException e) {
+          Log.e(LOG_TAG, "Failed to save score to " + path, e);
+        }
+        final boolean saved = written;
+        androidUIHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            ScoreSaved(path, saved);
+          }
+        });
+      }
+    });
   }
 
+  /**
+   * Starts recording every OSC packet sent to the server, with the time it was sent, to a
+   * file that OscReplay can send again.
+   *
+   * @param path  file to record to, which is replaced
+   * @return  true if recording started
+   */
+  @SimpleFunction(
+      description = "Starts recording everything all instruments send to the sound server, " +
+          "with the time each message was sent, to the given file until StopCapture.  The " +
+          "recording can be replayed to a server on a computer to reproduce stutter or " +
+          "compare servers.  Returns whether recording started.")
+  public boolean StartCapture(String path) {
+    OscCapture started;
+    try {
+      started = new OscCapture(new File(path));
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Failed to start capture to " + path, e);
+      return false;
+    }
+    OscCapture previous;
+    synchronized (instruments) {
+      previous = capture;
+      capture = started;
+    }
+    if (previous != null) {
+      previous.close();
+    }
+    return true;
+  }
+
+  /**
+   * Stops the recording started by StartCapture.
+   */
+  @SimpleFunction(description = "Stops the recording started by StartCapture.")
+  public void StopCapture() {
+    // Messages queued before now are recorded on the audio command thread.
+    awaitCommands();
+    OscCapture stopped;
+    synchronized (instruments) {
+      stopped = capture;
+      capture = null;
+    }
+    if (stopped != null) {
+      stopped.close();
+      Log.i(LOG_TAG, "Captured " + stopped.packets() + " packets");
+    }
+  }
+
+   // Parses a note in either of the formats Play accepts, starting at the given index of the
+   // array.  Duration (milliseconds) and volume (percent) default to the given values when not
+   // supplied.  On success, fills result with the frequency in hertz, duration in seconds and
+   // volume between 0 and 1, and returns true.  Errors are logged and false returned.
+
+  private boolean parseNote(Object[] note, int start, float defaultDuration,
+      float defaultVolume, float[] result) {
+    // The parser is shared by the UI thread's calls; sequence players parse nothing.
+    boolean parsed = noteParser.parse(note, start, defaultDuration, defaultVolume, result);
+    String error = noteParser.error();
+    if (error != null) {
+      Log.e(LOG_TAG, error);
+      if (parsed) {
+        stats.argumentError();
+      }
+    }
+    if (!parsed) {
+      stats.noteDropped();
+    }
+    return parsed;
+  }
+
+   // Returns the synthdef for the current Source.
+
+  private String synthDef() {
+    return synthDef(Source());
+  }
+
+   // Returns the synthdef playing the given source.
+
+  private static String synthDef(String source) {
+    if (SAMPLE_SOURCES.containsKey(source)) {
+      return SYNTHDEF_NAME_SAMPLE;
+    }
+    String synthDef = SYNTHDEF_MAP.get(source);
+    if (synthDef == null) {
+      Log.e(LOG_TAG, "Synthdef not found, using default synthdef.");
+      synthDef = SYNTHDEF_MAP.get(DEFAULT_SOURCE);
+    }
+    return synthDef;
+  }
+
+   // Starts playing a sequence the given number of milliseconds from now.
+
+  private void schedule(NoteSequence notes, long delay) {
+    if (notes.size() == 0 || scoreNotes(notes, delay) || queueIfNotReady(notes, delay)) {
+      return;
+    }
+    SequencePlayer player = new SequencePlayer(notes, System.currentTimeMillis() + delay);
+    sequencePlayers.add(player);
+    scheduler().execute(player);
+  }
+
+   // Holds notes played before the server is ready, keeping their timing relative to each other,
+   // so that they can be played once it is.  Returns false, queuing nothing, if the server is
+   // ready.
+
+  private boolean queueIfNotReady(NoteSequence notes, long delay) {
+    if (serverReady) {
+      return false;
+    }
+    // Notes played before the server was started start it.
+    startServer();
+    synchronized (pendingLock) {
+      if (serverReady) {
+        return false;
+      }
+      long now = System.currentTimeMillis();
+      if (pendingNotes == null) {
+        pendingNotes = new NoteSequence();
+        pendingStart = now;
+      }
+      long offset = now - pendingStart + delay;
+      for (int i = 0; i < notes.size(); i++) {
+        pendingNotes.add(offset + notes.onset(i), notes.frequency(i), notes.duration(i),
+            notes.volume(i));
+      }
+      return true;
+    }
+  }
+
+   // Records notes into the score, if one has been started, instead of playing them.  Returns
+   // false, recording nothing, if there is no score.
+
+  private boolean scoreNotes(NoteSequence notes, long delay) {
+    if (score == null) {
+      return false;
+    }
+    AudioCommandQueue.Command command = commands.claim(COMMAND_SCORE);
+    command.target = this;
+    command.name = Source();
+    command.data = notes;
+    command.time = System.currentTimeMillis() - scoreStart + delay;
+    command.value0 = releaseTime();
+    command.droppable = false;
+    commands.publish(command);
+    return true;
+  }
+
+   // Executes a command playing or scoring notes, on the audio command thread.
+
+  private void executeNotes(AudioCommandQueue.Command command) {
+    String synthDef = synthDef(command.name);
+    SampleKit kit = SAMPLE_SOURCES.get(command.name);
+    // Scores and chords carry the release time as it was when they were played.
+    if (command.kind == COMMAND_SCORE) {
+      recordNotes(synthDef, kit, (NoteSequence) command.data, command.time,
+          (long) command.value0);
+    } else if (command.kind == COMMAND_NOTES) {
+      NoteSequence notes = (NoteSequence) command.data;
+      if (dropNotes(notes.size())) {
+        return;
+      }
+      sendNotes(OscBundleSender.IMMEDIATELY, command.time, synthDef, kit, notes, 0,
+          notes.size(), (long) command.value0, commandStolenVoice);
+      stats.notesPlayed(notes.size());
+    } else {
+      float frequency = command.value0;
+      float duration = command.value1;
+      float volume = command.value2;
+      // Play allocated the voice, and had any voice it stole freed.
+      int noteId = command.id;
+      if (dropNotes(1)) {
+        voices.release(noteId);
+        return;
+      }
+      commandStolenVoice[0] = VoiceAllocator.NONE;
+      // Send note to SuperCollider
+      // Synth ID's should be uniquely assigned to avoid message mix-ups
+      if (DEBUG) {
+        Log.d(LOG_TAG, "Playing Note: synthDef = " + synthDef + ", noteID = " + noteId
+            + ", freq = " + frequency + ", dur = " + duration + ", vol = " + volume);
+      }
+      sendNote(synthDef, kit, noteId, frequency, duration, volume, commandStolenVoice);
+      stats.notesPlayed(1);
+      stats.sendLatency.record(System.nanoTime() - command.enqueued);
+    }
+  }
+
+   // Returns whether new notes are being dropped to relieve an overloaded server, counting
+   // the given number of notes as dropped if they are.
+
+  private boolean dropNotes(int count) {
+    if (!droppingNotes) {
+      return false;
+    }
+    for (int i = 0; i < count; i++) {
+      stats.noteDropped();
+    }
+    return true;
+  }
+
+   // Adds notes ringing for the given release time to the score, the given number of
+   // milliseconds after it started.
+
+  private void recordNotes(String synthDef, SampleKit kit, NoteSequence notes, long offset,
+      long release) {
+    OscScore score = recordingScore;
+    if (score == null) {
+      return;
+    }
+    addSynthDefToScore(score, synthDef);
+    EffectGraph.Effect reverbEffect = this.reverbEffect;
+    if (reverbEffect != null && scoreEffects.add(reverbEffect.nodeId())) {
+      addSynthDefToScore(score, REVERB_SYNTHDEF);
+      score.add(0, reverbEffect.createMessage());
+    }
+    for (int i = 0; i < notes.size(); i++) {
+      long startTime = offset + notes.onset(i);
+      long endTime = VoiceAllocator.endTime(startTime, notes.duration(i), release);
+      int noteId = scoreVoices.allocate(this, maxPolyphony, voiceStealing, startTime, endTime,
+          notes.volume(i), commandStolenVoice);
+      double time = (double) startTime / MILLISECS_IN_SEC;
+      if (commandStolenVoice[0] != VoiceAllocator.NONE) {
+        score.add(time, NoteMessageBuilder.freeMessage(commandStolenVoice[0]));
+      }
+      addSampleToScore(score, kit, notes.frequency(i));
+      score.add(time, noteBuilder.buildNote(synthDef, kit, noteId, notes.frequency(i),
+          notes.duration(i), notes.volume(i)));
+      score.extendTo((double) endTime / MILLISECS_IN_SEC);
+    }
+  }
+
+   // Waits for the audio command thread to execute everything sent to it so far.
+
+  private static void awaitCommands() {
+    try {
+      commands.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+   // Adds the loading of the sample playing a note to the start of the score, the first time
+   // the score uses the sample.  Samples the server has not been told to load yet are left
+   // out, and play silently.
+
+  private void addSampleToScore(OscScore score, SampleKit kit, float frequency) {
+    int zone = kit != null ? kit.nearest(frequency) : -1;
+    if (zone >= 0) {
+      SampleBufferCache.Sample sample = kit.sample(zone);
+      Object[] load = sample.loadMessage();
+      if (load != null && scoreBuffers.add(sample.buffer())) {
+        score.add(0, load);
+      }
+    }
+  }
+
+   // Adds a synthdef to the start of the score, the first time the score uses it.
+
+  private void addSynthDefToScore(OscScore score, String synthDef) {
+    if (scoreSynthDefs.add(synthDef)) {
+      byte[] def = synthDefBytes(synthDef);
+      if (def != null) {
+        score.add(0, new Object[] {"/d_recv", def});
+      }
+    }
+  }
+
+   // Returns how far ahead of the given time notes may be sent.  Notes are sent ahead, in
+   // bundles timestamped with their onsets, when bundles can be sent.  A server elsewhere on
+   // the network keeps time by its own clock, which may not agree with the device's, so its
+   // notes are sent as they fall due, to be played immediately.
+
+  private static long sendHorizon(long now, boolean bundles) {
+    return bundles && !(engine instanceof RemoteAudioEngine) ? now + SCHEDULE_AHEAD_MS : now;
+  }
+
+   // Returns the time tag of a bundle of notes starting at the given time, as sendHorizon
+   // allows.
+
+  private static long bundleTimeTag(long onset) {
+    return engine instanceof RemoteAudioEngine
+        ? OscBundleSender.IMMEDIATELY : OscBundleSender.timeTag(onset);
+  }
+
+   // Returns the sender for timestamped bundles, or null if the server cannot be reached over UDP,
+   // in which case sequences fall back to sending each note when it is due.  A server
+   // elsewhere on the network is sent bundles through the engine's own connection.
+
+  private static OscBundleSender bundleSender() {
+    AudioEngine server = engine;
+    OscBundleSender sender = server instanceof RemoteAudioEngine
+        ? ((RemoteAudioEngine) server).bundleSender() : localBundleSender();
+    OscCapture current = capture;
+    if (sender != null && sender.capture() != current) {
+      sender.setCapture(current);
+    }
+    return sender;
+  }
+
+   // Sends a message to the engine, recording it if a capture is running.  Only the audio
+   // command thread drives the engine, so a message from any other thread is queued for it.
+
+  private static void sendToEngine(Object[] message) {
+    if (!commands.isDispatchThread()) {
+      sendCommandMessage(message);
+      return;
+    }
+    OscCapture current = capture;
+    if (current != null) {
+      current.record(message);
+    }
+    engine.sendMessage(message);
+  }
+
+  private static synchronized OscBundleSender localBundleSender() {
+    if (bundleSender == null && !bundleSenderFailed) {
+      try {
+        bundleSender = new OscBundleSender(SC_HOST, SC_UDP_PORT);
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "Could not open UDP connection to SuperCollider; sequence timing will "
+            + "be approximate.", e);
+        bundleSenderFailed = true;
+      }
+    }
+    return bundleSender;
+  }
+
+  private static synchronized ScheduledExecutorService scheduler() {
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "Instrument scheduler");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return scheduler;
+  }
+
+  /*
+   * Streams a sequence to the server.  Each run sends every note starting within the next
+   * SCHEDULE_AHEAD_MS as a bundle timestamped with the note's onset, then reschedules itself,
+   * so long sequences are never sent all at once.  Without a bundle sender, notes are sent as
+   * they fall due.
+   */
+  private class SequencePlayer implements Runnable {
+    private final NoteSequence notes;
+    private final String synthDef;
+    private final SampleKit kit;
+    private final long release;
+    private final int[] stolen = new int[1];
+    private long startTime;
+    // The server's total suspended time when this last ran.
+    private long suspensions = suspendedTime;
+    private int next;
+    private volatile boolean stopped;
+
+    SequencePlayer(NoteSequence notes, long startTime) {
+      this.notes = notes;
+      this.startTime = startTime;
+      this.synthDef = synthDef();
+      this.kit = SAMPLE_SOURCES.get(Source());
+      this.release = releaseTime();
+    }
+
+    @Override
+    public void run() {
+      if (stopped) {
+        return;
+      }
+      if (serverSuspended) {
+        scheduler().schedule(this, SCHEDULE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        return;
+      }
+      long suspended = suspendedTime;
+      startTime += suspended - suspensions;
+      suspensions = suspended;
+      long now = System.currentTimeMillis();
+      OscBundleSender sender = bundleSender();
+      long horizon = sendHorizon(now, sender != null);
+      int size = notes.size();
+      while (next < size && startTime + notes.onset(next) <= horizon) {
+        // Notes with the same onset share one bundle.
+        int end = notes.groupEnd(next);
+        if (dropNotes(end - next)) {
+          next = end;
+          continue;
+        }
+        if (sender != null) {
+          sendGroup(end);
+        } else {
+          for (int i = next; i < end; i++) {
+            int noteId = allocateVoice(now, notes.duration(i), notes.volume(i), release,
+                stolen);
+            sendNote(synthDef, kit, noteId, notes.frequency(i), notes.duration(i),
+                notes.volume(i), stolen);
+          }
+        }
+        stats.notesPlayed(end - next);
+        next = end;
+      }
+      if (next >= size) {
+        sequencePlayers.remove(this);
+        return;
+      }
+      long delay = sender != null ? SCHEDULE_INTERVAL_MS : startTime + notes.onset(next) - now;
+      scheduler().schedule(this, delay, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+      stopped = true;
+    }
+
+    // Sends the notes from next up to end, which share an onset, as one bundle.
+    private void sendGroup(int end) {
+      long onset = startTime + notes.onset(next);
+      sendNotes(bundleTimeTag(onset), onset, synthDef, kit, notes, next, end,
+          release, stolen);
+    }
+  }
+
+  /*
+   * Streams a MIDI file to the server, reading notes from the file only as they come within
+   * SCHEDULE_AHEAD_MS.  The notes of each channel that start together are sent as a sequence's
+   * are, as one bundle timestamped with their onset, or as messages if the bundle cannot be
+   * sent.  The file is opened on the scheduler thread, and playing waits for the server to be
+   * ready.  Without a bundle sender, notes are sent as they fall due.
+   */
+  private class MidiPlayer implements Runnable {
+    private final String path;
+    private final String[] synthDefs;
+    private final SampleKit[] kits;
+    private final PitchTable pitchTable;
+    private final long release;
+    private final int[] stolen = new int[1];
+    // Notes read for each channel that start together, waiting to be sent.
+    private final NoteSequence[] channelNotes = new NoteSequence[MidiFile.CHANNEL_COUNT];
+    private MidiFile.NoteReader notes;
+    private long startTime;
+    // The server's total suspended time when this last ran.
+    private long suspensions = suspendedTime;
+    // Whether the reader is on a note that has not been sent yet.
+    private boolean pending;
+    private volatile boolean stopped;
+
+    MidiPlayer(String path, String[] synthDefs, SampleKit[] kits, PitchTable pitchTable,
+        long release) {
+      this.path = path;
+      this.synthDefs = synthDefs;
+      this.kits = kits;
+      this.pitchTable = pitchTable;
+      this.release = release;
+    }
+
+    @Override
+    public void run() {
+      if (stopped) {
+        return;
+      }
+      if (!serverReady || serverSuspended) {
+        scheduler().schedule(this, SCHEDULE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        return;
+      }
+      long suspended = suspendedTime;
+      startTime += suspended - suspensions;
+      suspensions = suspended;
+      long now = System.currentTimeMillis();
+      if (notes == null) {
+        try {
+          notes = MidiFile.read(locateMedia(path, MIDI_DIR_STR)).notes();
+        } catch (IOException e) {
+          Log.e(LOG_TAG, "Could not play MIDI file " + path, e);
+          midiPlayers.remove(this);
+          return;
+        }
+        startTime = now;
+      }
+      OscBundleSender sender = bundleSender();
+      long horizon = sendHorizon(now, sender != null);
+      long groupOnset = -1;
+      boolean finished = false;
+      while (true) {
+        if (!pending) {
+          if (!notes.next()) {
+            finished = true;
+            break;
+          }
+          pending = true;
+        }
+        long onset = startTime + notes.onset();
+        if (onset > horizon) {
+          break;
+        }
+        pending = false;
+        if (onset != groupOnset) {
+          sendGroup(groupOnset);
+          groupOnset = onset;
+        }
+        int channel = notes.channel();
+        if (channelNotes[channel] == null) {
+          channelNotes[channel] = new NoteSequence();
+        }
+        channelNotes[channel].add(0, pitchTable.frequency(notes.key()), notes.duration(),
+            notes.volume());
+      }
+      sendGroup(groupOnset);
+      if (finished) {
+        midiPlayers.remove(this);
+        return;
+      }
+      long delay = sender != null ? SCHEDULE_INTERVAL_MS : startTime + notes.onset() - now;
+      scheduler().schedule(this, delay, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+      stopped = true;
+    }
+
+    // Sends the notes read that start at the given time, a bundle for each channel, leaving
+    // every channel empty.
+    private void sendGroup(long onset) {
+      for (int channel = 0; channel < channelNotes.length; channel++) {
+        NoteSequence group = channelNotes[channel];
+        if (group == null || group.size() == 0) {
+          continue;
+        }
+        int size = group.size();
+        if (!dropNotes(size)) {
+          sendNotes(bundleTimeTag(onset), onset, synthDefs[channel], kits[channel], group, 0,
+              size, release, stolen);
+          stats.notesPlayed(size);
+        }
+        group.clear();
+      }
+    }
+  }
+
+   // Allocates a node ID for a note starting at the given time (milliseconds) with the given
+   // duration (seconds) and release time (milliseconds), stealing a voice if this instrument or
+   // all instruments are at their polyphony limit.  The node ID of a stolen voice is left in
+   // stolen[0].
+
+  private int allocateVoice(long startTime, float duration, float volume, long release,
+      int[] stolen) {
+    return voices.allocate(this, maxPolyphony, voiceStealing, System.currentTimeMillis(),
+        startTime, VoiceAllocator.endTime(startTime, duration, release), volume, stolen);
+  }
+
+   // Returns how long notes ring after their duration, in milliseconds.  Release is set on the
+   // UI thread, so it is read there and passed along with notes sent from other threads.
+
+  private long releaseTime() {
+    return release != DEFAULT_EFFECT_VALUE ? (long) release : ASSUMED_RELEASE;
+  }
+
+   // Frees the node of a stolen voice, if there is one.
+
+  private void freeStolenVoice(int[] stolen) {
+    if (stolen[0] != VoiceAllocator.NONE) {
+      sendToEngine(NoteMessageBuilder.freeMessage(stolen[0]));
+      stats.messagesSent(1);
+      stats.voiceStolen();
+    }
+  }
+
+   // Returns whether a note handle is one of this instrument's notes that is still sounding.
+
+  private boolean isLiveNote(int note) {
+    return voices.isLive(this, note, System.currentTimeMillis());
+  }
+
+   // Records what a note's pitch is multiplied by to get its freq control, which for a
+   // sample-based note depends on the root of the sample playing it.
+
+  private static void setPitchScale(int noteId, SampleKit kit, float frequency) {
+    int zone = kit != null ? kit.nearest(frequency) : -1;
+    synchronized (voices) {
+      if (notePitchScales == null) {
+        if (zone < 0) {
+          return;
+        }
+        notePitchScales = new float[NOTE_ID_COUNT];
+        Arrays.fill(notePitchScales, 1);
+      }
+      notePitchScales[noteId - FIRST_NOTE_ID] =
+          zone >= 0 ? NoteMessageBuilder.sampleFrequency(kit, zone, 1) : 1;
+    }
+  }
+
+  private static float pitchScale(int noteId) {
+    synchronized (voices) {
+      return notePitchScales != null ? notePitchScales[noteId - FIRST_NOTE_ID] : 1;
+    }
+  }
+
+   // Sends a change to a sounding note through the audio command queue.  A release must not be
+   // dropped; a dropped pitch or volume change is overtaken by the next.
+
+  private void sendNoteChange(int note, OscTemplate template, String control, float value,
+      float glide) {
+    AudioCommandQueue.Command command = commands.claim(COMMAND_SET_NOTE);
+    command.target = this;
+    command.data = template;
+    command.name = control;
+    command.id = note;
+    command.value0 = value;
+    command.value1 = Math.max(glide, 0) / MILLISECS_IN_SEC;
+    command.droppable = template != RELEASE_TEMPLATE;
+    commands.publish(command);
+  }
+
+   // Sends a change to a sounding note as a single /n_set, on the audio command thread.
+
+  private void setNote(AudioCommandQueue.Command command) {
+    OscTemplate template = (OscTemplate) command.data;
+    OscEncoder encoder = encoder();
+    if (encoder != null) {
+      try {
+        encoder.startBundle(OscBundleSender.IMMEDIATELY);
+        int message = encoder.add(template);
+        encoder.setInt(template, message, 1, command.id);
+        encoder.setFloat(template, message, 3, command.value1);
+        encoder.setFloat(template, message, 5, command.value0);
+        stats.messagesSent(encoder.send());
+        return;
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "Failed to change note, changing it through the engine", e);
+        stats.sendFailed();
+      }
+    }
+    sendToEngine(new Object[] {
+        "/n_set", command.id, "glide", command.value1, command.name, command.value0
+    });
+    stats.messagesSent(1);
+  }
+
+   // Starts notes from..to of a sequence together at the given OSC time, allocating a voice for
+   // each.  The bundle is encoded without allocation when the server can be reached over UDP.
+   // If encoding fails, the notes keep the voices already allocated to them and are sent as
+   // messages instead.
+
+  private void sendNotes(long timeTag, long startTime, String synthDef, SampleKit kit,
+      NoteSequence notes, int from, int to, long release, int[] stolen) {
+    // Notes for a synthdef still loading are built as messages, to be held until it has.
+    OscEncoder encoder = synthDefLoading(synthDef) ? null : encoder();
+    int encoded = 0;
+    int[] allocated = null;
+    if (encoder != null) {
+      allocated = encodedVoices(2 * (to - from));
+      try {
+        encoder.startBundle(timeTag);
+        for (int i = from; i < to; i++, encoded++) {
+          int noteId =
+              allocateVoice(startTime, notes.duration(i), notes.volume(i), release, stolen);
+          allocated[2 * encoded] = noteId;
+          allocated[2 * encoded + 1] = stolen[0];
+          encodeNote(encoder, synthDef, kit, noteId, notes.frequency(i), notes.duration(i),
+              notes.volume(i), stolen);
+        }
+        stats.messagesSent(encoder.send());
+        return;
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "Failed to send notes, sending them as messages", e);
+        stats.sendFailed();
+      }
+    }
+    // Each voice may need to free a stolen voice before starting.
+    Object[][] messages = new Object[2 * (to - from)][];
+    int count = 0;
+    for (int i = from; i < to; i++) {
+      int note = i - from;
+      if (note < encoded) {
+        count = noteBuilder.addNote(messages, count, synthDef, kit, allocated[2 * note],
+            allocated[2 * note + 1], notes.frequency(i), notes.duration(i), notes.volume(i));
+      } else {
+        count = addNote(messages, count, synthDef, kit, startTime, notes.frequency(i),
+            notes.duration(i), notes.volume(i), release, stolen);
+      }
+    }
+    if (!holdNotes(synthDef, this, timeTag, messages, count)) {
+      sendBundle(timeTag, messages, count);
+    }
+  }
+
+   // Returns the calling thread's array for the voices of the notes it encodes, with room for
+   // at least the given number of entries.
+
+  private static int[] encodedVoices(int size) {
+    int[] allocated = encodedVoices.get();
+    if (allocated == null || allocated.length < size) {
+      allocated = new int[Math.max(size, 2 * MAX_VOICES)];
+      encodedVoices.set(allocated);
+    }
+    return allocated;
+  }
+
+   // Adds the messages starting a note to the bundle being encoded, first freeing a stolen voice
+   // if necessary.
+
+  private void encodeNote(OscEncoder encoder, String synthDef, SampleKit kit, int noteId,
+      float frequency, float duration, float volume, int[] stolen) throws IOException {
+    if (stolen[0] != VoiceAllocator.NONE) {
+      stats.voiceStolen();
+    }
+    noteBuilder.writeNote(encoder, synthDef, kit, noteId, stolen[0], frequency, duration,
+        volume);
+  }
+
+   // Applies a setting to the notes built from now on and to those already sounding, on the
+   // audio command thread.
+
+  private void applySetting(int which, float value) {
+    switch (which) {
+      case SETTING_ATTACK:
+        noteBuilder.setAttack(value);
+        break;
+      case SETTING_DECAY:
+        noteBuilder.setDecay(value);
+        break;
+      case SETTING_SUSTAIN:
+        noteBuilder.setSustain(value);
+        break;
+      case SETTING_RELEASE:
+        noteBuilder.setRelease(value);
+        break;
+      case SETTING_REVERB:
+        EffectGraph.Effect reverbEffect = this.reverbEffect;
+        noteBuilder.setReverb(value,
+            reverbEffect != null ? reverbEffect.bus() : NoteMessageBuilder.NO_BUS);
+        break;
+    }
+    settingValues[which] = value;
+    OscScore score = recordingScore;
+    if (score != null && value >= 0) {
+      score.add((double) (System.currentTimeMillis() - recordingStart) / MILLISECS_IN_SEC,
+          new Object[] {"/c_set", firstControlBus + which, value});
+    }
+    sendSetting(which);
+  }
+
+   // Sets a setting's control bus, unless it already has the setting's value.  Unset settings
+   // are not mapped by notes, so their buses are left alone.
+
+  private void sendSetting(int which) {
+    float value = settingValues[which];
+    if (value < 0 || value == sentSettingValues[which] || !serverReady) {
+      return;
+    }
+    sentSettingValues[which] = value;
+    int bus = firstControlBus + which;
+    OscEncoder encoder = encoder();
+    if (encoder != null) {
+      try {
+        encoder.startBundle(OscBundleSender.IMMEDIATELY);
+        int message = encoder.add(C_SET_TEMPLATE);
+        encoder.setInt(C_SET_TEMPLATE, message, 1, bus);
+        encoder.setFloat(C_SET_TEMPLATE, message, 2, value);
+        stats.messagesSent(encoder.send());
+        return;
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "Failed to set control bus, setting it through the engine", e);
+        stats.sendFailed();
+      }
+    }
+    sendToEngine(new Object[] {"/c_set", bus, value});
+    stats.messagesSent(1);
+  }
+
+   // Creates this instrument's group and sets its control buses, on the audio command thread.
+   // The group is sent the same way as notes, so that it reaches the server before them.
+
+  private void createGroup() {
+    sendBundle(OscBundleSender.IMMEDIATELY, new Object[][] {groupMessage()}, 1);
+    Arrays.fill(sentSettingValues, Float.NaN);
+    for (int i = 0; i < SETTING_COUNT; i++) {
+      sendSetting(i);
+    }
+  }
+
+  private Object[] groupMessage() {
+    return new Object[] {"/g_new", groupId, ACTION_ADD_TO_HEAD, DEFAULT_SYNTH_GROUP};
+  }
+
+  private void enqueueCreateGroup() {
+    AudioCommandQueue.Command command = commands.claim(COMMAND_CREATE_GROUP);
+    command.target = this;
+    command.droppable = false;
+    commands.publish(command);
+  }
+
+   // Returns the group and control bus slot for a new instrument.
+
+  private static synchronized int allocateSlot() {
+    Integer slot = freeSlots.poll();
+    return slot != null ? slot : nextSlot++;
+  }
+
+  private static synchronized void releaseSlot(int slot) {
+    freeSlots.add(slot);
+  }
+
+  /*
+   * Key for an update of one of an instrument's settings, so that updates to the same setting
+   * can be coalesced.
+   */
+  private static final class Setting {
+    final Instrument instrument;
+    final int which;
+
+    Setting(Instrument instrument, int which) {
+      this.instrument = instrument;
+      this.which = which;
+    }
+  }
+
+   // Returns the calling thread's encoder, or null if the server cannot be reached over UDP.
+   // The encoder is replaced when the server changes to one reached another way.
+
+  private static OscEncoder encoder() {
+    OscEncoder encoder = encoders.get();
+    OscBundleSender sender = bundleSender();
+    if (encoder == null || encoder.sender() != sender) {
+      if (sender == null) {
+        return null;
+      }
+      encoder = new OscEncoder(sender);
+      encoders.set(encoder);
+    }
+    return encoder;
+  }
+
+   // Sends messages as a bundle to be executed at the given OSC time, or one at a time through
+   // the engine if the bundle cannot be sent.
+
+  private void sendBundle(long timeTag, Object[][] messages, int count) {
+    OscBundleSender sender = bundleSender();
+    if (sender != null) {
+      try {
+        sender.send(timeTag, messages, count);
+        stats.messagesSent(count);
+        return;
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "Failed to send bundle, sending messages separately", e);
+        stats.sendFailed();
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      sendToEngine(messages[i]);
+    }
+    stats.messagesSent(count);
+  }
+
+   // Allocates a voice for a note and appends its messages to a bundle being built, first
+   // freeing a stolen voice if necessary.  Returns the new number of messages.
+
+  private int addNote(Object[][] messages, int count, String synthDef, SampleKit kit,
+      long startTime, float frequency, float duration, float volume, long release,
+      int[] stolen) {
+    int noteId = allocateVoice(startTime, duration, volume, release, stolen);
+    if (stolen[0] != VoiceAllocator.NONE) {
+      stats.voiceStolen();
+    }
+    return noteBuilder.addNote(messages, count, synthDef, kit, noteId, stolen[0], frequency,
+        duration, volume);
+  }
+
+   // Creates the note synth with all of its controls in a single /s_new, so the note never runs
+   // with the synthdef's default controls, first freeing a stolen voice if necessary.  The
+   // messages are encoded from templates and sent over UDP without allocating, or sent through
+   // the engine if that fails.  A note for a synthdef still loading is held until it has.
+
+  private void sendNote(String synthDef, SampleKit kit, int noteId, float frequency,
+      float duration, float volume, int[] stolen) {
+    OscEncoder encoder = synthDefLoading(synthDef) ? null : encoder();
+    if (encoder != null) {
+      try {
+        encoder.startBundle(OscBundleSender.IMMEDIATELY);
+        encodeNote(encoder, synthDef, kit, noteId, frequency, duration, volume, stolen);
+        stats.messagesSent(encoder.send());
+        return;
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "Failed to send note, sending it through the engine", e);
+        stats.sendFailed();
+      }
+    }
+    freeStolenVoice(stolen);
+    Object[] note = noteBuilder.buildNote(synthDef, kit, noteId, frequency, duration, volume);
+    if (!holdNotes(synthDef, this, OscBundleSender.IMMEDIATELY, new Object[][] {note}, 1)) {
+      sendToEngine(note);
+      stats.messagesSent(1);
+    }
+  }
+
+  /**
+   * Returns the frequency of A4, in hertz, that note names are tuned to.
+   *
+   * @return  tuning  frequency of A4
+   */
+  @SimpleProperty(
+      description = "The frequency of the note A4, in hertz, that notes played by letter are " +
+          "tuned to.  The default is concert pitch, 440.")
+  public float Tuning() {
+    return noteParser.pitchTable().reference();
+  }
+
+  /**
+   * Sets the frequency of A4 that note names are tuned to.  Non-positive values
+   * will register an error and leave the tuning unchanged.
+   *
+   * @param tuning   frequency of A4 in hertz
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_FLOAT,
+      defaultValue = "440.0")
+  @SimpleProperty
+  public void Tuning(float tuning) {
+    if (tuning > 0) {
+      noteParser.setPitchTable(PitchTable.forReference(tuning));
+    } else {
+      Log.e(LOG_TAG, "Tuning must be a positive frequency, but was " + tuning);
+    }
+  }
+
+  /**
+   * Returns the greatest number of notes this instrument will play at once.
+   *
+   * @return  maximum number of simultaneous notes, or 0 for no limit
+   */
+  @SimpleProperty(
+      description = "The greatest number of notes this instrument will play at once.  When " +
+          "a new note would exceed it, a sounding note is cut off to make room, as chosen " +
+          "by VoiceStealing.  0 means no limit other than GlobalMaxPolyphony.")
+  public int MaxPolyphony() {
+    return maxPolyphony;
+  }
+
+  /**
+   * Sets the greatest number of notes this instrument will play at once, or 0 for no limit.
+   *
+   * @param maxPolyphony  maximum number of simultaneous notes
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+      defaultValue = "16")
+  @SimpleProperty
+  public void MaxPolyphony(int maxPolyphony) {
+    this.maxPolyphony = Math.max(maxPolyphony, 0);
+  }
+
+  /**
+   * Returns how fast loops play, as a multiple of the timing they were written with.
+   *
+   * @return  loop tempo, where 1 is as written
+   */
+  @SimpleProperty(
+      description = "How fast loops play, as a multiple of the timing they were written " +
+          "with: 2 plays them twice as fast.  Changing it changes the loop playing at once.")
+  public float LoopTempo() {
+    synchronized (loopLock) {
+      return loopTempo;
+    }
+  }
+
+  /**
+   * Sets how fast loops play, as a multiple of the timing they were written with.
+   *
+   * @param tempo  loop tempo, where 1 is as written; must be greater than 0
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_FLOAT,
+      defaultValue = "1")
+  @SimpleProperty
+  public void LoopTempo(float tempo) {
+    if (tempo <= 0) {
+      Log.e(LOG_TAG, "LoopTempo must be greater than 0: " + tempo);
+      stats.argumentError();
+      return;
+    }
+    synchronized (loopLock) {
+      loopTempo = tempo;
+      if (loopBuffers != null) {
+        sendCommandMessage(new Object[] {"/n_set", loopGroupId, "rate", tempo});
+      }
+    }
+  }
+
+  /**
+   * Returns how many semitones loops are transposed by.
+   *
+   * @return  transposition in semitones
+   */
+  @SimpleProperty(
+      description = "How many semitones loops are transposed by, up or down.  Changing it " +
+          "changes the loop playing at once.")
+  public float LoopTranspose() {
+    synchronized (loopLock) {
+      return loopTranspose;
+    }
+  }
+
+  /**
+   * Sets how many semitones loops are transposed by.
+   *
+   * @param semitones  transposition in semitones, negative to transpose down
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_FLOAT,
+      defaultValue = "0")
+  @SimpleProperty
+  public void LoopTranspose(float semitones) {
+    synchronized (loopLock) {
+      loopTranspose = semitones;
+      if (loopBuffers != null) {
+        sendCommandMessage(new Object[] {"/n_set", loopGroupId, "transpose", transposeRatio()});
+      }
+    }
+  }
+
+  /**
+   * Returns the greatest number of notes all instruments together will play at once.
+   *
+   * @return  maximum number of simultaneous notes across all instruments
+   */
+  @SimpleProperty(
+      description = "The greatest number of notes all instruments in the app together will " +
+          "play at once.  Keeping this low prevents the sound server from being overloaded.")
+  public int GlobalMaxPolyphony() {
+    synchronized (instruments) {
+      return globalMaxPolyphony;
+    }
+  }
+
+  /**
+   * Sets the greatest number of notes all instruments together will play at once,
+   * between 1 and 128.
+   *
+   * @param maxPolyphony  maximum number of simultaneous notes across all instruments
+   */
+  @SimpleProperty
+  public void GlobalMaxPolyphony(int maxPolyphony) {
+    synchronized (instruments) {
+      voices.setLimit(maxPolyphony);
+      globalMaxPolyphony = voices.limit();
+      applyQualityLevel();
+    }
+  }
+
+  /**
+   * Returns what happens when notes and settings are sent faster than the sound server
+   * takes them: "block", "drop oldest" or "coalesce".
+   *
+   * @return  overflow policy shared by all instruments
+   */
+  @SimpleProperty(
+      description = "What happens when notes and settings are sent faster than the sound " +
+          "server takes them, for all instruments: \"block\" waits for room, \"drop " +
+          "oldest\" discards the oldest waiting note, and \"coalesce\" keeps only the " +
+          "latest value of each setting, waiting for room for notes.")
+  public String CommandOverflow() {
+    switch (commands.overflow()) {
+      case AudioCommandQueue.DROP_OLDEST:
+        return COMMAND_OVERFLOW_DROP_OLDEST;
+      case AudioCommandQueue.COALESCE:
+        return COMMAND_OVERFLOW_COALESCE;
+      default:
+        return COMMAND_OVERFLOW_BLOCK;
+    }
+  }
+
+  /**
+   * Sets what happens when notes and settings are sent faster than the sound server takes
+   * them.  Other values will register an error and leave the policy unchanged.
+   *
+   * @param overflow  "block", "drop oldest" or "coalesce"
+   */
+  @SimpleProperty
+  public void CommandOverflow(String overflow) {
+    if (COMMAND_OVERFLOW_BLOCK.equals(overflow)) {
+      commands.setOverflow(AudioCommandQueue.BLOCK);
+    } else if (COMMAND_OVERFLOW_DROP_OLDEST.equals(overflow)) {
+      commands.setOverflow(AudioCommandQueue.DROP_OLDEST);
+    } else if (COMMAND_OVERFLOW_COALESCE.equals(overflow)) {
+      commands.setOverflow(AudioCommandQueue.COALESCE);
+    } else {
+      Log.e(LOG_TAG, "CommandOverflow must be \"block\", \"drop oldest\" or \"coalesce\", "
+          + "but was " + overflow);
+    }
+  }
+
+  /**
+   * Returns which note is cut off when a polyphony limit is reached, "oldest" or
+   * "quietest".
+   *
+   * @return  voice stealing policy
+   */
+  @SimpleProperty(
+      description = "Which sounding note is cut off when a polyphony limit is reached: " +
+          "\"oldest\" or \"quietest\".")
+  public String VoiceStealing() {
+    return voiceStealing == VoiceAllocator.STEAL_QUIETEST ?
+        VOICE_STEALING_QUIETEST : VOICE_STEALING_OLDEST;
+  }
+
+  /**
+   * Sets which note is cut off when a polyphony limit is reached.  Values other than
+   * "oldest" and "quietest" will register an error and leave the policy unchanged.
+   *
+   * @param voiceStealing  "oldest" or "quietest"
+   */
+  @SimpleProperty
+  public void VoiceStealing(String voiceStealing) {
+    if (VOICE_STEALING_OLDEST.equals(voiceStealing)) {
+      this.voiceStealing = VoiceAllocator.STEAL_OLDEST;
+    } else if (VOICE_STEALING_QUIETEST.equals(voiceStealing)) {
+      this.voiceStealing = VoiceAllocator.STEAL_QUIETEST;
+    } else {
+      Log.e(LOG_TAG, "VoiceStealing must be \"oldest\" or \"quietest\", but was "
+          + voiceStealing);
+    }
+  }
+
+  /**
+   * Returns whether synthdefs are sent to the sound server straight from memory, rather than
+   * copied to the SD card first.
+   *
+   * @return  true if synthdefs are loaded from memory
+   */
+  @SimpleProperty(
+      description = "Whether the synth definitions packaged with the app, such as the " +
+          "reverb, are sent straight to the sound server instead of being copied to the SD " +
+          "card first.  Sending them directly starts faster; turn it off if sounds fail to " +
+          "load.")
+  public boolean LoadSynthDefsFromMemory() {
+    return loadSynthDefsFromMemory;
+  }
+
+  /**
+   * Sets whether synthdefs are sent to the sound server straight from memory.
+   *
+   * @param fromMemory  true to send synthdefs from memory, false to load them from the SD card
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN,
+      defaultValue = "True")
+  @SimpleProperty
+  public void LoadSynthDefsFromMemory(boolean fromMemory) {
+    loadSynthDefsFromMemory = fromMemory;
+  }
+
+  /**
+   * Returns performance statistics for this instrument as a list of name and value pairs.
+   * Times are in microseconds.
+   *
+   * @return  list of [name, value] pairs
+   */
+  @SimpleFunction(
+      description = "Returns performance statistics for this instrument as a list of pairs, " +
+          "each a name and a number, for use with the \"look up in pairs\" block.  Times " +
+          "are in microseconds: parse time is how long Play spends reading its arguments, " +
+          "and send latency is the time from calling Play until the note is sent.")
+  public YailList Stats() {
+    long now = System.currentTimeMillis();
+    List<YailList> pairs = new ArrayList<YailList>();
+    addStat(pairs, "NotesPlayed", stats.notesPlayed());
+    addStat(pairs, "MessagesSent", stats.messagesSent());
+    addStat(pairs, "MessagesPerNote", stats.messagesPerNote());
+    addStat(pairs, "NotesDropped", stats.notesDropped());
+    addStat(pairs, "ArgumentErrors", stats.argumentErrors());
+    addStat(pairs, "SendFailures", stats.sendFailures());
+    addStat(pairs, "VoicesStolen", stats.voicesStolen());
+    addStat(pairs, "LiveVoices", voices.liveCount(this, now));
+    addStat(pairs, "AllLiveVoices", voices.liveCount(null, now));
+    addStat(pairs, "CommandsQueued", commands.size());
+    addStat(pairs, "CommandsDropped", commands.dropped());
+    addStat(pairs, "CommandsFailed", commands.failed());
+    addStat(pairs, "SampleBytesLoaded", samples.bytesLoaded());
+    addStat(pairs, "MelodyCacheHits", melodies.hits());
+    addStat(pairs, "MelodyCacheMisses", melodies.misses());
+    addStat(pairs, "ParseTimeMean", micros(stats.parseTime.mean()));
+    addStat(pairs, "ParseTime99", micros(stats.parseTime.percentile(99)));
+    addStat(pairs, "SendLatencyMean", micros(stats.sendLatency.mean()));
+    addStat(pairs, "SendLatency99", micros(stats.sendLatency.percentile(99)));
+    addStat(pairs, "SendLatencyMax", micros(stats.sendLatency.max()));
+    return YailList.makeList(pairs);
+  }
+
+  /**
+   * Clears this instrument's performance statistics.
+   */
+  @SimpleFunction(description = "Clears the statistics returned by Stats.")
+  public void ResetStats() {
+    stats.reset();
+  }
+
+  /**
+   * Returns how often statistics are written to the log, in milliseconds.
+   *
+   * @return  logging interval, or 0 if statistics are not logged
+   */
+  @SimpleProperty(
+      description = "How often, in milliseconds, this instrument's statistics are written to " +
+          "the device log.  0 turns logging off.")
+  public int StatsLogInterval() {
+    return statsLogInterval;
+  }
+
+  /**
+   * Sets how often statistics are written to the log, in milliseconds, or 0 to stop.
+   *
+   * @param interval  logging interval in milliseconds
+   */
+  @SimpleProperty
+  public void StatsLogInterval(int interval) {
+    statsLogInterval = Math.max(interval, 0);
+    if (statsLogger != null) {
+      statsLogger.cancel(false);
+      statsLogger = null;
+    }
+    if (statsLogInterval > 0) {
+      statsLogger = scheduler().scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          Log.i(LOG_TAG, "Stats: " + Stats());
+        }
+      }, statsLogInterval, statsLogInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static void addStat(List<YailList> pairs, String name, Object value) {
+    pairs.add(YailList.makeList(new Object[] {name, value}));
+  }
+
+  private static float micros(long nanos) {
+    return nanos / 1000f;
+  }
+
+  /**
+   * Returns whether the sound server has started.  Notes played before then are held and
+   * played once it has.
+   *
+   * @return  true if the instrument is ready to play
+   */
+  @SimpleProperty(
+      description = "Whether the sound server has started.  Notes played before it has are " +
+          "held, keeping their timing, and played as soon as it is ready.")
+  public boolean IsReady() {
+    return serverReady;
+  }
+
+  /**
+   * Indicates that the sound server has started and the instrument is ready to play.
+   */
+  @SimpleEvent(
+      description = "Called when the sound server has started and the instrument is ready " +
+          "to play.")
+  public void Ready() {
+    EventDispatcher.dispatchEvent(this, "Ready");
+  }
+
+  /**
+   * Indicates that the sound server's CPU load has reached OverloadThreshold.
+   *
+   * @param cpu  the server's average CPU load, as a percentage
+   */
+  @SimpleEvent(
+      description = "Called when the sound server's CPU load reaches OverloadThreshold.  It " +
+          "is not called again until the load has fallen back below the threshold.")
+  public void ServerOverloaded(float cpu) {
+    EventDispatcher.dispatchEvent(this, "ServerOverloaded", cpu);
+  }
+
+  /**
+   * Indicates that the score passed to SaveScore has been written to its file, or could not
+   * be.
+   *
+   * @param path  file the score was saved to
+   * @param saved  true if the score was written
+   */
+  @SimpleEvent(
+      description = "Called when the score saved by SaveScore has been written to its file.  " +
+          "Saved is false if it could not be written.")
+  public void ScoreSaved(String path, boolean saved) {
+    EventDispatcher.dispatchEvent(this, "ScoreSaved", path, saved);
+  }
+
+   //NOTE: An invalid argument to the following properties will
+   // register an error but not stop execution.
+
+
+  /**
+   * Returns the reverb wetness of the instrument, the percentage of the sound converted to reverb.
+   * -1 plays without reverb.
+   *
+   * @return  reverb  float representing reverb amount
+   */
+  @SimpleProperty(
+      description = "The wetness of the reverb effect, as a percentage. A value of 0 will result "+
+          "in no reverb, while 100 will result in no direct sound (only reverb).  -1, the " +
+          "default, also plays without reverb.")
+  public float Reverb() {
+    return reverb;
+  }
+
+  /**
+   * Sets the wetness of the reverb effect, a number either -1 or between 0 and 100.
+   * A value of 0 will result in no reverb, while 100 will result in no direct
+   * sound (only reverb). -1, the default, also plays without reverb.
+   * Other values below 0 will be raised to 0.  The reverb effect synth is only
+   * created once some instrument uses a wetness above 0.
+   *
+   * @param reverb   float representing reverb
+   */
+  @SimpleProperty
+  public void Reverb(float reverb) {
+    // Ensure value is either -1 or between 0 and max.
+    this.reverb = checkPropertyRange(reverb, REVERB_MAX);
+    boolean wet = this.reverb > 0;
+    if (wet && reverbEffect == null) {
+      loadSynthDef(REVERB_SYNTHDEF);
+      reverbEffect = effects.acquire(REVERB_SYNTHDEF);
+    } else if (!wet && reverbEffect != null) {
+      effects.release(reverbEffect);
+      reverbEffect = null;
+    }
+    commands.update(settings[SETTING_REVERB], this.reverb / PERCENTAGE_MAX);
+  }
+
+  /**
+   * Returns the attack value of the instrument, how long it takes for the
+   * instrument to reach peak volume (in milliseconds).
+   *
+   * @return  attack  float representing attack amount
+   */
+  @SimpleProperty(
+      description = "The attack: how long it takes for the instrument to reach " +
+          "peak volume, in milliseconds.  -1 uses the instrument's default.")
+  public float Attack() {
+    return attack;
+  }
+
+  /**
+   * Sets the attack of the instrument, in milliseconds.
+   * -1 will use the synthdef's default attack.
+   *
+   * @param attack   float representing attack
+   */
+  @SimpleProperty
+  public void Attack(float attack) {
+    this.attack = checkPropertyRange(attack);
+    commands.update(settings[SETTING_ATTACK], toSeconds(this.attack));
+  }
+
+  /**
+   * Returns the decay value of the instrument, how long it takes for the
+   * instrument to fall from peak volume (in milliseconds).  -1 will use the
+   * default value.
+   *
+   * @return  decay  float representing decay amount
+   */
+  @SimpleProperty(
+      description = "The decay: how long it takes for the instrument to fall from " +
+          "peak volume, in milliseconds. -1 uses the instrument's default.")
+  public float Decay() {
+    return decay;
+  }
+
+  /**
+   * Sets the decay of the instrument, in milliseconds.
+   * -1 will use the synthdef's default decay.
+   *
+   * @param decay   float representing decay
+   */
+  @SimpleProperty
+  public void Decay(float decay) {
+    this.decay = checkPropertyRange(decay);
+    commands.update(settings[SETTING_DECAY], toSeconds(this.decay));
+  }
+
+  /**
+   * Returns the sustain value of the instrument, a number between 0 and 100.
+   * Value represents the percentage of the peak volume to be held after
+   * the decay.  Values greater than 100 may result in distortion, but
+   * are allowed.  -1 uses the synthdef's default value.
+   *
+   * @return  sustain  float representing sustain percentage
+   */
+  @SimpleProperty(
+      description = "The sustain: how loud the sound will be after the decay, " +
+          "as a percentage of the peak volume.  -1 uses the instrument's default.")
+  public float Sustain() {
+    return sustain;
+  }
+
+  /**
+   * Sets the sustain of the instrument, as a percentage.
+   * -1 will use the synthdef's default sustain.
+   *
+   * @param sustain   float representing sustain
+   */
+  @SimpleProperty
+  public void Sustain(float sustain) {
+    this.sustain = checkPropertyRange(sustain);
+    commands.update(settings[SETTING_SUSTAIN], toSustainControl(this.sustain));
+  }
+
+  /**
+   * Returns the release value of the instrument, how long it takes for the
+   * instrument to go silent after finishing playing, in milliseconds.
+   *
+   * @return  release  float representing release amount
+   */
+  @SimpleProperty(
+      description = "The release: how long it takes for the instrument to go silent " +
+          "after finishing playing, in milliseconds.  -1 uses the instrument's default.")
+  public float Release() {
+    return release;
+  }
+
+  /**
+   * Sets the release of the instrument, in milliseconds.
+   * -1 will use the synthdef's default release.
+   *
+   * @param release   release in milliseconds
+   */
+  @SimpleProperty
+  public void Release(float release) {
+    this.release = checkPropertyRange(release);
+    commands.update(settings[SETTING_RELEASE], toSeconds(this.release));
+  }
+
+  /**
+   * Returns whether the sound server is kept running while the app is stopped.
+   *
+   * @return  true if the server is suspended on stop, false if it is shut down
+   */
+  @SimpleProperty(
+      description = "Whether the sound server is kept running, paused, while the app is " +
+          "stopped, so that notes, loops and sequences carry on where they were when the app " +
+          "resumes.  When off, the server is shut down and restarted when the app resumes, " +
+          "which frees its memory in the meantime but stops everything playing.  The " +
+          "setting is shared by all instruments.")
+  public boolean SuspendOnStop() {
+    return suspendOnStop;
+  }
+
+  /**
+   * Sets whether the sound server is kept running while the app is stopped, for all
+   * instruments.
+   *
+   * @param suspend  true to pause the server on stop, false to shut it down
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN,
+      defaultValue = "True")
+  @SimpleProperty
+  public void SuspendOnStop(boolean suspend) {
+    suspendOnStop = suspend;
+  }
+
+  /**
+   * Returns whether instruments play through SuperCollider's native server.
+   *
+   * @return  true for SuperCollider, false for the synthesizer written in Java
+   */
+  @SimpleProperty(
+      description = "Whether instruments play through SuperCollider's server, which needs " +
+          "its native libraries, or through a synthesizer written in Java that plays the " +
+          "built-in sources and reverb but not samples.  The setting is shared by all " +
+          "instruments, and changing it restarts the server.")
+  public boolean NativeEngine() {
+    return nativeEngine;
+  }
+
+  /**
+   * Sets whether instruments play through SuperCollider's native server or the Java
+   * synthesizer, restarting the server if it is running.
+   *
+   * @param useNative  true for SuperCollider, false for the synthesizer written in Java
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN,
+      defaultValue = "True")
+  @SimpleProperty
+  public void NativeEngine(boolean useNative) {
+    synchronized (instruments) {
+      if (nativeEngine == useNative) {
+        return;
+      }
+      nativeEngine = useNative;
+      // A server still starting checks the setting once it is ready.
+      if (!serverReady) {
+        return;
+      }
+    }
+    shutDownServer();
+    startServer();
+  }
+
+  /**
+   * Returns the host of the SuperCollider server instruments play through, or the empty
+   * string if the server runs on the device.
+   *
+   * @return  the server's host name or address
+   */
+  @SimpleProperty(
+      description = "The host name or address of a SuperCollider server elsewhere on the " +
+          "network, such as scsynth on a computer, for instruments to play through instead " +
+          "of a server on the device.  Leave it empty to play on the device.  The server " +
+          "must already be running, and samples, which are read from the device, do not " +
+          "play on it.  Since the server's clock may not agree with the device's, notes are " +
+          "sent to it as they fall due, so their timing depends on the network.  The " +
+          "setting is shared by all instruments, and changing it restarts the server.")
+  public String ServerHost() {
+    return serverHost;
+  }
+
+  /**
+   * Sets the host of a SuperCollider server to play through, or the empty string to run the
+   * server on the device, restarting the server if it is running.
+   *
+   * @param host  the server's host name or address
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_STRING,
+      defaultValue = "")
+  @SimpleProperty
+  public void ServerHost(String host) {
+    host = host.trim();
+    synchronized (instruments) {
+      if (serverHost.equals(host)) {
+        return;
+      }
+      serverHost = host;
+      if (!serverReady) {
+        return;
+      }
+    }
+    shutDownServer();
+    startServer();
+  }
+
+  /**
+   * Returns the port of the SuperCollider server set by ServerHost.
+   *
+   * @return  the server's port
+   */
+  @SimpleProperty(
+      description = "The port the SuperCollider server set by ServerHost listens on.  The " +
+          "setting is shared by all instruments.")
+  public int ServerPort() {
+    return serverPort;
+  }
+
+  /**
+   * Sets the port of the SuperCollider server set by ServerHost, restarting the server if it
+   * is playing through that server.
+   *
+   * @param port  the server's port
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+      defaultValue = "57110")
+  @SimpleProperty
+  public void ServerPort(int port) {
+    synchronized (instruments) {
+      if (serverPort == port) {
+        return;
+      }
+      serverPort = port;
+      if (!serverReady || serverHost.isEmpty()) {
+        return;
+      }
+    }
+    shutDownServer();
+    startServer();
+  }
+
+  /**
+   * Returns whether the server set by ServerHost is sent commands over TCP rather than UDP.
+   *
+   * @return  true for TCP, false for UDP
+   */
+  @SimpleProperty(
+      description = "Whether the SuperCollider server set by ServerHost is sent commands " +
+          "over TCP, for servers started with -t, rather than UDP.  Commands sent close " +
+          "together are batched into as few packets as possible either way.  The setting is " +
+          "shared by all instruments.")
+  public boolean ServerTcp() {
+    return serverTcp;
+  }
+
+  /**
+   * Sets whether the server set by ServerHost is sent commands over TCP rather than UDP,
+   * restarting the server if it is playing through that server.
+   *
+   * @param tcp  true for TCP, false for UDP
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN,
+      defaultValue = "False")
+  @SimpleProperty
+  public void ServerTcp(boolean tcp) {
+    synchronized (instruments) {
+      if (serverTcp == tcp) {
+        return;
+      }
+      serverTcp = tcp;
+      if (!serverReady || serverHost.isEmpty()) {
+        return;
+      }
+    }
+    shutDownServer();
+    startServer();
+  }
+
+  /**
+   * Returns the server's average CPU load at the last poll, as a percentage.
+   *
+   * @return  the server's CPU load
+   */
+  @SimpleProperty(
+      description = "The sound server's average CPU load, as a percentage, when it was last " +
+          "polled.  The server is polled every MonitorInterval milliseconds.")
+  public float ServerCpu() {
+    ServerMonitor monitor = monitor();
+    return monitor != null ? monitor.averageCpu() : 0;
+  }
+
+  /**
+   * Returns the server's peak CPU load at the last poll, as a percentage.
+   *
+   * @return  the server's peak CPU load
+   */
+  @SimpleProperty(
+      description = "The sound server's peak CPU load, as a percentage, when it was last " +
+          "polled.")
+  public float ServerPeakCpu() {
+    ServerMonitor monitor = monitor();
+    return monitor != null ? monitor.peakCpu() : 0;
+  }
+
+  /**
+   * Returns the number of unit generators running on the server at the last poll.
+   *
+   * @return  the number of unit generators
+   */
+  @SimpleProperty(
+      description = "The number of unit generators running on the sound server when it was " +
+          "last polled.")
+  public int ServerUGens() {
+    ServerMonitor monitor = monitor();
+    return monitor != null ? monitor.ugens() : 0;
+  }
+
+  /**
+   * Returns the number of synths running on the server at the last poll.
+   *
+   * @return  the number of synths
+   */
+  @SimpleProperty(
+      description = "The number of synths, notes and effects, running on the sound server " +
+          "when it was last polled.")
+  public int ServerSynths() {
+    ServerMonitor monitor = monitor();
+    return monitor != null ? monitor.synths() : 0;
+  }
+
+  /**
+   * Returns how long the server took at the last poll to answer a message sent after
+   * everything before it, in milliseconds.
+   *
+   * @return  the server's round trip time
+   */
+  @SimpleProperty(
+      description = "How long the sound server took, when last polled, to answer a message " +
+          "sent after every other, in milliseconds.  This grows when the server falls behind " +
+          "the messages sent to it.")
+  public float ServerLatency() {
+    ServerMonitor monitor = monitor();
+    return monitor != null ? monitor.latency() : 0;
+  }
+
+  /**
+   * Returns how often the server's load is polled, in milliseconds.
+   *
+   * @return  time between polls, or 0 if the server is not polled
+   */
+  @SimpleProperty(
+      description = "How often the sound server's load is polled, in milliseconds, or 0 to " +
+          "not poll it.  The setting is shared by all instruments.")
+  public int MonitorInterval() {
+    synchronized (instruments) {
+      return monitorInterval;
+    }
+  }
+
+  /**
+   * Sets how often the server's load is polled, in milliseconds, or 0 to not poll it.
+   *
+   * @param interval  time between polls
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+      defaultValue = "1000")
+  @SimpleProperty
+  public void MonitorInterval(int interval) {
+    synchronized (instruments) {
+      monitorInterval = Math.max(interval, 0);
+      if (monitorInterval == 0) {
+        stopMonitor();
+      } else if (monitor != null) {
+        monitor.setInterval(monitorInterval);
+      } else if (serverReady) {
+        startMonitor();
+      }
+    }
+  }
+
+  /**
+   * Returns the CPU load, as a percentage, at which the server counts as overloaded.
+   *
+   * @return  the overload threshold
+   */
+  @SimpleProperty(
+      description = "The sound server's CPU load, as a percentage, at which ServerOverloaded " +
+          "is signalled and AdaptiveQuality starts to lower the quality.  The server counts " +
+          "as overloaded until its load falls 10 below this.")
+  public float OverloadThreshold() {
+    return overloadThreshold;
+  }
+
+  /**
+   * Sets the CPU load, as a percentage, at which the server counts as overloaded.
+   *
+   * @param threshold  the overload threshold
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_FLOAT,
+      defaultValue = "80")
+  @SimpleProperty
+  public void OverloadThreshold(float threshold) {
+    overloadThreshold = threshold;
+  }
+
+  /**
+   * Returns whether quality is lowered while the server is overloaded.
+   *
+   * @return  true if quality is lowered automatically
+   */
+  @SimpleProperty(
+      description = "Whether to lower quality while the sound server is overloaded, rather " +
+          "than have it drop audio.  Each poll the server stays overloaded, first " +
+          "GlobalMaxPolyphony is halved, then reverb is bypassed, then new notes are " +
+          "dropped; each poll it is back under the threshold undoes one of these.")
+  public boolean AdaptiveQuality() {
+    return adaptiveQuality;
+  }
+
+  /**
+   * Sets whether quality is lowered while the server is overloaded.
+   *
+   * @param adaptive  true to lower quality automatically
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN,
+      defaultValue = "False")
+  @SimpleProperty
+  public void AdaptiveQuality(boolean adaptive) {
+    synchronized (instruments) {
+      adaptiveQuality = adaptive;
+      if (!adaptive) {
+        qualityLevel = QUALITY_FULL;
+        applyQualityLevel();
+      }
+    }
+  }
+
+   // Returns the monitor polling the server, or null if there is none.
+
+  private static ServerMonitor monitor() {
+    synchronized (instruments) {
+      return monitor;
+    }
+  }
+
+  @Override
+  public void onDestroy() {
+    dispose();
+  }
 
-   // Adds the file extension to a synthdef name
-
-  private String getDefFile(String synth) {
-    return synth + SYNTHDEF_EXTENSION;
+  @Override
+  public void onDelete() {
+    dispose();
+  }
+
+  @Override
+  public void onStop() {
+    // Samples no source uses are freed while the app is in the background, where the system
+    // may need the memory.
+    samples.trim();
+    if (suspendOnStop) {
+      // Notes, loops and sequences are paused with the server, to carry on when it resumes.
+      suspendServer();
+    } else {
+      releaseNotes();
+      shutDownServer();
+    }
   }
 
+  @Override
+  public void onResume() {
+    synchronized (instruments) {
+      if (serverSuspended && serverReady) {
+        // Sounding notes end, and sequences play, as much later as the server was paused.
+        long suspension = System.currentTimeMillis() - suspendedAt;
+        voices.delay(suspension);
+        suspendedTime += suspension;
+        serverSuspended = false;
+        sendCommandMessage(new Object[] {"/n_run", DEFAULT_SYNTH_GROUP, 1});
+        return;
+      }
+    }
+    startServer();
+    loadSynthDef(synthDef());
+  }
 
-   // Takes a String or number, and returns the float value.
-   // Throws Class CastException if argument is neither.
-   // Throws NumberFormatException if argument is a non-numerical String.
+   // Releases everything this instrument holds on the server, shutting the server down if this
+   // was the last instrument.
 
-  private float parseFloat(Object number) {
-    if (number instanceof String) {
-      return Float.valueOf((String) number);
-    } else {
-      return ((Number) number).floatValue();
+  private void dispose() {
+    if (disposed) {
+      return;
+    }
+    disposed = true;
+    StatsLogInterval(0);
+    releaseNotes();
+    if (reverbEffect != null) {
+      effects.release(reverbEffect);
+      reverbEffect = null;
+      commands.update(settings[SETTING_REVERB], 0);
+    }
+    sendCommandMessage(new Object[] {"/n_free", groupId});
+    // Commands for this instrument must not reach a new instrument given its slot, so the slot
+    // is freed on the audio command thread once they have been executed.
+    AudioCommandQueue.Command command = commands.claim(COMMAND_RELEASE_SLOT);
+    command.id = slot;
+    command.droppable = false;
+    commands.publish(command);
+    boolean last;
+    synchronized (instruments) {
+      instruments.remove(this);
+      last = instruments.isEmpty();
+    }
+    if (last) {
+      shutDownServer();
+    }
+  }
+
+   // Stops this instrument's sequences and frees the notes it has sounding.
+
+  private void releaseNotes() {
+    StopSequences();
+    StopLoop();
+    voices.releaseAll(this);
+    sendCommandMessage(new Object[] {"/g_freeAll", groupId});
+  }
+
+   // Sends a message through the audio command queue, if the server is ready for it.
+
+  private static void sendCommandMessage(Object[] message) {
+    if (serverReady) {
+      AudioCommandQueue.Command command = commands.claim(COMMAND_MESSAGE);
+      command.data = message;
+      command.droppable = false;
+      commands.publish(command);
+    }
+  }
+
+   // Starts the sound server on a background thread, unless it is already running or
+   // starting, so that creating the component does not hold up the UI.  Once the server is up,
+   // every instrument is told through onServerReady.
+
+  private void startServer() {
+    synchronized (instruments) {
+      if (serverReady || serverStarting) {
+        return;
+      }
+      serverStarting = true;
+    }
+    // Make volume buttons control media, not ringer.
+    form.setVolumeControlStream(AudioManager.STREAM_MUSIC);
+    final String nativeLibDir =
+        getNativeLibDir(componentContainer.$context().getApplicationInfo());
+    Thread starter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        AudioEngine server = engine;
+        // A server that was told to quit must finish before another is started.
+        long deadline = System.currentTimeMillis() + SERVER_QUIT_TIMEOUT;
+        while (server != null && !server.isEnded() && System.currentTimeMillis() < deadline) {
+          try {
+            Thread.sleep(SERVER_POLL_INTERVAL);
+          } catch (InterruptedException e) {
+            break;
+          }
+        }
+        if (server == null || server.isEnded()) {
+          if (!serverHost.isEmpty()) {
+            Log.d(LOG_TAG, "Connecting to server at " + serverHost + ":" + serverPort);
+            server = new RemoteAudioEngine(serverHost, serverPort, serverTcp, SERVER_REPLIES);
+          } else if (nativeEngine) {
+            Log.d(LOG_TAG, "Starting SuperCollider Server");
+            server = new SCAudioEngine(nativeLibDir);
+          } else {
+            Log.d(LOG_TAG, "Starting Java synthesizer");
+            server = new JavaSynth(new AudioTrackOutput());
+          }
+          server.start(SC_UDP_PORT);
+          engine = server;
+        }
+        if (server.isEnded()) {
+          Log.e(LOG_TAG, "Could not connect to server at " + serverHost + ":" + serverPort);
+          synchronized (instruments) {
+            serverStarting = false;
+          }
+          return;
+        }
+        synchronized (instruments) {
+          serverReady = true;
+          serverStarting = false;
+          startMonitor();
+        }
+        restoreServerState();
+        for (Instrument instrument : instruments) {
+          instrument.onServerReady();
+        }
+        // The server settings may have been changed while this engine was starting.
+        if (!engineMatchesSettings()) {
+          shutDownServer();
+          startServer();
+        }
+      }
+    }, "SuperCollider starter");
+    starter.start();
+  }
+
+   // Returns whether the running engine is the one NativeEngine and the server address ask
+   // for.
+
+  private static boolean engineMatchesSettings() {
+    AudioEngine server = engine;
+    if (server instanceof RemoteAudioEngine) {
+      return ((RemoteAudioEngine) server).connectsTo(serverHost, serverPort, serverTcp);
+    }
+    return serverHost.isEmpty() && nativeEngine == (server instanceof SCAudioEngine);
+  }
+
+   // Loads this instrument's synthdef, plays any notes held while the server was starting and
+   // signals the Ready event.
+
+  private void onServerReady() {
+    loadSynthDef(synthDef());
+    enqueueCreateGroup();
+    // Pending notes are sent from the scheduler thread, and must not arrive before the group.
+    awaitCommands();
+    NoteSequence pending;
+    synchronized (pendingLock) {
+      pending = pendingNotes;
+      pendingNotes = null;
+    }
+    if (pending != null) {
+      schedule(pending, 0);
+    }
+    synchronized (loopLock) {
+      // The loop was started before the server was ready, or on a server since restarted.
+      if (loop != null) {
+        stopLoop();
+        sendLoop();
+      }
+    }
+    androidUIHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        Ready();
+      }
+    });
+  }
+
+   // Recreates the server state shared by all instruments after the server has been (re)started.
+
+  private void restoreServerState() {
+    if (engine instanceof RemoteAudioEngine) {
+      // A server on the device starts with the default group, which effects and notes are
+      // created in, but scsynth elsewhere only has it if a client made it.  It is created
+      // before anything else; if it already exists, the server's refusal is only logged.
+      // The server reports nodes ending through the engine's connection.
+      sendCommandMessage(new Object[] {"/g_new", DEFAULT_SYNTH_GROUP, ACTION_ADD_TO_HEAD, 0});
+      sendCommandMessage(new Object[] {"/notify", 1});
+    }
+    loadedSynthDefs.clear();
+    synchronized (readySynthDefs) {
+      readySynthDefs.clear();
+      heldNotes.clear();
+    }
+    synthDefSyncs.clear();
+    if (!effects.isEmpty()) {
+      loadSynthDef(REVERB_SYNTHDEF);
+      effects.restore();
+    }
+    if (!SAMPLE_SOURCES.isEmpty()) {
+      loadSynthDef(SYNTHDEF_NAME_SAMPLE);
+    }
+    samples.restore();
+  }
+
+   // Pauses every synth on the server, keeping it and its synthdefs, groups, effects, notes
+   // and loops for a fast resume.  Sequences wait until the server resumes.
+
+  private static void suspendServer() {
+    synchronized (instruments) {
+      if (serverReady && !serverSuspended) {
+        suspendedAt = System.currentTimeMillis();
+        serverSuspended = true;
+        sendCommandMessage(new Object[] {"/n_run", DEFAULT_SYNTH_GROUP, 0});
+      }
+    }
+  }
+
+  private static void shutDownServer() {
+    synchronized (instruments) {
+      serverReady = false;
+      serverSuspended = false;
+      stopMonitor();
+    }
+    if (engine != null) {
+      AudioCommandQueue.Command command = commands.claim(COMMAND_QUIT);
+      command.data = engine;
+      command.droppable = false;
+      commands.publish(command);
+    }
+  }
+
+   // Sends the loop to the server, if it is ready: the loop synthdef, then the buffers
+   // holding each lane of the loop and, once they are filled, a synth for each lane.  Called
+   // with loopLock held.
+
+  private void sendLoop() {
+    if (!serverReady) {
+      return;
+    }
+    int[] buffers = allocateLoopBuffers(loop.lanes());
+    if (buffers == null) {
+      Log.e(LOG_TAG, "Canceling StartLoop: too many loops are playing");
+      loop = null;
+      return;
+    }
+    String loopDef = LoopSynthDef.name(loopSynthDef);
+    loadSynthDef(loopDef);
+    Object[][] start = new Object[loop.lanes() + 1][];
+    start[0] = new Object[] {"/g_new", loopGroupId, ACTION_ADD_TO_HEAD, groupId};
+    for (int lane = 0; lane < loop.lanes(); lane++) {
+      // Lanes take the envelope and reverb settings as notes do, in the loop's group.
+      Object[] note = noteBuilder.build(loopDef, buffers[lane], AUTO_NODE_ID,
+          ACTION_ADD_TO_HEAD, loopGroupId, 0, 0, 1);
+      Object[] synth = new Object[note.length + 4];
+      System.arraycopy(note, 0, synth, 0, note.length);
+      synth[note.length] = "rate";
+      synth[note.length + 1] = loopTempo;
+      synth[note.length + 2] = "transpose";
+      synth[note.length + 3] = transposeRatio();
+      start[lane + 1] = synth;
+    }
+    for (Object[] message : loop.startMessages(buffers, start)) {
+      sendCommandMessage(message);
+    }
+    loopBuffers = buffers;
+  }
+
+   // Frees the loop's synths and buffers on the server, if it was sent there.  Called with
+   // loopLock held.
+
+  private void stopLoop() {
+    if (loopBuffers == null) {
+      return;
+    }
+    sendCommandMessage(new Object[] {"/n_free", loopGroupId});
+    for (int buffer : loopBuffers) {
+      sendCommandMessage(new Object[] {"/b_free", buffer});
+    }
+    synchronized (freeLoopBuffers) {
+      for (int buffer : loopBuffers) {
+        freeLoopBuffers.add(buffer);
+      }
+    }
+    loopBuffers = null;
+  }
+
+   // Returns the given number of buffers for a loop, or null if there are not that many free.
+
+  private static int[] allocateLoopBuffers(int count) {
+    synchronized (freeLoopBuffers) {
+      if (freeLoopBuffers.size() < count) {
+        return null;
+      }
+      int[] buffers = new int[count];
+      for (int i = 0; i < count; i++) {
+        buffers[i] = freeLoopBuffers.poll();
+      }
+      return buffers;
+    }
+  }
+
+   // Returns the ratio loop frequencies are multiplied by for LoopTranspose.
+
+  private float transposeRatio() {
+    return (float) Math.pow(2, loopTranspose / SEMITONES_IN_OCTAVE);
+  }
+
+   // Starts polling the server's load, unless MonitorInterval is 0.  Called with the
+   // instruments lock held.
+
+  private static void startMonitor() {
+    if (monitor != null || monitorInterval <= 0) {
+      return;
+    }
+    // A server elsewhere on the network is polled over UDP, whichever protocol it is sent
+    // commands with.
+    boolean remote = !serverHost.isEmpty();
+    // A server on the device reports nodes ending to the monitor, which is polling it anyway.
+    monitor = new ServerMonitor(remote ? serverHost : SC_HOST,
+        remote ? serverPort : SC_UDP_PORT, monitorInterval, engine instanceof SCAudioEngine,
+        new ServerMonitor.Listener() {
+          @Override
+          public void polled(ServerMonitor monitor) {
+            serverPolled(monitor);
+          }
+
+          @Override
+          public void nodeEnded(int nodeId) {
+            voices.release(nodeId);
+          }
+        });
+    monitor.start();
+  }
+
+   // Stops polling the server's load and restores full quality.  Called with the instruments
+   // lock held.
+
+  private static void stopMonitor() {
+    if (monitor != null) {
+      monitor.stop();
+      monitor = null;
+    }
+    overloaded = false;
+    qualityLevel = QUALITY_FULL;
+    applyQualityLevel();
+  }
+
+   // Signals ServerOverloaded when the server's load crosses the threshold and, with
+   // AdaptiveQuality on, lowers the quality a level for each poll the server stays overloaded
+   // and raises it a level for each poll it is comfortably below the threshold.  Polls the
+   // server did not answer are ignored.  Called on the monitor's thread.
+
+  private static void serverPolled(ServerMonitor monitor) {
+    if (!monitor.responding()) {
+      return;
+    }
+    final float cpu = monitor.averageCpu();
+    boolean signal = false;
+    synchronized (instruments) {
+      if (monitor != Instrument.monitor) {
+        return;
+      }
+      if (cpu >= overloadThreshold) {
+        signal = !overloaded;
+        overloaded = true;
+        if (adaptiveQuality && qualityLevel < QUALITY_NO_NEW_NOTES) {
+          qualityLevel++;
+          applyQualityLevel();
+        }
+      } else if (cpu < overloadThreshold - OVERLOAD_HYSTERESIS) {
+        overloaded = false;
+        if (qualityLevel > QUALITY_FULL) {
+          qualityLevel--;
+          applyQualityLevel();
+        }
+      }
     }
+    if (signal) {
+      for (final Instrument instrument : instruments) {
+        instrument.androidUIHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            instrument.ServerOverloaded(cpu);
+          }
+        });
+      }
+    }
+  }
+
+   // Makes the polyphony limit, reverb and note dropping match the quality level.  Called
+   // with the instruments lock held.
+
+  private static void applyQualityLevel() {
+    voices.setLimit(qualityLevel >= QUALITY_HALF_POLYPHONY
+        ? Math.max(1, globalMaxPolyphony / 2) : globalMaxPolyphony);
+    if (effects.isBypassed() != (qualityLevel >= QUALITY_NO_REVERB)) {
+      effects.setBypassed(qualityLevel >= QUALITY_NO_REVERB);
+    }
+    droppingNotes = qualityLevel >= QUALITY_NO_NEW_NOTES;
   }
 
+   // Makes sure the server has the given synthdef, sending it the first time any instrument
+   // needs it.  Loading is asynchronous on the server, so synthdefs are loaded as soon as a
+   // source is chosen rather than at the first note, and notes are held until the server
+   // confirms the load.  This only records that the synthdef is needed; it is read and sent on the
+   // audio command thread, so the property setters calling this never touch assets or the
+   // engine.
+
+  private void loadSynthDef(String synthDef) {
+    // Synthdefs needed before the server is ready are loaded when it is.
+    if (!serverReady || !loadedSynthDefs.add(synthDef)) {
+      return;
+    }
+    AudioCommandQueue.Command command = commands.claim(COMMAND_LOAD_SYNTHDEF);
+    command.target = this;
+    command.name = synthDef;
+    command.droppable = false;
+    commands.publish(command);
+  }
 
-   //  Takes a String or number, and returns the int value.
-   //  Throws Class CastException if argument is neither.
-   //  Throws NumberFormatException if argument is a non-numerical String.
+   // Sends a synthdef to the server, on the audio command thread.  The definition is sent
+   // straight from the asset's bytes with /d_recv when LoadSynthDefsFromMemory is on, or the
+   // server is elsewhere on the network and cannot read the SD card, and the server can be
+   // reached over UDP; otherwise the synthdefs are delivered to the SD card and loaded from
+   // there.  Generated synthdefs have no asset and are always sent with /d_recv.
 
-  private int parseInt(Object number) {
-    if (number instanceof String) {
-      return Integer.valueOf((String) number);
+  private void sendSynthDef(String synthDef) {
+    byte[] generated = generatedSynthDef(synthDef);
+    if (generated != null) {
+      sendToEngine(new Object[] {"/d_recv", generated});
+      confirmSynthDef(synthDef);
+      return;
+    }
+    String fileName = getDefFile(synthDef);
+    if (loadSynthDefsFromMemory || engine instanceof RemoteAudioEngine) {
+      byte[] def = readSynthDef(fileName);
+      OscBundleSender sender = bundleSender();
+      if (def != null && sender != null) {
+        try {
+          sender.send(OscBundleSender.IMMEDIATELY, new Object[][] {{"/d_recv", def}}, 1);
+          confirmSynthDef(synthDef);
+          return;
+        } catch (IOException e) {
+          Log.e(LOG_TAG, "Failed to send synthdef " + synthDef + ", loading it from file", e);
+        }
+      }
+    }
+    if (deliverSynthDefs()) {
+      sendToEngine(new Object[] {
+          "/d_load", new File(DATA_DIR_STR, fileName).getPath()
+      });
+      confirmSynthDef(synthDef);
     } else {
-      return ((Number) number).intValue();
+      loadedSynthDefs.remove(synthDef);
+      finishSynthDefLoad(synthDef, false);
+    }
+  }
+
+   // Marks a synthdef just sent as ready once the server has loaded it, which it confirms by
+   // answering a /sync sent after it.  A server elsewhere on the network answers through the
+   // connection the synthdef went over; a server on the device is sent /sync from the synthdef
+   // sync thread, one synthdef at a time.  JavaSynth has nothing to load.
+
+  private static void confirmSynthDef(final String synthDef) {
+    AudioEngine server = engine;
+    if (server instanceof JavaSynth) {
+      synthDefReady(synthDef);
+      return;
+    }
+    if (server instanceof RemoteAudioEngine) {
+      final int syncId = nextSyncId.incrementAndGet();
+      synthDefSyncs.put(syncId, synthDef);
+      sendToEngine(new Object[] {"/sync", syncId});
+      scheduler().schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (synthDefSyncs.remove(syncId) != null) {
+            Log.w(LOG_TAG, "Server did not confirm loading synthdef " + synthDef);
+            synthDefReady(synthDef);
+          }
+        }
+      }, SYNTHDEF_LOAD_TIMEOUT, TimeUnit.MILLISECONDS);
+      return;
+    }
+    synthDefSyncer().execute(new Runnable() {
+      @Override
+      public void run() {
+        if (!ServerMonitor.sync(SC_HOST, SC_UDP_PORT, SYNTHDEF_LOAD_TIMEOUT)) {
+          Log.w(LOG_TAG, "Server did not confirm loading synthdef " + synthDef);
+        }
+        synthDefReady(synthDef);
+      }
+    });
+  }
+
+  private static synchronized ExecutorService synthDefSyncer() {
+    if (synthDefSyncer == null) {
+      synthDefSyncer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "Instrument synthdef sync");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return synthDefSyncer;
+  }
+
+  private static void synthDefReady(String synthDef) {
+    if (commands.isDispatchThread()) {
+      finishSynthDefLoad(synthDef, true);
+      return;
+    }
+    AudioCommandQueue.Command command = commands.claim(COMMAND_SYNTHDEF_READY);
+    command.name = synthDef;
+    command.droppable = false;
+    commands.publish(command);
+  }
+
+   // Ends the loading of a synthdef, on the audio command thread, marking it as ready if it
+   // loaded and sending the notes held for it.  Notes for a synthdef that failed to load are
+   // sent anyway, for the server to report.
+
+  private static void finishSynthDefLoad(String synthDef, boolean loaded) {
+    List<HeldNotes> held;
+    synchronized (readySynthDefs) {
+      // The server may have been restarted since the synthdef was sent.
+      if (loaded && loadedSynthDefs.contains(synthDef)) {
+        readySynthDefs.add(synthDef);
+      }
+      held = heldNotes.remove(synthDef);
+    }
+    if (held == null) {
+      return;
+    }
+    for (HeldNotes notes : held) {
+      if (notes.instrument != null) {
+        notes.instrument.sendBundle(notes.timeTag, notes.messages, notes.count);
+      } else {
+        for (int i = 0; i < notes.count; i++) {
+          sendToEngine(notes.messages[i]);
+        }
+      }
+    }
+  }
+
+   // Returns whether the server has been sent a synthdef it has not finished loading.
+
+  private static boolean synthDefLoading(String synthDef) {
+    synchronized (readySynthDefs) {
+      return !readySynthDefs.contains(synthDef) && loadedSynthDefs.contains(synthDef);
+    }
+  }
+
+   // Holds messages starting notes of a synthdef the server has not finished loading, so that
+   // they never reach the server before it, without holding up the thread sending them.  They
+   // are sent by the given instrument, or straight to the engine if it is null, once the load
+   // ends.  Returns false, holding nothing, if the synthdef is not loading.
+
+  private static boolean holdNotes(String synthDef, Instrument instrument, long timeTag,
+      Object[][] messages, int count) {
+    synchronized (readySynthDefs) {
+      if (!synthDefLoading(synthDef)) {
+        return false;
+      }
+      List<HeldNotes> held = heldNotes.get(synthDef);
+      if (held == null) {
+        held = new ArrayList<HeldNotes>();
+        heldNotes.put(synthDef, held);
+      }
+      held.add(new HeldNotes(instrument, timeTag, messages, count));
+      return true;
+    }
+  }
+
+  /*
+   * Messages starting notes, held until the server has loaded their synthdef.
+   */
+  private static final class HeldNotes {
+    final Instrument instrument;
+    final long timeTag;
+    final Object[][] messages;
+    final int count;
+
+    HeldNotes(Instrument instrument, long timeTag, Object[][] messages, int count) {
+      this.instrument = instrument;
+      this.timeTag = timeTag;
+      this.messages = messages;
+      this.count = count;
+    }
+  }
+
+   // Copies SuperCollider synthdefs packaged as assets to the devices SD card for use, unless
+   // the copies there were made from this same installation of the app.  Returns whether the
+   // synthdefs are available on the SD card.
+
+  private boolean deliverSynthDefs() {
+    synchronized (loadedSynthDefs) {
+      if (synthDefsDelivered) {
+        return true;
+      }
+      File dataDir = new File(DATA_DIR_STR);
+      if (!dataDir.isDirectory() && !dataDir.mkdirs()) {
+        Log.e(LOG_TAG, "Could not create directory " + DATA_DIR_STR + "\n" +
+            "SuperCollider will not function correctly.");
+        return false;
+      }
+      // The app's package file changes whenever the app, and so its synthdefs, are updated.
+      String stamp = Long.toString(
+          new File(componentContainer.$context().getApplicationInfo().sourceDir).lastModified());
+      File stampFile = new File(dataDir, SYNTHDEF_STAMP_FILE);
+      boolean current = stamp.equals(readStamp(stampFile));
+      for (String synth : PACKAGED_SYNTHDEFS) {
+        current &= new File(dataDir, getDefFile(synth)).isFile();
+      }
+      if (!current) {
+        Log.d(LOG_TAG, "Delivering synthdefs to sdcard...");
+        boolean delivered = true;
+        for (String synth : PACKAGED_SYNTHDEFS) {
+          delivered &= deliverSynthDef(getDefFile(synth), dataDir);
+        }
+        if (delivered) {
+          writeStamp(stampFile, stamp);
+        }
+      }
+      synthDefsDelivered = true;
+      return true;
+    }
+  }
+
+  private boolean deliverSynthDef(String fileName, File dataDir) {
+    ReadableByteChannel in = null;
+    FileChannel out = null;
+    try {
+      in = Channels.newChannel(form.getAssets().open(ASSET_DIRECTORY + "/" + fileName));
+      out = new FileOutputStream(new File(dataDir, fileName)).getChannel();
+      out.transferFrom(in, 0, Long.MAX_VALUE);
+      Log.i(LOG_TAG, "Synthdef successfully pushed to SD card: " + fileName);
+      return true;
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Failed to deliver synthdef " + fileName, e);
+      return false;
+    } finally {
+      closeQuietly(in);
+      closeQuietly(out);
+    }
+  }
+
+   // Returns the file holding a sample or MIDI file, on a background thread.  Media packaged
+   // with the app is copied to the given directory on the SD card the first time, since
+   // neither the server nor a memory mapping can read assets.
+
+  private static File locateMedia(String name, String dirName) throws IOException {
+    File file = new File(name);
+    if (file.isAbsolute()) {
+      return file;
+    }
+    File dir = new File(dirName);
+    file = new File(dir, name);
+    if (file.isFile()) {
+      return file;
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create directory " + dirName);
+    }
+    File partial = new File(dir, name + ".part");
+    ReadableByteChannel in = null;
+    FileChannel out = null;
+    try {
+      in = Channels.newChannel(assets.open(name));
+      out = new FileOutputStream(partial).getChannel();
+      out.transferFrom(in, 0, Long.MAX_VALUE);
+    } finally {
+      closeQuietly(in);
+      closeQuietly(out);
+    }
+    // A copy cut short is never mistaken for the file.
+    if (!partial.renameTo(file)) {
+      throw new IOException("Could not copy " + name + " to " + file);
+    }
+    return file;
+  }
+
+   // Returns the bytes of a synthdef, generating it or reading its asset, or null if it
+   // cannot be read.
+
+  private byte[] synthDefBytes(String synthDef) {
+    byte[] generated = generatedSynthDef(synthDef);
+    return generated != null ? generated : readSynthDef(getDefFile(synthDef));
+  }
+
+   // Returns the bytes of a synthdef generated rather than packaged as an asset, or null if
+   // the synthdef is packaged.
+
+  private static byte[] generatedSynthDef(String synthDef) {
+    if (SYNTHDEF_NAME_SAMPLE.equals(synthDef)) {
+      return SampleSynthDef.build();
+    }
+    if (LoopSynthDef.isLoop(synthDef)) {
+      return LoopSynthDef.build(LoopSynthDef.noteSynthDef(synthDef));
+    }
+    return WaveformSynthDef.build(synthDef);
+  }
+
+   // Reads a synthdef asset into memory, returning null if it cannot be read.
+
+  private byte[] readSynthDef(String fileName) {
+    InputStream is = null;
+    try {
+      is = form.getAssets().open(ASSET_DIRECTORY + "/" + fileName);
+      ByteArrayOutputStream def = new ByteArrayOutputStream(SYNTHDEF_BUFFER_SIZE);
+      byte[] buf = new byte[SYNTHDEF_BUFFER_SIZE];
+      int bytesRead;
+      while (-1 != (bytesRead = is.read(buf))) {
+        def.write(buf, 0, bytesRead);
+      }
+      return def.toByteArray();
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Failed to read synthdef " + fileName, e);
+      return null;
+    } finally {
+      closeQuietly(is);
+    }
+  }
+
+  private String readStamp(File stampFile) {
+    if (!stampFile.isFile()) {
+      return null;
+    }
+    InputStream is = null;
+    try {
+      is = new FileInputStream(stampFile);
+      byte[] buf = new byte[(int) stampFile.length()];
+      int length = is.read(buf);
+      return length > 0 ? new String(buf, 0, length, "US-ASCII") : null;
+    } catch (IOException e) {
+      return null;
+    } finally {
+      closeQuietly(is);
+    }
+  }
+
+  private void writeStamp(File stampFile, String stamp) {
+    OutputStream os = null;
+    try {
+      os = new FileOutputStream(stampFile);
+      os.write(stamp.getBytes("US-ASCII"));
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Failed to write synthdef stamp; synthdefs will be delivered again", e);
+    } finally {
+      closeQuietly(os);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // Nothing left to release.
+      }
     }
   }
 
 
+   // Adds the file extension to a synthdef name
+
+  private String getDefFile(String synth) {
+    return synth + SYNTHDEF_EXTENSION;
+  }
+
+
+   // Converts an envelope property in milliseconds to the seconds the synthdefs take, keeping
+   // the default marker as it is.
+
+  private static float toSeconds(float millis) {
+    return millis != DEFAULT_EFFECT_VALUE ? millis / MILLISECS_IN_SEC : NoteMessageBuilder.UNSET;
+  }
+
+
+   // Converts the sustain property, a percentage, to the control the synthdefs take, keeping the
+   // default marker as it is.
+
+  private static float toSustainControl(float percentage) {
+    return percentage != DEFAULT_EFFECT_VALUE
+        ? NoteMessageBuilder.sustainControl(percentage) : NoteMessageBuilder.UNSET;
+  }
+
+
    // Returns the location of native libraries on the device.
    // TODO(tadams) If App Inventor is ever built against Android 2.3 or later, implement using
    // GingerbreadUtil to access appInfo.nativeLibraryDir().
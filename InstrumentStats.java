@@ -0,0 +1,176 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the Instrument component's note pipeline.  Recording
+ * a value is a few atomic increments and never allocates, so the statistics can stay on
+ * for every note.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class InstrumentStats {
+
+  /**
+   * Histogram of durations in nanoseconds, with one bucket per power of two.
+   */
+  public static final class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration in nanoseconds.  Negative durations are recorded as 0.
+     */
+    public void record(long nanos) {
+      nanos = Math.max(nanos, 0);
+      // Bucket i holds durations from 2^i up to 2^(i+1) nanoseconds; 0 goes in bucket 0.
+      buckets.incrementAndGet(nanos == 0 ? 0 : BUCKETS - 1 - Long.numberOfLeadingZeros(nanos));
+      count.incrementAndGet();
+      total.addAndGet(nanos);
+      long previous;
+      while (nanos > (previous = max.get()) && !max.compareAndSet(previous, nanos)) {
+        // Retry until the maximum is at least this duration.
+      }
+    }
+
+    public long count() {
+      return count.get();
+    }
+
+    /**
+     * Returns the mean duration in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long mean() {
+      long n = count.get();
+      return n == 0 ? 0 : total.get() / n;
+    }
+
+    public long max() {
+      return max.get();
+    }
+
+    /**
+     * Returns an upper bound on the given percentile, in nanoseconds: the top of the
+     * bucket that contains it.
+     *
+     * @param percentile  percentile between 0 and 100
+     */
+    public long percentile(double percentile) {
+      long n = count.get();
+      if (n == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(n * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= Math.max(rank, 1)) {
+          return (1L << (i + 1)) - 1;
+        }
+      }
+      return max.get();
+    }
+
+    void reset() {
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets.set(i, 0);
+      }
+      count.set(0);
+      total.set(0);
+      max.set(0);
+    }
+  }
+
+  /** Time spent parsing Play's arguments. */
+  public final Histogram parseTime = new Histogram();
+  /** Time from a call to Play until its messages have been handed to the server. */
+  public final Histogram sendLatency = new Histogram();
+
+  private final AtomicLong notesPlayed = new AtomicLong();
+  private final AtomicLong messagesSent = new AtomicLong();
+  private final AtomicLong notesDropped = new AtomicLong();
+  private final AtomicLong argumentErrors = new AtomicLong();
+  private final AtomicLong sendFailures = new AtomicLong();
+  private final AtomicLong voicesStolen = new AtomicLong();
+
+  /** Counts notes sent to the server. */
+  public void notesPlayed(int notes) {
+    notesPlayed.addAndGet(notes);
+  }
+
+  /** Counts OSC messages sent to the server. */
+  public void messagesSent(int messages) {
+    messagesSent.addAndGet(messages);
+  }
+
+  /** Counts a note that could not be played because its arguments were invalid. */
+  public void noteDropped() {
+    notesDropped.incrementAndGet();
+  }
+
+  /** Counts an optional argument that was invalid and replaced by its default. */
+  public void argumentError() {
+    argumentErrors.incrementAndGet();
+  }
+
+  /** Counts a failure to send messages to the server. */
+  public void sendFailed() {
+    sendFailures.incrementAndGet();
+  }
+
+  /** Counts a voice cut off to make room for a new note. */
+  public void voiceStolen() {
+    voicesStolen.incrementAndGet();
+  }
+
+  public long notesPlayed() {
+    return notesPlayed.get();
+  }
+
+  public long messagesSent() {
+    return messagesSent.get();
+  }
+
+  public long notesDropped() {
+    return notesDropped.get();
+  }
+
+  public long argumentErrors() {
+    return argumentErrors.get();
+  }
+
+  public long sendFailures() {
+    return sendFailures.get();
+  }
+
+  public long voicesStolen() {
+    return voicesStolen.get();
+  }
+
+  /**
+   * Returns the average number of messages sent per note played.
+   */
+  public float messagesPerNote() {
+    long notes = notesPlayed.get();
+    return notes == 0 ? 0 : (float) messagesSent.get() / notes;
+  }
+
+  /**
+   * Clears all counters and histograms.
+   */
+  public void reset() {
+    parseTime.reset();
+    sendLatency.reset();
+    notesPlayed.set(0);
+    messagesSent.set(0);
+    notesDropped.set(0);
+    argumentErrors.set(0);
+    sendFailures.set(0);
+    voicesStolen.set(0);
+  }
+}
@@ -0,0 +1,61 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.IOException;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays {@link JavaSynth}'s output through Java Sound, for running the synthesizer on a
+ * desktop or server JVM.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class JavaSoundOutput implements AudioOutput {
+  private static final int SAMPLE_BITS = 16;
+  // Device buffer, in frames.  Larger buffers survive scheduling hiccups but add latency.
+  private static final int BUFFER_FRAMES = 2048;
+
+  private SourceDataLine line;
+  private byte[] bytes;
+  private int channels;
+
+  @Override
+  public void open(int sampleRate, int channels) throws IOException {
+    this.channels = channels;
+    AudioFormat format = new AudioFormat(sampleRate, SAMPLE_BITS, channels, true, false);
+    try {
+      line = AudioSystem.getSourceDataLine(format);
+      line.open(format, BUFFER_FRAMES * format.getFrameSize());
+    } catch (LineUnavailableException e) {
+      throw new IOException("No audio output available: " + e.getMessage());
+    } catch (IllegalArgumentException e) {
+      throw new IOException("No audio output available: " + e.getMessage());
+    }
+    line.start();
+  }
+
+  @Override
+  public void write(float[] samples, int frames) throws IOException {
+    int count = frames * channels;
+    if (bytes == null || bytes.length < count * 2) {
+      bytes = new byte[count * 2];
+    }
+    for (int i = 0; i < count; i++) {
+      int sample = (int) (Math.max(-1f, Math.min(1f, samples[i])) * Short.MAX_VALUE);
+      bytes[2 * i] = (byte) sample;
+      bytes[2 * i + 1] = (byte) (sample >> 8);
+    }
+    line.write(bytes, 0, count * 2);
+  }
+
+  @Override
+  public void close() {
+    if (line != null) {
+      line.drain();
+      line.close();
+      line = null;
+    }
+  }
+}
@@ -0,0 +1,1029 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * A synthesizer written in plain Java that understands the part of SuperCollider's server
+ * protocol the Instrument component uses, so that instruments can play without scsynth and
+ * its native libraries, and on any JVM.
+ *
+ * <p>It renders the instrument synthdefs (sine, saw, triangle, pulse and noise, each with an
+ * ADSR envelope, a send to a reverb, and glide and gate controls for changing notes as they
+ * sound), the {@link LoopSynthDef} loops playing those waveforms, and the reverb effect.
+ * Nodes, groups, control buses and mappings behave as on scsynth, and /status and /sync sent
+ * over UDP are answered, with the time taken to render as the CPU load.  Buffers can be
+ * allocated and set, for loops, but not read from files, and synthdef commands are accepted
+ * and ignored, so the sample source is silent.
+ *
+ * <p>Sound is rendered in blocks of {@link #BLOCK_SIZE} frames into arrays allocated when the
+ * synthesizer is made, so the rendering loop allocates nothing.  Messages are applied between
+ * blocks, once their time tag is due.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class JavaSynth implements AudioEngine {
+  /** Sample rate used unless another is given, in hertz. */
+  public static final int DEFAULT_SAMPLE_RATE = 44100;
+  /** Number of output channels. */
+  public static final int CHANNELS = 2;
+  /** Number of frames rendered between messages. */
+  public static final int BLOCK_SIZE = 64;
+
+  private static final String LOG_TAG = "JavaSynth";
+  private static final int MAX_VOICES = 256;
+  private static final int MAX_EFFECTS = 8;
+  private static final int AUDIO_BUS_COUNT = 128;
+  private static final int CONTROL_BUS_COUNT = 4096;
+  private static final int BUFFER_COUNT = 1024;
+  private static final int MAX_PACKET_SIZE = 8192;
+  private static final int ROOT_GROUP = 0;
+  // Node ID asking the server to choose one.
+  private static final int AUTO_ID = -1;
+  private static final int DEFAULT_GROUP = 1;
+  private static final long SECONDS_FROM_1900_TO_1970 = 2208988800L;
+  private static final int MILLISECS_IN_SEC = 1000;
+  private static final float NANOSECS_IN_SEC = 1e9f;
+  private static final float PERCENTAGE_MAX = 100;
+  // Weight of each block in the average load reported by /status.
+  private static final float CPU_SMOOTHING = 0.01f;
+  // Unit generators counted for each synth in /status replies, as scsynth would count the
+  // instrument and reverb synthdefs.
+  private static final int UGENS_PER_VOICE = 8;
+  private static final int UGENS_PER_EFFECT = 12;
+
+  // Waveforms, by synthdef name.
+  private static final int SINE = 0;
+  private static final int SAW = 1;
+  private static final int TRIANGLE = 2;
+  private static final int PULSE = 3;
+  private static final int NOISE = 4;
+  private static final int SILENT = 5;
+  private static final String[] SYNTHDEFS = {
+      "sine-inst", "saw-inst", "triangle-inst", "pulse-inst", "noise-inst"
+  };
+  private static final String REVERB_SYNTHDEF = "reverb";
+
+  // Note controls, with the defaults of the instrument synthdefs.  Instrument sends the
+  // sustain percentage divided by 1000, like the envelope times.  Changes to freq and mul are
+  // lagged by glide seconds, and setting gate to 0 releases the note.  Loops also have rate
+  // and transpose, and take their frequencies from their buffer.
+  private static final String[] CONTROL_NAMES = {
+      "freq", "duration", "mul", "attack", "decay", "sustain", "release", "reverb",
+      "effectBus", "buf", "inBus", "glide", "gate", "rate", "transpose"
+  };
+  private static final float[] CONTROL_DEFAULTS = {
+      440, 1, 0.5f, 0.01f, 0.3f, 0.05f, 1, 0, -1, 0, 0, 0, 1, 1, 1
+  };
+  private static final int FREQ = 0;
+  private static final int DURATION = 1;
+  private static final int MUL = 2;
+  private static final int ATTACK = 3;
+  private static final int DECAY = 4;
+  private static final int SUSTAIN = 5;
+  private static final int RELEASE = 6;
+  private static final int REVERB = 7;
+  private static final int EFFECT_BUS = 8;
+  private static final int BUF = 9;
+  private static final int IN_BUS = 10;
+  private static final int GLIDE = 11;
+  private static final int GATE = 12;
+  private static final int RATE = 13;
+  private static final int TRANSPOSE = 14;
+  private static final int CONTROL_COUNT = CONTROL_NAMES.length;
+  private static final float SUSTAIN_SCALE = 10;
+  private static final float PAN_GAIN = 0.7071f;
+  // A glide gets within -60 dB of its target in the glide time, as SuperCollider's Lag does.
+  private static final double LAG_LOG = Math.log(0.001);
+  // Slowest rate a loop plays at, so that it always moves on.
+  private static final float MIN_LOOP_RATE = 0.001f;
+
+  // Envelope stages.
+  private static final int STAGE_ATTACK = 0;
+  private static final int STAGE_DECAY = 1;
+  private static final int STAGE_SUSTAIN = 2;
+  private static final int STAGE_RELEASE = 3;
+  private static final int STAGE_DONE = 4;
+
+  private static final int SINE_TABLE_SIZE = 4096;
+  private static final float[] SINE_TABLE = new float[SINE_TABLE_SIZE + 1];
+  static {
+    for (int i = 0; i <= SINE_TABLE_SIZE; i++) {
+      SINE_TABLE[i] = (float) Math.sin(2 * Math.PI * i / SINE_TABLE_SIZE);
+    }
+  }
+
+  // Freeverb's tunings at 44.1 kHz, scaled to the sample rate.
+  private static final int[] COMB_TUNING = {1116, 1188, 1277, 1356};
+  private static final int[] ALLPASS_TUNING = {556, 441};
+  private static final int STEREO_SPREAD = 23;
+  private static final float COMB_FEEDBACK = 0.84f;
+  private static final float COMB_DAMP = 0.2f;
+  private static final float ALLPASS_FEEDBACK = 0.5f;
+  private static final float REVERB_INPUT_GAIN = 0.015f;
+  private static final float REVERB_OUTPUT_GAIN = 3;
+
+  /*
+   * A synth node: a note voice or an effect.  Control values may be mapped to control buses,
+   * which are read at the start of each block.
+   */
+  private static class Node {
+    int id;
+    int group;
+    boolean active;
+    boolean running;
+    // Whether this node and every group above it are running.
+    boolean audible;
+    final float[] controls = new float[CONTROL_COUNT];
+    final int[] mappings = new int[CONTROL_COUNT];
+
+    void reset(int id, int group) {
+      this.id = id;
+      this.group = group;
+      active = true;
+      running = true;
+      System.arraycopy(CONTROL_DEFAULTS, 0, controls, 0, CONTROL_COUNT);
+      Arrays.fill(mappings, -1);
+    }
+  }
+
+  private static final class Voice extends Node {
+    int waveform;
+    float phase;
+    int noise;
+    int stage;
+    float level;
+    int gateFrames;
+    float releaseStep;
+    // Frequency and volume reached so far, gliding towards the controls.
+    float frequency;
+    float volume;
+    // For a loop: the next step, frames until it starts, and the frequency and volume of the
+    // note playing.
+    boolean looping;
+    int step;
+    int stepFrames;
+    float stepFrequency;
+    float stepVolume;
+  }
+
+  // A Freeverb-style reverb reading a mono bus and writing to the outputs.
+  private static final class Reverb extends Node {
+    final float[][] combs = new float[2 * COMB_TUNING.length][];
+    final float[] combStore = new float[combs.length];
+    final int[] combIndex = new int[combs.length];
+    final float[][] allpasses = new float[2 * ALLPASS_TUNING.length][];
+    final int[] allpassIndex = new int[allpasses.length];
+
+    Reverb(int sampleRate) {
+      float scale = (float) sampleRate / DEFAULT_SAMPLE_RATE;
+      for (int c = 0; c < 2; c++) {
+        int spread = c * STEREO_SPREAD;
+        for (int i = 0; i < COMB_TUNING.length; i++) {
+          combs[c * COMB_TUNING.length + i] =
+              new float[Math.max(1, (int) ((COMB_TUNING[i] + spread) * scale))];
+        }
+        for (int i = 0; i < ALLPASS_TUNING.length; i++) {
+          allpasses[c * ALLPASS_TUNING.length + i] =
+              new float[Math.max(1, (int) ((ALLPASS_TUNING[i] + spread) * scale))];
+        }
+      }
+    }
+
+    void clear() {
+      for (float[] comb : combs) {
+        Arrays.fill(comb, 0);
+      }
+      for (float[] allpass : allpasses) {
+        Arrays.fill(allpass, 0);
+      }
+      Arrays.fill(combStore, 0);
+    }
+  }
+
+  private static final class Event {
+    final long time;
+    final long sequence;
+    final Object[] message;
+    // Where replies go, for messages received over UDP.
+    final SocketAddress replyTo;
+
+    Event(long time, long sequence, Object[] message, SocketAddress replyTo) {
+      this.time = time;
+      this.sequence = sequence;
+      this.message = message;
+      this.replyTo = replyTo;
+    }
+  }
+
+  private static final Comparator<Event> BY_TIME = new Comparator<Event>() {
+    @Override
+    public int compare(Event a, Event b) {
+      if (a.time != b.time) {
+        return a.time < b.time ? -1 : 1;
+      }
+      return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+    }
+  };
+
+  private final int sampleRate;
+  private final AudioOutput output;
+  private final Voice[] voices = new Voice[MAX_VOICES];
+  private final Reverb[] effects = new Reverb[MAX_EFFECTS];
+  private final float[][] audioBuses = new float[AUDIO_BUS_COUNT][BLOCK_SIZE];
+  private final float[] controlBuses = new float[CONTROL_BUS_COUNT];
+  private final float[][] buffers = new float[BUFFER_COUNT][];
+  private final float[] block = new float[BLOCK_SIZE * CHANNELS];
+  // Parent of each group, and the groups that have been paused.  Only used between blocks.
+  private final Map<Integer, Integer> groups = new HashMap<Integer, Integer>();
+  private final Set<Integer> pausedGroups = new HashSet<Integer>();
+  // Messages waiting for their time, and those due in the current block.
+  private final PriorityQueue<Event> pending = new PriorityQueue<Event>(64, BY_TIME);
+  private final List<Event> due = new ArrayList<Event>();
+  private long nextSequence;
+  private int nextAutoId = AUTO_ID - 1;
+  private volatile boolean quit;
+  private volatile boolean ended;
+  private DatagramChannel channel;
+  // Time taken to render blocks, as a percentage of their duration, on the rendering thread.
+  private float averageCpu;
+  private float peakCpu;
+  private final ByteBuffer reply = ByteBuffer.allocate(MAX_PACKET_SIZE);
+
+  /**
+   * Creates a synthesizer rendering at the default sample rate to the given output.
+   */
+  public JavaSynth(AudioOutput output) {
+    this(output, DEFAULT_SAMPLE_RATE);
+  }
+
+  /**
+   * Creates a synthesizer.
+   *
+   * @param output  where sound is sent once started, or null to only render with
+   * {@link #render}
+   * @param sampleRate  sample rate in hertz
+   */
+  public JavaSynth(AudioOutput output, int sampleRate) {
+    this.output = output;
+    this.sampleRate = sampleRate;
+    for (int i = 0; i < MAX_VOICES; i++) {
+      voices[i] = new Voice();
+    }
+    for (int i = 0; i < MAX_EFFECTS; i++) {
+      effects[i] = new Reverb(sampleRate);
+    }
+    groups.put(DEFAULT_GROUP, ROOT_GROUP);
+  }
+
+  /**
+   * Starts rendering to the output on a thread of its own, and receiving OSC packets on the
+   * given UDP port of the loopback interface, or on no port if it is 0.
+   */
+  @Override
+  public void start(int udpPort) {
+    if (udpPort != 0) {
+      try {
+        channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress("127.0.0.1", udpPort));
+        Thread receiver = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            receive();
+          }
+        }, "JavaSynth receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "Could not listen on UDP port " + udpPort, e);
+      }
+    }
+    Thread renderer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        play();
+      }
+    }, "JavaSynth");
+    renderer.setPriority(Thread.MAX_PRIORITY);
+    renderer.setDaemon(true);
+    renderer.start();
+  }
+
+  @Override
+  public void sendMessage(Object[] message) {
+    schedule(0, message, null);
+  }
+
+  @Override
+  public void sendQuit() {
+    quit = true;
+  }
+
+  @Override
+  public boolean isEnded() {
+    return ended;
+  }
+
+  /**
+   * Applies the messages that are due and renders the next block of interleaved samples.
+   * This is the rendering loop of the output thread; it can also be called directly to render
+   * without an output, as long as the synthesizer has not been started.
+   *
+   * @param out  array of at least {@link #BLOCK_SIZE} times {@link #CHANNELS} samples
+   */
+  public void render(float[] out) {
+    long start = System.nanoTime();
+    applyDueMessages(System.currentTimeMillis());
+    for (int i = 0; i < AUDIO_BUS_COUNT; i++) {
+      Arrays.fill(audioBuses[i], 0);
+    }
+    for (int i = 0; i < MAX_VOICES; i++) {
+      Voice voice = voices[i];
+      if (voice.active && voice.audible) {
+        renderVoice(voice);
+      }
+    }
+    for (int i = 0; i < MAX_EFFECTS; i++) {
+      Reverb reverb = effects[i];
+      if (reverb.active && reverb.audible) {
+        renderReverb(reverb);
+      }
+    }
+    float[] left = audioBuses[0];
+    float[] right = audioBuses[1];
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      out[CHANNELS * i] = left[i];
+      out[CHANNELS * i + 1] = right[i];
+    }
+    float load = (System.nanoTime() - start) * sampleRate * PERCENTAGE_MAX
+        / (BLOCK_SIZE * NANOSECS_IN_SEC);
+    averageCpu += (load - averageCpu) * CPU_SMOOTHING;
+    peakCpu = Math.max(peakCpu, load);
+  }
+
+  /**
+   * Returns the number of notes sounding.
+   */
+  public int activeVoices() {
+    int count = 0;
+    for (int i = 0; i < MAX_VOICES; i++) {
+      if (voices[i].active) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private void play() {
+    try {
+      if (output != null) {
+        output.open(sampleRate, CHANNELS);
+      }
+      while (!quit) {
+        render(block);
+        if (output != null) {
+          output.write(block, BLOCK_SIZE);
+        } else {
+          Thread.sleep((long) BLOCK_SIZE * MILLISECS_IN_SEC / sampleRate);
+        }
+      }
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Stopped", e);
+    } catch (InterruptedException e) {
+      // Stop rendering.
+    } finally {
+      if (output != null) {
+        output.close();
+      }
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          // Nothing left to release.
+        }
+      }
+      ended = true;
+    }
+  }
+
+  // Receives OSC packets until the channel is closed.
+
+  private void receive() {
+    ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
+    try {
+      while (true) {
+        packet.clear();
+        SocketAddress sender = channel.receive(packet);
+        packet.flip();
+        try {
+          readPacket(packet, packet.limit(), 0, sender);
+        } catch (RuntimeException e) {
+          Log.w(LOG_TAG, "Dropped a malformed packet", e);
+        }
+      }
+    } catch (IOException e) {
+      // Closed on quit.
+    }
+  }
+
+  // Schedules the bundle or message occupying the buffer up to the given limit, at the
+  // given time in milliseconds, or 0 for now.
+
+  private void readPacket(ByteBuffer packet, int limit, long time, SocketAddress sender) {
+    String address = OscDecoder.readString(packet);
+    if (OscDecoder.BUNDLE_ADDRESS.equals(address)) {
+      long tag = packet.getLong();
+      long bundleTime = tag == OscBundleSender.IMMEDIATELY ? 0 : toMillis(tag);
+      while (packet.position() < limit) {
+        int size = packet.getInt();
+        int end = packet.position() + size;
+        readPacket(packet, end, bundleTime, sender);
+        packet.position(end);
+      }
+    } else {
+      schedule(time, OscDecoder.readArguments(packet, address), sender);
+    }
+  }
+
+  private static long toMillis(long timeTag) {
+    long seconds = (timeTag >>> 32) - SECONDS_FROM_1900_TO_1970;
+    long fraction = ((timeTag & 0xffffffffL) * MILLISECS_IN_SEC) >>> 32;
+    return seconds * MILLISECS_IN_SEC + fraction;
+  }
+
+  private void schedule(long time, Object[] message, SocketAddress replyTo) {
+    synchronized (pending) {
+      pending.add(new Event(time, nextSequence++, message, replyTo));
+    }
+  }
+
+  private void applyDueMessages(long now) {
+    synchronized (pending) {
+      while (!pending.isEmpty() && pending.peek().time <= now) {
+        due.add(pending.poll());
+      }
+    }
+    for (int i = 0; i < due.size(); i++) {
+      try {
+        apply(due.get(i).message, due.get(i).replyTo);
+      } catch (RuntimeException e) {
+        // A malformed message must not stop the ones after it.
+        Log.w(LOG_TAG, "Failed to apply " + due.get(i).message[0], e);
+      }
+    }
+    due.clear();
+  }
+
+  // Executes a server command.
+
+  private void apply(Object[] message, SocketAddress replyTo) {
+    String address = (String) message[0];
+    if ("/s_new".equals(address)) {
+      newSynth(message);
+    } else if ("/n_set".equals(address)) {
+      int id = intArg(message[1]);
+      Node node = findNode(id);
+      if (node != null) {
+        setControls(node, message);
+      } else if (groups.containsKey(id)) {
+        // Setting a group's controls sets them on every node in it.
+        for (int i = 0; i < MAX_VOICES; i++) {
+          if (voices[i].active && within(voices[i].group, id)) {
+            setControls(voices[i], message);
+          }
+        }
+        for (int i = 0; i < MAX_EFFECTS; i++) {
+          if (effects[i].active && within(effects[i].group, id)) {
+            setControls(effects[i], message);
+          }
+        }
+      }
+    } else if ("/n_map".equals(address)) {
+      Node node = findNode(intArg(message[1]));
+      for (int i = 2; node != null && i + 1 < message.length; i += 2) {
+        int control = controlIndex(message[i]);
+        if (control >= 0) {
+          node.mappings[control] = intArg(message[i + 1]);
+        }
+      }
+    } else if ("/n_free".equals(address)) {
+      for (int i = 1; i < message.length; i++) {
+        freeNode(intArg(message[i]));
+      }
+    } else if ("/n_run".equals(address)) {
+      for (int i = 1; i + 1 < message.length; i += 2) {
+        run(intArg(message[i]), intArg(message[i + 1]) != 0);
+      }
+    } else if ("/g_new".equals(address)) {
+      for (int i = 1; i + 2 < message.length; i += 3) {
+        groups.put(intArg(message[i]), intArg(message[i + 2]));
+      }
+    } else if ("/g_freeAll".equals(address) || "/g_deepFree".equals(address)) {
+      for (int i = 1; i < message.length; i++) {
+        freeContents(intArg(message[i]));
+      }
+    } else if ("/c_set".equals(address)) {
+      for (int i = 1; i + 1 < message.length; i += 2) {
+        int bus = intArg(message[i]);
+        if (bus >= 0 && bus < CONTROL_BUS_COUNT) {
+          controlBuses[bus] = floatArg(message[i + 1]);
+        }
+      }
+    } else if ("/b_alloc".equals(address)) {
+      int buffer = intArg(message[1]);
+      int channels = message.length > 3 ? intArg(message[3]) : 1;
+      if (buffer >= 0 && buffer < BUFFER_COUNT) {
+        buffers[buffer] = new float[intArg(message[2]) * channels];
+      }
+      if (message.length > 4 && message[4] instanceof byte[]) {
+        // The completion message is executed once the buffer is allocated.
+        byte[] completion = (byte[]) message[4];
+        readPacket(ByteBuffer.wrap(completion), completion.length, 0, replyTo);
+      }
+    } else if ("/b_setn".equals(address)) {
+      float[] buffer = buffer(intArg(message[1]));
+      int i = 2;
+      while (buffer != null && i + 1 < message.length) {
+        int start = intArg(message[i]);
+        int count = intArg(message[i + 1]);
+        i += 2;
+        for (int k = 0; k < count && i < message.length; k++, i++) {
+          if (start + k >= 0 && start + k < buffer.length) {
+            buffer[start + k] = floatArg(message[i]);
+          }
+        }
+      }
+    } else if ("/b_free".equals(address)) {
+      for (int i = 1; i < message.length; i++) {
+        int buffer = intArg(message[i]);
+        if (buffer >= 0 && buffer < BUFFER_COUNT) {
+          buffers[buffer] = null;
+        }
+      }
+    } else if ("/quit".equals(address)) {
+      quit = true;
+    } else if ("/status".equals(address) && replyTo != null) {
+      int voiceCount = activeVoices();
+      int effectCount = 0;
+      for (int i = 0; i < MAX_EFFECTS; i++) {
+        if (effects[i].active) {
+          effectCount++;
+        }
+      }
+      reply(replyTo, new Object[] {
+          "/status.reply", 1, voiceCount * UGENS_PER_VOICE + effectCount * UGENS_PER_EFFECT,
+          voiceCount + effectCount, groups.size(), SYNTHDEFS.length + 1, averageCpu, peakCpu,
+          (float) sampleRate, (float) sampleRate
+      });
+      peakCpu = 0;
+    } else if ("/sync".equals(address) && replyTo != null) {
+      // Every earlier command has been executed by the time this one is.
+      reply(replyTo, new Object[] {"/synced", message.length > 1 ? message[1] : 0});
+    }
+    // Synthdef commands, and buffer commands for samples, need nothing here.
+  }
+
+  private void reply(SocketAddress replyTo, Object[] message) {
+    DatagramChannel channel = this.channel;
+    if (channel == null) {
+      return;
+    }
+    reply.clear();
+    OscBundleSender.writeElement(reply, message);
+    reply.flip();
+    // Skip the element size, which only bundles have.
+    reply.position(4);
+    try {
+      channel.send(reply, replyTo);
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "Could not reply to " + replyTo, e);
+    }
+  }
+
+  private void newSynth(Object[] message) {
+    String synthDef = (String) message[1];
+    int id = intArg(message[2]);
+    if (id == AUTO_ID) {
+      id = nextAutoId--;
+    }
+    int target = message.length > 4 ? intArg(message[4]) : DEFAULT_GROUP;
+    Node node;
+    if (REVERB_SYNTHDEF.equals(synthDef)) {
+      Reverb reverb = findFree(effects);
+      if (reverb == null) {
+        return;
+      }
+      reverb.clear();
+      node = reverb;
+    } else {
+      Voice voice = findFree(voices);
+      if (voice == null) {
+        return;
+      }
+      voice.looping = LoopSynthDef.isLoop(synthDef);
+      if (voice.looping) {
+        synthDef = LoopSynthDef.noteSynthDef(synthDef);
+      }
+      voice.waveform = SILENT;
+      for (int i = 0; i < SYNTHDEFS.length; i++) {
+        if (SYNTHDEFS[i].equals(synthDef)) {
+          voice.waveform = i;
+        }
+      }
+      voice.phase = 0;
+      voice.noise = id * 747796405 + 1;
+      // A loop is silent until its first note.
+      voice.stage = voice.looping ? STAGE_DONE : STAGE_ATTACK;
+      voice.level = 0;
+      voice.step = 0;
+      voice.stepFrames = 0;
+      voice.stepVolume = 0;
+      node = voice;
+    }
+    // Free any node with the same ID, as scsynth would refuse it.
+    freeNode(id);
+    node.reset(id, groups.containsKey(target) ? target : DEFAULT_GROUP);
+    node.audible = groupRunning(node.group);
+    for (int i = 5; i + 1 < message.length; i += 2) {
+      setControl(node, message[i], message[i + 1]);
+    }
+    if (node instanceof Voice) {
+      Voice voice = (Voice) node;
+      voice.gateFrames = (int) (control(voice, DURATION) * sampleRate);
+      voice.frequency = control(voice, FREQ);
+      voice.volume = control(voice, MUL);
+    }
+  }
+
+  private static <T extends Node> T findFree(T[] nodes) {
+    for (T node : nodes) {
+      if (!node.active) {
+        return node;
+      }
+    }
+    return null;
+  }
+
+  private Node findNode(int id) {
+    for (int i = 0; i < MAX_VOICES; i++) {
+      if (voices[i].active && voices[i].id == id) {
+        return voices[i];
+      }
+    }
+    for (int i = 0; i < MAX_EFFECTS; i++) {
+      if (effects[i].active && effects[i].id == id) {
+        return effects[i];
+      }
+    }
+    return null;
+  }
+
+  private void setControls(Node node, Object[] message) {
+    for (int i = 2; i + 1 < message.length; i += 2) {
+      setControl(node, message[i], message[i + 1]);
+    }
+  }
+
+  private void setControl(Node node, Object name, Object value) {
+    int control = controlIndex(name);
+    if (control < 0) {
+      return;
+    }
+    // "c3" maps the control to control bus 3; audio-rate mappings are not supported.
+    if (value instanceof String && ((String) value).startsWith("c")) {
+      node.mappings[control] = Integer.parseInt(((String) value).substring(1));
+    } else if (!(value instanceof String)) {
+      node.mappings[control] = -1;
+      node.controls[control] = floatArg(value);
+    }
+  }
+
+  private static int controlIndex(Object name) {
+    if (name instanceof Integer) {
+      int index = (Integer) name;
+      return index < CONTROL_COUNT ? index : -1;
+    }
+    for (int i = 0; i < CONTROL_COUNT; i++) {
+      if (CONTROL_NAMES[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void freeNode(int id) {
+    Node node = findNode(id);
+    if (node != null) {
+      node.active = false;
+    } else if (groups.containsKey(id) && id != DEFAULT_GROUP) {
+      freeContents(id);
+      groups.remove(id);
+      pausedGroups.remove(id);
+    }
+  }
+
+  // Frees every node in a group and the groups within it.
+
+  private void freeContents(int group) {
+    for (int i = 0; i < MAX_VOICES; i++) {
+      if (voices[i].active && within(voices[i].group, group)) {
+        voices[i].active = false;
+      }
+    }
+    for (int i = 0; i < MAX_EFFECTS; i++) {
+      if (effects[i].active && within(effects[i].group, group)) {
+        effects[i].active = false;
+      }
+    }
+    List<Integer> inner = new ArrayList<Integer>();
+    for (Integer id : groups.keySet()) {
+      if (id != group && within(id, group)) {
+        inner.add(id);
+      }
+    }
+    for (Integer id : inner) {
+      groups.remove(id);
+      pausedGroups.remove(id);
+    }
+  }
+
+  // Returns whether a group is the given group or inside it.
+
+  private boolean within(int group, int ancestor) {
+    Integer current = group;
+    while (current != null) {
+      if (current == ancestor) {
+        return true;
+      }
+      current = current == ROOT_GROUP ? null : groups.get(current);
+    }
+    return false;
+  }
+
+  private boolean groupRunning(int group) {
+    Integer current = group;
+    while (current != null && current != ROOT_GROUP) {
+      if (pausedGroups.contains(current)) {
+        return false;
+      }
+      current = groups.get(current);
+    }
+    return true;
+  }
+
+  private void run(int id, boolean running) {
+    Node node = findNode(id);
+    if (node != null) {
+      node.running = running;
+    } else if (groups.containsKey(id)) {
+      if (running) {
+        pausedGroups.remove(id);
+      } else {
+        pausedGroups.add(id);
+      }
+    }
+    for (int i = 0; i < MAX_VOICES; i++) {
+      voices[i].audible = voices[i].running && groupRunning(voices[i].group);
+    }
+    for (int i = 0; i < MAX_EFFECTS; i++) {
+      effects[i].audible = effects[i].running && groupRunning(effects[i].group);
+    }
+  }
+
+  private float control(Node node, int control) {
+    int bus = node.mappings[control];
+    return bus >= 0 && bus < CONTROL_BUS_COUNT ? controlBuses[bus] : node.controls[control];
+  }
+
+  private float[] buffer(int index) {
+    return index >= 0 && index < BUFFER_COUNT ? buffers[index] : null;
+  }
+
+  private static int intArg(Object arg) {
+    return arg instanceof Number ? ((Number) arg).intValue() : Integer.parseInt((String) arg);
+  }
+
+  private static float floatArg(Object arg) {
+    return arg instanceof Number ? ((Number) arg).floatValue() : Float.parseFloat((String) arg);
+  }
+
+  // Renders one block of a note, adding it to the outputs and to its effect bus.
+
+  private void renderVoice(Voice voice) {
+    float frequency;
+    float volume;
+    if (voice.looping) {
+      advanceLoop(voice);
+      frequency = voice.stepFrequency * control(voice, TRANSPOSE);
+      volume = voice.stepVolume * control(voice, MUL);
+    } else {
+      frequency = control(voice, FREQ);
+      volume = control(voice, MUL);
+    }
+    float glide = control(voice, GLIDE);
+    if (glide > 0) {
+      float keep = (float) Math.exp(LAG_LOG * BLOCK_SIZE / (glide * sampleRate));
+      voice.frequency = frequency + keep * (voice.frequency - frequency);
+      voice.volume = volume + keep * (voice.volume - volume);
+    } else {
+      voice.frequency = frequency;
+      voice.volume = volume;
+    }
+    if (control(voice, GATE) <= 0 && voice.stage < STAGE_RELEASE) {
+      voice.gateFrames = 0;
+    }
+    float increment = voice.frequency / sampleRate;
+    float mul = voice.volume;
+    float sustain = Math.max(0, control(voice, SUSTAIN) * SUSTAIN_SCALE);
+    float attackStep = 1 / Math.max(1, control(voice, ATTACK) * sampleRate);
+    float decayStep = Math.max(0, 1 - sustain) / Math.max(1, control(voice, DECAY) * sampleRate);
+    float releaseFrames = Math.max(1, control(voice, RELEASE) * sampleRate);
+    float reverb = Math.max(0, Math.min(1, control(voice, REVERB)));
+    int effectBus = (int) control(voice, EFFECT_BUS);
+    float[] wet = null;
+    if (reverb > 0 && effectBus >= 2 && effectBus < AUDIO_BUS_COUNT) {
+      wet = audioBuses[effectBus];
+    } else {
+      reverb = 0;
+    }
+    float dryGain = mul * (1 - reverb) * PAN_GAIN;
+    float wetGain = mul * reverb;
+    float[] left = audioBuses[0];
+    float[] right = audioBuses[1];
+    float phase = voice.phase;
+    float level = voice.level;
+    int stage = voice.stage;
+    for (int i = 0; i < BLOCK_SIZE && stage != STAGE_DONE; i++) {
+      if (voice.gateFrames-- == 0 && stage < STAGE_RELEASE) {
+        stage = STAGE_RELEASE;
+        voice.releaseStep = level / releaseFrames;
+      }
+      switch (stage) {
+        case STAGE_ATTACK:
+          level += attackStep;
+          if (level >= 1) {
+            level = 1;
+            stage = STAGE_DECAY;
+          }
+          break;
+        case STAGE_DECAY:
+          level -= decayStep;
+          if (level <= sustain) {
+            level = sustain;
+            stage = STAGE_SUSTAIN;
+          }
+          break;
+        case STAGE_SUSTAIN:
+          break;
+        default:
+          level -= voice.releaseStep;
+          if (level <= 0) {
+            level = 0;
+            stage = STAGE_DONE;
+          }
+          break;
+      }
+      float sample = oscillator(voice, phase, increment) * level;
+      phase += increment;
+      if (phase >= 1) {
+        phase -= 1;
+      }
+      left[i] += sample * dryGain;
+      right[i] += sample * dryGain;
+      if (wet != null) {
+        wet[i] += sample * wetGain;
+      }
+    }
+    voice.phase = phase;
+    voice.level = level;
+    voice.stage = stage;
+    if (stage == STAGE_DONE && !voice.looping) {
+      voice.active = false;
+    }
+  }
+
+  // Starts the notes of the loop steps due by the start of this block.  Steps start on block
+  // boundaries, as on scsynth, where the loop's sequencer runs at control rate.
+
+  private void advanceLoop(Voice voice) {
+    while (voice.stepFrames <= 0) {
+      float[] data = buffer((int) control(voice, BUF));
+      int steps = data != null ? data.length / LoopPattern.STEP_FIELDS : 0;
+      if (steps == 0) {
+        // Wait for the buffer to be filled.
+        voice.stepFrames = 0;
+        return;
+      }
+      int base = (voice.step % steps) * LoopPattern.STEP_FIELDS;
+      voice.step = (voice.step % steps) + 1;
+      float framesPerSec = sampleRate / Math.max(control(voice, RATE), MIN_LOOP_RATE);
+      voice.stepFrames +=
+          Math.max(1, Math.round(data[base + LoopPattern.STEP_TIME] * framesPerSec));
+      voice.stepFrequency = data[base + LoopPattern.STEP_FREQUENCY];
+      float volume = data[base + LoopPattern.STEP_VOLUME];
+      // Rests leave the note before them to finish.
+      if (volume > 0) {
+        voice.stepVolume = volume;
+        voice.gateFrames = Math.round(data[base + LoopPattern.STEP_LENGTH] * framesPerSec);
+        voice.stage = STAGE_ATTACK;
+      }
+    }
+    voice.stepFrames -= BLOCK_SIZE;
+  }
+
+  private static float oscillator(Voice voice, float phase, float increment) {
+    switch (voice.waveform) {
+      case SINE:
+        float position = phase * SINE_TABLE_SIZE;
+        int index = (int) position;
+        float fraction = position - index;
+        return SINE_TABLE[index] + fraction * (SINE_TABLE[index + 1] - SINE_TABLE[index]);
+      case SAW:
+        return 2 * phase - 1 - polyBlep(phase, increment);
+      case TRIANGLE:
+        return 1 - 4 * Math.abs(phase - 0.5f);
+      case PULSE:
+        float half = phase + 0.5f;
+        if (half >= 1) {
+          half -= 1;
+        }
+        return (phase < 0.5f ? 1 : -1) + polyBlep(phase, increment) - polyBlep(half, increment);
+      case NOISE:
+        // Xorshift
+        int x = voice.noise;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        voice.noise = x;
+        return x * (1f / Integer.MAX_VALUE);
+      default:
+        return 0;
+    }
+  }
+
+  // Smooths the step of a saw or pulse wave at phase 0 over one sample either side, which
+  // removes most of the aliasing of a naive waveform.
+
+  private static float polyBlep(float phase, float increment) {
+    if (increment <= 0) {
+      return 0;
+    }
+    if (phase < increment) {
+      float t = phase / increment;
+      return t + t - t * t - 1;
+    } else if (phase > 1 - increment) {
+      float t = (phase - 1) / increment;
+      return t * t + t + t + 1;
+    }
+    return 0;
+  }
+
+  private void renderReverb(Reverb reverb) {
+    int inBus = (int) control(reverb, IN_BUS);
+    if (inBus < 2 || inBus >= AUDIO_BUS_COUNT) {
+      return;
+    }
+    float[] in = audioBuses[inBus];
+    int combCount = COMB_TUNING.length;
+    int allpassCount = ALLPASS_TUNING.length;
+    for (int c = 0; c < 2; c++) {
+      float[] out = audioBuses[c];
+      for (int i = 0; i < BLOCK_SIZE; i++) {
+        float input = in[i] * REVERB_INPUT_GAIN;
+        float sum = 0;
+        for (int k = c * combCount; k < (c + 1) * combCount; k++) {
+          float[] line = reverb.combs[k];
+          int index = reverb.combIndex[k];
+          float delayed = line[index];
+          reverb.combStore[k] = delayed * (1 - COMB_DAMP) + reverb.combStore[k] * COMB_DAMP;
+          line[index] = input + reverb.combStore[k] * COMB_FEEDBACK;
+          reverb.combIndex[k] = index + 1 < line.length ? index + 1 : 0;
+          sum += delayed;
+        }
+        for (int k = c * allpassCount; k < (c + 1) * allpassCount; k++) {
+          float[] line = reverb.allpasses[k];
+          int index = reverb.allpassIndex[k];
+          float delayed = line[index];
+          line[index] = sum + delayed * ALLPASS_FEEDBACK;
+          sum = delayed - sum;
+          reverb.allpassIndex[k] = index + 1 < line.length ? index + 1 : 0;
+        }
+        out[i] += sum * REVERB_OUTPUT_GAIN;
+      }
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A note sequence compiled for playing over and over on the server by
+ * {@link LoopSynthDef} synths.  The sequence is cut into steps, one for each distinct onset,
+ * and split into lanes, one for each note of the largest chord: each lane holds the notes
+ * its synth plays, with rests where a step has fewer notes.  A lane is stored as one buffer
+ * of {@link #STEP_FIELDS} frames per step.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class LoopPattern {
+  /** Frames each step takes in a lane's buffer. */
+  public static final int STEP_FIELDS = 4;
+  /** Offset of the time to the next step, in seconds. */
+  public static final int STEP_TIME = 0;
+  /** Offset of the frequency of the step's note, in hertz. */
+  public static final int STEP_FREQUENCY = 1;
+  /** Offset of the length of the step's note, in seconds. */
+  public static final int STEP_LENGTH = 2;
+  /** Offset of the volume of the step's note, between 0 and 1, or 0 for a rest. */
+  public static final int STEP_VOLUME = 3;
+  /** Greatest number of steps in a loop, which keeps each lane within one packet. */
+  public static final int MAX_STEPS = 128;
+
+  // A note must end this long before the next in its lane starts, in seconds, so that the
+  // gate closes and the next note's envelope starts again.  This is over one control period.
+  private static final float LEGATO_GAP = 0.005f;
+  // Shortest step, in seconds, so that the sequencer always moves on.
+  private static final float MIN_STEP_TIME = 0.001f;
+  private static final float MILLISECS_IN_SEC = 1000;
+  private static final int MAX_PACKET_SIZE = 8192;
+
+  private final float[][] lanes;
+  private final int steps;
+  private final int dropped;
+
+  private LoopPattern(float[][] lanes, int steps, int dropped) {
+    this.lanes = lanes;
+    this.steps = steps;
+    this.dropped = dropped;
+  }
+
+  /**
+   * Compiles a sequence into a loop lasting the sequence's length.
+   *
+   * @param maxLanes  greatest number of notes played at once; notes of larger chords are
+   * dropped
+   * @throws IllegalArgumentException  if the sequence has no notes, or too many steps
+   */
+  public static LoopPattern compile(NoteSequence notes, int maxLanes) {
+    int size = notes.size();
+    long length = notes.length();
+    if (size == 0 || length <= 0) {
+      throw new IllegalArgumentException("A loop needs at least one note");
+    }
+    // Count the steps and the largest chord.  A loop not starting with a note starts with a
+    // rest.
+    int steps = notes.onset(0) > 0 ? 1 : 0;
+    int largest = 0;
+    for (int i = 0; i < size; ) {
+      int end = chordEnd(notes, i);
+      steps++;
+      largest = Math.max(largest, end - i);
+      i = end;
+    }
+    if (steps > MAX_STEPS) {
+      throw new IllegalArgumentException("A loop can have at most " + MAX_STEPS + " steps");
+    }
+    int laneCount = Math.min(largest, maxLanes);
+    float[][] lanes = new float[laneCount][steps * STEP_FIELDS];
+    // Rests keep the frequency of the note before them, so that its release does not jump.
+    float[] frequencies = new float[laneCount];
+    for (int lane = 0; lane < laneCount; lane++) {
+      frequencies[lane] = notes.frequency(Math.min(lane, chordEnd(notes, 0) - 1));
+    }
+    int step = 0;
+    if (notes.onset(0) > 0) {
+      for (int lane = 0; lane < laneCount; lane++) {
+        lanes[lane][STEP_TIME] = notes.onset(0) / MILLISECS_IN_SEC;
+        lanes[lane][STEP_FREQUENCY] = frequencies[lane];
+      }
+      step++;
+    }
+    int dropped = 0;
+    for (int i = 0; i < size; ) {
+      int end = chordEnd(notes, i);
+      long next = end < size ? notes.onset(end) : length;
+      float time = Math.max((next - notes.onset(i)) / MILLISECS_IN_SEC, MIN_STEP_TIME);
+      for (int lane = 0; lane < laneCount; lane++) {
+        int base = step * STEP_FIELDS;
+        float[] data = lanes[lane];
+        data[base + STEP_TIME] = time;
+        if (i + lane < end) {
+          frequencies[lane] = notes.frequency(i + lane);
+          data[base + STEP_LENGTH] =
+              Math.max(0, Math.min(notes.duration(i + lane), time - LEGATO_GAP));
+          data[base + STEP_VOLUME] = notes.volume(i + lane);
+        }
+        data[base + STEP_FREQUENCY] = frequencies[lane];
+      }
+      dropped += Math.max(0, end - i - laneCount);
+      step++;
+      i = end;
+    }
+    return new LoopPattern(lanes, steps, dropped);
+  }
+
+  /** Returns the number of lanes, each played by one synth. */
+  public int lanes() {
+    return lanes.length;
+  }
+
+  /** Returns the number of steps in each lane. */
+  public int steps() {
+    return steps;
+  }
+
+  /** Returns the number of notes left out because their chords had too many notes. */
+  public int dropped() {
+    return dropped;
+  }
+
+  /**
+   * Builds the messages that start the loop: one /b_alloc for each lane's buffer, each
+   * filling its buffer once it is allocated.  The last also sends the given messages, which
+   * start the lanes' synths, once every buffer is filled; the server completes
+   * allocations in order.
+   *
+   * @param buffers  buffer for each lane, which must not be allocated on the server
+   * @param start  messages starting the synths
+   */
+  public Object[][] startMessages(int[] buffers, Object[][] start) {
+    Object[][] messages = new Object[lanes.length][];
+    for (int lane = 0; lane < lanes.length; lane++) {
+      Object[] fill = fillMessage(buffers[lane], lane);
+      byte[] completion;
+      if (lane < lanes.length - 1) {
+        completion = encode(new Object[][] {fill});
+      } else {
+        Object[][] last = new Object[start.length + 1][];
+        last[0] = fill;
+        System.arraycopy(start, 0, last, 1, start.length);
+        completion = encode(last);
+      }
+      messages[lane] = new Object[] {
+          "/b_alloc", buffers[lane], steps * STEP_FIELDS, 1, completion
+      };
+    }
+    return messages;
+  }
+
+  // Returns the /b_setn message filling a lane's buffer.
+
+  private Object[] fillMessage(int buffer, int lane) {
+    float[] data = lanes[lane];
+    Object[] message = new Object[4 + data.length];
+    message[0] = "/b_setn";
+    message[1] = buffer;
+    message[2] = 0;
+    message[3] = data.length;
+    for (int i = 0; i < data.length; i++) {
+      message[4 + i] = data[i];
+    }
+    return message;
+  }
+
+  // Encodes one message on its own, or several as a bundle to be executed at once.
+
+  private static byte[] encode(Object[][] messages) {
+    ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
+    int start = 4;
+    if (messages.length == 1) {
+      OscBundleSender.writeElement(packet, messages[0]);
+    } else {
+      packet.put(OscBundleSender.BUNDLE_HEADER);
+      packet.putLong(OscBundleSender.IMMEDIATELY);
+      for (Object[] message : messages) {
+        OscBundleSender.writeElement(packet, message);
+      }
+      start = 0;
+    }
+    // A message on its own is not preceded by its size.
+    return Arrays.copyOfRange(packet.array(), start, packet.position());
+  }
+
+  // Returns the index after the last note sharing the onset of the note at the given index.
+
+  private static int chordEnd(NoteSequence notes, int start) {
+    int end = start + 1;
+    while (end < notes.size() && notes.onset(end) == notes.onset(start)) {
+      end++;
+    }
+    return end;
+  }
+}
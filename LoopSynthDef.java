@@ -0,0 +1,142 @@
+package com.google.appinventor.components.runtime.util;
+
+/**
+ * Generates the synthdefs that play loops on the server.  A loop synth steps through a
+ * {@link LoopPattern} held in a buffer with demand rate unit generators, so once it has been
+ * started the server plays the pattern over and over with no messages from the client.  Each
+ * step is read as four frames: the time to the next step, then the frequency, length and
+ * volume of the step's note.  Steps with no volume are rests.
+ *
+ * <p>One synthdef is made for each instrument synthdef with a waveform, named by
+ * {@link #name}.  Its controls are {@code buf}, the pattern's buffer; {@code rate}, which
+ * speeds the pattern up; {@code transpose}, a ratio every frequency is multiplied by;
+ * {@code mul}; and the envelope, reverb and effect bus controls of the instrument synthdefs.
+ * Setting {@code rate} or {@code transpose} on a group changes every loop in it with one
+ * message.
+ *
+ * <p>Synthdefs are written by {@link SynthDefGraph}, ready to be sent with /d_recv.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class LoopSynthDef {
+  private static final String PREFIX = "loop-";
+
+  // Controls, in the order of the synthdef's parameters, with their defaults.  Envelope
+  // defaults are those of the instrument synthdefs.
+  private static final String[] CONTROL_NAMES = {
+      "buf", "rate", "transpose", "mul", "attack", "decay", "sustain", "release", "reverb",
+      "effectBus"
+  };
+  private static final float[] CONTROL_DEFAULTS = {
+      0, 1, 1, 1, 0.01f, 0.3f, 0.05f, 1, 0, -1
+  };
+  private static final int BUF = 0;
+  private static final int RATE = 1;
+  private static final int TRANSPOSE = 2;
+  private static final int MUL = 3;
+  private static final int ATTACK = 4;
+  private static final int DECAY = 5;
+  private static final int SUSTAIN = 6;
+  private static final int RELEASE = 7;
+  private static final int REVERB = 8;
+  private static final int EFFECT_BUS = 9;
+  // NoteMessageBuilder.sustainControl gives the sustain percentage divided by 1000.
+  private static final float SUSTAIN_SCALE = 10;
+  private static final float PAN_GAIN = 0.7071f;
+  private static final int CONTROL_RATE = SynthDefGraph.CONTROL_RATE;
+  private static final int AUDIO_RATE = SynthDefGraph.AUDIO_RATE;
+  private static final int DEMAND_RATE = SynthDefGraph.DEMAND_RATE;
+  private static final int OP_SUB = SynthDefGraph.OP_SUB;
+  private static final int OP_MUL = SynthDefGraph.OP_MUL;
+  private static final int OP_DIV = SynthDefGraph.OP_DIV;
+
+  private final SynthDefGraph graph = new SynthDefGraph(CONTROL_NAMES, CONTROL_DEFAULTS);
+
+  private LoopSynthDef() {
+  }
+
+  /**
+   * Returns the name of the loop synthdef playing the waveform of an instrument synthdef.
+   */
+  public static String name(String synthDef) {
+    return PREFIX + synthDef;
+  }
+
+  /**
+   * Returns whether a synthdef is a loop synthdef.
+   */
+  public static boolean isLoop(String synthDef) {
+    return synthDef.startsWith(PREFIX);
+  }
+
+  /**
+   * Returns the instrument synthdef whose waveform a loop synthdef plays.
+   */
+  public static String noteSynthDef(String loopSynthDef) {
+    return loopSynthDef.substring(PREFIX.length());
+  }
+
+  /**
+   * Returns whether there is a loop synthdef playing the waveform of an instrument synthdef.
+   */
+  public static boolean canLoop(String synthDef) {
+    return WaveformSynthDef.isWaveform(synthDef);
+  }
+
+  /**
+   * Returns the synthdef file for the loop synthdef playing the waveform of an instrument
+   * synthdef, or null if the instrument synthdef has no waveform, as when it plays samples.
+   */
+  public static byte[] build(String synthDef) {
+    int waveform = WaveformSynthDef.waveform(synthDef);
+    if (waveform < 0) {
+      return null;
+    }
+    LoopSynthDef def = new LoopSynthDef();
+    def.buildGraph(waveform);
+    return def.graph.write(name(synthDef));
+  }
+
+  private void buildGraph(int waveform) {
+    int buf = graph.control(BUF);
+    int rate = graph.control(RATE);
+    // A trigger at the start of each step, which pulls the step's note from the buffer.
+    int clock = graph.ugen("TDuty", CONTROL_RATE, 1, 0,
+        graph.binaryOp(DEMAND_RATE, OP_DIV, field(buf, LoopPattern.STEP_TIME), rate),
+        graph.constant(0), graph.constant(0), graph.constant(1), graph.constant(0));
+    int note = graph.ugen("Demand", CONTROL_RATE, 3, 0, clock, graph.constant(0),
+        field(buf, LoopPattern.STEP_FREQUENCY), field(buf, LoopPattern.STEP_LENGTH),
+        field(buf, LoopPattern.STEP_VOLUME));
+    int frequency = graph.binaryOp(CONTROL_RATE, OP_MUL, note, graph.control(TRANSPOSE));
+    int volume = note + 2;
+    // Rests have no volume, so they do not open the gate.
+    int gate = graph.ugen("Trig1", CONTROL_RATE, 1, 0,
+        graph.binaryOp(CONTROL_RATE, OP_MUL, clock, volume),
+        graph.binaryOp(CONTROL_RATE, OP_DIV, note + 1, rate));
+    int envelope = graph.adsr(gate,
+        graph.binaryOp(CONTROL_RATE, OP_MUL, volume, graph.control(MUL)),
+        graph.control(ATTACK), graph.control(DECAY),
+        graph.binaryOp(CONTROL_RATE, OP_MUL, graph.control(SUSTAIN),
+            graph.constant(SUSTAIN_SCALE)),
+        graph.control(RELEASE), 0);
+    int signal = graph.binaryOp(AUDIO_RATE, OP_MUL,
+        WaveformSynthDef.oscillator(graph, waveform, frequency), envelope);
+    int reverb = graph.control(REVERB);
+    int dry = graph.binaryOp(AUDIO_RATE, OP_MUL, signal, graph.binaryOp(CONTROL_RATE, OP_MUL,
+        graph.binaryOp(CONTROL_RATE, OP_SUB, graph.constant(1), reverb),
+        graph.constant(PAN_GAIN)));
+    graph.ugen("Out", AUDIO_RATE, 0, 0, graph.constant(0), dry, dry);
+    graph.ugen("Out", AUDIO_RATE, 0, 0, graph.control(EFFECT_BUS),
+        graph.binaryOp(AUDIO_RATE, OP_MUL, signal, reverb));
+  }
+
+  // Adds a demand rate reader of one field of each step in turn, wrapping at the end of the
+  // buffer.
+
+  private int field(int buf, int field) {
+    int index = graph.ugen("Dseries", DEMAND_RATE, 1, 0,
+        graph.constant(Float.POSITIVE_INFINITY), graph.constant(field),
+        graph.constant(LoopPattern.STEP_FIELDS));
+    return graph.ugen("Dbufrd", DEMAND_RATE, 1, 0, buf, index, graph.constant(1));
+  }
+}
@@ -0,0 +1,201 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compiles melodies written as compact text into {@link NoteSequence}s, keeping the most
+ * recently used compiled melodies so that playing a melody again skips parsing.
+ *
+ * <p>A melody is a list of notes separated by spaces, each a pitch optionally followed by a
+ * duration in milliseconds and a volume percentage, separated by colons:
+ * {@code "C4:250 E4:250 G4:500:80 r:250"}.  A pitch is a note name and octave, such as
+ * {@code C#4} or {@code Bb3}, a frequency in hertz, or {@code r} for a rest.  Pitches joined
+ * by {@code +} sound together, as in {@code C4+E4+G4:500}.  A note without an octave,
+ * duration or volume takes the one of the note before it, and each note starts when the one
+ * before it ends.
+ *
+ * <p>Compiled sequences are shared, so they must not be modified.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class MelodyCache {
+  private static final int DEFAULT_OCTAVE = 4;
+  private static final int PERCENTAGE_MAX = 100;
+  private static final float MILLISECS_IN_SEC = 1000;
+
+  // A compiled melody and the tuning it was compiled with.
+  private static final class Entry {
+    final NoteSequence notes;
+    final PitchTable pitchTable;
+
+    Entry(NoteSequence notes, PitchTable pitchTable) {
+      this.notes = notes;
+      this.pitchTable = pitchTable;
+    }
+  }
+
+  private final Map<String, Entry> melodies;
+  private long hits;
+  private long misses;
+
+  /**
+   * Creates a cache holding up to the given number of compiled melodies.
+   */
+  public MelodyCache(final int capacity) {
+    melodies = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Returns a melody compiled with the given tuning, compiling it if it is not cached.
+   *
+   * @param melody  the melody's text
+   * @param pitchTable  tuning of note names
+   * @param defaultDuration  duration of the first note if it gives none, in milliseconds
+   * @param defaultVolume  volume of the first note if it gives none, as a percentage
+   * @throws IllegalArgumentException  if the melody cannot be parsed
+   */
+  public NoteSequence get(String melody, PitchTable pitchTable, float defaultDuration,
+      float defaultVolume) {
+    synchronized (melodies) {
+      Entry entry = melodies.get(melody);
+      if (entry != null && entry.pitchTable == pitchTable) {
+        hits++;
+        return entry.notes;
+      }
+      misses++;
+    }
+    // Compiled outside the lock; two threads compiling the same melody get equal results.
+    NoteSequence notes = compile(melody, pitchTable, defaultDuration, defaultVolume);
+    synchronized (melodies) {
+      melodies.put(melody, new Entry(notes, pitchTable));
+    }
+    return notes;
+  }
+
+  /**
+   * Returns the number of melodies found already compiled.
+   */
+  public long hits() {
+    synchronized (melodies) {
+      return hits;
+    }
+  }
+
+  /**
+   * Returns the number of melodies that had to be compiled.
+   */
+  public long misses() {
+    synchronized (melodies) {
+      return misses;
+    }
+  }
+
+  /**
+   * Compiles a melody without caching it.
+   *
+   * @throws IllegalArgumentException  if the melody cannot be parsed
+   */
+  public static NoteSequence compile(String melody, PitchTable pitchTable,
+      float defaultDuration, float defaultVolume) {
+    NoteSequence notes = new NoteSequence();
+    int octave = DEFAULT_OCTAVE;
+    float duration = defaultDuration;
+    float volume = defaultVolume;
+    long onset = 0;
+    float[] frequencies = new float[4];
+    int length = melody.length();
+    int position = 0;
+    while (position < length) {
+      while (position < length && Character.isWhitespace(melody.charAt(position))) {
+        position++;
+      }
+      if (position == length) {
+        break;
+      }
+      int end = position;
+      while (end < length && !Character.isWhitespace(melody.charAt(end))) {
+        end++;
+      }
+      String token = melody.substring(position, end);
+      position = end;
+      String[] fields = token.split(":", -1);
+      if (fields.length > 3) {
+        throw new IllegalArgumentException("Too many fields in note \"" + token + "\"");
+      }
+      try {
+        if (fields.length >= 2 && fields[1].length() > 0) {
+          duration = Float.parseFloat(fields[1]);
+        }
+        if (fields.length == 3 && fields[2].length() > 0) {
+          volume = Float.parseFloat(fields[2]);
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Bad duration or volume in note \"" + token + "\"");
+      }
+      if (duration < 0) {
+        throw new IllegalArgumentException("Negative duration in note \"" + token + "\"");
+      }
+      String[] pitches = fields[0].split("\\+", -1);
+      int count = 0;
+      for (String pitch : pitches) {
+        if (pitch.equals("r") || pitch.equals("R")) {
+          continue;
+        }
+        if (count == frequencies.length) {
+          float[] grown = new float[2 * count];
+          System.arraycopy(frequencies, 0, grown, 0, count);
+          frequencies = grown;
+        }
+        int pitchEnd = pitchNameEnd(pitch);
+        if (pitchEnd == 0) {
+          try {
+            frequencies[count++] = Float.parseFloat(pitch);
+          } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad pitch \"" + pitch + "\" in note \""
+                + token + "\"");
+          }
+          continue;
+        }
+        int pitchClass = PitchTable.pitchClass(pitch.subSequence(0, pitchEnd));
+        if (pitchClass == PitchTable.NO_NOTE) {
+          throw new IllegalArgumentException("Bad note name \"" + pitch + "\"");
+        }
+        if (pitchEnd < pitch.length()) {
+          try {
+            octave = Integer.parseInt(pitch.substring(pitchEnd));
+          } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad octave in note \"" + pitch + "\"");
+          }
+        }
+        frequencies[count++] = pitchTable.frequency(pitchClass, octave);
+      }
+      for (int i = 0; i < count; i++) {
+        notes.add(onset, frequencies[i], duration / MILLISECS_IN_SEC, volume / PERCENTAGE_MAX);
+      }
+      onset += (long) duration;
+    }
+    // A melody ending in a rest lasts until the rest ends.
+    notes.setLength(onset);
+    return notes;
+  }
+
+  // Returns the length of the note name at the start of a pitch: a letter and any accidental,
+  // or 0 if the pitch does not start with a letter.
+
+  private static int pitchNameEnd(String pitch) {
+    if (pitch.length() == 0 || !Character.isLetter(pitch.charAt(0))) {
+      return 0;
+    }
+    if (pitch.length() > 1 && (pitch.charAt(1) == '#' || pitch.charAt(1) == 'b'
+        || pitch.charAt(1) == 'B')) {
+      return 2;
+    }
+    return 1;
+  }
+}
@@ -0,0 +1,424 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A Standard MIDI File, read through a memory mapping.  Opening the file only finds its tracks
+ * and its tempo changes; notes are decoded as a {@link NoteReader} reaches them, so playing a
+ * long file takes the same memory as playing a short one.
+ *
+ * <p>Formats 0 and 1 are supported, and format 2 files are played as if their tracks were
+ * simultaneous.  Times are given in milliseconds, following the file's tempo changes or its
+ * SMPTE time division.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class MidiFile {
+  /** Number of MIDI channels. */
+  public static final int CHANNEL_COUNT = 16;
+
+  private static final int MTHD = 0x4d546864;   // "MThd"
+  private static final int MTRK = 0x4d54726b;   // "MTrk"
+  private static final int HEADER_SIZE = 14;
+  private static final int DEFAULT_TEMPO = 500000;  // Microseconds per quarter note
+  private static final double MICROSECS_IN_MILLISEC = 1000;
+  private static final double MILLISECS_IN_SEC = 1000;
+  private static final int NOTE_OFF = 0x80;
+  private static final int NOTE_ON = 0x90;
+  private static final int PROGRAM_CHANGE = 0xc0;
+  private static final int CHANNEL_PRESSURE = 0xd0;
+  private static final int SYSEX = 0xf0;
+  private static final int SYSEX_CONTINUATION = 0xf7;
+  private static final int META = 0xff;
+  private static final int META_END_OF_TRACK = 0x2f;
+  private static final int META_TEMPO = 0x51;
+  private static final float MAX_VELOCITY = 127;
+
+  private final File file;
+  private final MappedByteBuffer map;
+  private final int[] trackStarts;
+  private final int[] trackEnds;
+  // Tempo changes in order: the tick each starts at, the time of that tick in milliseconds,
+  // and the milliseconds per tick from then on.
+  private final long[] tempoTicks;
+  private final double[] tempoMillis;
+  private final double[] millisPerTick;
+
+  /*
+   * An event decoded from a track, by decodeEvent.
+   */
+  private static final class Event {
+    int status;
+    int data1;
+    int data2;
+    // Start of a meta event's data, and its length.
+    int dataStart;
+    int dataLength;
+    // Position after the event, and the running status after it.
+    int end;
+    int running;
+  }
+
+  /**
+   * Reads the notes of a file in order of onset, across all of its tracks.  A reader holds a
+   * position in each track and decodes nothing ahead of the note being read apart from the
+   * note's end, so it allocates nothing as it reads.
+   */
+  public final class NoteReader {
+    private final int[] positions;
+    private final int[] running;
+    private final long[] nextTicks;
+    private final boolean[] ended;
+    private final Event event = new Event();
+    private final Event scanEvent = new Event();
+    private final int[] varEnd = new int[1];
+    private long onset;
+    private float duration;
+    private int channel;
+    private int key;
+    private int velocity;
+
+    private NoteReader() {
+      int tracks = trackStarts.length;
+      positions = new int[tracks];
+      running = new int[tracks];
+      nextTicks = new long[tracks];
+      ended = new boolean[tracks];
+      for (int i = 0; i < tracks; i++) {
+        positions[i] = trackStarts[i];
+        readDelta(i);
+      }
+    }
+
+    /**
+     * Moves to the next note, returning false at the end of the file.
+     */
+    public boolean next() {
+      while (true) {
+        int track = -1;
+        for (int i = 0; i < positions.length; i++) {
+          if (!ended[i] && (track < 0 || nextTicks[i] < nextTicks[track])) {
+            track = i;
+          }
+        }
+        if (track < 0) {
+          return false;
+        }
+        long tick = nextTicks[track];
+        decodeEvent(positions[track], running[track], trackEnds[track], event, varEnd);
+        positions[track] = event.end;
+        running[track] = event.running;
+        if (event.status == META && event.data1 == META_END_OF_TRACK) {
+          ended[track] = true;
+          continue;
+        }
+        readDelta(track);
+        int type = event.status & 0xf0;
+        if (type == NOTE_ON && event.data2 > 0) {
+          channel = event.status & 0x0f;
+          key = event.data1;
+          velocity = event.data2;
+          onset = Math.round(tickToMillis(tick));
+          long endTick = findNoteEnd(track, tick);
+          duration = (float) ((tickToMillis(endTick) - tickToMillis(tick)) / MILLISECS_IN_SEC);
+          return true;
+        }
+      }
+    }
+
+    /** Returns the note's onset, in milliseconds from the start of the file. */
+    public long onset() {
+      return onset;
+    }
+
+    /** Returns the note's duration, in seconds. */
+    public float duration() {
+      return duration;
+    }
+
+    /** Returns the note's channel, from 0 to 15. */
+    public int channel() {
+      return channel;
+    }
+
+    /** Returns the note's MIDI note number. */
+    public int key() {
+      return key;
+    }
+
+    /** Returns the note's velocity, from 1 to 127. */
+    public int velocity() {
+      return velocity;
+    }
+
+    /** Returns the note's velocity as a volume between 0 and 1. */
+    public float volume() {
+      return velocity / MAX_VELOCITY;
+    }
+
+    // Reads the delta time before a track's next event, or marks the track ended.
+
+    private void readDelta(int track) {
+      if (positions[track] >= trackEnds[track]) {
+        ended[track] = true;
+        return;
+      }
+      nextTicks[track] += readVarLen(positions[track], trackEnds[track], varEnd);
+      positions[track] = varEnd[0];
+    }
+
+    // Scans ahead in the note's track for the note off ending the current note, returning its
+    // tick, or the tick of the end of the track if there is none.
+
+    private long findNoteEnd(int track, long tick) {
+      int position = positions[track];
+      int status = running[track];
+      long endTick = nextTicks[track];
+      int end = trackEnds[track];
+      int noteOn = NOTE_ON | channel;
+      int noteOff = NOTE_OFF | channel;
+      boolean first = true;
+      while (position < end) {
+        if (!first) {
+          endTick += readVarLen(position, end, varEnd);
+          position = varEnd[0];
+          if (position >= end) {
+            break;
+          }
+        }
+        first = false;
+        decodeEvent(position, status, end, scanEvent, varEnd);
+        position = scanEvent.end;
+        status = scanEvent.running;
+        if (scanEvent.data1 == key && (scanEvent.status == noteOff
+            || (scanEvent.status == noteOn && scanEvent.data2 == 0))) {
+          return endTick;
+        }
+        if (scanEvent.status == META && scanEvent.data1 == META_END_OF_TRACK) {
+          break;
+        }
+      }
+      return Math.max(endTick, tick);
+    }
+  }
+
+  private MidiFile(File file, MappedByteBuffer map, int[] trackStarts, int[] trackEnds,
+      int division) {
+    this.file = file;
+    this.map = map;
+    this.trackStarts = trackStarts;
+    this.trackEnds = trackEnds;
+    List<long[]> tempos = readTempos();
+    int count = tempos.size() + 1;
+    tempoTicks = new long[count];
+    tempoMillis = new double[count];
+    millisPerTick = new double[count];
+    if (division < 0) {
+      // SMPTE: frames per second in the high byte, negated, and ticks per frame in the low.
+      int framesPerSecond = -(division >> 8);
+      int ticksPerFrame = division & 0xff;
+      Arrays.fill(millisPerTick, MILLISECS_IN_SEC / (framesPerSecond * ticksPerFrame));
+    } else {
+      millisPerTick[0] = DEFAULT_TEMPO / MICROSECS_IN_MILLISEC / division;
+      for (int i = 1; i < count; i++) {
+        long[] tempo = tempos.get(i - 1);
+        tempoTicks[i] = tempo[0];
+        tempoMillis[i] = tempoMillis[i - 1]
+            + (tempoTicks[i] - tempoTicks[i - 1]) * millisPerTick[i - 1];
+        millisPerTick[i] = tempo[1] / MICROSECS_IN_MILLISEC / division;
+      }
+    }
+  }
+
+  /**
+   * Opens a Standard MIDI File.
+   *
+   * @throws IOException  if the file cannot be read or is not a MIDI file
+   */
+  public static MidiFile read(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (map.limit() < HEADER_SIZE || map.getInt(0) != MTHD) {
+        throw new IOException("Not a MIDI file: " + file);
+      }
+      int headerEnd = 8 + map.getInt(4);
+      int trackCount = map.getShort(10) & 0xffff;
+      int division = map.getShort(12);
+      if (division == 0) {
+        throw new IOException("Invalid time division in MIDI file: " + file);
+      }
+      List<int[]> tracks = new ArrayList<int[]>(trackCount);
+      int position = headerEnd;
+      while (position + 8 <= map.limit() && tracks.size() < trackCount) {
+        int id = map.getInt(position);
+        long size = map.getInt(position + 4) & 0xffffffffL;
+        int start = position + 8;
+        // Files cut short keep the tracks, or the part of a track, that they have.
+        int end = (int) Math.min(start + size, map.limit());
+        if (id == MTRK) {
+          tracks.add(new int[] {start, end});
+        }
+        position = end;
+      }
+      int[] trackStarts = new int[tracks.size()];
+      int[] trackEnds = new int[tracks.size()];
+      for (int i = 0; i < tracks.size(); i++) {
+        trackStarts[i] = tracks.get(i)[0];
+        trackEnds[i] = tracks.get(i)[1];
+      }
+      return new MidiFile(file, map, trackStarts, trackEnds, division);
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Truncated MIDI file: " + file);
+    } finally {
+      in.close();
+    }
+  }
+
+  public File file() {
+    return file;
+  }
+
+  /**
+   * Returns the number of tracks in the file.
+   */
+  public int tracks() {
+    return trackStarts.length;
+  }
+
+  /**
+   * Returns a reader positioned before the first note.  Each reader is independent, but must
+   * only be used by one thread at a time.
+   */
+  public NoteReader notes() {
+    return new NoteReader();
+  }
+
+  // Returns the time of a tick, in milliseconds from the start of the file.
+
+  private double tickToMillis(long tick) {
+    int i = tempoTicks.length - 1;
+    while (i > 0 && tempoTicks[i] > tick) {
+      i--;
+    }
+    return tempoMillis[i] + (tick - tempoTicks[i]) * millisPerTick[i];
+  }
+
+  // Walks every track for tempo changes, returning each as its tick and microseconds per
+  // quarter note, in order of tick.
+
+  private List<long[]> readTempos() {
+    List<long[]> tempos = new ArrayList<long[]>();
+    Event event = new Event();
+    int[] varEnd = new int[1];
+    for (int track = 0; track < trackStarts.length; track++) {
+      int position = trackStarts[track];
+      int end = trackEnds[track];
+      int status = 0;
+      long tick = 0;
+      while (position < end) {
+        tick += readVarLen(position, end, varEnd);
+        position = varEnd[0];
+        if (position >= end) {
+          break;
+        }
+        decodeEvent(position, status, end, event, varEnd);
+        position = event.end;
+        status = event.running;
+        if (event.status == META) {
+          if (event.data1 == META_END_OF_TRACK) {
+            break;
+          } else if (event.data1 == META_TEMPO && event.dataLength >= 3
+              && event.dataStart + 3 <= end) {
+            int start = event.dataStart;
+            long tempo = ((map.get(start) & 0xff) << 16) | ((map.get(start + 1) & 0xff) << 8)
+                | (map.get(start + 2) & 0xff);
+            tempos.add(new long[] {tick, tempo});
+          }
+        }
+      }
+    }
+    // Stable, so that of two changes at the same tick the later track's wins.
+    Collections.sort(tempos, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] a, long[] b) {
+        return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+      }
+    });
+    return tempos;
+  }
+
+  // Decodes the event at the given position, with the given running status, into event.
+  // Events running past the end of the track end there.
+
+  private void decodeEvent(int position, int running, int end, Event event, int[] varEnd) {
+    int status = byteAt(position, end);
+    if (status < 0x80) {
+      // Running status: the data bytes follow the delta time directly.
+      status = running;
+    } else {
+      position++;
+      if (status < SYSEX) {
+        running = status;
+      }
+    }
+    event.status = status;
+    event.data1 = 0;
+    event.data2 = 0;
+    event.dataLength = 0;
+    if (status == META) {
+      event.data1 = byteAt(position, end);
+      event.dataLength = (int) readVarLen(position + 1, end, varEnd);
+      event.dataStart = varEnd[0];
+      position = event.dataStart + event.dataLength;
+    } else if (status == SYSEX || status == SYSEX_CONTINUATION) {
+      int length = (int) readVarLen(position, end, varEnd);
+      position = varEnd[0] + length;
+      // System exclusive messages cancel running status.
+      running = 0;
+    } else if (status >= 0x80) {
+      int type = status & 0xf0;
+      event.data1 = byteAt(position, end) & 0x7f;
+      if (type == PROGRAM_CHANGE || type == CHANNEL_PRESSURE) {
+        position += 1;
+      } else {
+        event.data2 = byteAt(position + 1, end) & 0x7f;
+        position += 2;
+      }
+    } else {
+      // A data byte with no running status: skip it.
+      position++;
+    }
+    event.end = Math.min(position, end);
+    event.running = running;
+  }
+
+  private int byteAt(int position, int end) {
+    return position < end ? map.get(position) & 0xff : 0;
+  }
+
+  // Reads a variable-length quantity, leaving the position after it in varEnd[0].
+
+  private long readVarLen(int position, int end, int[] varEnd) {
+    long value = 0;
+    while (position < end) {
+      int b = map.get(position++) & 0xff;
+      value = (value << 7) | (b & 0x7f);
+      if ((b & 0x80) == 0) {
+        break;
+      }
+    }
+    varEnd[0] = position;
+    return value;
+  }
+}
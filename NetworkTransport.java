@@ -0,0 +1,316 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import android.util.Log;
+
+/**
+ * Sends OSC packets to a server across the network over non-blocking UDP or TCP, and passes
+ * what the server sends back to a {@link Receiver}.  Sending only copies the packet into a
+ * batch; a selector thread of the transport's own writes batches out and reads replies, so
+ * senders never wait on the network.
+ *
+ * <p>Packets sent while the selector thread is busy are batched: messages are gathered into
+ * a bundle to be executed immediately, and bundles with the same time tag are merged, up to
+ * what fits in one datagram without fragmenting.  Bundles with different time tags are never
+ * merged, since servers only honour the time tag of the outermost bundle.  Over TCP each
+ * packet is preceded by its size, as scsynth expects.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class NetworkTransport implements OscTransport {
+  /**
+   * Is given each message the server sends, on the transport's thread.
+   */
+  public interface Receiver {
+    void received(Object[] message);
+  }
+
+  // Largest UDP payload that fits in one 1500-byte Ethernet frame.
+  private static final String LOG_TAG = "NetworkTransport";
+  private static final int UDP_BATCH_SIZE = 1472;
+  // scsynth reads packets into a buffer of this size.
+  private static final int TCP_BATCH_SIZE = 8192;
+  private static final int MAX_PACKET_SIZE = 65536;
+  private static final int BUNDLE_HEADER_SIZE = 16;
+  private static final int SIZE_PREFIX = 4;
+
+  private final boolean tcp;
+  private final int batchSize;
+  private final ByteChannel channel;
+  private final Selector selector;
+  private final SelectionKey key;
+  private final Receiver receiver;
+  private final ByteBuffer input = ByteBuffer.allocate(MAX_PACKET_SIZE);
+  // The batch being filled and its time tag, and the packets ready to write, guarded by
+  // batches.
+  private final Deque<ByteBuffer> batches = new ArrayDeque<ByteBuffer>();
+  private ByteBuffer batch;
+  private long batchTag;
+  private long packetsSent;
+  private long packetsWritten;
+  private volatile boolean closed;
+
+  /**
+   * Connects to a server and starts the transport's thread.
+   *
+   * @param tcp  true for TCP, false for UDP
+   * @param receiver  told of each message the server sends, or null to ignore them
+   * @throws IOException  if the server cannot be reached
+   */
+  public NetworkTransport(String host, int port, boolean tcp, Receiver receiver)
+      throws IOException {
+    this.tcp = tcp;
+    this.receiver = receiver;
+    batchSize = tcp ? TCP_BATCH_SIZE : UDP_BATCH_SIZE;
+    InetSocketAddress address = new InetSocketAddress(host, port);
+    if (address.isUnresolved()) {
+      throw new IOException("Unknown host " + host);
+    }
+    SelectableChannel selectable;
+    if (tcp) {
+      SocketChannel socket = SocketChannel.open(address);
+      socket.socket().setTcpNoDelay(true);
+      channel = socket;
+      selectable = socket;
+    } else {
+      DatagramChannel datagram = DatagramChannel.open();
+      datagram.connect(address);
+      channel = datagram;
+      selectable = datagram;
+    }
+    selectable.configureBlocking(false);
+    selector = Selector.open();
+    key = selectable.register(selector, SelectionKey.OP_READ);
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        loop();
+      }
+    }, "OSC network transport");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void send(ByteBuffer packet) throws IOException {
+    int length = packet.remaining();
+    boolean bundle = isBundle(packet);
+    long tag = bundle ? packet.getLong(packet.position() + 8) : OscBundleSender.IMMEDIATELY;
+    // What the packet adds to a batch: a bundle's elements, or a message as an element.
+    int added = bundle ? length - BUNDLE_HEADER_SIZE : SIZE_PREFIX + length;
+    synchronized (batches) {
+      if (closed) {
+        throw new IOException("Transport is closed");
+      }
+      packetsSent++;
+      if (batch != null && (tag != batchTag || batch.remaining() < added)) {
+        finishBatch();
+      }
+      if (BUNDLE_HEADER_SIZE + added > batchSize) {
+        // Too large to batch, so sent on its own.
+        ByteBuffer alone = ByteBuffer.allocate(length + (tcp ? SIZE_PREFIX : 0));
+        if (tcp) {
+          alone.putInt(length);
+        }
+        alone.put(packet);
+        alone.flip();
+        batches.add(alone);
+      } else {
+        if (batch == null) {
+          batch = ByteBuffer.allocate((tcp ? SIZE_PREFIX : 0) + batchSize);
+          if (tcp) {
+            batch.putInt(0);
+          }
+          batch.put(OscBundleSender.BUNDLE_HEADER);
+          batch.putLong(tag);
+          batchTag = tag;
+        }
+        if (bundle) {
+          packet.position(packet.position() + BUNDLE_HEADER_SIZE);
+        } else {
+          batch.putInt(length);
+        }
+        batch.put(packet);
+      }
+    }
+    selector.wakeup();
+  }
+
+  /**
+   * Returns the number of packets sent through the transport.
+   */
+  public long packetsSent() {
+    synchronized (batches) {
+      return packetsSent;
+    }
+  }
+
+  /**
+   * Returns the number of datagrams, or TCP packets, the packets sent were written as.
+   */
+  public long packetsWritten() {
+    synchronized (batches) {
+      return packetsWritten;
+    }
+  }
+
+  /**
+   * Returns whether the transport has been closed, or lost its connection.
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public void close() {
+    synchronized (batches) {
+      closed = true;
+    }
+    selector.wakeup();
+  }
+
+  // Writes batches and reads replies until closed.
+
+  private void loop() {
+    try {
+      while (!closed) {
+        selector.select();
+        selector.selectedKeys().clear();
+        if (key.isValid() && key.isReadable()) {
+          read();
+        }
+        write();
+      }
+      // Send what was queued before closing.
+      write();
+    } catch (IOException e) {
+      if (!closed) {
+        Log.e(LOG_TAG, "Stopped", e);
+      }
+    } finally {
+      closed = true;
+      try {
+        selector.close();
+        channel.close();
+      } catch (IOException e) {
+        // Nothing left to release.
+      }
+    }
+  }
+
+  // Writes out the batch being filled and any waiting, until the channel has no room.
+
+  private void write() throws IOException {
+    synchronized (batches) {
+      if (batch != null) {
+        finishBatch();
+      }
+      while (!batches.isEmpty()) {
+        ByteBuffer next = batches.peek();
+        channel.write(next);
+        if (next.hasRemaining()) {
+          // Wait for room, and write the rest then.
+          key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          return;
+        }
+        batches.poll();
+        packetsWritten++;
+      }
+      key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  // Reads what the server has sent, passing each message to the receiver.
+
+  private void read() throws IOException {
+    if (tcp) {
+      if (channel.read(input) < 0) {
+        throw new IOException("Server closed the connection");
+      }
+      input.flip();
+      while (input.remaining() >= SIZE_PREFIX
+          && input.remaining() >= SIZE_PREFIX + input.getInt(input.position())) {
+        int size = input.getInt();
+        int end = input.position() + size;
+        receive(input, end);
+        input.position(end);
+      }
+      input.compact();
+    } else {
+      while (true) {
+        input.clear();
+        try {
+          if (channel.read(input) <= 0) {
+            break;
+          }
+        } catch (IOException e) {
+          // Nothing is listening at the server's address yet.
+          break;
+        }
+        input.flip();
+        receive(input, input.limit());
+      }
+    }
+  }
+
+  // Passes the messages of the packet ending at the given position to the receiver.
+
+  private void receive(ByteBuffer packet, int end) {
+    if (receiver == null) {
+      return;
+    }
+    int limit = packet.limit();
+    packet.limit(end);
+    try {
+      if (isBundle(packet)) {
+        packet.position(packet.position() + BUNDLE_HEADER_SIZE);
+        while (packet.remaining() >= SIZE_PREFIX) {
+          int elementEnd = packet.position() + SIZE_PREFIX + packet.getInt(packet.position());
+          packet.position(packet.position() + SIZE_PREFIX);
+          receive(packet, elementEnd);
+          packet.position(elementEnd);
+        }
+      } else {
+        receiver.received(OscDecoder.readMessage(packet));
+      }
+    } catch (RuntimeException e) {
+      Log.w(LOG_TAG, "Dropped a malformed packet", e);
+    } finally {
+      packet.limit(limit);
+    }
+  }
+
+  // Queues the batch being filled for writing.  Called with batches locked.
+
+  private void finishBatch() {
+    batch.flip();
+    if (tcp) {
+      batch.putInt(0, batch.limit() - SIZE_PREFIX);
+    }
+    batches.add(batch);
+    batch = null;
+  }
+
+  private static boolean isBundle(ByteBuffer packet) {
+    if (packet.remaining() < BUNDLE_HEADER_SIZE) {
+      return false;
+    }
+    for (int i = 0; i < OscBundleSender.BUNDLE_HEADER.length; i++) {
+      if (packet.get(packet.position() + i) != OscBundleSender.BUNDLE_HEADER[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
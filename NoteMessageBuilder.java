@@ -0,0 +1,400 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the /s_new message that starts a note, carrying all of its controls so that the
+ * synth never runs with the synthdef's defaults.  The envelope and reverb settings are
+ * held by the builder and apply to every note built afterwards.  Control values are all
+ * floats, since integer arguments to /s_new are what older synthdefs choked on.
+ *
+ * <p>Settings can instead be mapped to control buses, one per setting, so that notes read
+ * them from the server: changing a setting is then a single /c_set for the owner of the
+ * buses, which also reaches notes already sounding, and the message for each note stays the
+ * same.
+ *
+ * <p>Messages can be built as arrays for {@code OscMessage}, or written straight into an
+ * {@link OscEncoder} from a template that is only recompiled when the synthdef or the layout
+ * of the message changes.  The note methods taking a {@link SampleKit} are the ones a source
+ * plays through: they pick the kit's sample for the note and free any voice it stole.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class NoteMessageBuilder {
+  /** Value of an envelope setting that leaves the synthdef's default in place. */
+  public static final float UNSET = -1;
+  /** Effect bus of a builder whose notes are not sent to an effect. */
+  public static final int NO_BUS = -1;
+  /** Buffer of a note whose synthdef does not play a sample. */
+  public static final int NO_BUFFER = -1;
+  /** Offset of each setting's bus from the first control bus. */
+  public static final int CONTROL_ATTACK = 0;
+  public static final int CONTROL_DECAY = 1;
+  public static final int CONTROL_SUSTAIN = 2;
+  public static final int CONTROL_RELEASE = 3;
+  public static final int CONTROL_REVERB = 4;
+  /** Number of control buses a builder maps settings to. */
+  public static final int CONTROL_COUNT = 5;
+
+  private static final OscTemplate FREE_TEMPLATE = new OscTemplate(new Object[] {"/n_free", 0});
+  // The synthdefs take the sustain level as a percentage divided by this, as the component has
+  // always sent it, and multiply it by 10 to get the fraction of the peak level.
+  private static final float SUSTAIN_CONTROL_SCALE = 1000;
+  // Address, synthdef, ID, add action and target, followed by up to ten control/value pairs.
+  private static final int MAX_LENGTH = 5 + 2 * 10;
+  // Indices of the values that change with every note.
+  private static final int NODE_ID = 2;
+  private static final int FREQUENCY = 6;
+  private static final int DURATION = 8;
+  private static final int VOLUME = 10;
+  private static final int BUFFER = 12;
+
+  // A template for one synthdef, with or without a buffer, compiled from the settings at one
+  // version.
+  private static final class Compiled {
+    final String synthDef;
+    final boolean sampled;
+    final int version;
+    final OscTemplate template;
+
+    Compiled(String synthDef, boolean sampled, int version, OscTemplate template) {
+      this.synthDef = synthDef;
+      this.sampled = sampled;
+      this.version = version;
+      this.template = template;
+    }
+  }
+
+  private final int addAction;
+  private final int target;
+  private volatile float attack = UNSET;
+  private volatile float decay = UNSET;
+  private volatile float sustain = UNSET;
+  private volatile float release = UNSET;
+  private volatile float reverb;
+  private volatile int effectBus = NO_BUS;
+  // Arguments mapping each setting to its control bus, or null if settings are sent as values.
+  private final String[] busMappings;
+  // Incremented by every change to the layout of note messages, invalidating the compiled
+  // template.  Without control buses, every change of a setting's value changes the layout.
+  // Settings may be changed from more than one thread, so no increment can be lost.
+  private final AtomicInteger version = new AtomicInteger();
+  private volatile Compiled compiled;
+
+  /**
+   * Creates a builder for notes added to the server with the given add action and target.
+   */
+  public NoteMessageBuilder(int addAction, int target) {
+    this(addAction, target, NO_BUS);
+  }
+
+  /**
+   * Creates a builder for notes added to the server with the given add action and target,
+   * whose settings are read from the {@link #CONTROL_COUNT} control buses starting at the
+   * given one.  The owner is responsible for setting the buses.
+   *
+   * @param firstControlBus  first control bus, or {@link #NO_BUS} to send values with notes
+   */
+  public NoteMessageBuilder(int addAction, int target, int firstControlBus) {
+    this.addAction = addAction;
+    this.target = target;
+    if (firstControlBus == NO_BUS) {
+      busMappings = null;
+    } else {
+      busMappings = new String[CONTROL_COUNT];
+      for (int i = 0; i < CONTROL_COUNT; i++) {
+        busMappings[i] = "c" + (firstControlBus + i);
+      }
+    }
+  }
+
+  /** Sets the attack in seconds, or {@link #UNSET}. */
+  public void setAttack(float attack) {
+    boolean relayout = (this.attack == UNSET) != (attack == UNSET);
+    this.attack = attack;
+    settingChanged(relayout);
+  }
+
+  /** Sets the decay in seconds, or {@link #UNSET}. */
+  public void setDecay(float decay) {
+    boolean relayout = (this.decay == UNSET) != (decay == UNSET);
+    this.decay = decay;
+    settingChanged(relayout);
+  }
+
+  /** Sets the sustain control, as returned by {@link #sustainControl}, or {@link #UNSET}. */
+  public void setSustain(float sustain) {
+    boolean relayout = (this.sustain == UNSET) != (sustain == UNSET);
+    this.sustain = sustain;
+    settingChanged(relayout);
+  }
+
+  /** Sets the release in seconds, or {@link #UNSET}. */
+  public void setRelease(float release) {
+    boolean relayout = (this.release == UNSET) != (release == UNSET);
+    this.release = release;
+    settingChanged(relayout);
+  }
+
+  /**
+   * Sets the fraction of each note sent to an effect bus, or makes notes dry if the bus is
+   * {@link #NO_BUS}.
+   */
+  public void setReverb(float reverb, int effectBus) {
+    boolean relayout = this.effectBus != effectBus;
+    this.effectBus = effectBus;
+    this.reverb = effectBus == NO_BUS ? 0 : reverb;
+    settingChanged(relayout);
+  }
+
+  /**
+   * Builds the message starting a note.
+   *
+   * @param synthDef  name of the note's synthdef
+   * @param nodeId  node ID for the note's synth
+   * @param frequency  frequency in hertz
+   * @param duration  duration in seconds
+   * @param volume  volume between 0 and 1
+   * @return  message in the layout OscMessage takes
+   */
+  public Object[] build(String synthDef, int nodeId, float frequency, float duration,
+      float volume) {
+    return build(synthDef, NO_BUFFER, nodeId, frequency, duration, volume);
+  }
+
+  /**
+   * Builds the message starting a note that plays a sample.
+   *
+   * @param synthDef  name of the note's synthdef, which must have a "buf" control
+   * @param buffer  buffer holding the sample, or {@link #NO_BUFFER}
+   * @param nodeId  node ID for the note's synth
+   * @param frequency  frequency in hertz
+   * @param duration  duration in seconds
+   * @param volume  volume between 0 and 1
+   * @return  message in the layout OscMessage takes
+   */
+  public Object[] build(String synthDef, int buffer, int nodeId, float frequency,
+      float duration, float volume) {
+    return build(synthDef, buffer, nodeId, addAction, target, frequency, duration, volume);
+  }
+
+  /**
+   * Builds the message starting a note that plays a sample, added to the server relative to
+   * the given node instead of the builder's target.
+   *
+   * @param synthDef  name of the note's synthdef, which must have a "buf" control
+   * @param buffer  buffer holding the sample, or {@link #NO_BUFFER}
+   * @param nodeId  node ID for the note's synth
+   * @param addAction  how the synth is added relative to the target
+   * @param target  node ID of the node the synth is added relative to
+   * @param frequency  frequency in hertz
+   * @param duration  duration in seconds
+   * @param volume  volume between 0 and 1
+   * @return  message in the layout OscMessage takes
+   */
+  public Object[] build(String synthDef, int buffer, int nodeId, int addAction, int target,
+      float frequency, float duration, float volume) {
+    Object[] note = new Object[MAX_LENGTH];
+    int length = 0;
+    note[length++] = "/s_new";
+    note[length++] = synthDef;
+    note[length++] = nodeId;
+    note[length++] = addAction;
+    note[length++] = target;
+    note[length++] = "freq";
+    note[length++] = frequency;
+    note[length++] = "duration";
+    note[length++] = duration;
+    note[length++] = "mul";
+    note[length++] = volume;
+    if (buffer != NO_BUFFER) {
+      note[length++] = "buf";
+      note[length++] = (float) buffer;
+    }
+    float attack = this.attack;
+    if (attack != UNSET) {
+      note[length++] = "attack";
+      note[length++] = control(CONTROL_ATTACK, attack);
+    }
+    float decay = this.decay;
+    if (decay != UNSET) {
+      note[length++] = "decay";
+      note[length++] = control(CONTROL_DECAY, decay);
+    }
+    float sustain = this.sustain;
+    if (sustain != UNSET) {
+      note[length++] = "sustain";
+      note[length++] = control(CONTROL_SUSTAIN, sustain);
+    }
+    float release = this.release;
+    if (release != UNSET) {
+      note[length++] = "release";
+      note[length++] = control(CONTROL_RELEASE, release);
+    }
+    int effectBus = this.effectBus;
+    note[length++] = "reverb";
+    note[length++] = effectBus != NO_BUS ? control(CONTROL_REVERB, reverb) : (Object) 0f;
+    if (effectBus != NO_BUS) {
+      note[length++] = "effectBus";
+      note[length++] = (float) effectBus;
+    }
+    if (length < note.length) {
+      Object[] trimmed = new Object[length];
+      System.arraycopy(note, 0, trimmed, 0, length);
+      note = trimmed;
+    }
+    return note;
+  }
+
+  /**
+   * Builds the message starting a note of a source, played by the sample whose root is
+   * nearest its pitch if the source is sample-based.
+   *
+   * @param synthDef  name of the source's synthdef
+   * @param kit  the source's samples, or null if it plays a waveform
+   * @param nodeId  node ID for the note's synth
+   * @param frequency  frequency in hertz
+   * @param duration  duration in seconds
+   * @param volume  volume between 0 and 1
+   * @return  message in the layout OscMessage takes
+   */
+  public Object[] buildNote(String synthDef, SampleKit kit, int nodeId, float frequency,
+      float duration, float volume) {
+    int zone = kit != null ? kit.nearest(frequency) : -1;
+    if (zone >= 0) {
+      return build(synthDef, kit.sample(zone).buffer(), nodeId,
+          sampleFrequency(kit, zone, frequency), duration, volume);
+    }
+    return build(synthDef, nodeId, frequency, duration, volume);
+  }
+
+  /**
+   * Appends the messages starting a note of a source to a bundle being built, first freeing
+   * the voice it stole, if any.
+   *
+   * @param messages  the bundle's messages
+   * @param count  number of messages in the bundle so far
+   * @param stolenId  node ID of the voice the note stole, or {@link VoiceAllocator#NONE}
+   * @return  the new number of messages
+   */
+  public int addNote(Object[][] messages, int count, String synthDef, SampleKit kit,
+      int nodeId, int stolenId, float frequency, float duration, float volume) {
+    if (stolenId != VoiceAllocator.NONE) {
+      messages[count++] = freeMessage(stolenId);
+    }
+    messages[count++] = buildNote(synthDef, kit, nodeId, frequency, duration, volume);
+    return count;
+  }
+
+  /**
+   * Returns the frequency that makes {@link SampleSynthDef} play a kit's sample at the given
+   * pitch, transposing it from its root.
+   */
+  public static float sampleFrequency(SampleKit kit, int zone, float frequency) {
+    return frequency * SampleSynthDef.ROOT_FREQUENCY / kit.root(zone);
+  }
+
+  /**
+   * Returns the sustain control the synthdefs take for a sustain level given as a percentage
+   * of the peak level.
+   */
+  public static float sustainControl(float percentage) {
+    return percentage / SUSTAIN_CONTROL_SCALE;
+  }
+
+  /**
+   * Returns the message freeing a note, such as one whose voice has been stolen.
+   */
+  public static Object[] freeMessage(int nodeId) {
+    return new Object[] {"/n_free", nodeId};
+  }
+
+  /**
+   * Adds the message freeing a note to the bundle being encoded.
+   *
+   * @throws IOException  if the encoder had to send a full packet and the send failed
+   */
+  public static void writeFree(OscEncoder encoder, int nodeId) throws IOException {
+    int message = encoder.add(FREE_TEMPLATE);
+    encoder.setInt(FREE_TEMPLATE, message, 1, nodeId);
+  }
+
+  /**
+   * Adds the message starting a note to the bundle being encoded.  Nothing is allocated
+   * unless the settings or synthdef have changed since the last note.
+   *
+   * @throws IOException  if the encoder had to send a full packet and the send failed
+   */
+  public void write(OscEncoder encoder, String synthDef, int nodeId, float frequency,
+      float duration, float volume) throws IOException {
+    write(encoder, synthDef, NO_BUFFER, nodeId, frequency, duration, volume);
+  }
+
+  /**
+   * Adds the message starting a note that plays a sample to the bundle being encoded.  The
+   * buffer is patched like the other note values, so changing samples does not recompile the
+   * template.
+   *
+   * @throws IOException  if the encoder had to send a full packet and the send failed
+   */
+  public void write(OscEncoder encoder, String synthDef, int buffer, int nodeId,
+      float frequency, float duration, float volume) throws IOException {
+    OscTemplate template = template(synthDef, buffer != NO_BUFFER);
+    int message = encoder.add(template);
+    encoder.setInt(template, message, NODE_ID, nodeId);
+    encoder.setFloat(template, message, FREQUENCY, frequency);
+    encoder.setFloat(template, message, DURATION, duration);
+    encoder.setFloat(template, message, VOLUME, volume);
+    if (buffer != NO_BUFFER) {
+      encoder.setFloat(template, message, BUFFER, buffer);
+    }
+  }
+
+  /**
+   * Adds the messages starting a note of a source to the bundle being encoded, first freeing
+   * the voice it stole, if any.  The note is played by the sample whose root is nearest its
+   * pitch if the source is sample-based.
+   *
+   * @param kit  the source's samples, or null if it plays a waveform
+   * @param stolenId  node ID of the voice the note stole, or {@link VoiceAllocator#NONE}
+   * @throws IOException  if the encoder had to send a full packet and the send failed
+   */
+  public void writeNote(OscEncoder encoder, String synthDef, SampleKit kit, int nodeId,
+      int stolenId, float frequency, float duration, float volume) throws IOException {
+    if (stolenId != VoiceAllocator.NONE) {
+      writeFree(encoder, stolenId);
+    }
+    int zone = kit != null ? kit.nearest(frequency) : -1;
+    if (zone >= 0) {
+      write(encoder, synthDef, kit.sample(zone).buffer(), nodeId,
+          sampleFrequency(kit, zone, frequency), duration, volume);
+    } else {
+      write(encoder, synthDef, nodeId, frequency, duration, volume);
+    }
+  }
+
+  // Returns the argument giving a setting to a note: its bus mapping, or its value.
+
+  private Object control(int which, float value) {
+    return busMappings != null ? busMappings[which] : (Object) value;
+  }
+
+  private void settingChanged(boolean relayout) {
+    if (relayout || busMappings == null) {
+      version.incrementAndGet();
+    }
+  }
+
+  private OscTemplate template(String synthDef, boolean sampled) {
+    Compiled compiled = this.compiled;
+    int version = this.version.get();
+    if (compiled == null || compiled.version != version || compiled.sampled != sampled
+        || !compiled.synthDef.equals(synthDef)) {
+      compiled = new Compiled(synthDef, sampled, version, new OscTemplate(
+          build(synthDef, sampled ? 0 : NO_BUFFER, 0, 0, 0, 0)));
+      this.compiled = compiled;
+    }
+    return compiled.template;
+  }
+}
@@ -0,0 +1,181 @@
+package com.google.appinventor.components.runtime.util;
+
+/**
+ * Parses the note lists accepted by the Instrument component's Play function, in either the
+ * note-letter format (name, octave, [duration], [volume]) or the frequency format
+ * (frequency, [duration], [volume]).  Parsing writes into a caller-supplied array and
+ * allocates nothing unless the note is invalid.
+ *
+ * <p>A parser is not thread safe; each thread should use its own.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class NoteParser {
+  /** Index of the frequency, in hertz, in parsed note parameters. */
+  public static final int FREQUENCY = 0;
+  /** Index of the duration, in seconds, in parsed note parameters. */
+  public static final int DURATION = 1;
+  /** Index of the volume, between 0 and 1, in parsed note parameters. */
+  public static final int VOLUME = 2;
+  /** Number of parsed note parameters. */
+  public static final int PARAM_COUNT = 3;
+
+  private static final int DEFAULT_OCTAVE = 4;
+  private static final int PERCENTAGE_MAX = 100;
+  private static final int MILLISECS_IN_SEC = 1000;
+
+  // Error messages
+  private static final String NULL_POINTER_ERROR_MSG = "Canceling Play Operation: "
+      + "Null Pointer Exception - "
+      + "This may be from looking up a non existent key in a map.\n";
+  private static final String CLASS_CAST_ERROR_MSG = "Canceling Play Operation: "
+      + "Instrument.Play received a list with elements of unexpected type.\n";
+  private static final String NUMBER_FORMAT_ERROR_MSG = "Skipped remaining list elements: "
+      + "Expected a String argument containing a number, but was unable to convert. "
+      + "If a non-numeric String was intended, the String may be formatted incorrectly.\n";
+  private static final String FREQUENCY_FORMAT_ERROR_MSG = "Canceling Play Operation: "
+      + "Expected a frequency, but was unable to convert it to a number.\n";
+  private static final String NO_OCTAVE_ERROR_MSG =
+      "Canceling Play Operation: No octave supplied.";
+
+  private PitchTable pitchTable = PitchTable.CONCERT;
+  private String error;
+
+  /**
+   * Returns the table note names are tuned with.
+   */
+  public PitchTable pitchTable() {
+    return pitchTable;
+  }
+
+  /**
+   * Sets the table note names are tuned with.
+   */
+  public void setPitchTable(PitchTable pitchTable) {
+    this.pitchTable = pitchTable;
+  }
+
+  /**
+   * Parses a note starting at the given index of the array.  Duration (milliseconds) and
+   * volume (percent) take the given defaults when not supplied.  On success, fills result
+   * with the frequency in hertz, duration in seconds and volume between 0 and 1.
+   *
+   * <p>If something was wrong with the note, {@link #error} describes it afterwards.  A note
+   * can be played despite an error when only its optional arguments were bad, in which case
+   * they take their defaults.
+   *
+   * @param note  the note's arguments
+   * @param start  index of the note's first argument
+   * @param defaultDuration  duration in milliseconds if none is given
+   * @param defaultVolume  volume as a percentage if none is given
+   * @param result  array of at least {@link #PARAM_COUNT} elements to fill
+   * @return  true if the note can be played
+   */
+  public boolean parse(Object[] note, int start, float defaultDuration, float defaultVolume,
+      float[] result) {
+    error = null;
+    int length = note.length - start;
+    // SuperCollider requires arguments to be floats.
+    float frequency;
+    // Default values
+    int octave = DEFAULT_OCTAVE;
+    float duration = defaultDuration;
+    float volume = defaultVolume;
+
+    // Determine format of input list
+    try {
+      int pitchClass = note[start] instanceof String ?
+          PitchTable.pitchClass((String) note[start]) : PitchTable.NO_NOTE;
+      if (pitchClass != PitchTable.NO_NOTE) {
+        if (length < 2) {
+          error = NO_OCTAVE_ERROR_MSG;
+          return false;
+        }
+        try {
+          octave = parseInt(note[start + 1]);
+          if (length >= 3) {
+            duration = parseFloat(note[start + 2]);
+            if (length >= 4) {
+              volume = parseFloat(note[start + 3]);
+              if (length > 4) {
+                error = "Expected a 4 element list but received "
+                    + length  + " elements. Extra elements will be ignored.";
+              }
+            }
+          }
+        } catch (NumberFormatException e) { // If optional args fail, play with defaults.
+          error = NUMBER_FORMAT_ERROR_MSG + e.toString();
+        }
+        frequency = pitchTable.frequency(pitchClass, octave);
+      } else { // Frequency format
+        try {
+          frequency = parseFloat(note[start]);
+        } catch (NumberFormatException e) {
+          error = FREQUENCY_FORMAT_ERROR_MSG + e.toString();
+          return false;
+        }
+        try {
+          if (length >= 2) {
+            duration = parseFloat(note[start + 1]);
+            if (length >= 3) {
+              volume = parseFloat(note[start + 2]);
+              if (length > 3) {
+                error = "Expected a 3 element list but received "
+                    + length  + " elements. Extra elements will be ignored.";
+              }
+            }
+          }
+        } catch (NumberFormatException e) { // If optional args fail, play with defaults.
+          error = NUMBER_FORMAT_ERROR_MSG + e.toString();
+        }
+      }
+    } catch (ClassCastException e) {
+      error = CLASS_CAST_ERROR_MSG + e.toString();
+      return false;
+    } catch (NullPointerException e) {
+      error = NULL_POINTER_ERROR_MSG + e.toString();
+      return false;
+    }
+    // Adjust argument units for SuperCollider
+    result[FREQUENCY] = frequency;
+    result[DURATION] = duration / MILLISECS_IN_SEC;
+    result[VOLUME] = volume / PERCENTAGE_MAX;
+    return true;
+  }
+
+  /**
+   * Returns a description of what was wrong with the last note parsed, or null if nothing
+   * was.
+   */
+  public String error() {
+    return error;
+  }
+
+  /**
+   * Takes a String or number, and returns the float value.
+   *
+   * @throws ClassCastException  if the argument is neither
+   * @throws NumberFormatException  if the argument is a non-numerical String
+   */
+  public static float parseFloat(Object number) {
+    if (number instanceof String) {
+      return Float.parseFloat((String) number);
+    } else {
+      return ((Number) number).floatValue();
+    }
+  }
+
+  /**
+   * Takes a String or number, and returns the int value.
+   *
+   * @throws ClassCastException  if the argument is neither
+   * @throws NumberFormatException  if the argument is a non-numerical String
+   */
+  public static int parseInt(Object number) {
+    if (number instanceof String) {
+      return Integer.parseInt((String) number);
+    } else {
+      return ((Number) number).intValue();
+    }
+  }
+}
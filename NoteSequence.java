@@ -0,0 +1,142 @@
+package com.google.appinventor.components.runtime.util;
+
+/**
+ * A list of notes ordered by onset, stored in parallel primitive arrays.  Onsets are
+ * milliseconds from the start of the sequence; durations are seconds and volumes are
+ * fractions of full volume, the units SuperCollider expects.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class NoteSequence {
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final float MILLISECS_IN_SEC = 1000;
+
+  private long[] onsets;
+  private float[] frequencies;
+  private float[] durations;
+  private float[] volumes;
+  private int size;
+  // Length set with setLength, or -1 for the end of the last note.
+  private long length = -1;
+
+  /**
+   * Creates an empty sequence with room for the given number of notes.
+   */
+  public NoteSequence(int capacity) {
+    capacity = Math.max(capacity, 1);
+    onsets = new long[capacity];
+    frequencies = new float[capacity];
+    durations = new float[capacity];
+    volumes = new float[capacity];
+  }
+
+  public NoteSequence() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Adds a note, keeping the sequence ordered by onset.  Notes with equal onsets keep
+   * the order they were added in.
+   *
+   * @param onset  milliseconds from the start of the sequence
+   * @param frequency  frequency in hertz
+   * @param duration  duration in seconds
+   * @param volume  volume between 0 and 1
+   */
+  public void add(long onset, float frequency, float duration, float volume) {
+    if (size == onsets.length) {
+      grow();
+    }
+    int i = size;
+    while (i > 0 && onsets[i - 1] > onset) {
+      onsets[i] = onsets[i - 1];
+      frequencies[i] = frequencies[i - 1];
+      durations[i] = durations[i - 1];
+      volumes[i] = volumes[i - 1];
+      i--;
+    }
+    onsets[i] = onset;
+    frequencies[i] = frequency;
+    durations[i] = duration;
+    volumes[i] = volume;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Removes every note, keeping the room allocated for them.
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Sets the length of the sequence in milliseconds, which may run past the end of its last
+   * note, as when a melody ends with a rest.
+   */
+  public void setLength(long length) {
+    this.length = length;
+  }
+
+  /**
+   * Returns the length of the sequence in milliseconds: the length set with
+   * {@link #setLength}, or else the time its last note ends.
+   */
+  public long length() {
+    if (length >= 0) {
+      return length;
+    }
+    long end = 0;
+    for (int i = 0; i < size; i++) {
+      end = Math.max(end, onsets[i] + (long) (durations[i] * MILLISECS_IN_SEC));
+    }
+    return end;
+  }
+
+  public long onset(int index) {
+    return onsets[index];
+  }
+
+  /**
+   * Returns the index after the last of the notes starting with the given one that share its
+   * onset, which are started together.
+   */
+  public int groupEnd(int from) {
+    int end = from + 1;
+    while (end < size && onsets[end] == onsets[from]) {
+      end++;
+    }
+    return end;
+  }
+
+  public float frequency(int index) {
+    return frequencies[index];
+  }
+
+  public float duration(int index) {
+    return durations[index];
+  }
+
+  public float volume(int index) {
+    return volumes[index];
+  }
+
+  private void grow() {
+    int capacity = onsets.length * 2;
+    long[] newOnsets = new long[capacity];
+    float[] newFrequencies = new float[capacity];
+    float[] newDurations = new float[capacity];
+    float[] newVolumes = new float[capacity];
+    System.arraycopy(onsets, 0, newOnsets, 0, size);
+    System.arraycopy(frequencies, 0, newFrequencies, 0, size);
+    System.arraycopy(durations, 0, newDurations, 0, size);
+    System.arraycopy(volumes, 0, newVolumes, 0, size);
+    onsets = newOnsets;
+    frequencies = newFrequencies;
+    durations = newDurations;
+    volumes = newVolumes;
+  }
+}
@@ -0,0 +1,133 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders scores saved by the Instrument component to WAV files with scsynth's non-realtime
+ * mode, which runs without an audio device and as fast as the machine allows.  It is meant
+ * for batch jobs on a desktop or server, such as generating previews and test fixtures:
+ *
+ * <pre>
+ * java com.google.appinventor.components.runtime.util.OfflineRenderer score.osc out.wav
+ * </pre>
+ *
+ * <p>The scsynth executable is taken from the SCSYNTH environment variable, or found on the
+ * path, and its UGen plugins from SC_PLUGIN_PATH if that is set.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class OfflineRenderer {
+  /** Sample rate of rendered files unless another is set, in hertz. */
+  public static final int DEFAULT_SAMPLE_RATE = 44100;
+  /** Number of channels in rendered files unless another number is set. */
+  public static final int DEFAULT_CHANNELS = 2;
+
+  private static final String NO_INPUT_FILE = "_";
+  private static final String HEADER_FORMAT = "WAV";
+  private static final String SAMPLE_FORMAT = "int16";
+  private static final int COPY_BUFFER_SIZE = 4096;
+
+  private final String scsynth;
+  private String pluginPath;
+  private int sampleRate = DEFAULT_SAMPLE_RATE;
+  private int channels = DEFAULT_CHANNELS;
+
+  /**
+   * Creates a renderer that runs the given scsynth executable.
+   */
+  public OfflineRenderer(String scsynth) {
+    this.scsynth = scsynth;
+  }
+
+  /** Sets the directories scsynth loads UGen plugins from, or null for its default. */
+  public void setPluginPath(String pluginPath) {
+    this.pluginPath = pluginPath;
+  }
+
+  /** Sets the sample rate of rendered files, in hertz. */
+  public void setSampleRate(int sampleRate) {
+    this.sampleRate = sampleRate;
+  }
+
+  /** Sets the number of channels in rendered files. */
+  public void setChannels(int channels) {
+    this.channels = channels;
+  }
+
+  /**
+   * Renders a score to a WAV file, returning when the file is complete.  scsynth's output is
+   * copied to the given stream.
+   *
+   * @param score  score file written by {@link OscScore#write}
+   * @param wav  file to render to, replacing any existing file
+   * @param log  destination for scsynth's output, or null to discard it
+   * @throws IOException  if scsynth cannot be run or fails
+   */
+  public void render(File score, File wav, OutputStream log) throws IOException {
+    List<String> command = new ArrayList<String>();
+    command.add(scsynth);
+    command.add("-N");
+    command.add(score.getPath());
+    command.add(NO_INPUT_FILE);
+    command.add(wav.getPath());
+    command.add(Integer.toString(sampleRate));
+    command.add(HEADER_FORMAT);
+    command.add(SAMPLE_FORMAT);
+    command.add("-o");
+    command.add(Integer.toString(channels));
+    if (pluginPath != null) {
+      command.add("-U");
+      command.add(pluginPath);
+    }
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    InputStream output = process.getInputStream();
+    try {
+      // scsynth blocks if its output is not read.
+      byte[] buf = new byte[COPY_BUFFER_SIZE];
+      int bytesRead;
+      while ((bytesRead = output.read(buf)) != -1) {
+        if (log != null) {
+          log.write(buf, 0, bytesRead);
+        }
+      }
+      int status = process.waitFor();
+      if (status != 0) {
+        throw new IOException("scsynth exited with status " + status + " rendering " + score);
+      }
+    } catch (InterruptedException e) {
+      process.destroy();
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted rendering " + score);
+    } finally {
+      output.close();
+    }
+  }
+
+  /**
+   * Renders a score from the command line: {@code score wav [sampleRate [channels]]}.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2 || args.length > 4) {
+      System.err.println("Usage: OfflineRenderer score wav [sampleRate [channels]]");
+      System.exit(2);
+    }
+    String scsynth = System.getenv("SCSYNTH");
+    OfflineRenderer renderer = new OfflineRenderer(scsynth != null ? scsynth : "scsynth");
+    renderer.setPluginPath(System.getenv("SC_PLUGIN_PATH"));
+    if (args.length >= 3) {
+      renderer.setSampleRate(Integer.parseInt(args[2]));
+    }
+    if (args.length >= 4) {
+      renderer.setChannels(Integer.parseInt(args[3]));
+    }
+    long start = System.nanoTime();
+    renderer.render(new File(args[0]), new File(args[1]), System.err);
+    System.err.println("Rendered " + args[1] + " in "
+        + (System.nanoTime() - start) / 1000000 + " ms");
+  }
+}
@@ -0,0 +1,216 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends timestamped OSC bundles to a SuperCollider server, over UDP or through an
+ * {@link OscTransport}, so that the server rather than the sending thread decides exactly
+ * when each message takes effect.
+ * Bundles are encoded into a single reused buffer; messages are arrays in the same
+ * layout that {@code OscMessage} takes (an address followed by String, Integer and
+ * Float arguments), with byte arrays sent as blobs.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class OscBundleSender {
+  /** OSC time tag meaning "as soon as the bundle arrives". */
+  public static final long IMMEDIATELY = 1;
+
+  private static final long SECONDS_FROM_1900_TO_1970 = 2208988800L;
+  private static final int MILLISECS_IN_SEC = 1000;
+  // scsynth reads UDP packets into a buffer of this size.
+  private static final int MAX_PACKET_SIZE = 8192;
+  static final byte[] BUNDLE_HEADER = {'#', 'b', 'u', 'n', 'd', 'l', 'e', 0};
+
+  private final OscTransport transport;
+  private volatile OscCapture capture;
+  private final ByteBuffer packet = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+
+  /**
+   * Opens a sender to the server at the given address.
+   *
+   * @param host  host name or address of the server
+   * @param port  UDP port the server listens on
+   * @throws IOException  if the channel cannot be opened
+   */
+  public OscBundleSender(String host, int port) throws IOException {
+    final DatagramChannel channel = DatagramChannel.open();
+    channel.connect(new InetSocketAddress(host, port));
+    transport = new OscTransport() {
+      @Override
+      public void send(ByteBuffer packet) throws IOException {
+        channel.write(packet);
+      }
+
+      @Override
+      public void close() {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          // Nothing left to release.
+        }
+      }
+    };
+  }
+
+  /**
+   * Creates a sender sending through the given transport.
+   */
+  public OscBundleSender(OscTransport transport) {
+    this.transport = transport;
+  }
+
+  /**
+   * Converts a time in milliseconds since the epoch to an OSC (NTP format) time tag.
+   */
+  public static long timeTag(long timeMillis) {
+    long seconds = timeMillis / MILLISECS_IN_SEC + SECONDS_FROM_1900_TO_1970;
+    long fraction = ((timeMillis % MILLISECS_IN_SEC) << 32) / MILLISECS_IN_SEC;
+    return (seconds << 32) | fraction;
+  }
+
+  /**
+   * Sends the first {@code count} messages as a bundle to be executed at the given time.
+   * Messages that do not fit in one packet are carried over into further bundles with the
+   * same time tag.
+   *
+   * @param timeTag  OSC time tag, from {@link #timeTag} or {@link #IMMEDIATELY}
+   * @param messages  messages to bundle
+   * @param count  number of messages to send
+   * @throws IOException  if a message is too large to send or the send fails
+   */
+  public synchronized void send(long timeTag, Object[][] messages, int count)
+      throws IOException {
+    startBundle(timeTag);
+    int inBundle = 0;
+    for (int i = 0; i < count; i++) {
+      int mark = packet.position();
+      try {
+        writeElement(packet, messages[i]);
+        inBundle++;
+      } catch (BufferOverflowException e) {
+        if (inBundle == 0) {
+          throw new IOException("OSC message too large for one packet: " + messages[i][0]);
+        }
+        packet.position(mark);
+        flush();
+        startBundle(timeTag);
+        inBundle = 0;
+        i--; // Retry the message in the new bundle
+      }
+    }
+    if (inBundle > 0) {
+      flush();
+    }
+  }
+
+  /**
+   * Sends a packet already encoded as an OSC bundle or message, from its position to its
+   * limit.
+   *
+   * @throws IOException  if the send fails
+   */
+  public synchronized void send(ByteBuffer encoded) throws IOException {
+    OscCapture capture = this.capture;
+    if (capture != null) {
+      capture.record(encoded);
+    }
+    transport.send(encoded);
+  }
+
+  /**
+   * Sets the capture every packet sent is recorded in, or null to stop recording.
+   */
+  public void setCapture(OscCapture capture) {
+    this.capture = capture;
+  }
+
+  /**
+   * Returns the capture packets are recorded in, or null if they are not recorded.
+   */
+  public OscCapture capture() {
+    return capture;
+  }
+
+  /**
+   * Closes the underlying transport.
+   */
+  public synchronized void close() {
+    transport.close();
+  }
+
+  private void startBundle(long timeTag) {
+    packet.clear();
+    packet.put(BUNDLE_HEADER);
+    packet.putLong(timeTag);
+  }
+
+  private void flush() throws IOException {
+    packet.flip();
+    OscCapture capture = this.capture;
+    if (capture != null) {
+      capture.record(packet);
+    }
+    transport.send(packet);
+  }
+
+  // Writes one bundle element: the message size followed by the message itself.  Throws
+  // BufferOverflowException if the buffer fills up.
+  static void writeElement(ByteBuffer packet, Object[] message) {
+    int sizePosition = packet.position();
+    packet.putInt(0);
+    writeString(packet, (String) message[0]);
+    // Type tags
+    packet.put((byte) ',');
+    for (int i = 1; i < message.length; i++) {
+      Object arg = message[i];
+      if (arg instanceof Integer) {
+        packet.put((byte) 'i');
+      } else if (arg instanceof String) {
+        packet.put((byte) 's');
+      } else if (arg instanceof byte[]) {
+        packet.put((byte) 'b');
+      } else {
+        packet.put((byte) 'f');
+      }
+    }
+    packet.put((byte) 0);
+    pad(packet);
+    // Arguments
+    for (int i = 1; i < message.length; i++) {
+      Object arg = message[i];
+      if (arg instanceof Integer) {
+        packet.putInt((Integer) arg);
+      } else if (arg instanceof String) {
+        writeString(packet, (String) arg);
+      } else if (arg instanceof byte[]) {
+        byte[] blob = (byte[]) arg;
+        packet.putInt(blob.length);
+        packet.put(blob);
+        pad(packet);
+      } else {
+        packet.putFloat(((Number) arg).floatValue());
+      }
+    }
+    packet.putInt(sizePosition, packet.position() - sizePosition - 4);
+  }
+
+  // Writes an OSC string: ASCII characters, a terminating null and padding to 4 bytes.
+  private static void writeString(ByteBuffer packet, String string) {
+    for (int i = 0, length = string.length(); i < length; i++) {
+      packet.put((byte) string.charAt(i));
+    }
+    packet.put((byte) 0);
+    pad(packet);
+  }
+
+  private static void pad(ByteBuffer packet) {
+    while ((packet.position() & 3) != 0) {
+      packet.put((byte) 0);
+    }
+  }
+}
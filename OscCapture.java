@@ -0,0 +1,233 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Records OSC packets sent to a server in a compact binary file, for replaying with
+ * {@link OscReplay}.  The file is appended to through a memory mapping, so recording a packet
+ * is a copy into memory with no system call; the mapping is extended a region at a time.
+ *
+ * <p>The file starts with {@link #MAGIC} and the wall clock time the capture started, in
+ * milliseconds since the epoch.  Each packet follows as the nanoseconds since the capture
+ * started, its size and its bytes, and a packet of size 0 marks the end, so a capture cut
+ * short by a crash can still be read.  Packets are bundles or single messages, as they would
+ * be sent over UDP.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class OscCapture {
+  /** Bytes a capture file starts with. */
+  public static final byte[] MAGIC = {'O', 'S', 'C', 'C', 'A', 'P', '0', '1'};
+  /** Size of the file header: the magic bytes and the start time. */
+  public static final int HEADER_SIZE = 16;
+  /** Size of each packet's header: its time and size. */
+  public static final int RECORD_HEADER_SIZE = 12;
+
+  // The file is mapped this much at a time.
+  private static final String LOG_TAG = "OscCapture";
+  private static final int REGION_SIZE = 1 << 20;
+  private static final int MAX_MESSAGE_SIZE = 65536;
+  private static final int SIZE_PREFIX = 4;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long startNanos;
+  private final ByteBuffer message = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+  private MappedByteBuffer region;
+  // Offset of the mapped region in the file.
+  private long regionStart;
+  private long packets;
+  private boolean closed;
+
+  /**
+   * Starts a capture, replacing the given file.
+   *
+   * @throws IOException  if the file cannot be written
+   */
+  public OscCapture(File path) throws IOException {
+    file = new RandomAccessFile(path, "rw");
+    file.setLength(0);
+    channel = file.getChannel();
+    startNanos = System.nanoTime();
+    map(0, REGION_SIZE);
+    region.put(MAGIC);
+    region.putLong(System.currentTimeMillis());
+  }
+
+  /**
+   * Records a packet from the buffer's position to its limit, leaving the buffer unchanged.
+   */
+  public synchronized void record(ByteBuffer packet) {
+    long nanos = System.nanoTime() - startNanos;
+    int size = packet.remaining();
+    if (closed || size == 0) {
+      return;
+    }
+    try {
+      // Room is kept for the end marker.
+      int needed = RECORD_HEADER_SIZE + size + RECORD_HEADER_SIZE;
+      if (region.remaining() < needed) {
+        map(regionStart + region.position(), Math.max(REGION_SIZE, needed));
+      }
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Capture stopped", e);
+      close();
+      return;
+    }
+    region.putLong(nanos);
+    region.putInt(size);
+    region.put(packet.duplicate());
+    packets++;
+  }
+
+  /**
+   * Records a message in the layout {@code OscMessage} takes, as it would be sent on its own.
+   */
+  public synchronized void record(Object[] message) {
+    if (closed) {
+      return;
+    }
+    this.message.clear();
+    OscBundleSender.writeElement(this.message, message);
+    // A message on its own is not preceded by its size.
+    this.message.flip();
+    this.message.position(SIZE_PREFIX);
+    record(this.message);
+  }
+
+  /**
+   * Returns the number of packets recorded.
+   */
+  public synchronized long packets() {
+    return packets;
+  }
+
+  /**
+   * Ends the capture, cutting the file to the packets recorded.
+   */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    // The mapping is zeroed past the last packet, so the end marker is already there.
+    long end = regionStart + region.position() + RECORD_HEADER_SIZE;
+    region = null;
+    try {
+      channel.truncate(end);
+    } catch (IOException e) {
+      // The rest of the last region is left zeroed, which reads as the end as well.
+    }
+    try {
+      file.close();
+    } catch (IOException e) {
+      // Nothing left to release.
+    }
+  }
+
+  /**
+   * Reads a capture into memory.
+   *
+   * @throws IOException  if the file cannot be read or is not a capture
+   */
+  public static Packets read(File path) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      byte[] magic = new byte[MAGIC.length];
+      if (data.remaining() < HEADER_SIZE) {
+        throw new IOException(path + " is not an OSC capture");
+      }
+      data.get(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException(path + " is not an OSC capture");
+      }
+      long startMillis = data.getLong();
+      int count = 0;
+      long[] times = new long[64];
+      int[] offsets = new int[64];
+      int[] sizes = new int[64];
+      while (data.remaining() >= RECORD_HEADER_SIZE) {
+        long nanos = data.getLong();
+        int size = data.getInt();
+        if (size <= 0 || size > data.remaining()) {
+          break;
+        }
+        if (count == times.length) {
+          times = Arrays.copyOf(times, count * 2);
+          offsets = Arrays.copyOf(offsets, count * 2);
+          sizes = Arrays.copyOf(sizes, count * 2);
+        }
+        times[count] = nanos;
+        offsets[count] = data.position();
+        sizes[count] = size;
+        count++;
+        data.position(data.position() + size);
+      }
+      return new Packets(startMillis, data, Arrays.copyOf(times, count),
+          Arrays.copyOf(offsets, count), Arrays.copyOf(sizes, count));
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * The packets of a capture read back, in the order they were sent.
+   */
+  public static final class Packets {
+    private final long startMillis;
+    private final ByteBuffer data;
+    private final long[] times;
+    private final int[] offsets;
+    private final int[] sizes;
+
+    private Packets(long startMillis, ByteBuffer data, long[] times, int[] offsets,
+        int[] sizes) {
+      this.startMillis = startMillis;
+      this.data = data;
+      this.times = times;
+      this.offsets = offsets;
+      this.sizes = sizes;
+    }
+
+    /** Returns the wall clock time the capture started, in milliseconds since the epoch. */
+    public long startMillis() {
+      return startMillis;
+    }
+
+    /** Returns the number of packets. */
+    public int size() {
+      return times.length;
+    }
+
+    /** Returns the time a packet was sent, in nanoseconds since the capture started. */
+    public long time(int index) {
+      return times[index];
+    }
+
+    /** Returns a read-only view of a packet's bytes. */
+    public ByteBuffer packet(int index) {
+      ByteBuffer packet = data.duplicate();
+      packet.position(offsets[index]);
+      packet.limit(offsets[index] + sizes[index]);
+      return packet.slice();
+    }
+  }
+
+  // Maps the given part of the file to append to, extending the file.  The system writes
+  // mapped pages out itself, so the region before is simply left.
+
+  private void map(long start, int size) throws IOException {
+    region = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+    regionStart = start;
+  }
+}
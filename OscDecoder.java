@@ -0,0 +1,90 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes OSC messages into the argument arrays {@link OscBundleSender} encodes, for reading
+ * what a server sends back and what a server is sent.  Integers, floats, 64-bit integers and
+ * doubles become {@code Integer}, {@code Float}, {@code Long} and {@code Double}; strings and
+ * blobs become {@code String} and {@code byte[]}.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class OscDecoder {
+  /** Address that starts an OSC bundle instead of a message. */
+  public static final String BUNDLE_ADDRESS = "#bundle";
+
+  private OscDecoder() {
+  }
+
+  /**
+   * Reads a message from the buffer's position, leaving the position after it.
+   *
+   * @throws IllegalArgumentException  if the message has an argument type that is not
+   * supported
+   * @throws java.nio.BufferUnderflowException  if the message is truncated
+   */
+  public static Object[] readMessage(ByteBuffer packet) {
+    return readArguments(packet, readString(packet));
+  }
+
+  /**
+   * Reads the type tags and arguments of a message whose address has already been read.
+   *
+   * @throws IllegalArgumentException  if the message has an argument type that is not
+   * supported
+   */
+  public static Object[] readArguments(ByteBuffer packet, String address) {
+    String tags = packet.hasRemaining() ? readString(packet) : ",";
+    Object[] message = new Object[tags.length()];
+    message[0] = address;
+    for (int i = 1; i < tags.length(); i++) {
+      switch (tags.charAt(i)) {
+        case 'i':
+          message[i] = packet.getInt();
+          break;
+        case 'f':
+          message[i] = packet.getFloat();
+          break;
+        case 'h':
+          message[i] = packet.getLong();
+          break;
+        case 'd':
+          message[i] = packet.getDouble();
+          break;
+        case 's':
+          message[i] = readString(packet);
+          break;
+        case 'b':
+          byte[] blob = new byte[packet.getInt()];
+          packet.get(blob);
+          packet.position((packet.position() + 3) & ~3);
+          message[i] = blob;
+          break;
+        default:
+          throw new IllegalArgumentException("Unsupported OSC type " + tags.charAt(i));
+      }
+    }
+    return message;
+  }
+
+  /**
+   * Reads a null-terminated, padded OSC string.
+   */
+  public static String readString(ByteBuffer packet) {
+    int start = packet.position();
+    int end = start;
+    while (packet.get(end) != 0) {
+      end++;
+    }
+    byte[] chars = new byte[end - start];
+    packet.get(chars);
+    packet.position(Math.min((end + 4) & ~3, packet.limit()));
+    try {
+      return new String(chars, "US-ASCII");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes OSC bundles into a reused direct buffer and sends them through an
+ * {@link OscBundleSender}.  Messages written from {@link OscTemplate}s are copied and
+ * patched in place, so steady-state playback allocates nothing.  A bundle that outgrows one
+ * packet is sent and continued in another with the same time tag.
+ *
+ * <p>An encoder is not thread safe; each thread should use its own.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class OscEncoder {
+  // scsynth reads UDP packets into a buffer of this size.
+  private static final int MAX_PACKET_SIZE = 8192;
+
+  private final OscBundleSender sender;
+  private final ByteBuffer packet = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+  private long timeTag;
+  private int inPacket;
+  private int inBundle;
+
+  /**
+   * Creates an encoder sending its bundles through the given sender.
+   */
+  public OscEncoder(OscBundleSender sender) {
+    this.sender = sender;
+  }
+
+  /**
+   * Returns the sender the encoder sends its bundles through.
+   */
+  public OscBundleSender sender() {
+    return sender;
+  }
+
+  /**
+   * Starts a bundle to be executed at the given OSC time, discarding anything not yet sent.
+   */
+  public void startBundle(long timeTag) {
+    this.timeTag = timeTag;
+    inBundle = 0;
+    startPacket();
+  }
+
+  /**
+   * Adds a copy of the template to the bundle.
+   *
+   * @return  handle for patching the message's arguments with {@link #setInt} and
+   * {@link #setFloat}
+   * @throws IOException  if a full packet had to be sent and the send failed
+   */
+  public int add(OscTemplate template) throws IOException {
+    int size = template.size();
+    if (packet.remaining() < size + 4) {
+      if (inPacket == 0) {
+        throw new IOException("OSC message too large for one packet");
+      }
+      flush();
+      startPacket();
+    }
+    packet.putInt(size);
+    inPacket++;
+    inBundle++;
+    return template.write(packet);
+  }
+
+  /**
+   * Sets an Integer argument of a message added with {@link #add}.
+   *
+   * @param template  the message's template
+   * @param message  handle returned by {@link #add}
+   * @param index  index of the argument in the message array the template was made from
+   */
+  public void setInt(OscTemplate template, int message, int index, int value) {
+    template.setInt(packet, message, index, value);
+  }
+
+  /**
+   * Sets a Float argument of a message added with {@link #add}.
+   *
+   * @param template  the message's template
+   * @param message  handle returned by {@link #add}
+   * @param index  index of the argument in the message array the template was made from
+   */
+  public void setFloat(OscTemplate template, int message, int index, float value) {
+    template.setFloat(packet, message, index, value);
+  }
+
+  /**
+   * Sends what remains of the bundle.
+   *
+   * @return  the number of messages in the bundle
+   * @throws IOException  if the send fails
+   */
+  public int send() throws IOException {
+    if (inPacket > 0) {
+      flush();
+      inPacket = 0;
+    }
+    return inBundle;
+  }
+
+  private void startPacket() {
+    packet.clear();
+    packet.put(OscBundleSender.BUNDLE_HEADER);
+    packet.putLong(timeTag);
+    inPacket = 0;
+  }
+
+  private void flush() throws IOException {
+    packet.flip();
+    sender.send(packet);
+  }
+}
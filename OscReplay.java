@@ -0,0 +1,231 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a capture made by {@link OscCapture} to a server, so that the traffic of a real
+ * session can be used to compare transports and engines.  Packets are sent at the times they
+ * were captured, sped up by a given factor, or as fast as possible, and the time tags of
+ * bundles are moved by as much as the packets, so that the server plays them with the same
+ * timing.  Replayed as fast as possible, bundles are executed immediately.
+ *
+ * <p>Each replay reports the throughput and how long each send took and how late it started.
+ * From the command line, the server is also sent /sync after the replay, and the time until
+ * it answers shows how long the server took to work through what it was sent:
+ *
+ * <pre>
+ * java com.google.appinventor.components.runtime.util.OscReplay capture host port
+ *     [udp|tcp|direct [speed|max]]
+ * </pre>
+ *
+ * <p>udp and tcp send through a {@link NetworkTransport}, which batches packets; direct
+ * sends each packet in a datagram of its own, as the Instrument component does to a server
+ * on the device.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class OscReplay {
+  /** Speed for replaying as fast as possible. */
+  public static final float MAX_SPEED = 0;
+
+  private static final int MAX_PACKET_SIZE = 65536;
+  private static final int TIME_TAG_OFFSET = 8;
+  // Waits end this long early, and spin for the rest, since parking overshoots.
+  private static final long SPIN_NANOS = 100000;
+  private static final long SYNC_TIMEOUT_MS = 10000;
+  private static final int SYNC_ID = 0x5eed;
+  private static final double NANOSECS_IN_MILLISEC = 1e6;
+  private static final double NANOSECS_IN_SEC = 1e9;
+
+  /**
+   * Measurements of one replay.
+   */
+  public static final class Report {
+    /** Time each send took. */
+    public final InstrumentStats.Histogram sendTime = new InstrumentStats.Histogram();
+    /** Time each send started after it was due. */
+    public final InstrumentStats.Histogram lag = new InstrumentStats.Histogram();
+    private long packets;
+    private long bytes;
+    private long elapsed;
+
+    /** Returns the number of packets sent. */
+    public long packets() {
+      return packets;
+    }
+
+    /** Returns the number of bytes sent. */
+    public long bytes() {
+      return bytes;
+    }
+
+    /** Returns the time the replay took, in nanoseconds. */
+    public long elapsed() {
+      return elapsed;
+    }
+
+    @Override
+    public String toString() {
+      double seconds = Math.max(elapsed, 1) / NANOSECS_IN_SEC;
+      return String.format("%d packets, %d bytes in %.1f ms: %.0f packets/s, %.0f bytes/s%n"
+          + "send time: mean %.1f us, 99%% %.1f us, max %.1f us%n"
+          + "lag: mean %.3f ms, 99%% %.3f ms, max %.3f ms",
+          packets, bytes, elapsed / NANOSECS_IN_MILLISEC, packets / seconds, bytes / seconds,
+          sendTime.mean() / 1e3, sendTime.percentile(99) / 1e3, sendTime.max() / 1e3,
+          lag.mean() / NANOSECS_IN_MILLISEC, lag.percentile(99) / NANOSECS_IN_MILLISEC,
+          lag.max() / NANOSECS_IN_MILLISEC);
+    }
+  }
+
+  private final OscCapture.Packets packets;
+  private final ByteBuffer packet = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+
+  /**
+   * Creates a replay of the given packets.
+   */
+  public OscReplay(OscCapture.Packets packets) {
+    this.packets = packets;
+  }
+
+  /**
+   * Sends every packet through a transport, returning once the last is sent.
+   *
+   * @param speed  how many times faster than captured to send, or {@link #MAX_SPEED}
+   * @throws IOException  if a send fails
+   */
+  public Report replay(OscTransport transport, float speed) throws IOException {
+    Report report = new Report();
+    long start = System.nanoTime();
+    long captureTag = OscBundleSender.timeTag(packets.startMillis());
+    long replayTag = OscBundleSender.timeTag(System.currentTimeMillis());
+    for (int i = 0; i < packets.size(); i++) {
+      long due = start;
+      if (speed != MAX_SPEED) {
+        due += (long) (packets.time(i) / speed);
+        waitUntil(due);
+      }
+      packet.clear();
+      packet.put(packets.packet(i));
+      packet.flip();
+      if (isBundle(packet)) {
+        long tag = packet.getLong(TIME_TAG_OFFSET);
+        if (speed == MAX_SPEED) {
+          tag = OscBundleSender.IMMEDIATELY;
+        } else if (tag != OscBundleSender.IMMEDIATELY) {
+          tag = replayTag + (long) ((tag - captureTag) / speed);
+        }
+        packet.putLong(TIME_TAG_OFFSET, tag);
+      }
+      int size = packet.remaining();
+      long sent = System.nanoTime();
+      transport.send(packet);
+      long now = System.nanoTime();
+      report.sendTime.record(now - sent);
+      // As fast as possible, every packet is due as soon as the one before is sent.
+      report.lag.record(speed == MAX_SPEED ? 0 : sent - due);
+      report.packets++;
+      report.bytes += size;
+    }
+    report.elapsed = System.nanoTime() - start;
+    return report;
+  }
+
+  private static void waitUntil(long due) {
+    long wait;
+    while ((wait = due - System.nanoTime()) > 0) {
+      if (wait > SPIN_NANOS) {
+        LockSupport.parkNanos(wait - SPIN_NANOS);
+      }
+    }
+  }
+
+  private static boolean isBundle(ByteBuffer packet) {
+    if (packet.remaining() < TIME_TAG_OFFSET + 8) {
+      return false;
+    }
+    for (int i = 0; i < OscBundleSender.BUNDLE_HEADER.length; i++) {
+      if (packet.get(i) != OscBundleSender.BUNDLE_HEADER[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3 || args.length > 5) {
+      System.err.println("Usage: OscReplay capture host port [udp|tcp|direct [speed|max]]");
+      System.exit(2);
+    }
+    OscCapture.Packets packets = OscCapture.read(new File(args[0]));
+    String host = args[1];
+    int port = Integer.parseInt(args[2]);
+    String mode = args.length >= 4 ? args[3] : "udp";
+    float speed = 1;
+    if (args.length >= 5) {
+      speed = "max".equals(args[4]) ? MAX_SPEED : Float.parseFloat(args[4]);
+    }
+    final long[] synced = new long[1];
+    NetworkTransport.Receiver receiver = new NetworkTransport.Receiver() {
+      @Override
+      public void received(Object[] message) {
+        if ("/synced".equals(message[0]) && message.length > 1
+            && ((Number) message[1]).intValue() == SYNC_ID) {
+          synchronized (synced) {
+            synced[0] = System.nanoTime();
+            synced.notifyAll();
+          }
+        }
+      }
+    };
+    OscTransport transport;
+    if ("direct".equals(mode)) {
+      final OscBundleSender sender = new OscBundleSender(host, port);
+      transport = new OscTransport() {
+        @Override
+        public void send(ByteBuffer packet) throws IOException {
+          sender.send(packet);
+        }
+
+        @Override
+        public void close() {
+          sender.close();
+        }
+      };
+    } else if ("udp".equals(mode) || "tcp".equals(mode)) {
+      transport = new NetworkTransport(host, port, "tcp".equals(mode), receiver);
+    } else {
+      System.err.println("Unknown mode " + mode + "; use udp, tcp or direct");
+      System.exit(2);
+      return;
+    }
+    System.err.println("Replaying " + packets.size() + " packets to " + host + ":" + port
+        + " over " + mode + (speed == MAX_SPEED ? " as fast as possible" : " at " + speed + "x"));
+    Report report = new OscReplay(packets).replay(transport, speed);
+    System.out.println(report);
+    if (transport instanceof NetworkTransport) {
+      long sent = System.nanoTime();
+      ByteBuffer sync = ByteBuffer.allocate(MAX_PACKET_SIZE);
+      OscBundleSender.writeElement(sync, new Object[] {"/sync", SYNC_ID});
+      sync.flip();
+      // A message on its own is not preceded by its size.
+      sync.position(4);
+      transport.send(sync);
+      synchronized (synced) {
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MS;
+        while (synced[0] == 0 && System.currentTimeMillis() < deadline) {
+          synced.wait(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        if (synced[0] != 0) {
+          System.out.println(String.format("server synced %.3f ms after the last packet",
+              (synced[0] - sent) / NANOSECS_IN_MILLISEC));
+        } else {
+          System.out.println("server did not answer /sync");
+        }
+      }
+    }
+    transport.close();
+  }
+}
@@ -0,0 +1,142 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A list of timestamped OSC messages that can be written out as a score for scsynth's
+ * non-realtime mode ({@code scsynth -N}), which renders it straight to a sound file as fast
+ * as the machine allows.  Messages use the same layout {@code OscMessage} takes.
+ *
+ * <p>In the score file each bundle is preceded by its length, and time tags count seconds
+ * from the start of the score rather than from 1900.  Messages with the same time share a
+ * bundle.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class OscScore {
+  private static final int INITIAL_BUNDLE_SIZE = 8192;
+  private static final Comparator<Event> BY_TIME = new Comparator<Event>() {
+    @Override
+    public int compare(Event a, Event b) {
+      return Double.compare(a.time, b.time);
+    }
+  };
+
+  private static final class Event {
+    final double time;
+    final Object[] message;
+
+    Event(double time, Object[] message) {
+      this.time = time;
+      this.message = message;
+    }
+  }
+
+  private final List<Event> events = new ArrayList<Event>();
+  private double endTime;
+
+  /**
+   * Adds a message to be executed the given number of seconds into the score.  Messages at
+   * the same time are executed in the order they were added.
+   */
+  public synchronized void add(double time, Object[] message) {
+    time = Math.max(time, 0);
+    events.add(new Event(time, message));
+    endTime = Math.max(endTime, time);
+  }
+
+  /**
+   * Makes the score last at least until the given time in seconds, so that sound started
+   * earlier has time to die away.
+   */
+  public synchronized void extendTo(double time) {
+    endTime = Math.max(endTime, time);
+  }
+
+  /**
+   * Returns the number of messages in the score.
+   */
+  public synchronized int size() {
+    return events.size();
+  }
+
+  /**
+   * Returns the length of the score in seconds.
+   */
+  public synchronized double duration() {
+    return endTime;
+  }
+
+  /**
+   * Writes the score in the format scsynth's non-realtime mode reads.  A final empty bundle
+   * marks the end of the score, since rendering stops at the last bundle.
+   *
+   * @param file  file to write, replacing any existing file
+   * @throws IOException  if the file cannot be written
+   */
+  public synchronized void write(File file) throws IOException {
+    List<Event> sorted = new ArrayList<Event>(events);
+    // The sort is stable, so messages at the same time keep their order.
+    Collections.sort(sorted, BY_TIME);
+    FileChannel out = new FileOutputStream(file).getChannel();
+    try {
+      ByteBuffer bundle = ByteBuffer.allocate(INITIAL_BUNDLE_SIZE);
+      int start = 0;
+      while (start < sorted.size()) {
+        double time = sorted.get(start).time;
+        int end = start + 1;
+        while (end < sorted.size() && sorted.get(end).time == time) {
+          end++;
+        }
+        bundle = writeBundle(out, bundle, time, sorted.subList(start, end));
+        start = end;
+      }
+      writeBundle(out, bundle, endTime, Collections.<Event>emptyList());
+    } finally {
+      out.close();
+    }
+  }
+
+  // Writes one length-prefixed bundle, growing the buffer if the bundle does not fit.  Returns
+  // the buffer to use for the next bundle.
+
+  private static ByteBuffer writeBundle(FileChannel out, ByteBuffer bundle, double time,
+      List<Event> messages) throws IOException {
+    while (true) {
+      bundle.clear();
+      try {
+        bundle.putInt(0);
+        bundle.put(OscBundleSender.BUNDLE_HEADER);
+        bundle.putLong(timeTag(time));
+        for (Event event : messages) {
+          OscBundleSender.writeElement(bundle, event.message);
+        }
+        bundle.putInt(0, bundle.position() - 4);
+        bundle.flip();
+        while (bundle.hasRemaining()) {
+          out.write(bundle);
+        }
+        return bundle;
+      } catch (BufferOverflowException e) {
+        bundle = ByteBuffer.allocate(bundle.capacity() * 2);
+      }
+    }
+  }
+
+  // Converts seconds from the start of the score to a time tag.
+
+  private static long timeTag(double time) {
+    long seconds = (long) time;
+    long fraction = (long) ((time - seconds) * (1L << 32));
+    return (seconds << 32) | fraction;
+  }
+}
@@ -0,0 +1,83 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An OSC message encoded once, whose numeric arguments can be patched each time it is
+ * written.  The address, type tags and string arguments of a message like /s_new never
+ * change between notes, so they are encoded when the template is made and only copied
+ * afterwards.  Templates are immutable and can be shared between threads; patching is done
+ * on the copy in the encoder's buffer.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class OscTemplate {
+  private final byte[] bytes;
+  // Offset of each argument from the start of the message, indexed like the message array.
+  private final int[] offsets;
+
+  /**
+   * Encodes a template from a message in the layout {@code OscMessage} takes.  Integer and
+   * Float arguments may be patched when the template is written; their values here are the
+   * defaults.
+   */
+  public OscTemplate(Object[] message) {
+    ByteBuffer buffer = ByteBuffer.allocate(size(message) + 4);
+    OscBundleSender.writeElement(buffer, message);
+    bytes = new byte[buffer.position() - 4];
+    buffer.position(4);
+    buffer.get(bytes);
+    offsets = new int[message.length];
+    // Arguments follow the padded address and type tags.
+    int offset = padded(((String) message[0]).length() + 1) + padded(message.length + 1);
+    for (int i = 1; i < message.length; i++) {
+      offsets[i] = offset;
+      offset += argumentSize(message[i]);
+    }
+  }
+
+  /**
+   * Returns the encoded size of the message in bytes.
+   */
+  public int size() {
+    return bytes.length;
+  }
+
+  // Copies the message to the buffer's position, returning where it starts.
+
+  int write(ByteBuffer out) {
+    int start = out.position();
+    out.put(bytes);
+    return start;
+  }
+
+  void setInt(ByteBuffer out, int start, int index, int value) {
+    out.putInt(start + offsets[index], value);
+  }
+
+  void setFloat(ByteBuffer out, int start, int index, float value) {
+    out.putFloat(start + offsets[index], value);
+  }
+
+  private static int size(Object[] message) {
+    int size = padded(((String) message[0]).length() + 1) + padded(message.length + 1);
+    for (int i = 1; i < message.length; i++) {
+      size += argumentSize(message[i]);
+    }
+    return size;
+  }
+
+  private static int argumentSize(Object arg) {
+    if (arg instanceof String) {
+      return padded(((String) arg).length() + 1);
+    } else if (arg instanceof byte[]) {
+      return 4 + padded(((byte[]) arg).length);
+    } else {
+      return 4;
+    }
+  }
+
+  private static int padded(int length) {
+    return (length + 3) & ~3;
+  }
+}
@@ -0,0 +1,26 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries encoded OSC packets to a sound server.  {@link OscBundleSender} sends through a
+ * transport, so that the same bundles reach a server on the device over a local UDP channel
+ * or one elsewhere through a {@link NetworkTransport}.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public interface OscTransport {
+  /**
+   * Sends one OSC packet, a bundle or a message, from the buffer's position to its limit.
+   * The buffer may be reused once this returns.
+   *
+   * @throws IOException  if the packet cannot be sent
+   */
+  void send(ByteBuffer packet) throws IOException;
+
+  /**
+   * Closes the transport, releasing its channel.
+   */
+  void close();
+}
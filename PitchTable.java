@@ -0,0 +1,138 @@
+package com.google.appinventor.components.runtime.util;
+
+/**
+ * Equal-tempered pitch lookup for the Instrument component.  Note names are parsed
+ * directly from their characters into a pitch class, and frequencies are read from a
+ * precomputed table of every MIDI note, so resolving a note allocates nothing.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class PitchTable {
+  /** Frequency of A4 in concert pitch, in hertz. */
+  public static final float CONCERT_REFERENCE = 440.0f;
+  /** Frequency of A4 in the common "A=432" alternative tuning, in hertz. */
+  public static final float ALTERNATE_REFERENCE = 432.0f;
+  /** Returned by {@link #pitchClass} when its argument is not a note name. */
+  public static final int NO_NOTE = -1;
+
+  public static final PitchTable CONCERT = new PitchTable(CONCERT_REFERENCE);
+  public static final PitchTable ALTERNATE = new PitchTable(ALTERNATE_REFERENCE);
+
+  private static final int SEMITONES_PER_OCTAVE = 12;
+  private static final int NOTE_COUNT = 128;
+  private static final int REFERENCE_NOTE = 69; // A4
+  private static final int MIDDLE_OCTAVE = 4;
+  private static final int MIDDLE_OCTAVE_START = 60; // C4
+
+  // Pitch classes of the note letters a through h.  H is the German name for B.
+  private static final int[] LETTER_PITCH_CLASSES = {9, 11, 0, 2, 4, 5, 7, 11};
+
+  // The most recently requested non-standard tuning, so that changing the tuning back and forth
+  // between two values does not rebuild the table each time.
+  private static volatile PitchTable lastCustom;
+
+  private final float reference;
+  private final float[] frequencies = new float[NOTE_COUNT];
+
+  private PitchTable(float reference) {
+    this.reference = reference;
+    for (int i = 0; i < NOTE_COUNT; i++) {
+      frequencies[i] =
+          (float) (reference * Math.pow(2, (i - REFERENCE_NOTE) / (double) SEMITONES_PER_OCTAVE));
+    }
+  }
+
+  /**
+   * Returns the table for the given frequency of A4, reusing a shared table when one
+   * exists.
+   *
+   * @param reference  frequency of A4 in hertz
+   * @return  pitch table tuned to the reference
+   */
+  public static PitchTable forReference(float reference) {
+    if (reference == CONCERT_REFERENCE) {
+      return CONCERT;
+    } else if (reference == ALTERNATE_REFERENCE) {
+      return ALTERNATE;
+    }
+    PitchTable table = lastCustom;
+    if (table == null || table.reference != reference) {
+      table = new PitchTable(reference);
+      lastCustom = table;
+    }
+    return table;
+  }
+
+  /**
+   * Parses a note letter (a through h, either case) optionally followed by an accidental
+   * ("#", "b" or "B") into a pitch class between 0 (C) and 11 (B).  Accidentals wrap within
+   * the octave, so "Cb" is the B and "B#" the C of the same numbered octave.
+   *
+   * @param note  the note name
+   * @return  the pitch class, or {@link #NO_NOTE} if the argument is not a note name
+   */
+  public static int pitchClass(CharSequence note) {
+    int length = note.length();
+    if (length < 1 || length > 2) {
+      return NO_NOTE;
+    }
+    char letter = note.charAt(0);
+    int pitchClass;
+    if (letter >= 'a' && letter <= 'h') {
+      pitchClass = LETTER_PITCH_CLASSES[letter - 'a'];
+    } else if (letter >= 'A' && letter <= 'H') {
+      pitchClass = LETTER_PITCH_CLASSES[letter - 'A'];
+    } else {
+      return NO_NOTE;
+    }
+    if (length == 2) {
+      char accidental = note.charAt(1);
+      if (accidental == '#') {
+        pitchClass++;
+      } else if (accidental == 'b' || accidental == 'B') {
+        pitchClass--;
+      } else {
+        return NO_NOTE;
+      }
+    }
+    return (pitchClass + SEMITONES_PER_OCTAVE) % SEMITONES_PER_OCTAVE;
+  }
+
+  /**
+   * Returns the MIDI note number of a pitch class in the given octave, where C4 is 60.
+   * The result may fall outside the 0 to 127 MIDI range for extreme octaves.
+   */
+  public static int noteNumber(int pitchClass, int octave) {
+    return pitchClass + SEMITONES_PER_OCTAVE * (octave + 1);
+  }
+
+  /**
+   * Returns the frequency of a pitch class in the given octave.
+   *
+   * @param pitchClass  pitch class between 0 (C) and 11 (B)
+   * @param octave  octave number, where octave 4 starts at middle C
+   * @return  frequency in hertz
+   */
+  public float frequency(int pitchClass, int octave) {
+    int noteNumber = noteNumber(pitchClass, octave);
+    if (noteNumber >= 0 && noteNumber < NOTE_COUNT) {
+      return frequencies[noteNumber];
+    }
+    // Octaves beyond the MIDI range are exact powers of two away from the middle octave.
+    return Math.scalb(frequencies[MIDDLE_OCTAVE_START + pitchClass], octave - MIDDLE_OCTAVE);
+  }
+
+  /**
+   * Returns the frequency of a MIDI note number, which must be between 0 and 127.
+   */
+  public float frequency(int noteNumber) {
+    return frequencies[noteNumber];
+  }
+
+  /**
+   * Returns the frequency of A4 this table is tuned to.
+   */
+  public float reference() {
+    return reference;
+  }
+}
@@ -0,0 +1,107 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.util.Log;
+
+/**
+ * Plays through a SuperCollider server elsewhere on the network, such as scsynth on a
+ * computer, by sending it every message over a {@link NetworkTransport}.  Timestamped
+ * bundles reach the server through the same transport with {@link #bundleSender}, so that
+ * messages and bundles keep their order.  The server executes bundles by its own clock,
+ * which may not agree with the device's, so callers should send them to be executed
+ * immediately rather than timestamped ahead.  The remote server is expected to be running
+ * already; shutting the engine down only closes the connection, leaving the server for
+ * other clients.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class RemoteAudioEngine implements AudioEngine {
+  private static final String LOG_TAG = "RemoteAudioEngine";
+  private static final int MAX_PACKET_SIZE = 65536;
+  private static final int SIZE_PREFIX = 4;
+
+  private final String host;
+  private final int port;
+  private final boolean tcp;
+  private final NetworkTransport.Receiver receiver;
+  private final ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
+  private volatile NetworkTransport transport;
+  private volatile OscBundleSender bundleSender;
+
+  /**
+   * Creates an engine for the server at the given address.
+   *
+   * @param tcp  true to connect over TCP, false to send over UDP
+   * @param receiver  told of each message the server sends, or null to ignore them
+   */
+  public RemoteAudioEngine(String host, int port, boolean tcp,
+      NetworkTransport.Receiver receiver) {
+    this.host = host;
+    this.port = port;
+    this.tcp = tcp;
+    this.receiver = receiver;
+  }
+
+  /**
+   * Connects to the server.  The port given is ignored, since the server listens on its own.
+   * If the server cannot be reached the engine is ended straight away.
+   */
+  @Override
+  public void start(int udpPort) {
+    try {
+      transport = new NetworkTransport(host, port, tcp, receiver);
+      bundleSender = new OscBundleSender(transport);
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Could not connect to server at " + host + ":" + port, e);
+    }
+  }
+
+  @Override
+  public synchronized void sendMessage(Object[] message) {
+    NetworkTransport current = transport;
+    if (current == null) {
+      return;
+    }
+    packet.clear();
+    OscBundleSender.writeElement(packet, message);
+    // A message on its own is not preceded by its size.
+    packet.flip();
+    packet.position(SIZE_PREFIX);
+    try {
+      current.send(packet);
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Failed to send " + message[0] + " to server", e);
+    }
+  }
+
+  @Override
+  public void sendQuit() {
+    NetworkTransport current = transport;
+    if (current != null) {
+      current.close();
+    }
+  }
+
+  @Override
+  public boolean isEnded() {
+    NetworkTransport current = transport;
+    return current == null || current.isClosed();
+  }
+
+  /**
+   * Returns the sender for timestamped bundles to the server, or null if the engine has not
+   * connected.
+   */
+  public OscBundleSender bundleSender() {
+    return bundleSender;
+  }
+
+  /**
+   * Returns whether the engine plays through the server at the given address.
+   */
+  public boolean connectsTo(String host, int port, boolean tcp) {
+    return this.host.equals(host) && this.port == port && this.tcp == tcp;
+  }
+}
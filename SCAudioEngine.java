@@ -0,0 +1,45 @@
+package com.google.appinventor.components.runtime.util;
+
+import net.sf.supercollider.android.OscMessage;
+import net.sf.supercollider.android.SCAudio;
+
+/**
+ * Runs scsynth in process through SuperCollider for Android.  This needs the supercollider
+ * library and its native UGen libraries in the app.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class SCAudioEngine implements AudioEngine {
+  private final String nativeLibDir;
+  private SCAudio server;
+
+  /**
+   * Creates an engine that loads scsynth and its UGens from the given directory.
+   */
+  public SCAudioEngine(String nativeLibDir) {
+    this.nativeLibDir = nativeLibDir;
+  }
+
+  @Override
+  public void start(int udpPort) {
+    server = new SCAudio(nativeLibDir);
+    server.start();
+    // Timestamped bundles are sent over UDP, since SCAudio only passes on single messages.
+    server.openUDP(udpPort);
+  }
+
+  @Override
+  public void sendMessage(Object[] message) {
+    server.sendMessage(new OscMessage(message));
+  }
+
+  @Override
+  public void sendQuit() {
+    server.sendQuit();
+  }
+
+  @Override
+  public boolean isEnded() {
+    return server == null || server.isEnded();
+  }
+}
@@ -0,0 +1,275 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps sample files loaded in the buffers of a SuperCollider server.  Each file is loaded
+ * once, however many sources use it, and stays loaded after its last user releases it so
+ * that using it again costs nothing.  The memory taken by loaded samples is kept within a
+ * budget by freeing the least recently used samples that no one is using.
+ *
+ * <p>A sample's buffer number is assigned as soon as it is acquired, and its file is read and
+ * loaded on a background thread, so acquiring never waits for the disk.  Notes played on the
+ * buffer before the server has read the file are silent.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class SampleBufferCache {
+  /**
+   * A sample file and the server buffer it is loaded into.
+   */
+  public static final class Sample {
+    private final String name;
+    private final int buffer;
+    private int users;
+    // The file the server reads, once located, and the memory the sample takes on the server,
+    // or 0 until the file has been read.
+    private File file;
+    private long bytes;
+    private boolean failed;
+
+    private Sample(String name, int buffer) {
+      this.name = name;
+      this.buffer = buffer;
+    }
+
+    public String name() {
+      return name;
+    }
+
+    /**
+     * Returns the number of the buffer the sample is loaded into.
+     */
+    public int buffer() {
+      return buffer;
+    }
+
+    /**
+     * Returns the message that loads the first channel of the sample into its buffer, or null
+     * if its file has not been located yet.  The sample synthdef plays one channel, and
+     * PlayBuf is silent on a buffer with a different number of channels.
+     */
+    public synchronized Object[] loadMessage() {
+      return file != null
+          ? new Object[] {"/b_allocReadChannel", buffer, file.getPath(), 0, 0, 0}
+          : null;
+    }
+  }
+
+  /**
+   * Finds the files samples are loaded from, on the loader thread.
+   */
+  public interface Locator {
+    /**
+     * Returns the file holding the named sample, copying it to storage the server can read
+     * if necessary.
+     *
+     * @throws IOException  if the sample cannot be found or copied
+     */
+    File locate(String name) throws IOException;
+
+    /**
+     * Is told about a sample that could not be loaded.
+     */
+    void loadFailed(String name, IOException e);
+  }
+
+  private final EffectGraph.MessageSender sender;
+  private final Locator locator;
+  // Samples by name, from least to most recently used.
+  private final LinkedHashMap<String, Sample> samples =
+      new LinkedHashMap<String, Sample>(16, 0.75f, true);
+  private final Deque<Integer> freeBuffers = new ArrayDeque<Integer>();
+  private final int lastBuffer;
+  private final ExecutorService loader;
+  private int nextBuffer;
+  private long budget;
+  private long bytesLoaded;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param sender  destination for the messages loading and freeing buffers
+   * @param locator  finds sample files
+   * @param firstBuffer  first buffer number available for samples
+   * @param lastBuffer  last buffer number available for samples
+   * @param budget  memory loaded samples may take on the server, in bytes
+   */
+  public SampleBufferCache(EffectGraph.MessageSender sender, Locator locator,
+      int firstBuffer, int lastBuffer, long budget) {
+    this.sender = sender;
+    this.locator = locator;
+    this.lastBuffer = lastBuffer;
+    this.budget = budget;
+    nextBuffer = firstBuffer;
+    loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Sample loader");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Returns the named sample, starting to load it if it is not loaded already.  Every call
+   * must be matched by a call to {@link #release}.
+   *
+   * @param name  name the {@link Locator} finds the sample's file by
+   * @return  the sample, or null if no buffers are left
+   */
+  public synchronized Sample acquire(String name) {
+    Sample sample = samples.get(name);
+    if (sample == null) {
+      int buffer;
+      if (!freeBuffers.isEmpty()) {
+        buffer = freeBuffers.pop();
+      } else if (nextBuffer <= lastBuffer) {
+        buffer = nextBuffer++;
+      } else {
+        return null;
+      }
+      sample = new Sample(name, buffer);
+      samples.put(name, sample);
+      load(sample);
+    } else if (sample.failed) {
+      // The file may have been fixed since.
+      sample.failed = false;
+      load(sample);
+    }
+    sample.users++;
+    return sample;
+  }
+
+  /**
+   * Releases a use of a sample.  A sample no one uses stays loaded until its memory is
+   * needed.
+   */
+  public synchronized void release(Sample sample) {
+    if (sample.users > 0 && --sample.users == 0) {
+      if (sample.failed) {
+        samples.remove(sample.name);
+        free(sample);
+      }
+      evict(0);
+    }
+  }
+
+  /**
+   * Sets the memory loaded samples may take on the server, freeing unused samples if they
+   * take more.
+   */
+  public synchronized void setBudget(long budget) {
+    this.budget = budget;
+    evict(0);
+  }
+
+  public synchronized long budget() {
+    return budget;
+  }
+
+  /**
+   * Returns the memory taken by loaded samples on the server, in bytes.
+   */
+  public synchronized long bytesLoaded() {
+    return bytesLoaded;
+  }
+
+  /**
+   * Frees every sample no one is using, such as when the app is stopped and its memory may be
+   * needed by others.
+   */
+  public synchronized void trim() {
+    Iterator<Sample> it = samples.values().iterator();
+    while (it.hasNext()) {
+      Sample sample = it.next();
+      if (sample.users == 0) {
+        it.remove();
+        free(sample);
+      }
+    }
+  }
+
+  /**
+   * Reloads every sample, after the server has been restarted.
+   */
+  public synchronized void restore() {
+    for (Sample sample : samples.values()) {
+      // Samples still being read are sent when they have been.
+      if (sample.bytes > 0) {
+        sender.send(sample.loadMessage());
+      }
+    }
+  }
+
+  // Reads the sample's format on the loader thread, makes room for it and has the server load
+  // it.
+
+  private void load(final Sample sample) {
+    loader.execute(new Runnable() {
+      @Override
+      public void run() {
+        SampleFile file;
+        try {
+          file = SampleFile.read(locator.locate(sample.name));
+        } catch (IOException e) {
+          // The buffer stays assigned while the sample is in use, so that notes for it stay
+          // silent instead of playing whichever sample gets the buffer next.
+          synchronized (SampleBufferCache.this) {
+            sample.failed = true;
+            if (sample.users == 0 && samples.get(sample.name) == sample) {
+              samples.remove(sample.name);
+              free(sample);
+            }
+          }
+          locator.loadFailed(sample.name, e);
+          return;
+        }
+        synchronized (SampleBufferCache.this) {
+          if (samples.get(sample.name) != sample) {
+            return;
+          }
+          evict(file.serverBytes());
+          synchronized (sample) {
+            sample.file = file.file();
+          }
+          sample.bytes = file.serverBytes();
+          bytesLoaded += sample.bytes;
+          sender.send(sample.loadMessage());
+        }
+      }
+    });
+  }
+
+  // Frees the least recently used samples no one is using until the given number of bytes
+  // more would fit in the budget.  Samples in use are never freed, so the budget can be
+  // exceeded.
+
+  private void evict(long needed) {
+    Iterator<Sample> it = samples.values().iterator();
+    while (bytesLoaded + needed > budget && it.hasNext()) {
+      Sample sample = it.next();
+      if (sample.users == 0 && sample.bytes > 0) {
+        it.remove();
+        free(sample);
+      }
+    }
+  }
+
+  private void free(Sample sample) {
+    if (sample.bytes > 0) {
+      bytesLoaded -= sample.bytes;
+      sender.send(new Object[] {"/b_free", sample.buffer});
+    }
+    freeBuffers.push(sample.buffer);
+  }
+}
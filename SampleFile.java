@@ -0,0 +1,139 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The format of a sample file, read from its headers through a memory mapping so that only
+ * the pages holding them are touched, however large the file.  WAV files and Ogg Vorbis
+ * files are understood; the sample data itself is read by the server.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class SampleFile {
+  // Size of each frame sample once loaded into a server buffer, which holds 32-bit floats.
+  private static final int SERVER_SAMPLE_SIZE = 4;
+  private static final int RIFF = 0x46464952;   // "RIFF", little-endian
+  private static final int WAVE = 0x45564157;   // "WAVE"
+  private static final int FMT = 0x20746d66;    // "fmt "
+  private static final int DATA = 0x61746164;   // "data"
+  private static final int OGG_CAPTURE = 0x5367674f;  // "OggS"
+  private static final int OGG_PAGE_HEADER_SIZE = 27;
+  private static final int OGG_SEGMENT_COUNT = 26;
+  private static final int OGG_GRANULE_POSITION = 6;
+  private static final int VORBIS_IDENTIFICATION = 1;
+  private static final int VORBIS_CHANNELS = 11;
+  private static final int VORBIS_SAMPLE_RATE = 12;
+
+  private final File file;
+  private final int channels;
+  private final long frames;
+  private final int sampleRate;
+
+  private SampleFile(File file, int channels, long frames, int sampleRate) {
+    this.file = file;
+    this.channels = channels;
+    this.frames = frames;
+    this.sampleRate = sampleRate;
+  }
+
+  /**
+   * Reads the format of a sample file.
+   *
+   * @throws IOException  if the file cannot be read or is not a WAV or Ogg Vorbis file
+   */
+  public static SampleFile read(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      map.order(ByteOrder.LITTLE_ENDIAN);
+      if (map.limit() >= 12 && map.getInt(0) == RIFF && map.getInt(8) == WAVE) {
+        return readWav(file, map);
+      } else if (map.limit() >= OGG_PAGE_HEADER_SIZE && map.getInt(0) == OGG_CAPTURE) {
+        return readOgg(file, map);
+      }
+      throw new IOException("Not a WAV or Ogg Vorbis file: " + file);
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Truncated sample file: " + file);
+    } finally {
+      in.close();
+    }
+  }
+
+  public File file() {
+    return file;
+  }
+
+  public int channels() {
+    return channels;
+  }
+
+  public long frames() {
+    return frames;
+  }
+
+  public int sampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * Returns the memory the sample takes once its first channel is loaded into a server
+   * buffer, in bytes.
+   */
+  public long serverBytes() {
+    return frames * SERVER_SAMPLE_SIZE;
+  }
+
+  // Walks the RIFF chunks for the format and the size of the sample data.
+
+  private static SampleFile readWav(File file, MappedByteBuffer map) throws IOException {
+    int channels = 0;
+    int sampleRate = 0;
+    int blockAlign = 0;
+    long dataSize = -1;
+    int position = 12;
+    while (position + 8 <= map.limit() && dataSize < 0) {
+      int id = map.getInt(position);
+      long size = map.getInt(position + 4) & 0xffffffffL;
+      if (id == FMT) {
+        channels = map.getShort(position + 10) & 0xffff;
+        sampleRate = map.getInt(position + 12);
+        blockAlign = map.getShort(position + 20) & 0xffff;
+      } else if (id == DATA) {
+        // Recorders that never finished writing leave the size too large.
+        dataSize = Math.min(size, map.limit() - position - 8);
+      }
+      // Chunks are padded to an even length.
+      position += 8 + (int) ((size + 1) & ~1L);
+    }
+    if (channels == 0 || blockAlign == 0 || dataSize < 0) {
+      throw new IOException("Missing format or data in WAV file: " + file);
+    }
+    return new SampleFile(file, channels, dataSize / blockAlign, sampleRate);
+  }
+
+  // Takes the format from the Vorbis identification header at the start of the first page, and
+  // the length from the granule position of the last page, which counts the frames decoded by
+  // its end.
+
+  private static SampleFile readOgg(File file, MappedByteBuffer map) throws IOException {
+    int packet = OGG_PAGE_HEADER_SIZE + (map.get(OGG_SEGMENT_COUNT) & 0xff);
+    if (map.get(packet) != VORBIS_IDENTIFICATION) {
+      throw new IOException("Not an Ogg Vorbis file: " + file);
+    }
+    int channels = map.get(packet + VORBIS_CHANNELS) & 0xff;
+    int sampleRate = map.getInt(packet + VORBIS_SAMPLE_RATE);
+    for (int page = map.limit() - OGG_PAGE_HEADER_SIZE; page >= 0; page--) {
+      if (map.getInt(page) == OGG_CAPTURE) {
+        return new SampleFile(file, channels, map.getLong(page + OGG_GRANULE_POSITION),
+            sampleRate);
+      }
+    }
+    throw new IOException("No pages in Ogg file: " + file);
+  }
+}
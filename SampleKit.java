@@ -0,0 +1,88 @@
+package com.google.appinventor.components.runtime.util;
+
+/**
+ * The samples making up a sample-based sound source, each recorded at a root pitch.  A note
+ * is played by the sample whose root is nearest its pitch, transposed by playback speed, so
+ * a piano can be sampled every few notes and a drum kit given one note per drum.
+ *
+ * <p>Kits are immutable, so the threads playing notes can share them without locking; adding
+ * a sample makes a new kit.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class SampleKit {
+  /** Kit with no samples. */
+  public static final SampleKit EMPTY =
+      new SampleKit(new float[0], new SampleBufferCache.Sample[0]);
+
+  // Root frequencies in ascending order, and the sample recorded at each.
+  private final float[] roots;
+  private final SampleBufferCache.Sample[] samples;
+
+  private SampleKit(float[] roots, SampleBufferCache.Sample[] samples) {
+    this.roots = roots;
+    this.samples = samples;
+  }
+
+  /**
+   * Returns a kit with the given sample added, replacing any sample with the same root.
+   *
+   * @param root  frequency the sample plays at when not transposed, in hertz
+   */
+  public SampleKit with(float root, SampleBufferCache.Sample sample) {
+    int index = 0;
+    while (index < roots.length && roots[index] < root) {
+      index++;
+    }
+    boolean replace = index < roots.length && roots[index] == root;
+    int length = replace ? roots.length : roots.length + 1;
+    float[] newRoots = new float[length];
+    SampleBufferCache.Sample[] newSamples = new SampleBufferCache.Sample[length];
+    System.arraycopy(roots, 0, newRoots, 0, index);
+    System.arraycopy(samples, 0, newSamples, 0, index);
+    newRoots[index] = root;
+    newSamples[index] = sample;
+    int rest = replace ? index + 1 : index;
+    System.arraycopy(roots, rest, newRoots, index + 1, roots.length - rest);
+    System.arraycopy(samples, rest, newSamples, index + 1, roots.length - rest);
+    return new SampleKit(newRoots, newSamples);
+  }
+
+  /**
+   * Returns the number of samples in the kit.
+   */
+  public int size() {
+    return samples.length;
+  }
+
+  /**
+   * Returns the sample at the given index, in order of root pitch.
+   */
+  public SampleBufferCache.Sample sample(int index) {
+    return samples[index];
+  }
+
+  /**
+   * Returns the root frequency of the sample at the given index.
+   */
+  public float root(int index) {
+    return roots[index];
+  }
+
+  /**
+   * Returns the index of the sample whose root is nearest the given frequency, in pitch, or
+   * -1 if the kit is empty.
+   */
+  public int nearest(float frequency) {
+    int index = 0;
+    while (index < roots.length - 1 && roots[index + 1] <= frequency) {
+      index++;
+    }
+    // Pitch distance is a ratio, so compare frequency / lower with upper / frequency.
+    if (index < roots.length - 1 && roots[index] < frequency
+        && roots[index + 1] / frequency < frequency / roots[index]) {
+      index++;
+    }
+    return roots.length > 0 ? index : -1;
+  }
+}
@@ -0,0 +1,100 @@
+package com.google.appinventor.components.runtime.util;
+
+/**
+ * Generates the synthdef that plays the notes of sample-based sources, so that it is defined
+ * here rather than packaged as an asset.  A note plays the first channel of the sample in
+ * buffer {@code buf} once, at a rate of {@code freq} divided by {@link #ROOT_FREQUENCY}, so
+ * the sender transposes the sample by scaling its pitch.
+ *
+ * <p>Its controls are those of the instrument synthdefs: {@code freq}, {@code duration},
+ * {@code mul}, the envelope, {@code reverb} and {@code effectBus}, with {@code buf}.  The
+ * note is released after {@code duration} seconds or when {@code gate} is set to 0, and
+ * changes to {@code freq} and {@code mul} are lagged by {@code glide} seconds.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class SampleSynthDef {
+  /** Name of the synthdef. */
+  public static final String NAME = "sample-inst";
+  /** Frequency at which a sample plays at its recorded speed, middle C. */
+  public static final float ROOT_FREQUENCY = 261.6256f;
+
+  // Controls, in the order of the synthdef's parameters, with their defaults.  Envelope
+  // defaults are those of the instrument synthdefs.
+  private static final String[] CONTROL_NAMES = {
+      "freq", "duration", "mul", "attack", "decay", "sustain", "release", "reverb",
+      "effectBus", "buf", "glide", "gate"
+  };
+  private static final float[] CONTROL_DEFAULTS = {
+      ROOT_FREQUENCY, 1, 0.5f, 0.01f, 0.3f, 0.05f, 1, 0, -1, 0, 0, 1
+  };
+  private static final int FREQ = 0;
+  private static final int DURATION = 1;
+  private static final int MUL = 2;
+  private static final int ATTACK = 3;
+  private static final int DECAY = 4;
+  private static final int SUSTAIN = 5;
+  private static final int RELEASE = 6;
+  private static final int REVERB = 7;
+  private static final int EFFECT_BUS = 8;
+  private static final int BUF = 9;
+  private static final int GLIDE = 10;
+  private static final int GATE = 11;
+  // NoteMessageBuilder.sustainControl gives the sustain percentage divided by 1000.
+  private static final float SUSTAIN_SCALE = 10;
+  private static final float PAN_GAIN = 0.7071f;
+  private static final int CONTROL_RATE = SynthDefGraph.CONTROL_RATE;
+  private static final int AUDIO_RATE = SynthDefGraph.AUDIO_RATE;
+  private static final int OP_SUB = SynthDefGraph.OP_SUB;
+  private static final int OP_MUL = SynthDefGraph.OP_MUL;
+  private static final int OP_GREATER = SynthDefGraph.OP_GREATER;
+
+  private static byte[] built;
+
+  private SampleSynthDef() {
+  }
+
+  /**
+   * Returns the synthdef file, built the first time it is asked for.
+   */
+  public static synchronized byte[] build() {
+    if (built == null) {
+      built = buildGraph().write(NAME);
+    }
+    return built.clone();
+  }
+
+  private static SynthDefGraph buildGraph() {
+    SynthDefGraph graph = new SynthDefGraph(CONTROL_NAMES, CONTROL_DEFAULTS);
+    int buf = graph.control(BUF);
+    int glide = graph.control(GLIDE);
+    int frequency = graph.ugen("Lag", CONTROL_RATE, 1, 0, graph.control(FREQ), glide);
+    int volume = graph.ugen("Lag", CONTROL_RATE, 1, 0, graph.control(MUL), glide);
+    int rate = graph.binaryOp(CONTROL_RATE, OP_MUL,
+        graph.binaryOp(CONTROL_RATE, OP_MUL, frequency, graph.constant(1 / ROOT_FREQUENCY)),
+        graph.ugen("BufRateScale", CONTROL_RATE, 1, 0, buf));
+    int sample = graph.ugen("PlayBuf", AUDIO_RATE, 1, 0, buf, rate, graph.constant(1),
+        graph.constant(0), graph.constant(0), graph.constant(0));
+    // The gate stays open for the note's duration, unless gate is set to 0 first.
+    int held = graph.ugen("Line", CONTROL_RATE, 1, 0, graph.constant(1), graph.constant(0),
+        graph.control(DURATION), graph.constant(0));
+    int gate = graph.binaryOp(CONTROL_RATE, OP_MUL,
+        graph.binaryOp(CONTROL_RATE, OP_GREATER, held, graph.constant(0)),
+        graph.control(GATE));
+    int envelope = graph.adsr(gate, graph.constant(1),
+        graph.control(ATTACK), graph.control(DECAY),
+        graph.binaryOp(CONTROL_RATE, OP_MUL, graph.control(SUSTAIN),
+            graph.constant(SUSTAIN_SCALE)),
+        graph.control(RELEASE), SynthDefGraph.FREE_SELF);
+    int signal = graph.binaryOp(AUDIO_RATE, OP_MUL, sample,
+        graph.binaryOp(CONTROL_RATE, OP_MUL, envelope, volume));
+    int reverb = graph.control(REVERB);
+    int dry = graph.binaryOp(AUDIO_RATE, OP_MUL, signal, graph.binaryOp(CONTROL_RATE, OP_MUL,
+        graph.binaryOp(CONTROL_RATE, OP_SUB, graph.constant(1), reverb),
+        graph.constant(PAN_GAIN)));
+    graph.ugen("Out", AUDIO_RATE, 0, 0, graph.constant(0), dry, dry);
+    graph.ugen("Out", AUDIO_RATE, 0, 0, graph.control(EFFECT_BUS),
+        graph.binaryOp(AUDIO_RATE, OP_MUL, signal, reverb));
+    return graph;
+  }
+}
@@ -0,0 +1,286 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import android.util.Log;
+
+/**
+ * Polls a SuperCollider server for its load.  Each poll sends /status and /sync from a
+ * socket of the monitor's own, so replies never mix with those meant for anyone else, and
+ * records the CPU load, unit generator and synth counts from /status.reply and the round
+ * trip time of /sync.  The server answers /sync only after executing everything sent before
+ * it, so the round trip includes any backlog of commands.
+ *
+ * <p>A monitor can also watch for nodes ending: it registers for the server's notifications
+ * with /notify, and passes on each /n_end it receives while polling.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class ServerMonitor {
+  /**
+   * Is told about every poll, on the monitor's thread.
+   */
+  public interface Listener {
+    /**
+     * Called after each poll, whether or not the server answered.
+     */
+    void polled(ServerMonitor monitor);
+
+    /**
+     * Called for each node the server reports has ended, if the monitor watches nodes.
+     */
+    void nodeEnded(int nodeId);
+  }
+
+  private static final String LOG_TAG = "ServerMonitor";
+  private static final int MAX_PACKET_SIZE = 1024;
+  private static final int STATUS_UGENS = 2;
+  private static final int STATUS_SYNTHS = 3;
+  private static final int STATUS_AVERAGE_CPU = 6;
+  private static final int STATUS_PEAK_CPU = 7;
+  private static final float NANOSECS_IN_MILLISEC = 1e6f;
+
+  private final String host;
+  private final int port;
+  private final Listener listener;
+  private final boolean watchNodes;
+  private volatile long interval;
+  private volatile boolean stopped;
+  private Thread thread;
+  private int nextSyncId;
+  // Results of the last poll the server answered.
+  private volatile float averageCpu;
+  private volatile float peakCpu;
+  private volatile int ugens;
+  private volatile int synths;
+  private volatile float latency;
+  private volatile boolean responding;
+
+  /**
+   * Creates a monitor for the server at the given address.
+   *
+   * @param interval  time between polls, in milliseconds
+   */
+  public ServerMonitor(String host, int port, long interval, Listener listener) {
+    this(host, port, interval, false, listener);
+  }
+
+  /**
+   * Creates a monitor for the server at the given address.
+   *
+   * @param interval  time between polls, in milliseconds
+   * @param watchNodes  whether to tell the listener about nodes ending
+   */
+  public ServerMonitor(String host, int port, long interval, boolean watchNodes,
+      Listener listener) {
+    this.host = host;
+    this.port = port;
+    this.interval = interval;
+    this.watchNodes = watchNodes;
+    this.listener = listener;
+  }
+
+  /**
+   * Starts polling on a thread of the monitor's own.
+   */
+  public synchronized void start() {
+    if (thread != null) {
+      return;
+    }
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        poll();
+      }
+    }, "Server monitor");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops polling.  The monitor cannot be started again.
+   */
+  public synchronized void stop() {
+    stopped = true;
+    if (thread != null) {
+      thread.interrupt();
+    }
+  }
+
+  /**
+   * Sets the time between polls, in milliseconds, from the next poll on.
+   */
+  public void setInterval(long interval) {
+    this.interval = interval;
+  }
+
+  /** Returns the server's average CPU load, as a percentage. */
+  public float averageCpu() {
+    return averageCpu;
+  }
+
+  /** Returns the server's peak CPU load, as a percentage. */
+  public float peakCpu() {
+    return peakCpu;
+  }
+
+  /** Returns the number of unit generators running on the server. */
+  public int ugens() {
+    return ugens;
+  }
+
+  /** Returns the number of synths running on the server. */
+  public int synths() {
+    return synths;
+  }
+
+  /** Returns the round trip time of the last /sync, in milliseconds. */
+  public float latency() {
+    return latency;
+  }
+
+  /**
+   * Returns whether the server answered the last poll.
+   */
+  public boolean responding() {
+    return responding;
+  }
+
+  /**
+   * Sends /sync to the server at the given address from a socket of its own, and waits for
+   * the reply.  The server answers only once every asynchronous command it received before,
+   * such as loading a synthdef, has completed.
+   *
+   * @param timeout  longest time to wait, in milliseconds
+   * @return  whether the server answered in time
+   */
+  public static boolean sync(String host, int port, long timeout) {
+    DatagramSocket socket = null;
+    try {
+      socket = new DatagramSocket();
+      socket.connect(new InetSocketAddress(host, port));
+      send(socket, ByteBuffer.allocate(MAX_PACKET_SIZE), new Object[] {"/sync", 0});
+      byte[] replyBytes = new byte[MAX_PACKET_SIZE];
+      DatagramPacket reply = new DatagramPacket(replyBytes, replyBytes.length);
+      long deadline = System.currentTimeMillis() + timeout;
+      long remaining;
+      while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+        socket.setSoTimeout((int) remaining);
+        reply.setLength(replyBytes.length);
+        socket.receive(reply);
+        try {
+          if ("/synced".equals(
+              OscDecoder.readMessage(ByteBuffer.wrap(replyBytes, 0, reply.getLength()))[0])) {
+            return true;
+          }
+        } catch (RuntimeException e) {
+          // Not a reply to this socket's /sync.
+        }
+      }
+      return false;
+    } catch (IOException e) {
+      // Timed out, or the server is not listening.
+      return false;
+    } finally {
+      if (socket != null) {
+        socket.close();
+      }
+    }
+  }
+
+  private void poll() {
+    DatagramSocket socket = null;
+    try {
+      socket = new DatagramSocket();
+      socket.connect(new InetSocketAddress(host, port));
+      ByteBuffer request = ByteBuffer.allocate(MAX_PACKET_SIZE);
+      byte[] replyBytes = new byte[MAX_PACKET_SIZE];
+      DatagramPacket reply = new DatagramPacket(replyBytes, replyBytes.length);
+      if (watchNodes) {
+        // Notifications are sent to the socket that asked for them, between polls as well.
+        send(socket, request, new Object[] {"/notify", 1});
+      }
+      while (!stopped) {
+        pollOnce(socket, request, reply);
+        listener.polled(this);
+        Thread.sleep(interval);
+      }
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Stopped", e);
+    } catch (InterruptedException e) {
+      // Stopped
+    } finally {
+      if (socket != null) {
+        if (watchNodes) {
+          try {
+            send(socket, ByteBuffer.allocate(MAX_PACKET_SIZE), new Object[] {"/notify", 0});
+          } catch (IOException e) {
+            // The server stops notifying a port nothing listens on anyway.
+          }
+        }
+        socket.close();
+      }
+    }
+  }
+
+  // Sends /status and /sync and waits up to the poll interval for both replies, passing on
+  // any notifications that arrive first.
+
+  private void pollOnce(DatagramSocket socket, ByteBuffer request, DatagramPacket reply)
+      throws IOException {
+    int syncId = nextSyncId++;
+    send(socket, request, new Object[] {"/status"});
+    long sent = System.nanoTime();
+    send(socket, request, new Object[] {"/sync", syncId});
+    boolean statusReceived = false;
+    boolean synced = false;
+    long deadline = sent + (long) (interval * NANOSECS_IN_MILLISEC);
+    while (!(statusReceived && synced) && !stopped) {
+      long remaining = (deadline - System.nanoTime()) / (long) NANOSECS_IN_MILLISEC;
+      if (remaining <= 0) {
+        break;
+      }
+      socket.setSoTimeout((int) remaining);
+      try {
+        reply.setLength(reply.getData().length);
+        socket.receive(reply);
+      } catch (IOException e) {
+        // Timed out, or the server is not listening.
+        break;
+      }
+      Object[] message;
+      try {
+        message =
+            OscDecoder.readMessage(ByteBuffer.wrap(reply.getData(), 0, reply.getLength()));
+      } catch (RuntimeException e) {
+        continue;
+      }
+      if ("/status.reply".equals(message[0]) && message.length > STATUS_PEAK_CPU) {
+        ugens = ((Number) message[STATUS_UGENS]).intValue();
+        synths = ((Number) message[STATUS_SYNTHS]).intValue();
+        averageCpu = ((Number) message[STATUS_AVERAGE_CPU]).floatValue();
+        peakCpu = ((Number) message[STATUS_PEAK_CPU]).floatValue();
+        statusReceived = true;
+      } else if ("/synced".equals(message[0]) && message.length > 1
+          && ((Number) message[1]).intValue() == syncId) {
+        latency = (System.nanoTime() - sent) / NANOSECS_IN_MILLISEC;
+        synced = true;
+      } else if ("/n_end".equals(message[0]) && message.length > 1) {
+        listener.nodeEnded(((Number) message[1]).intValue());
+      }
+    }
+    responding = statusReceived && synced;
+  }
+
+  private static void send(DatagramSocket socket, ByteBuffer request, Object[] message)
+      throws IOException {
+    request.clear();
+    OscBundleSender.writeElement(request, message);
+    // Messages are sent on their own, without the size that precedes them in a bundle.
+    socket.send(new DatagramPacket(request.array(), 4, request.position() - 4));
+  }
+}
@@ -0,0 +1,188 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a graph of unit generators and writes it as a synthdef, for the synthdefs generated
+ * on the device rather than packaged as assets.  The graph starts with a {@code Control}
+ * unit generator holding the synthdef's controls, and unit generators are added after their
+ * inputs, which keeps them in an order the server can run them in.
+ *
+ * <p>Synthdefs are written in version 1 of SuperCollider's synthdef file format, which every
+ * version of scsynth reads, ready to be sent with /d_recv.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class SynthDefGraph {
+  /** Calculation rates of unit generators. */
+  public static final int CONTROL_RATE = 1;
+  public static final int AUDIO_RATE = 2;
+  public static final int DEMAND_RATE = 3;
+  /** Operators of BinaryOpUGen. */
+  public static final int OP_SUB = 1;
+  public static final int OP_MUL = 2;
+  public static final int OP_DIV = 4;
+  public static final int OP_GREATER = 9;
+  /** Done action freeing the synth when a unit generator finishes. */
+  public static final int FREE_SELF = 2;
+
+  // Env.adsr: three segments from 0, releasing from the second, each a curve of -4.
+  private static final int ENV_SEGMENTS = 3;
+  private static final int ENV_RELEASE_NODE = 2;
+  private static final int ENV_NO_LOOP = -99;
+  private static final int ENV_SHAPE_CURVE = 5;
+  private static final float ENV_CURVE = -4;
+
+  private static final int FILE_VERSION = 1;
+  private static final int MAX_OUTPUTS = 256;
+
+  // A unit generator in the graph.  Inputs refer to another unit generator's output as
+  // index * MAX_OUTPUTS + output, and to a constant as -1 - index.
+  private static final class UGen {
+    final String name;
+    final int rate;
+    final int[] inputs;
+    final int outputs;
+    final int special;
+
+    UGen(String name, int rate, int[] inputs, int outputs, int special) {
+      this.name = name;
+      this.rate = rate;
+      this.inputs = inputs;
+      this.outputs = outputs;
+      this.special = special;
+    }
+  }
+
+  private final String[] controlNames;
+  private final float[] controlDefaults;
+  private final List<Float> constants = new ArrayList<Float>();
+  private final List<UGen> ugens = new ArrayList<UGen>();
+  private final int controls;
+
+  /**
+   * Starts a graph with the given controls and their defaults.
+   */
+  public SynthDefGraph(String[] controlNames, float[] controlDefaults) {
+    this.controlNames = controlNames;
+    this.controlDefaults = controlDefaults;
+    controls = ugen("Control", CONTROL_RATE, controlNames.length, 0);
+  }
+
+  /**
+   * Returns a reference to a control, by its index in the names the graph was started with.
+   */
+  public int control(int index) {
+    return controls + index;
+  }
+
+  /**
+   * Adds a unit generator, returning a reference to its first output; the others follow it.
+   */
+  public int ugen(String name, int rate, int outputs, int special, int... inputs) {
+    ugens.add(new UGen(name, rate, inputs, outputs, special));
+    return (ugens.size() - 1) * MAX_OUTPUTS;
+  }
+
+  /**
+   * Adds a binary operator, returning a reference to its output.
+   */
+  public int binaryOp(int rate, int op, int a, int b) {
+    return ugen("BinaryOpUGen", rate, 1, op, a, b);
+  }
+
+  /**
+   * Returns a reference to a constant, adding it if the graph does not have it yet.
+   */
+  public int constant(float value) {
+    int index = constants.indexOf(value);
+    if (index < 0) {
+      index = constants.size();
+      constants.add(value);
+    }
+    return -1 - index;
+  }
+
+  /**
+   * Adds the attack, decay, sustain and release envelope of the instrument synthdefs at control
+   * rate, returning a reference to its output.
+   *
+   * @param gate  opens the envelope while positive, and releases it when it falls to 0
+   * @param levelScale  peak level of the envelope
+   * @param sustain  level held after the decay, as a fraction of the peak
+   * @param doneAction  what happens to the synth once the release has finished
+   */
+  public int adsr(int gate, int levelScale, int attack, int decay, int sustain, int release,
+      int doneAction) {
+    return ugen("EnvGen", CONTROL_RATE, 1, 0,
+        gate, levelScale, constant(0), constant(1), constant(doneAction),
+        constant(0), constant(ENV_SEGMENTS), constant(ENV_RELEASE_NODE),
+        constant(ENV_NO_LOOP),
+        constant(1), attack, constant(ENV_SHAPE_CURVE), constant(ENV_CURVE),
+        sustain, decay, constant(ENV_SHAPE_CURVE), constant(ENV_CURVE),
+        constant(0), release, constant(ENV_SHAPE_CURVE), constant(ENV_CURVE));
+  }
+
+  /**
+   * Writes the graph as a synthdef file holding one synthdef of the given name.
+   */
+  public byte[] write(String name) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeBytes("SCgf");
+      out.writeInt(FILE_VERSION);
+      out.writeShort(1);
+      writeString(out, name);
+      out.writeShort(constants.size());
+      for (float constant : constants) {
+        out.writeFloat(constant);
+      }
+      out.writeShort(controlDefaults.length);
+      for (float value : controlDefaults) {
+        out.writeFloat(value);
+      }
+      out.writeShort(controlNames.length);
+      for (int i = 0; i < controlNames.length; i++) {
+        writeString(out, controlNames[i]);
+        out.writeShort(i);
+      }
+      out.writeShort(ugens.size());
+      for (UGen ugen : ugens) {
+        writeString(out, ugen.name);
+        out.writeByte(ugen.rate);
+        out.writeShort(ugen.inputs.length);
+        out.writeShort(ugen.outputs);
+        out.writeShort(ugen.special);
+        for (int input : ugen.inputs) {
+          if (input < 0) {
+            out.writeShort(-1);
+            out.writeShort(-1 - input);
+          } else {
+            out.writeShort(input / MAX_OUTPUTS);
+            out.writeShort(input % MAX_OUTPUTS);
+          }
+        }
+        for (int i = 0; i < ugen.outputs; i++) {
+          out.writeByte(ugen.rate);
+        }
+      }
+      // No variants.
+      out.writeShort(0);
+      out.flush();
+    } catch (IOException e) {
+      // Writing to memory does not fail.
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    out.writeByte(string.length());
+    out.writeBytes(string);
+  }
+}
@@ -0,0 +1,272 @@
+package com.google.appinventor.components.runtime.util;
+
+/**
+ * Hands out SuperCollider node IDs for notes and keeps track of which notes are still
+ * sounding, so that IDs are recycled within a fixed range and the number of live synths
+ * stays bounded.  A note is considered live until its expected end time; when a limit is
+ * reached, the oldest or quietest live note is stolen to make room for the new one.
+ *
+ * <p>All state is kept in primitive arrays, so allocating a voice creates no garbage.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class VoiceAllocator {
+  /** Steal the voice that started earliest. */
+  public static final int STEAL_OLDEST = 0;
+  /** Steal the voice with the lowest volume. */
+  public static final int STEAL_QUIETEST = 1;
+  /** Returned in place of a node ID when there is none. */
+  public static final int NONE = -1;
+
+  private static final int MILLISECS_IN_SEC = 1000;
+
+  private final int firstId;
+  private final int idCount;
+  private final long[] liveIds;
+  private int nextId;
+
+  // Live voices, packed at the start of the arrays.
+  private final int[] nodeIds;
+  private final Object[] owners;
+  private final long[] startTimes;
+  private final long[] endTimes;
+  private final float[] volumes;
+  private int size;
+  private int limit;
+
+  /**
+   * Creates an allocator handing out IDs from {@code firstId} up to but not including
+   * {@code firstId + idCount}.
+   *
+   * @param firstId  lowest node ID to use; IDs below it stay free for other nodes
+   * @param idCount  number of IDs to cycle through, which must exceed {@code capacity}
+   * @param capacity  greatest number of voices that can ever be live at once
+   */
+  public VoiceAllocator(int firstId, int idCount, int capacity) {
+    if (idCount <= capacity) {
+      throw new IllegalArgumentException("ID range must be larger than capacity");
+    }
+    this.firstId = firstId;
+    this.idCount = idCount;
+    liveIds = new long[(idCount + 63) / 64];
+    nodeIds = new int[capacity];
+    owners = new Object[capacity];
+    startTimes = new long[capacity];
+    endTimes = new long[capacity];
+    volumes = new float[capacity];
+    limit = capacity;
+  }
+
+  /**
+   * Returns when a note will have finished, given the time it starts in milliseconds, its
+   * duration in seconds and how long it rings after its duration in milliseconds.
+   */
+  public static long endTime(long startTime, float duration, long release) {
+    return startTime + (long) (duration * MILLISECS_IN_SEC) + release;
+  }
+
+  /**
+   * Returns the greatest number of voices that may be live at once across all owners.
+   */
+  public synchronized int limit() {
+    return limit;
+  }
+
+  /**
+   * Sets the greatest number of voices that may be live at once across all owners.  Values
+   * are clamped between 1 and the allocator's capacity.
+   */
+  public synchronized void setLimit(int limit) {
+    this.limit = Math.max(1, Math.min(limit, nodeIds.length));
+  }
+
+  /**
+   * Allocates a node ID for a new voice.  If the owner already has {@code ownerLimit} live
+   * voices, or the overall limit has been reached, a voice is stolen and its node ID stored
+   * in {@code stolen[0]}; the caller must free that node on the server.  Otherwise
+   * {@code stolen[0]} is set to {@link #NONE}.
+   *
+   * <p>Voices that have ended by {@code now} are expired first.  Voices due to end before a
+   * new voice that starts later still count against the limits, since they are sounding when
+   * it is allocated.
+   *
+   * @param owner  the component playing the voice
+   * @param ownerLimit  greatest number of live voices for the owner, or 0 for no limit
+   * @param stealMode  {@link #STEAL_OLDEST} or {@link #STEAL_QUIETEST}
+   * @param now  the current time, in milliseconds
+   * @param startTime  time the voice starts, in milliseconds
+   * @param endTime  time the voice is expected to have finished, in milliseconds
+   * @param volume  volume of the voice, used when stealing the quietest voice
+   * @param stolen  array receiving the node ID of a stolen voice
+   * @return  node ID for the new voice
+   */
+  public synchronized int allocate(Object owner, int ownerLimit, int stealMode, long now,
+      long startTime, long endTime, float volume, int[] stolen) {
+    expire(now);
+    stolen[0] = NONE;
+    int victim = -1;
+    if (ownerLimit > 0 && count(owner) >= ownerLimit) {
+      victim = pick(owner, stealMode);
+    } else if (size >= limit) {
+      victim = pick(null, stealMode);
+    }
+    if (victim >= 0) {
+      stolen[0] = nodeIds[victim];
+      remove(victim);
+    }
+    int nodeId = nextFreeId();
+    nodeIds[size] = nodeId;
+    owners[size] = owner;
+    startTimes[size] = startTime;
+    endTimes[size] = endTime;
+    volumes[size] = volume;
+    size++;
+    return nodeId;
+  }
+
+  /**
+   * Allocates a node ID for a voice starting now, on a clock of the caller's, as
+   * {@link #allocate(Object, int, int, long, long, long, float, int[])} does.
+   */
+  public int allocate(Object owner, int ownerLimit, int stealMode, long startTime,
+      long endTime, float volume, int[] stolen) {
+    return allocate(owner, ownerLimit, stealMode, startTime, startTime, endTime, volume,
+        stolen);
+  }
+
+  /**
+   * Marks a voice as finished, for example when the server reports that its node ended.
+   * Unknown node IDs are ignored.
+   */
+  public synchronized void release(int nodeId) {
+    for (int i = 0; i < size; i++) {
+      if (nodeIds[i] == nodeId) {
+        remove(i);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Brings forward the time a voice is expected to have finished, for example when it is
+   * released early.  Unknown node IDs and later times are ignored.
+   */
+  public synchronized void endBy(int nodeId, long endTime) {
+    for (int i = 0; i < size; i++) {
+      if (nodeIds[i] == nodeId) {
+        endTimes[i] = Math.min(endTimes[i], endTime);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Moves every live voice later by the given number of milliseconds, as when the server has
+   * been paused with their notes sounding.
+   */
+  public synchronized void delay(long time) {
+    for (int i = 0; i < size; i++) {
+      startTimes[i] += time;
+      endTimes[i] += time;
+    }
+  }
+
+  /**
+   * Returns whether a node ID belongs to a voice of the given owner that is live at the given
+   * time.  IDs are not reused while live, so a voice's ID identifies it until it ends.
+   */
+  public synchronized boolean isLive(Object owner, int nodeId, long now) {
+    expire(now);
+    for (int i = 0; i < size; i++) {
+      if (nodeIds[i] == nodeId) {
+        return owners[i] == owner;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Marks all of an owner's voices as finished, returning how many there were.
+   */
+  public synchronized int releaseAll(Object owner) {
+    int released = 0;
+    for (int i = size - 1; i >= 0; i--) {
+      if (owners[i] == owner) {
+        remove(i);
+        released++;
+      }
+    }
+    return released;
+  }
+
+  /**
+   * Returns the number of voices live at the given time, for one owner or, if the owner
+   * is null, for all owners.
+   */
+  public synchronized int liveCount(Object owner, long now) {
+    expire(now);
+    return owner == null ? size : count(owner);
+  }
+
+  // Removes voices that have ended by the given time.
+  private void expire(long now) {
+    for (int i = size - 1; i >= 0; i--) {
+      if (endTimes[i] <= now) {
+        remove(i);
+      }
+    }
+  }
+
+  private int count(Object owner) {
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      if (owners[i] == owner) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // Returns the slot of the voice to steal among the owner's voices, or all voices if the
+  // owner is null.
+  private int pick(Object owner, int stealMode) {
+    int victim = -1;
+    for (int i = 0; i < size; i++) {
+      if (owner != null && owners[i] != owner) {
+        continue;
+      }
+      if (victim < 0
+          || (stealMode == STEAL_QUIETEST ? volumes[i] < volumes[victim]
+              : startTimes[i] < startTimes[victim])) {
+        victim = i;
+      }
+    }
+    return victim;
+  }
+
+  // Removes the voice in the given slot, moving the last voice into its place.
+  private void remove(int slot) {
+    int offset = nodeIds[slot] - firstId;
+    liveIds[offset >> 6] &= ~(1L << offset);
+    size--;
+    nodeIds[slot] = nodeIds[size];
+    owners[slot] = owners[size];
+    startTimes[slot] = startTimes[size];
+    endTimes[slot] = endTimes[size];
+    volumes[slot] = volumes[size];
+    owners[size] = null;
+  }
+
+  // Returns the next ID in the range that is not in use, cycling back to the start of the range
+  // so that the IDs reused are those freed longest ago.
+  private int nextFreeId() {
+    while (true) {
+      int offset = nextId;
+      nextId = (nextId + 1) % idCount;
+      if ((liveIds[offset >> 6] & (1L << offset)) == 0) {
+        liveIds[offset >> 6] |= 1L << offset;
+        return firstId + offset;
+      }
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package com.google.appinventor.components.runtime.util;
+
+/**
+ * Generates the instrument synthdefs that play a waveform: sine, saw, triangle, pulse and
+ * noise.  They are defined here rather than packaged as assets so that every note can be
+ * changed while it sounds: changes to {@code freq} and {@code mul} are lagged by
+ * {@code glide} seconds, and the note is released after {@code duration} seconds or when
+ * {@code gate} is set to 0, fading out over its release rather than being cut off.
+ *
+ * <p>Their other controls are the envelope, {@code reverb} and {@code effectBus}, as for
+ * {@link SampleSynthDef}.  Each keeps the name of the packaged synthdef it replaces, so
+ * servers and captures see the same synthdefs as before.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public final class WaveformSynthDef {
+  static final int SINE = 0;
+  static final int SAW = 1;
+  static final int TRIANGLE = 2;
+  static final int PULSE = 3;
+  private static final String[] NAMES = {
+      "sine-inst", "saw-inst", "triangle-inst", "pulse-inst", "noise-inst"
+  };
+
+  // Controls, in the order of the synthdef's parameters, with their defaults.  Envelope
+  // defaults are those of the packaged synthdefs.
+  private static final String[] CONTROL_NAMES = {
+      "freq", "duration", "mul", "attack", "decay", "sustain", "release", "reverb",
+      "effectBus", "glide", "gate"
+  };
+  private static final float[] CONTROL_DEFAULTS = {
+      440, 1, 0.5f, 0.01f, 0.3f, 0.05f, 1, 0, -1, 0, 1
+  };
+  private static final int FREQ = 0;
+  private static final int DURATION = 1;
+  private static final int MUL = 2;
+  private static final int ATTACK = 3;
+  private static final int DECAY = 4;
+  private static final int SUSTAIN = 5;
+  private static final int RELEASE = 6;
+  private static final int REVERB = 7;
+  private static final int EFFECT_BUS = 8;
+  private static final int GLIDE = 9;
+  private static final int GATE = 10;
+  // NoteMessageBuilder.sustainControl gives the sustain percentage divided by 1000.
+  private static final float SUSTAIN_SCALE = 10;
+  private static final float PAN_GAIN = 0.7071f;
+  private static final int CONTROL_RATE = SynthDefGraph.CONTROL_RATE;
+  private static final int AUDIO_RATE = SynthDefGraph.AUDIO_RATE;
+  private static final int OP_SUB = SynthDefGraph.OP_SUB;
+  private static final int OP_MUL = SynthDefGraph.OP_MUL;
+  private static final int OP_GREATER = SynthDefGraph.OP_GREATER;
+
+  private static final byte[][] built = new byte[NAMES.length][];
+
+  private WaveformSynthDef() {
+  }
+
+  /**
+   * Returns whether a synthdef is one of the waveform instrument synthdefs.
+   */
+  public static boolean isWaveform(String synthDef) {
+    return waveform(synthDef) >= 0;
+  }
+
+  /**
+   * Returns the synthdef file for a waveform instrument synthdef, built the first time it is
+   * asked for, or null if the synthdef has no waveform.
+   */
+  public static synchronized byte[] build(String synthDef) {
+    int waveform = waveform(synthDef);
+    if (waveform < 0) {
+      return null;
+    }
+    if (built[waveform] == null) {
+      built[waveform] = buildGraph(waveform).write(synthDef);
+    }
+    return built[waveform].clone();
+  }
+
+  /**
+   * Returns the waveform an instrument synthdef plays, or -1 if it has none.
+   */
+  static int waveform(String synthDef) {
+    for (int i = 0; i < NAMES.length; i++) {
+      if (NAMES[i].equals(synthDef)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Adds the oscillator for a waveform to a graph, returning the oscillator.
+   */
+  static int oscillator(SynthDefGraph graph, int waveform, int frequency) {
+    switch (waveform) {
+      case SINE:
+        return graph.ugen("SinOsc", AUDIO_RATE, 1, 0, frequency, graph.constant(0));
+      case SAW:
+        return graph.ugen("Saw", AUDIO_RATE, 1, 0, frequency);
+      case TRIANGLE:
+        return graph.ugen("LFTri", AUDIO_RATE, 1, 0, frequency, graph.constant(0));
+      case PULSE:
+        return graph.ugen("Pulse", AUDIO_RATE, 1, 0, frequency, graph.constant(0.5f));
+      default:
+        return graph.ugen("WhiteNoise", AUDIO_RATE, 1, 0);
+    }
+  }
+
+  private static SynthDefGraph buildGraph(int waveform) {
+    SynthDefGraph graph = new SynthDefGraph(CONTROL_NAMES, CONTROL_DEFAULTS);
+    int glide = graph.control(GLIDE);
+    int frequency = graph.ugen("Lag", CONTROL_RATE, 1, 0, graph.control(FREQ), glide);
+    int volume = graph.ugen("Lag", CONTROL_RATE, 1, 0, graph.control(MUL), glide);
+    // The gate stays open for the note's duration, unless gate is set to 0 first.
+    int held = graph.ugen("Line", CONTROL_RATE, 1, 0, graph.constant(1), graph.constant(0),
+        graph.control(DURATION), graph.constant(0));
+    int gate = graph.binaryOp(CONTROL_RATE, OP_MUL,
+        graph.binaryOp(CONTROL_RATE, OP_GREATER, held, graph.constant(0)),
+        graph.control(GATE));
+    int envelope = graph.adsr(gate, graph.constant(1),
+        graph.control(ATTACK), graph.control(DECAY),
+        graph.binaryOp(CONTROL_RATE, OP_MUL, graph.control(SUSTAIN),
+            graph.constant(SUSTAIN_SCALE)),
+        graph.control(RELEASE), SynthDefGraph.FREE_SELF);
+    int signal = graph.binaryOp(AUDIO_RATE, OP_MUL, oscillator(graph, waveform, frequency),
+        graph.binaryOp(CONTROL_RATE, OP_MUL, envelope, volume));
+    int reverb = graph.control(REVERB);
+    int dry = graph.binaryOp(AUDIO_RATE, OP_MUL, signal, graph.binaryOp(CONTROL_RATE, OP_MUL,
+        graph.binaryOp(CONTROL_RATE, OP_SUB, graph.constant(1), reverb),
+        graph.constant(PAN_GAIN)));
+    graph.ugen("Out", AUDIO_RATE, 0, 0, graph.constant(0), dry, dry);
+    graph.ugen("Out", AUDIO_RATE, 0, 0, graph.control(EFFECT_BUS),
+        graph.binaryOp(AUDIO_RATE, OP_MUL, signal, reverb));
+    return graph;
+  }
+}
@@ -0,0 +1,323 @@
+package com.google.appinventor.components.runtime.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for the Instrument component's note pipeline, run on a desktop JVM without
+ * a device or a SuperCollider server.  The component itself needs Android, so each benchmark
+ * drives the util classes it plays notes with, in the order Instrument calls them:
+ * arguments are parsed by {@link NoteParser}, voices allocated by {@link VoiceAllocator}
+ * against a simulated clock, and messages built by the same {@link NoteMessageBuilder} note
+ * methods, with the first instrument's group and control buses.  Messages that
+ * Instrument would hand to SCAudio go to a recording stub instead, and bundles are sent to a
+ * local socket that is never read.  The "encoded" benchmarks take Instrument's usual path
+ * through {@link OscEncoder} templates; the others build message arrays, as Instrument does
+ * when UDP is unavailable.
+ *
+ * <p>{@code benchmarks/run.sh} builds and runs the benchmarks.  It needs JMH, from Maven
+ * Central: org.openjdk.jmh:jmh-core and, to generate the benchmark classes when compiling,
+ * org.openjdk.jmh:jmh-generator-annprocess, with their dependencies jopt-simple and
+ * commons-math3, in {@code benchmarks/lib} or the directory {@code JMH_LIB} names.  The util
+ * classes log through {@code android.util.Log}, so {@code ANDROID_JAR} must name the
+ * android.jar of an Android SDK platform.  With no arguments it runs {@link #main}, which runs
+ * every benchmark with the GC profiler; arguments are passed to JMH instead.
+ *
+ * <p>Throughput is reported in operations per second; the GC profiler adds the allocation
+ * rate and bytes allocated per operation, which is the figure to watch on Android.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstrumentBenchmark {
+  // Mirror Instrument's defaults and limits so the workloads behave as they would on a device.
+  private static final float DEFAULT_DURATION = 500;
+  private static final float DEFAULT_VOLUME = 50;
+  private static final int FIRST_NOTE_ID = 1000;
+  private static final int NOTE_ID_COUNT = 1 << 16;
+  private static final int MAX_VOICES = 128;
+  private static final int GLOBAL_POLYPHONY = 32;
+  private static final int MAX_POLYPHONY = 16;
+  private static final long ASSUMED_RELEASE = 1000;
+  // Sustain level, as a percentage of the peak.
+  private static final float SUSTAIN = 70;
+  private static final int ACTION_ADD_TO_HEAD = 0;
+  // The first instrument's group and control buses.
+  private static final int FIRST_GROUP_ID = FIRST_NOTE_ID + NOTE_ID_COUNT;
+  private static final int FIRST_CONTROL_BUS = 0;
+  private static final int REVERB_BUS = 4;
+  private static final String SYNTHDEF = "sine-inst";
+  private static final int SEQUENCE_LENGTH = 64;
+  // Each simulated call to Play advances the clock this much, in milliseconds.
+  private static final long PLAY_INTERVAL = 20;
+
+  /**
+   * Stands in for SCAudio, counting the messages it is sent and keeping the last one so the
+   * JIT cannot discard the work of building them.
+   */
+  static final class RecordingAudio implements EffectGraph.MessageSender {
+    int messages;
+    Object[] last;
+
+    @Override
+    public void send(Object[] message) {
+      messages++;
+      last = message;
+    }
+  }
+
+  /** Whether notes are played with the synthdef defaults or with every setting in use. */
+  @Param({"defaults", "envelope"})
+  public String settings;
+
+  private final NoteParser parser = new NoteParser();
+  private final float[] params = new float[NoteParser.PARAM_COUNT];
+  private final int[] stolen = new int[1];
+  private final Object owner = new Object();
+  private final RecordingAudio audio = new RecordingAudio();
+  private NoteMessageBuilder builder;
+  private VoiceAllocator voices;
+  private long now;
+
+  private Object[] letterNote;
+  private Object[] letterNoteStrings;
+  private Object[] frequencyNote;
+  private Object[] frequencyNoteStrings;
+  private Object[][] chord;
+  private Object[][] sequence;
+  private Object[][] bundle;
+
+  private DatagramChannel sink;
+  private OscBundleSender bundleSender;
+  private OscEncoder encoder;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    builder = new NoteMessageBuilder(ACTION_ADD_TO_HEAD, FIRST_GROUP_ID, FIRST_CONTROL_BUS);
+    if ("envelope".equals(settings)) {
+      builder.setAttack(0.01f);
+      builder.setDecay(0.1f);
+      builder.setSustain(NoteMessageBuilder.sustainControl(SUSTAIN));
+      builder.setRelease(0.3f);
+      builder.setReverb(0.25f, REVERB_BUS);
+    }
+    voices = new VoiceAllocator(FIRST_NOTE_ID, NOTE_ID_COUNT, MAX_VOICES);
+    voices.setLimit(GLOBAL_POLYPHONY);
+
+    // Arguments arrive from blocks as boxed numbers, or as strings from text blocks.
+    letterNote = new Object[] {"C#", 4, 250.0, 80.0};
+    letterNoteStrings = new Object[] {"C#", "4", "250", "80"};
+    frequencyNote = new Object[] {277.18, 250.0, 80.0};
+    frequencyNoteStrings = new Object[] {"277.18", "250", "80"};
+    chord = new Object[][] {{"C", 4}, {"E", 4}, {"G", 4}, {"C", 5, 1000.0, 80.0}};
+    String[] names = {"C", "D", "E", "F", "G", "A", "B"};
+    sequence = new Object[SEQUENCE_LENGTH][];
+    for (int i = 0; i < SEQUENCE_LENGTH; i++) {
+      sequence[i] = new Object[] {i * 125.0, names[i % names.length], 3 + i / 28, 125.0};
+    }
+    bundle = new Object[2 * SEQUENCE_LENGTH][];
+
+    // Datagrams to a socket that is never read are dropped once its buffer is full, without
+    // holding up the sender.
+    sink = DatagramChannel.open();
+    sink.bind(new InetSocketAddress("127.0.0.1", 0));
+    bundleSender = new OscBundleSender("127.0.0.1",
+        ((InetSocketAddress) sink.getLocalAddress()).getPort());
+    encoder = new OscEncoder(bundleSender);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    bundleSender.close();
+    sink.close();
+  }
+
+  @Benchmark
+  public float parseNoteLetter() {
+    parser.parse(letterNote, 0, DEFAULT_DURATION, DEFAULT_VOLUME, params);
+    return params[NoteParser.FREQUENCY];
+  }
+
+  @Benchmark
+  public float parseNoteLetterStrings() {
+    parser.parse(letterNoteStrings, 0, DEFAULT_DURATION, DEFAULT_VOLUME, params);
+    return params[NoteParser.FREQUENCY];
+  }
+
+  @Benchmark
+  public float parseFrequency() {
+    parser.parse(frequencyNote, 0, DEFAULT_DURATION, DEFAULT_VOLUME, params);
+    return params[NoteParser.FREQUENCY];
+  }
+
+  @Benchmark
+  public float parseFrequencyStrings() {
+    parser.parse(frequencyNoteStrings, 0, DEFAULT_DURATION, DEFAULT_VOLUME, params);
+    return params[NoteParser.FREQUENCY];
+  }
+
+  @Benchmark
+  public Object[] buildNoteMessage() {
+    return builder.build(SYNTHDEF, FIRST_NOTE_ID, 440f, 0.5f, 0.5f);
+  }
+
+  /**
+   * A call to Play: parse, allocate a voice and send the note with the JNI path.
+   */
+  @Benchmark
+  public int play() {
+    now += PLAY_INTERVAL;
+    if (parser.parse(letterNote, 0, DEFAULT_DURATION, DEFAULT_VOLUME, params)) {
+      int noteId = allocate(now, params[NoteParser.DURATION], params[NoteParser.VOLUME]);
+      if (stolen[0] != VoiceAllocator.NONE) {
+        audio.send(NoteMessageBuilder.freeMessage(stolen[0]));
+      }
+      audio.send(builder.buildNote(SYNTHDEF, null, noteId, params[NoteParser.FREQUENCY],
+          params[NoteParser.DURATION], params[NoteParser.VOLUME]));
+    }
+    return audio.messages;
+  }
+
+  @Benchmark
+  public int encodeNoteMessage() throws IOException {
+    encoder.startBundle(OscBundleSender.IMMEDIATELY);
+    builder.write(encoder, SYNTHDEF, FIRST_NOTE_ID, 440f, 0.5f, 0.5f);
+    return encoder.send();
+  }
+
+  /**
+   * A call to Play through the encoder: parse, allocate a voice and send the note over UDP.
+   */
+  @Benchmark
+  public int playEncoded() throws IOException {
+    now += PLAY_INTERVAL;
+    encoder.startBundle(OscBundleSender.IMMEDIATELY);
+    if (parser.parse(letterNote, 0, DEFAULT_DURATION, DEFAULT_VOLUME, params)) {
+      encodeNote(now);
+    }
+    return encoder.send();
+  }
+
+  /**
+   * A call to PlayChord through the encoder.
+   */
+  @Benchmark
+  public int playChordEncoded() throws IOException {
+    now += PLAY_INTERVAL;
+    encoder.startBundle(OscBundleSender.IMMEDIATELY);
+    for (Object[] note : chord) {
+      if (parser.parse(note, 0, DEFAULT_DURATION, DEFAULT_VOLUME, params)) {
+        encodeNote(now);
+      }
+    }
+    return encoder.send();
+  }
+
+  /**
+   * A call to PlayChord: every note parsed, allocated and sent in one bundle.
+   */
+  @Benchmark
+  public int playChord() throws IOException {
+    now += PLAY_INTERVAL;
+    int count = 0;
+    for (Object[] note : chord) {
+      if (parser.parse(note, 0, DEFAULT_DURATION, DEFAULT_VOLUME, params)) {
+        count = addNote(count, now);
+      }
+    }
+    bundleSender.send(OscBundleSender.IMMEDIATELY, bundle, count);
+    return count;
+  }
+
+  /**
+   * A call to PlaySequence: the notes parsed into a NoteSequence, then sent in bundles of
+   * notes with equal onsets, as the sequence player does.
+   */
+  @Benchmark
+  @OperationsPerInvocation(SEQUENCE_LENGTH)
+  public int playSequence() throws IOException {
+    NoteSequence notes = new NoteSequence(sequence.length);
+    for (Object[] timedNote : sequence) {
+      if (parser.parse(timedNote, 1, DEFAULT_DURATION, DEFAULT_VOLUME, params)) {
+        notes.add((long) NoteParser.parseFloat(timedNote[0]), params[NoteParser.FREQUENCY],
+            params[NoteParser.DURATION], params[NoteParser.VOLUME]);
+      }
+    }
+    long start = now;
+    int sent = 0;
+    for (int i = 0; i < notes.size(); ) {
+      long onset = start + notes.onset(i);
+      int count = 0;
+      for (int end = notes.groupEnd(i); i < end; i++) {
+        params[NoteParser.FREQUENCY] = notes.frequency(i);
+        params[NoteParser.DURATION] = notes.duration(i);
+        params[NoteParser.VOLUME] = notes.volume(i);
+        count = addNote(count, onset);
+      }
+      bundleSender.send(OscBundleSender.timeTag(onset), bundle, count);
+      sent += count;
+      now = onset;
+    }
+    return sent;
+  }
+
+  // Allocates a voice for the note in params and adds its messages to the encoder's bundle.
+
+  private void encodeNote(long startTime) throws IOException {
+    int noteId = allocate(startTime, params[NoteParser.DURATION], params[NoteParser.VOLUME]);
+    builder.writeNote(encoder, SYNTHDEF, null, noteId, stolen[0],
+        params[NoteParser.FREQUENCY], params[NoteParser.DURATION], params[NoteParser.VOLUME]);
+  }
+
+  // Allocates a voice for a note ringing for the default release, as
+  // Instrument.allocateVoice does.
+
+  private int allocate(long startTime, float duration, float volume) {
+    return voices.allocate(owner, MAX_POLYPHONY, VoiceAllocator.STEAL_OLDEST, now, startTime,
+        VoiceAllocator.endTime(startTime, duration, ASSUMED_RELEASE), volume, stolen);
+  }
+
+  // Allocates a voice for the note in params and appends its messages to the bundle.
+
+  private int addNote(int count, long startTime) {
+    int noteId = allocate(startTime, params[NoteParser.DURATION], params[NoteParser.VOLUME]);
+    return builder.addNote(bundle, count, SYNTHDEF, null, noteId, stolen[0],
+        params[NoteParser.FREQUENCY], params[NoteParser.DURATION], params[NoteParser.VOLUME]);
+  }
+
+  /**
+   * Runs every benchmark with the GC profiler.
+   */
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(InstrumentBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+}
@@ -0,0 +1,37 @@
+#!/bin/sh
+# Builds and runs the Instrument benchmarks on a desktop JVM.
+#
+# JMH_LIB names a directory (benchmarks/lib by default) holding the JMH jars from Maven
+# Central: jmh-core, jmh-generator-annprocess, jopt-simple and commons-math3.  The util
+# classes log through android.util.Log, so ANDROID_JAR must name the android.jar of an
+# Android SDK platform.  With no arguments every benchmark is run with the GC profiler;
+# otherwise the arguments are passed to JMH, for example: benchmarks/run.sh -prof gc playChord
+set -e
+
+cd "$(dirname "$0")/.."
+JMH_LIB=${JMH_LIB:-benchmarks/lib}
+: "${ANDROID_JAR:?set ANDROID_JAR to the android.jar of an Android SDK platform}"
+BUILD=benchmarks/build
+
+JMH_CLASSPATH=
+for jar in "$JMH_LIB"/*.jar; do
+  JMH_CLASSPATH="$JMH_CLASSPATH:$jar"
+done
+if [ -z "$JMH_CLASSPATH" ]; then
+  echo "No JMH jars in $JMH_LIB" >&2
+  exit 1
+fi
+CLASSPATH="$ANDROID_JAR$JMH_CLASSPATH"
+
+# Instrument itself needs the App Inventor runtime; the benchmarks only use the util classes.
+rm -rf "$BUILD"
+mkdir -p "$BUILD"
+javac -nowarn -d "$BUILD" -cp "$CLASSPATH" \
+    -processor org.openjdk.jmh.generators.BenchmarkProcessor \
+    benchmarks/InstrumentBenchmark.java $(ls *.java | grep -v '^Instrument\.java$')
+
+if [ $# -eq 0 ]; then
+  exec java -cp "$BUILD:$CLASSPATH" \
+      com.google.appinventor.components.runtime.util.InstrumentBenchmark
+fi
+exec java -cp "$BUILD:$CLASSPATH" org.openjdk.jmh.Main "$@"
@@ -0,0 +1,254 @@
+package com.google.appinventor.components.runtime.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link AudioCommandQueue}'s overflow modes, ordering and fences.  A command of
+ * kind {@link #HOLD} keeps the dispatch thread busy until {@link #release} is called, so the
+ * queue can be filled while it waits.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public class AudioCommandQueueTest {
+  private static final int CAPACITY = 4;
+  private static final int HOLD = 99;
+  private static final int FAIL = 98;
+  // How long a producer is given to get past a full queue it should be waiting on.
+  private static final long BLOCKED_MILLIS = 100;
+
+  private final List<String> executed = new ArrayList<String>();
+  private final CountDownLatch holding = new CountDownLatch(1);
+  private final CountDownLatch released = new CountDownLatch(1);
+  private AudioCommandQueue queue;
+
+  @Before
+  public void setUp() {
+    queue = new AudioCommandQueue(CAPACITY, new AudioCommandQueue.CommandHandler() {
+      @Override
+      public void execute(AudioCommandQueue.Command command) {
+        if (command.kind == HOLD) {
+          holding.countDown();
+          try {
+            released.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        } else if (command.kind == FAIL) {
+          throw new IllegalStateException("failed on purpose");
+        }
+        record(String.valueOf(command.kind));
+      }
+
+      @Override
+      public void update(Object key, float value) {
+        record(key + "=" + (int) value);
+      }
+    }, "AudioCommandQueueTest");
+  }
+
+  @Test
+  public void executesInOrder() throws InterruptedException {
+    for (int i = 0; i < 10; i++) {
+      send(i, true);
+    }
+    queue.await();
+    assertExecuted("0", "1", "2", "3", "4", "5", "6", "7", "8", "9");
+  }
+
+  @Test
+  public void blockWaitsForRoom() throws InterruptedException {
+    queue.setOverflow(AudioCommandQueue.BLOCK);
+    hold();
+    for (int i = 1; i <= CAPACITY; i++) {
+      send(i, true);
+    }
+    Thread producer = sendInBackground(CAPACITY + 1);
+    producer.join(BLOCKED_MILLIS);
+    assertTrue(producer.isAlive());
+    release();
+    producer.join();
+    queue.await();
+    assertExecuted(String.valueOf(HOLD), "1", "2", "3", "4", "5");
+    assertEquals(0, queue.dropped());
+  }
+
+  @Test
+  public void dropOldestDiscardsTheOldestQueuedCommand() throws InterruptedException {
+    queue.setOverflow(AudioCommandQueue.DROP_OLDEST);
+    hold();
+    for (int i = 1; i <= CAPACITY + 2; i++) {
+      send(i, true);
+    }
+    assertEquals(2, queue.dropped());
+    release();
+    // A full queue would otherwise drop a command to make room for the fence.
+    queue.setOverflow(AudioCommandQueue.BLOCK);
+    queue.await();
+    assertExecuted(String.valueOf(HOLD), "3", "4", "5", "6");
+  }
+
+  @Test
+  public void dropOldestWaitsForCommandsThatMustNotBeDropped() throws InterruptedException {
+    queue.setOverflow(AudioCommandQueue.DROP_OLDEST);
+    hold();
+    send(1, false);
+    send(2, true);
+    send(3, true);
+    send(4, true);
+    Thread producer = sendInBackground(5);
+    producer.join(BLOCKED_MILLIS);
+    assertTrue(producer.isAlive());
+    assertEquals(0, queue.dropped());
+    release();
+    // A full queue would otherwise drop a command to make room for the fence.
+    queue.setOverflow(AudioCommandQueue.BLOCK);
+    producer.join();
+    queue.await();
+    assertExecuted(String.valueOf(HOLD), "1", "2", "3", "4", "5");
+  }
+
+  @Test
+  public void updatesAreNotDroppable() throws InterruptedException {
+    queue.setOverflow(AudioCommandQueue.DROP_OLDEST);
+    AudioCommandQueue.Parameter volume = new AudioCommandQueue.Parameter("volume");
+    hold();
+    send(1, true);
+    queue.update(volume, 2);
+    send(3, true);
+    send(4, true);
+    send(5, true);
+    assertEquals(1, queue.dropped());
+    release();
+    // A full queue would otherwise drop a command to make room for the fence.
+    queue.setOverflow(AudioCommandQueue.BLOCK);
+    queue.await();
+    assertExecuted(String.valueOf(HOLD), "volume=2", "3", "4", "5");
+  }
+
+  @Test
+  public void updatesAreAppliedInOrderUnlessCoalesced() throws InterruptedException {
+    AudioCommandQueue.Parameter volume = new AudioCommandQueue.Parameter("volume");
+    queue.update(volume, 1);
+    send(1, true);
+    queue.update(volume, 2);
+    queue.update(volume, 3);
+    send(2, true);
+    queue.await();
+    assertExecuted("volume=1", "1", "volume=2", "volume=3", "2");
+  }
+
+  @Test
+  public void coalesceKeepsOnlyTheLatestValue() throws InterruptedException {
+    queue.setOverflow(AudioCommandQueue.COALESCE);
+    AudioCommandQueue.Parameter volume = new AudioCommandQueue.Parameter("volume");
+    AudioCommandQueue.Parameter pan = new AudioCommandQueue.Parameter("pan");
+    hold();
+    queue.update(volume, 1);
+    send(1, true);
+    queue.update(volume, 2);
+    queue.update(pan, 5);
+    send(2, true);
+    // The queue is full, but these take no more slots.
+    queue.update(volume, 3);
+    queue.update(pan, 6);
+    assertEquals(CAPACITY, queue.size());
+    release();
+    send(3, true);
+    queue.await();
+    // Applied where the first update was queued, ahead of command 1.
+    assertExecuted(String.valueOf(HOLD), "volume=3", "1", "pan=6", "2", "3");
+    // Once applied, the next update is queued afresh.
+    queue.update(volume, 4);
+    queue.await();
+    assertEquals("volume=4", executed().get(executed().size() - 1));
+  }
+
+  @Test
+  public void awaitWaitsForEarlierCommands() throws InterruptedException {
+    hold();
+    send(1, true);
+    final CountDownLatch awaited = new CountDownLatch(1);
+    Thread waiter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          queue.await();
+          awaited.countDown();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    waiter.start();
+    waiter.join(BLOCKED_MILLIS);
+    assertEquals(1, awaited.getCount());
+    release();
+    waiter.join();
+    assertEquals(0, awaited.getCount());
+    assertExecuted(String.valueOf(HOLD), "1");
+  }
+
+  @Test
+  public void failingCommandDoesNotStopTheQueue() throws InterruptedException {
+    send(1, true);
+    send(FAIL, true);
+    send(2, true);
+    queue.await();
+    assertEquals(1, queue.failed());
+    assertExecuted("1", "2");
+  }
+
+  @Test
+  public void onlyTheDispatchThreadIsTheDispatchThread() throws InterruptedException {
+    assertFalse(queue.isDispatchThread());
+  }
+
+  private void send(int kind, boolean droppable) {
+    AudioCommandQueue.Command command = queue.claim(kind);
+    command.droppable = droppable;
+    queue.publish(command);
+  }
+
+  private Thread sendInBackground(final int kind) {
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        send(kind, true);
+      }
+    });
+    producer.start();
+    return producer;
+  }
+
+  // Keeps the dispatch thread busy with a command, returning once it has started on it.
+  private void hold() throws InterruptedException {
+    send(HOLD, false);
+    holding.await();
+  }
+
+  private void release() {
+    released.countDown();
+  }
+
+  private synchronized void record(String event) {
+    executed.add(event);
+  }
+
+  private synchronized List<String> executed() {
+    return new ArrayList<String>(executed);
+  }
+
+  private void assertExecuted(String... expected) {
+    assertEquals(Arrays.asList(expected), executed());
+  }
+}
@@ -0,0 +1,107 @@
+package com.google.appinventor.components.runtime.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link JavaSynth}, rendering its output directly without an audio device.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public class JavaSynthTest {
+  private static final int SAMPLE_RATE = 8000;
+  private static final int NOTE_ID = 1000;
+  private static final int REVERB_ID = 900;
+  private static final int REVERB_BUS = 16;
+  // Quieter than any note, louder than rounding errors.
+  private static final float SILENCE = 1e-4f;
+
+  private final float[] block = new float[JavaSynth.BLOCK_SIZE * JavaSynth.CHANNELS];
+  private JavaSynth synth;
+
+  @Before
+  public void setUp() {
+    synth = new JavaSynth(null, SAMPLE_RATE);
+  }
+
+  @Test
+  public void noteSoundsForItsDurationAndRelease() {
+    synth.sendMessage(note("sine-inst", 0.1f, 0));
+    assertTrue(peak(0.05f) > SILENCE);
+    assertEquals(1, synth.activeVoices());
+    // Duration, then the release.
+    peak(0.1f);
+    assertEquals(0, synth.activeVoices());
+    assertTrue(peak(0.05f) < SILENCE);
+  }
+
+  @Test
+  public void freedNoteStopsAtOnce() {
+    synth.sendMessage(note("saw-inst", 10, 0));
+    assertTrue(peak(0.05f) > SILENCE);
+    synth.sendMessage(new Object[] {"/n_free", NOTE_ID});
+    assertTrue(peak(0.05f) < SILENCE);
+    assertEquals(0, synth.activeVoices());
+  }
+
+  @Test
+  public void closingGateReleasesNoteEarly() {
+    synth.sendMessage(note("triangle-inst", 10, 0));
+    assertTrue(peak(0.05f) > SILENCE);
+    synth.sendMessage(new Object[] {"/n_set", NOTE_ID, "gate", 0f});
+    // Still sounding during the release, then freed.
+    assertTrue(peak(0.01f) > SILENCE);
+    peak(0.1f);
+    assertEquals(0, synth.activeVoices());
+    assertTrue(peak(0.05f) < SILENCE);
+  }
+
+  @Test
+  public void reverbRingsAfterNoteEnds() {
+    synth.sendMessage(new Object[] {
+        "/s_new", "reverb", REVERB_ID, 1, 0, "inBus", (float) REVERB_BUS
+    });
+    synth.sendMessage(note("sine-inst", 0.1f, 1));
+    peak(0.2f);
+    assertEquals(0, synth.activeVoices());
+    assertTrue(peak(0.05f) > SILENCE);
+  }
+
+  @Test
+  public void noteSentToNoEffectHasNoTail() {
+    synth.sendMessage(new Object[] {
+        "/s_new", "reverb", REVERB_ID, 1, 0, "inBus", (float) REVERB_BUS
+    });
+    synth.sendMessage(note("sine-inst", 0.1f, 0));
+    peak(0.2f);
+    assertTrue(peak(0.05f) < SILENCE);
+  }
+
+  // Returns the message starting a note with short envelope times, sending the given amount of
+  // it to the reverb.
+
+  private static Object[] note(String synthDef, float duration, float reverb) {
+    return new Object[] {
+        "/s_new", synthDef, NOTE_ID, 0, 1, "freq", 440f, "duration", duration, "mul", 0.5f,
+        "attack", 0.005f, "decay", 0.01f, "sustain", 0.07f, "release", 0.02f,
+        "reverb", reverb, "effectBus", (float) REVERB_BUS
+    };
+  }
+
+  // Renders the given number of seconds, returning the loudest sample.
+
+  private float peak(float seconds) {
+    float peak = 0;
+    int blocks = (int) Math.ceil(seconds * SAMPLE_RATE / JavaSynth.BLOCK_SIZE);
+    for (int i = 0; i < blocks; i++) {
+      synth.render(block);
+      for (float sample : block) {
+        peak = Math.max(peak, Math.abs(sample));
+      }
+    }
+    return peak;
+  }
+}
@@ -0,0 +1,149 @@
+package com.google.appinventor.components.runtime.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link MelodyCache}'s melody syntax and caching.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public class MelodyCacheTest {
+  private static final int CAPACITY = 2;
+  private static final float DEFAULT_DURATION = 500;
+  private static final float DEFAULT_VOLUME = 50;
+  private static final float TOLERANCE = 1e-3f;
+
+  private MelodyCache cache;
+
+  @Before
+  public void setUp() {
+    cache = new MelodyCache(CAPACITY);
+  }
+
+  @Test
+  public void notesFollowEachOther() {
+    NoteSequence notes = get("C4:250 E4:250:80 G4");
+    assertEquals(3, notes.size());
+    assertNote(notes, 0, 0, 261.626f, 0.25f, 0.5f);
+    assertNote(notes, 1, 250, 329.628f, 0.25f, 0.8f);
+    // Duration and volume carry over from the note before.
+    assertNote(notes, 2, 500, 391.995f, 0.25f, 0.8f);
+    assertEquals(750, notes.length());
+  }
+
+  @Test
+  public void octavesCarryOver() {
+    NoteSequence notes = get("A3 C# Bb H");
+    assertEquals(220, notes.frequency(0), TOLERANCE);
+    assertEquals(138.591f, notes.frequency(1), TOLERANCE);
+    assertEquals(233.082f, notes.frequency(2), TOLERANCE);
+    assertEquals(246.942f, notes.frequency(3), TOLERANCE);
+  }
+
+  @Test
+  public void cFlatAndBSharpStayInTheirOctave() {
+    NoteSequence notes = get("Cb4 B#4");
+    assertEquals(493.883f, notes.frequency(0), TOLERANCE);
+    assertEquals(261.626f, notes.frequency(1), TOLERANCE);
+  }
+
+  @Test
+  public void chordsSoundTogether() {
+    NoteSequence notes = get("C4+E4+G4:400 330");
+    assertEquals(4, notes.size());
+    assertEquals(3, notes.groupEnd(0));
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, notes.onset(i));
+      assertEquals(0.4f, notes.duration(i), TOLERANCE);
+    }
+    assertNote(notes, 3, 400, 330, 0.4f, 0.5f);
+  }
+
+  @Test
+  public void restsTakeTime() {
+    NoteSequence notes = get("r:100 440 R:300");
+    assertEquals(1, notes.size());
+    assertNote(notes, 0, 100, 440, 0.1f, 0.5f);
+    // Ending in a rest lasts until the rest ends.
+    assertEquals(500, notes.length());
+  }
+
+  @Test
+  public void emptyFieldsKeepPreviousValues() {
+    NoteSequence notes = get("  440:200:90   550::40\t660:  ");
+    assertEquals(3, notes.size());
+    assertNote(notes, 1, 200, 550, 0.2f, 0.4f);
+    assertNote(notes, 2, 400, 660, 0.2f, 0.4f);
+  }
+
+  @Test
+  public void followsThePitchTable() {
+    NoteSequence notes = cache.get("A4", PitchTable.ALTERNATE, DEFAULT_DURATION,
+        DEFAULT_VOLUME);
+    assertEquals(432, notes.frequency(0), TOLERANCE);
+  }
+
+  @Test
+  public void rejectsBadMelodies() {
+    String[] melodies = {
+        "C4:100:50:7", "C4:long", "C4:100:loud", "C4:-100", "X4", "C4+loud", "Cx4", "C4.5"
+    };
+    for (String melody : melodies) {
+      boolean rejected = false;
+      try {
+        get(melody);
+      } catch (IllegalArgumentException e) {
+        rejected = true;
+      }
+      assertTrue(rejected);
+    }
+    assertEquals(0, cache.hits());
+  }
+
+  @Test
+  public void compiledMelodiesAreReused() {
+    NoteSequence notes = get("C4 D4");
+    assertTrue(get("C4 D4") == notes);
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  public void changingTheTuningRecompiles() {
+    NoteSequence concert = get("A4");
+    NoteSequence alternate = cache.get("A4", PitchTable.ALTERNATE, DEFAULT_DURATION,
+        DEFAULT_VOLUME);
+    assertTrue(alternate != concert);
+    assertEquals(432, alternate.frequency(0), TOLERANCE);
+    assertEquals(2, cache.misses());
+  }
+
+  @Test
+  public void leastRecentlyUsedMelodyIsEvicted() {
+    NoteSequence first = get("C4");
+    get("D4");
+    // Using the first melody again makes the second the least recently used.
+    get("C4");
+    get("E4");
+    assertTrue(get("C4") == first);
+    assertEquals(2, cache.hits());
+    get("D4");
+    assertEquals(4, cache.misses());
+  }
+
+  private NoteSequence get(String melody) {
+    return cache.get(melody, PitchTable.CONCERT, DEFAULT_DURATION, DEFAULT_VOLUME);
+  }
+
+  private static void assertNote(NoteSequence notes, int index, long onset, float frequency,
+      float duration, float volume) {
+    assertEquals(onset, notes.onset(index));
+    assertEquals(frequency, notes.frequency(index), TOLERANCE);
+    assertEquals(duration, notes.duration(index), TOLERANCE);
+    assertEquals(volume, notes.volume(index), TOLERANCE);
+  }
+}
@@ -0,0 +1,232 @@
+package com.google.appinventor.components.runtime.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link MidiFile}, reading small files written byte by byte.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public class MidiFileTest {
+  private static final float TOLERANCE = 1e-4f;
+  private static final int[] END_OF_TRACK = {0x00, 0xff, 0x2f, 0x00};
+
+  @Test
+  public void runningStatusContinuesNotes() throws IOException {
+    // 480 ticks per quarter note, at the default 120 beats per minute.
+    MidiFile.NoteReader notes = read(0, 480, track(
+        0x00, 0x90, 60, 100,
+        0x00, 62, 80,
+        0x83, 0x60, 60, 0,
+        0x00, 62, 0)).notes();
+    assertNote(notes, 0, 0.5f, 0, 60, 100);
+    assertNote(notes, 0, 0.5f, 0, 62, 80);
+    assertFalse(notes.next());
+  }
+
+  @Test
+  public void noteOffWithVelocityEndsNote() throws IOException {
+    MidiFile.NoteReader notes = read(0, 96, track(
+        0x00, 0x99, 36, 127,
+        0x30, 0x89, 36, 64)).notes();
+    assertNote(notes, 0, 0.25f, 9, 36, 127);
+    assertEquals(1, notes.volume(), TOLERANCE);
+    assertFalse(notes.next());
+  }
+
+  @Test
+  public void followsTempoChanges() throws IOException {
+    // A quarter note at 120 beats per minute, then at 60.
+    byte[] tempos = track(
+        0x00, 0xff, 0x51, 0x03, 0x07, 0xa1, 0x20,
+        0x60, 0xff, 0x51, 0x03, 0x0f, 0x42, 0x40);
+    byte[] melody = track(
+        0x00, 0x90, 64, 100,
+        0x60, 0x80, 64, 0,
+        0x00, 0x90, 65, 100,
+        0x60, 0x80, 65, 0);
+    MidiFile.NoteReader notes = read(1, 96, tempos, melody).notes();
+    assertNote(notes, 0, 0.5f, 0, 64, 100);
+    assertNote(notes, 500, 1, 0, 65, 100);
+    assertFalse(notes.next());
+  }
+
+  @Test
+  public void tempoChangeInsideNoteStretchesIt() throws IOException {
+    MidiFile.NoteReader notes = read(0, 96, track(
+        0x00, 0x90, 64, 100,
+        0x60, 0xff, 0x51, 0x03, 0x0f, 0x42, 0x40,
+        0x60, 0x80, 64, 0)).notes();
+    assertNote(notes, 0, 1.5f, 0, 64, 100);
+  }
+
+  @Test
+  public void smpteDivisionIgnoresTempo() throws IOException {
+    // 25 frames per second of 40 ticks: a millisecond per tick.
+    MidiFile.NoteReader notes = read(0, 0xe728, track(
+        0x00, 0xff, 0x51, 0x03, 0x0f, 0x42, 0x40,
+        0x00, 0x90, 60, 100,
+        0x83, 0x74, 0x80, 60, 0,
+        0x83, 0x74, 0x90, 62, 100,
+        0x64, 0x80, 62, 0)).notes();
+    assertNote(notes, 0, 0.5f, 0, 60, 100);
+    assertNote(notes, 1000, 0.1f, 0, 62, 100);
+    assertFalse(notes.next());
+  }
+
+  @Test
+  public void tracksAreMergedByOnset() throws IOException {
+    byte[] bass = track(
+        0x00, 0x91, 40, 90,
+        0x60, 0x81, 40, 0,
+        0x00, 0x91, 43, 90,
+        0x60, 0x81, 43, 0);
+    byte[] lead = track(
+        0x30, 0x92, 72, 70,
+        0x60, 0x82, 72, 0);
+    MidiFile file = read(1, 96, bass, lead);
+    assertEquals(2, file.tracks());
+    MidiFile.NoteReader notes = file.notes();
+    assertNote(notes, 0, 0.5f, 1, 40, 90);
+    assertNote(notes, 250, 0.5f, 2, 72, 70);
+    assertNote(notes, 500, 0.5f, 1, 43, 90);
+    assertFalse(notes.next());
+  }
+
+  @Test
+  public void readersAreIndependent() throws IOException {
+    MidiFile file = read(0, 96, track(
+        0x00, 0x90, 60, 100,
+        0x60, 0x80, 60, 0));
+    MidiFile.NoteReader first = file.notes();
+    assertTrue(first.next());
+    assertFalse(first.next());
+    MidiFile.NoteReader second = file.notes();
+    assertNote(second, 0, 0.5f, 0, 60, 100);
+  }
+
+  @Test
+  public void sysexCancelsRunningStatus() throws IOException {
+    MidiFile.NoteReader notes = read(0, 96, track(
+        0x00, 0x90, 60, 100,
+        0x00, 0xf0, 0x03, 0x7e, 0x7f, 0xf7,
+        0x60, 0x80, 60, 0)).notes();
+    assertNote(notes, 0, 0.5f, 0, 60, 100);
+    assertFalse(notes.next());
+  }
+
+  @Test
+  public void truncatedTrackKeepsItsNotes() throws IOException {
+    // The track claims more bytes than the file has, and is cut off inside an event.
+    byte[] events = bytes(0x00, 0x90, 60, 100, 0x60, 0x90, 62);
+    MidiFile.NoteReader notes = read(0, 96, chunk(0x4d54726b, events, 40)).notes();
+    // A note the file ends during lasts until the end of the track.
+    assertNote(notes, 0, 0.5f, 0, 60, 100);
+    assertFalse(notes.next());
+  }
+
+  @Test
+  public void missingTracksAreSkipped() throws IOException {
+    // The header promises one more track than the file has.
+    MidiFile file = MidiFile.read(write(header(1, 2, 96),
+        track(0x00, 0x90, 60, 100, 0x60, 0x80, 60, 0)));
+    assertEquals(1, file.tracks());
+    assertNote(file.notes(), 0, 0.5f, 0, 60, 100);
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsWhatIsNotAMidiFile() throws IOException {
+    MidiFile.read(write(chunk(0x52494646, new byte[8], 8)));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsTruncatedHeader() throws IOException {
+    MidiFile.read(write(bytes(0x4d, 0x54, 0x68, 0x64, 0x00, 0x00, 0x00, 0x06, 0x00)));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsZeroDivision() throws IOException {
+    read(0, 0, track(0x00, 0x90, 60, 100));
+  }
+
+  private static void assertNote(MidiFile.NoteReader notes, long onset, float duration,
+      int channel, int key, int velocity) {
+    assertTrue(notes.next());
+    assertEquals(onset, notes.onset());
+    assertEquals(duration, notes.duration(), TOLERANCE);
+    assertEquals(channel, notes.channel());
+    assertEquals(key, notes.key());
+    assertEquals(velocity, notes.velocity());
+  }
+
+  private static MidiFile read(int format, int division, byte[]... tracks) throws IOException {
+    byte[][] chunks = new byte[tracks.length + 1][];
+    chunks[0] = header(format, tracks.length, division);
+    System.arraycopy(tracks, 0, chunks, 1, tracks.length);
+    return MidiFile.read(write(chunks));
+  }
+
+  private static File write(byte[]... chunks) throws IOException {
+    File file = File.createTempFile("MidiFileTest", ".mid");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      for (byte[] chunk : chunks) {
+        out.write(chunk);
+      }
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  private static byte[] header(int format, int tracks, int division) {
+    return chunk(0x4d546864, bytes(format >> 8, format, tracks >> 8, tracks,
+        division >> 8, division), 6);
+  }
+
+  // Returns a track chunk holding the given events followed by the end of the track.
+  private static byte[] track(int... events) {
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    for (int b : events) {
+      data.write(b);
+    }
+    for (int b : END_OF_TRACK) {
+      data.write(b);
+    }
+    return chunk(0x4d54726b, data.toByteArray(), data.size());
+  }
+
+  // Returns a chunk with the given ID and data, claiming to be the given length.
+  private static byte[] chunk(int id, byte[] data, int length) {
+    ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+    writeInt(chunk, id);
+    writeInt(chunk, length);
+    chunk.write(data, 0, data.length);
+    return chunk.toByteArray();
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int value) {
+    out.write(value >> 24);
+    out.write(value >> 16);
+    out.write(value >> 8);
+    out.write(value);
+  }
+
+  private static byte[] bytes(int... values) {
+    byte[] bytes = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      bytes[i] = (byte) values[i];
+    }
+    return bytes;
+  }
+}
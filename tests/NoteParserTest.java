@@ -0,0 +1,127 @@
+package com.google.appinventor.components.runtime.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link NoteParser}, in both the note-letter and frequency formats.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public class NoteParserTest {
+  private static final float DEFAULT_DURATION = 500;
+  private static final float DEFAULT_VOLUME = 50;
+  private static final float TOLERANCE = 1e-3f;
+
+  private final float[] result = new float[NoteParser.PARAM_COUNT];
+  private NoteParser parser;
+
+  @Before
+  public void setUp() {
+    parser = new NoteParser();
+  }
+
+  @Test
+  public void noteLetterFormat() {
+    assertTrue(parse("A", 4, 250, 80));
+    assertEquals(null, parser.error());
+    assertEquals(440, result[NoteParser.FREQUENCY], TOLERANCE);
+    assertEquals(0.25f, result[NoteParser.DURATION], TOLERANCE);
+    assertEquals(0.8f, result[NoteParser.VOLUME], TOLERANCE);
+  }
+
+  @Test
+  public void sharpsFlatsAndH() {
+    assertTrue(parse("C#", 4));
+    assertEquals(277.183f, result[NoteParser.FREQUENCY], TOLERANCE);
+    assertTrue(parse("Db", "4"));
+    assertEquals(277.183f, result[NoteParser.FREQUENCY], TOLERANCE);
+    assertTrue(parse("H", 3));
+    assertEquals(246.942f, result[NoteParser.FREQUENCY], TOLERANCE);
+  }
+
+  @Test
+  public void cFlatAndBSharpStayInTheirOctave() {
+    assertTrue(parse("Cb", 4));
+    assertEquals(493.883f, result[NoteParser.FREQUENCY], TOLERANCE);
+    assertTrue(parse("B#", 4));
+    assertEquals(261.626f, result[NoteParser.FREQUENCY], TOLERANCE);
+  }
+
+  @Test
+  public void missingArgumentsTakeDefaults() {
+    assertTrue(parse("A", 4));
+    assertEquals(0.5f, result[NoteParser.DURATION], TOLERANCE);
+    assertEquals(0.5f, result[NoteParser.VOLUME], TOLERANCE);
+    assertTrue(parse(220));
+    assertEquals(220, result[NoteParser.FREQUENCY], TOLERANCE);
+    assertEquals(0.5f, result[NoteParser.DURATION], TOLERANCE);
+  }
+
+  @Test
+  public void frequencyFormat() {
+    assertTrue(parse("330.5", 1000, "25"));
+    assertEquals(330.5f, result[NoteParser.FREQUENCY], TOLERANCE);
+    assertEquals(1, result[NoteParser.DURATION], TOLERANCE);
+    assertEquals(0.25f, result[NoteParser.VOLUME], TOLERANCE);
+  }
+
+  @Test
+  public void parsesFromAnOffset() {
+    Object[] note = {"ignored", "E", 5};
+    assertTrue(parser.parse(note, 1, DEFAULT_DURATION, DEFAULT_VOLUME, result));
+    assertEquals(659.255f, result[NoteParser.FREQUENCY], TOLERANCE);
+  }
+
+  @Test
+  public void followsThePitchTable() {
+    parser.setPitchTable(PitchTable.ALTERNATE);
+    assertTrue(parse("A", 4));
+    assertEquals(432, result[NoteParser.FREQUENCY], TOLERANCE);
+  }
+
+  @Test
+  public void noteWithoutOctaveIsRejected() {
+    assertFalse(parse("A"));
+    assertTrue(parser.error() != null);
+  }
+
+  @Test
+  public void badFrequencyIsRejected() {
+    assertFalse(parse("loud", 100));
+    assertTrue(parser.error() != null);
+    assertFalse(parse(new Object(), 100));
+    assertTrue(parser.error() != null);
+    assertFalse(parse((Object) null));
+    assertTrue(parser.error() != null);
+  }
+
+  @Test
+  public void badOptionalArgumentsKeepDefaults() {
+    assertTrue(parse("A", 4, "long"));
+    assertTrue(parser.error() != null);
+    assertEquals(440, result[NoteParser.FREQUENCY], TOLERANCE);
+    assertEquals(0.5f, result[NoteParser.DURATION], TOLERANCE);
+    assertTrue(parse(440, 100, "soft"));
+    assertTrue(parser.error() != null);
+    assertEquals(0.1f, result[NoteParser.DURATION], TOLERANCE);
+    assertEquals(0.5f, result[NoteParser.VOLUME], TOLERANCE);
+  }
+
+  @Test
+  public void extraElementsAreIgnoredWithAWarning() {
+    assertTrue(parse("A", 4, 100, 100, 7));
+    assertTrue(parser.error() != null);
+    assertEquals(1, result[NoteParser.VOLUME], TOLERANCE);
+    assertTrue(parse("A", 4));
+    assertEquals(null, parser.error());
+  }
+
+  private boolean parse(Object... note) {
+    return parser.parse(note, 0, DEFAULT_DURATION, DEFAULT_VOLUME, result);
+  }
+}
@@ -0,0 +1,195 @@
+package com.google.appinventor.components.runtime.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link OscEncoder} and {@link OscTemplate}, decoding the packets they send.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public class OscEncoderTest {
+  private static final int MAX_PACKET_SIZE = 8192;
+  private static final long TIME_TAG = OscBundleSender.timeTag(1234567890123L);
+  private static final int NODE_ID = 2;
+  private static final int FREQUENCY = 6;
+  private static final int VOLUME = 8;
+
+  private final Object[] note = {
+      "/s_new", "sine-inst", 1000, 0, 1, "freq", 440f, "mul", 0.5f
+  };
+  private final List<byte[]> packets = new ArrayList<byte[]>();
+  private OscBundleSender sender;
+  private OscEncoder encoder;
+
+  @Before
+  public void setUp() {
+    sender = new OscBundleSender(new OscTransport() {
+      @Override
+      public void send(ByteBuffer packet) {
+        byte[] bytes = new byte[packet.remaining()];
+        packet.get(bytes);
+        packets.add(bytes);
+      }
+
+      @Override
+      public void close() {
+      }
+    });
+    encoder = new OscEncoder(sender);
+  }
+
+  @Test
+  public void templateEncodesLikeTheSender() throws IOException {
+    Object[] message = {"/n_set", 1000, "gate", 0f, "data", new byte[] {1, 2, 3, 4, 5}, 7};
+    sender.send(TIME_TAG, new Object[][] {message}, 1);
+    encoder.startBundle(TIME_TAG);
+    encoder.add(new OscTemplate(message));
+    assertEquals(1, encoder.send());
+    assertEquals(2, packets.size());
+    assertTrue(Arrays.equals(packets.get(0), packets.get(1)));
+  }
+
+  @Test
+  public void patchesArgumentsInPlace() throws IOException {
+    OscTemplate template = new OscTemplate(note);
+    encoder.startBundle(TIME_TAG);
+    int first = encoder.add(template);
+    encoder.setInt(template, first, NODE_ID, 1001);
+    encoder.setFloat(template, first, FREQUENCY, 330);
+    int second = encoder.add(template);
+    encoder.setFloat(template, second, VOLUME, 0.25f);
+    encoder.send();
+    List<Object[]> messages = messages(packets.get(0));
+    assertEquals(2, messages.size());
+    assertMessage(messages.get(0), 1001, 330, 0.5f);
+    // Patches apply to their own copy, leaving the template's defaults for the next.
+    assertMessage(messages.get(1), 1000, 440, 0.25f);
+  }
+
+  @Test
+  public void patchesArgumentsAfterStringsAndBlobs() throws IOException {
+    Object[] message = {"/b_setn", "abcd", 0, new byte[] {1, 2, 3}, 0f, "e", 0};
+    OscTemplate template = new OscTemplate(message);
+    encoder.startBundle(TIME_TAG);
+    int handle = encoder.add(template);
+    encoder.setInt(template, handle, 2, 11);
+    encoder.setFloat(template, handle, 4, 2.5f);
+    encoder.setInt(template, handle, 6, 13);
+    encoder.send();
+    Object[] decoded = messages(packets.get(0)).get(0);
+    assertEquals("abcd", decoded[1]);
+    assertEquals(11, decoded[2]);
+    assertTrue(Arrays.equals(new byte[] {1, 2, 3}, (byte[]) decoded[3]));
+    assertEquals(2.5f, decoded[4]);
+    assertEquals("e", decoded[5]);
+    assertEquals(13, decoded[6]);
+  }
+
+  @Test
+  public void splitsBundlesAcrossPackets() throws IOException {
+    OscTemplate template = new OscTemplate(note);
+    int count = 3 * MAX_PACKET_SIZE / (template.size() + 4);
+    encoder.startBundle(TIME_TAG);
+    for (int i = 0; i < count; i++) {
+      encoder.setInt(template, encoder.add(template), NODE_ID, 1000 + i);
+    }
+    assertEquals(count, encoder.send());
+    assertTrue(packets.size() >= 3);
+    int nodeId = 1000;
+    for (byte[] packet : packets) {
+      assertTrue(packet.length <= MAX_PACKET_SIZE);
+      // Each packet is a whole bundle with the same time tag.
+      assertEquals(TIME_TAG, timeTag(packet));
+      for (Object[] message : messages(packet)) {
+        assertEquals(nodeId++, message[NODE_ID]);
+      }
+    }
+    assertEquals(1000 + count, nodeId);
+  }
+
+  @Test
+  public void senderSplitsBundlesAcrossPackets() throws IOException {
+    int count = 3 * MAX_PACKET_SIZE / (new OscTemplate(note).size() + 4);
+    Object[][] messages = new Object[count][];
+    for (int i = 0; i < count; i++) {
+      messages[i] = note.clone();
+      messages[i][NODE_ID] = 1000 + i;
+    }
+    sender.send(TIME_TAG, messages, count);
+    assertTrue(packets.size() >= 3);
+    int nodeId = 1000;
+    for (byte[] packet : packets) {
+      assertTrue(packet.length <= MAX_PACKET_SIZE);
+      assertEquals(TIME_TAG, timeTag(packet));
+      for (Object[] message : messages(packet)) {
+        assertEquals(nodeId++, message[NODE_ID]);
+      }
+    }
+    assertEquals(1000 + count, nodeId);
+  }
+
+  @Test
+  public void startingABundleDiscardsWhatWasNotSent() throws IOException {
+    OscTemplate template = new OscTemplate(note);
+    encoder.startBundle(TIME_TAG);
+    encoder.add(template);
+    encoder.startBundle(OscBundleSender.IMMEDIATELY);
+    encoder.setInt(template, encoder.add(template), NODE_ID, 1001);
+    assertEquals(1, encoder.send());
+    assertEquals(1, packets.size());
+    assertEquals(OscBundleSender.IMMEDIATELY, timeTag(packets.get(0)));
+    assertEquals(1, messages(packets.get(0)).size());
+  }
+
+  @Test
+  public void emptyBundleIsNotSent() throws IOException {
+    encoder.startBundle(TIME_TAG);
+    assertEquals(0, encoder.send());
+    assertEquals(0, packets.size());
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsMessageLargerThanAPacket() throws IOException {
+    encoder.startBundle(TIME_TAG);
+    encoder.add(new OscTemplate(new Object[] {"/d_recv", new byte[MAX_PACKET_SIZE]}));
+  }
+
+  private void assertMessage(Object[] message, int nodeId, float frequency, float volume) {
+    assertEquals(note.length, message.length);
+    assertEquals("/s_new", message[0]);
+    assertEquals("sine-inst", message[1]);
+    assertEquals(nodeId, message[NODE_ID]);
+    assertEquals(frequency, message[FREQUENCY]);
+    assertEquals(volume, message[VOLUME]);
+  }
+
+  private static long timeTag(byte[] bundle) {
+    ByteBuffer packet = ByteBuffer.wrap(bundle);
+    assertEquals(OscDecoder.BUNDLE_ADDRESS, OscDecoder.readString(packet));
+    return packet.getLong();
+  }
+
+  // Decodes the messages of a bundle.
+  private static List<Object[]> messages(byte[] bundle) {
+    ByteBuffer packet = ByteBuffer.wrap(bundle);
+    assertEquals(OscDecoder.BUNDLE_ADDRESS, OscDecoder.readString(packet));
+    packet.getLong();
+    List<Object[]> messages = new ArrayList<Object[]>();
+    while (packet.hasRemaining()) {
+      byte[] message = new byte[packet.getInt()];
+      packet.get(message);
+      messages.add(OscDecoder.readMessage(ByteBuffer.wrap(message)));
+    }
+    return messages;
+  }
+}
@@ -0,0 +1,82 @@
+package com.google.appinventor.components.runtime.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link PitchTable}'s note names and tuning.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public class PitchTableTest {
+  private static final float TOLERANCE = 1e-3f;
+
+  @Test
+  public void lettersInEitherCase() {
+    assertEquals(0, PitchTable.pitchClass("C"));
+    assertEquals(0, PitchTable.pitchClass("c"));
+    assertEquals(9, PitchTable.pitchClass("A"));
+    assertEquals(11, PitchTable.pitchClass("b"));
+  }
+
+  @Test
+  public void sharpsAndFlats() {
+    assertEquals(1, PitchTable.pitchClass("C#"));
+    assertEquals(6, PitchTable.pitchClass("f#"));
+    assertEquals(10, PitchTable.pitchClass("Bb"));
+    assertEquals(3, PitchTable.pitchClass("EB"));
+  }
+
+  @Test
+  public void accidentalsWrapWithinTheOctave() {
+    assertEquals(11, PitchTable.pitchClass("Cb"));
+    assertEquals(0, PitchTable.pitchClass("B#"));
+    // Same numbered octave, not the neighbouring one.
+    PitchTable table = PitchTable.CONCERT;
+    assertEquals(table.frequency(11, 4), table.frequency(PitchTable.pitchClass("Cb"), 4),
+        TOLERANCE);
+    assertEquals(table.frequency(0, 4), table.frequency(PitchTable.pitchClass("B#"), 4),
+        TOLERANCE);
+  }
+
+  @Test
+  public void hIsTheGermanB() {
+    assertEquals(11, PitchTable.pitchClass("H"));
+    assertEquals(11, PitchTable.pitchClass("h"));
+    assertEquals(10, PitchTable.pitchClass("Hb"));
+  }
+
+  @Test
+  public void rejectsWhatIsNotANoteName() {
+    assertEquals(PitchTable.NO_NOTE, PitchTable.pitchClass(""));
+    assertEquals(PitchTable.NO_NOTE, PitchTable.pitchClass("I"));
+    assertEquals(PitchTable.NO_NOTE, PitchTable.pitchClass("Cx"));
+    assertEquals(PitchTable.NO_NOTE, PitchTable.pitchClass("C##"));
+    assertEquals(PitchTable.NO_NOTE, PitchTable.pitchClass("440"));
+  }
+
+  @Test
+  public void frequenciesFollowTheReference() {
+    assertEquals(440, PitchTable.CONCERT.frequency(9, 4), TOLERANCE);
+    assertEquals(261.626f, PitchTable.CONCERT.frequency(0, 4), TOLERANCE);
+    assertEquals(440, PitchTable.CONCERT.frequency(PitchTable.noteNumber(9, 4)), TOLERANCE);
+    assertEquals(432, PitchTable.forReference(432).frequency(9, 4), TOLERANCE);
+    assertEquals(445, PitchTable.forReference(445).frequency(9, 4), TOLERANCE);
+  }
+
+  @Test
+  public void octavesBeyondMidiRangeDoubleAndHalve() {
+    PitchTable table = PitchTable.CONCERT;
+    assertEquals(table.frequency(9, 8) * 4, table.frequency(9, 10), TOLERANCE);
+    assertEquals(table.frequency(0, 0) / 4, table.frequency(0, -2), TOLERANCE);
+  }
+
+  @Test
+  public void sharedTablesAreReused() {
+    assertTrue(PitchTable.forReference(440) == PitchTable.CONCERT);
+    assertTrue(PitchTable.forReference(432) == PitchTable.ALTERNATE);
+    assertTrue(PitchTable.forReference(450) == PitchTable.forReference(450));
+  }
+}
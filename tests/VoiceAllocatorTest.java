@@ -0,0 +1,159 @@
+package com.google.appinventor.components.runtime.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link VoiceAllocator}'s ID recycling, expiry and voice stealing.
+ *
+ * @author trevorbadams@gmail.com (Trevor Adams)
+ */
+public class VoiceAllocatorTest {
+  private static final int FIRST_ID = 1000;
+  private static final int ID_COUNT = 8;
+  private static final int CAPACITY = 4;
+  private static final long FOREVER = Long.MAX_VALUE;
+
+  private final Object owner = new Object();
+  private final Object other = new Object();
+  private final int[] stolen = new int[1];
+  private VoiceAllocator voices;
+
+  @Before
+  public void setUp() {
+    voices = new VoiceAllocator(FIRST_ID, ID_COUNT, CAPACITY);
+  }
+
+  @Test
+  public void idsCycleThroughTheRange() {
+    for (int i = 0; i < CAPACITY; i++) {
+      assertEquals(FIRST_ID + i, allocate(owner, 0, i, FOREVER, 1));
+      assertEquals(VoiceAllocator.NONE, stolen[0]);
+    }
+    voices.release(FIRST_ID);
+    // Freed IDs are reused only after the rest of the range.
+    for (int i = CAPACITY; i < ID_COUNT; i++) {
+      voices.release(FIRST_ID + i - 3);
+      assertEquals(FIRST_ID + i, allocate(owner, 0, i, FOREVER, 1));
+    }
+    assertEquals(FIRST_ID, allocate(owner, 0, 0, FOREVER, 1));
+  }
+
+  @Test
+  public void liveIdsAreSkipped() {
+    int first = allocate(owner, 0, 0, FOREVER, 1);
+    for (int i = 1; i < ID_COUNT; i++) {
+      voices.release(allocate(owner, 0, 0, FOREVER, 1));
+    }
+    // The range has wrapped around to the first ID, which is still live.
+    assertEquals(FIRST_ID + 1, allocate(owner, 0, 0, FOREVER, 1));
+    assertTrue(voices.isLive(owner, first, 0));
+  }
+
+  @Test
+  public void stealsOldestAtTheLimit() {
+    allocate(owner, 0, 20, FOREVER, 1);
+    int oldest = allocate(owner, 0, 10, FOREVER, 1);
+    allocate(owner, 0, 30, FOREVER, 1);
+    allocate(owner, 0, 40, FOREVER, 1);
+    allocate(owner, 0, 50, FOREVER, 1);
+    assertEquals(oldest, stolen[0]);
+    assertEquals(CAPACITY, voices.liveCount(null, 0));
+    assertFalse(voices.isLive(owner, oldest, 0));
+  }
+
+  @Test
+  public void stealsQuietestAtTheLimit() {
+    voices.setLimit(2);
+    allocate(owner, 0, 0, FOREVER, 0.5f);
+    int quietest = allocate(owner, 0, 1, FOREVER, 0.1f);
+    voices.allocate(owner, 0, VoiceAllocator.STEAL_QUIETEST, 2, FOREVER, 0.9f, stolen);
+    assertEquals(quietest, stolen[0]);
+    assertEquals(2, voices.liveCount(null, 0));
+  }
+
+  @Test
+  public void ownerLimitStealsOnlyTheOwnersVoices() {
+    int othersOldest = allocate(other, 0, 0, FOREVER, 1);
+    int ownersOldest = allocate(owner, 2, 1, FOREVER, 1);
+    allocate(owner, 2, 2, FOREVER, 1);
+    allocate(owner, 2, 3, FOREVER, 1);
+    assertEquals(ownersOldest, stolen[0]);
+    assertTrue(voices.isLive(other, othersOldest, 0));
+    assertEquals(2, voices.liveCount(owner, 0));
+    assertEquals(1, voices.liveCount(other, 0));
+  }
+
+  @Test
+  public void limitIsClampedToCapacity() {
+    voices.setLimit(0);
+    assertEquals(1, voices.limit());
+    voices.setLimit(CAPACITY * 2);
+    assertEquals(CAPACITY, voices.limit());
+  }
+
+  @Test
+  public void endedVoicesExpireWithoutStealing() {
+    for (int i = 0; i < CAPACITY; i++) {
+      allocate(owner, 0, 0, 100, 1);
+    }
+    assertEquals(CAPACITY, voices.liveCount(owner, 99));
+    assertEquals(0, voices.liveCount(owner, 100));
+    voices.allocate(owner, 0, VoiceAllocator.STEAL_OLDEST, 100, 100, 200, 1, stolen);
+    assertEquals(VoiceAllocator.NONE, stolen[0]);
+  }
+
+  @Test
+  public void laterVoiceCountsVoicesStillSoundingNow() {
+    voices.setLimit(1);
+    int first = allocate(owner, 0, 0, 100, 1);
+    // Starts after the first ends, but is allocated while it sounds.
+    voices.allocate(owner, 0, VoiceAllocator.STEAL_OLDEST, 50, 200, 300, 1, stolen);
+    assertEquals(first, stolen[0]);
+  }
+
+  @Test
+  public void endByOnlyBringsTheEndForward() {
+    int nodeId = allocate(owner, 0, 0, 100, 1);
+    voices.endBy(nodeId, 200);
+    assertFalse(voices.isLive(owner, nodeId, 100));
+    nodeId = allocate(owner, 0, 100, 300, 1);
+    voices.endBy(nodeId, 150);
+    assertTrue(voices.isLive(owner, nodeId, 149));
+    assertFalse(voices.isLive(owner, nodeId, 150));
+  }
+
+  @Test
+  public void delayMovesLiveVoicesLater() {
+    int nodeId = allocate(owner, 0, 0, 100, 1);
+    voices.delay(50);
+    assertTrue(voices.isLive(owner, nodeId, 120));
+    assertFalse(voices.isLive(owner, nodeId, 150));
+  }
+
+  @Test
+  public void releaseAllFreesOnlyTheOwnersVoices() {
+    allocate(owner, 0, 0, FOREVER, 1);
+    allocate(owner, 0, 0, FOREVER, 1);
+    int othersVoice = allocate(other, 0, 0, FOREVER, 1);
+    assertEquals(2, voices.releaseAll(owner));
+    assertEquals(0, voices.liveCount(owner, 0));
+    assertTrue(voices.isLive(other, othersVoice, 0));
+    assertFalse(voices.isLive(owner, othersVoice, 0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void idRangeMustExceedCapacity() {
+    new VoiceAllocator(FIRST_ID, CAPACITY, CAPACITY);
+  }
+
+  private int allocate(Object voiceOwner, int ownerLimit, long startTime, long endTime,
+      float volume) {
+    return voices.allocate(voiceOwner, ownerLimit, VoiceAllocator.STEAL_OLDEST, startTime,
+        endTime, volume, stolen);
+  }
+}